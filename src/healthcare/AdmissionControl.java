@@ -0,0 +1,292 @@
+package healthcare;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import healthcare.main.Patient;
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalsDatabase;
+
+// AdmissionControl protects vitals ingest during a surge, e.g. a whole device fleet reconnecting after an
+// outage and sending its backlog at once. Readings no longer go straight into the store: they are admitted
+// into a bounded ingest queue that a storage thread drains. How full that queue is sets the load level, and
+// each level sheds more of the readings that matter least:
+//
+//   NORMAL     below 50%   every reading within its device's rate is admitted
+//   DEGRADED   50% - 85%   routine readings are downsampled to one per device per DOWNSAMPLE_MILLIS
+//   SHEDDING   above 85%   routine readings are dropped
+//
+// Every device also has a token bucket (ratePerSecond, burst) so a single runaway device cannot fill the queue.
+// Critical readings are never shed, at any level and whatever the device's bucket says. A reading is critical
+// when it breaks the patient's alert thresholds, or when the patient has an active alert: a threshold, trend or
+// rhythm alert, or a pressed PanicButton within the last ALERT_HOLD_MILLIS. Routine readings stop at 85%, which
+// leaves the rest of the queue to them; when even that is full, submit() waits for room instead of dropping.
+//
+// Shed readings are counted per reason (see metrics()). A device is told they were handled, so it does not send
+// them again and make the surge worse.
+class AdmissionControl {
+    static final int DEFAULT_CAPACITY = 65_536;
+    static final double DEFAULT_RATE_PER_SECOND = 5;
+    static final int DEFAULT_BURST = 300;
+    static final long DOWNSAMPLE_MILLIS = 60_000;
+    static final long ALERT_HOLD_MILLIS = 30 * 60 * 1000L;
+    static final double DEGRADED_AT = 0.50;
+    static final double SHEDDING_AT = 0.85;
+
+    enum Level { NORMAL, DEGRADED, SHEDDING }
+
+    // Per-device admission state: the token bucket and the last routine reading admitted.
+    static final class Source {
+        final String deviceId;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private long lastRoutineTimestamp = Long.MIN_VALUE;
+
+        private Source(String deviceId, double tokens) {
+            this.deviceId = deviceId;
+            this.tokens = tokens;
+        }
+    }
+
+    // Readings for the storage thread, column by column (see Patient.enterVitals for the encoding).
+    static final class Batch {
+        final VitalsDatabase vitalsDb;
+        final Patient[] patients;
+        final long[] timestamps;
+        final int[] heartRates;
+        final int[] oxygenLevels;
+        final int[] systolic;
+        final int[] diastolic;
+        final double[] temperatures;
+        final int size;
+
+        Batch(VitalsDatabase vitalsDb, Patient[] patients, long[] timestamps, int[] heartRates, int[] oxygenLevels,
+              int[] systolic, int[] diastolic, double[] temperatures, int size) {
+            this.vitalsDb = vitalsDb;
+            this.patients = Arrays.copyOf(patients, size);
+            this.timestamps = Arrays.copyOf(timestamps, size);
+            this.heartRates = Arrays.copyOf(heartRates, size);
+            this.oxygenLevels = Arrays.copyOf(oxygenLevels, size);
+            this.systolic = Arrays.copyOf(systolic, size);
+            this.diastolic = Arrays.copyOf(diastolic, size);
+            this.temperatures = Arrays.copyOf(temperatures, size);
+            this.size = size;
+        }
+    }
+
+    private final int capacity;
+    private final double ratePerSecond;
+    private final int burst;
+    // One permit per queued reading.
+    private final Semaphore room;
+    private final LinkedBlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+    // Patient ID -> time (epoch millis) until which the patient's readings are critical.
+    private final Map<String, Long> activeAlerts = new ConcurrentHashMap<>();
+    private final AtomicReference<Level> level = new AtomicReference<>(Level.NORMAL);
+    private final Thread storage;
+
+    private final AtomicLong admittedRoutine = new AtomicLong();
+    private final AtomicLong admittedCritical = new AtomicLong();
+    private final AtomicLong shedRateLimited = new AtomicLong();
+    private final AtomicLong shedDownsampled = new AtomicLong();
+    private final AtomicLong shedOverload = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong submitWaits = new AtomicLong();
+    private volatile int peakQueued;
+
+    AdmissionControl() {
+        this(DEFAULT_CAPACITY, DEFAULT_RATE_PER_SECOND, DEFAULT_BURST);
+    }
+
+    AdmissionControl(int capacity, double ratePerSecond, int burst) {
+        if (capacity < 2 * DeviceGateway.MAX_FRAME_BYTES / DeviceGateway.RECORD_BYTES || ratePerSecond <= 0
+                || burst < 1) {
+            throw new IllegalArgumentException("Bad admission limits: capacity " + capacity + ", rate "
+                    + ratePerSecond + ", burst " + burst);
+        }
+        this.capacity = capacity;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        room = new Semaphore(capacity);
+        storage = new Thread(this::drain, "vitals-ingest");
+        storage.setDaemon(true);
+        storage.start();
+    }
+
+    Source source(String deviceId) {
+        return sources.computeIfAbsent(deviceId, id -> new Source(id, burst));
+    }
+
+    // Makes the patient's readings critical for the next ALERT_HOLD_MILLIS.
+    void alertRaised(String patientId) {
+        activeAlerts.put(patientId, System.currentTimeMillis() + ALERT_HOLD_MILLIS);
+    }
+
+    boolean hasActiveAlert(String patientId) {
+        Long until = activeAlerts.get(patientId);
+        if (until == null) {
+            return false;
+        }
+        if (until < System.currentTimeMillis()) {
+            activeAlerts.remove(patientId, until);
+            return false;
+        }
+        return true;
+    }
+
+    // Decides whether one reading from the source enters the queue. Called on the ingest thread of the source
+    // (e.g. a DeviceGateway event loop); the reading itself is handed over later in a Batch.
+    boolean admit(Source source, String patientId, long timestamp, int heartRate, int oxygenLevel, int systolic,
+                  BatchRuleEvaluator.Thresholds thresholds) {
+        boolean critical = thresholds.isBrokenBy(heartRate, oxygenLevel, systolic);
+        if (critical) {
+            // A threshold breach is itself an active alert: the readings that follow are needed too.
+            alertRaised(patientId);
+        } else {
+            critical = hasActiveAlert(patientId);
+        }
+        Level current = level();
+        synchronized (source) {
+            long now = System.nanoTime();
+            source.tokens = Math.min(burst, source.tokens + (now - source.refilledAt) * ratePerSecond / 1e9);
+            source.refilledAt = now;
+            if (critical) {
+                // Still charged, so the device's routine readings pay for the critical burst afterwards.
+                source.tokens = Math.max(source.tokens - 1, -burst);
+                admittedCritical.incrementAndGet();
+                return true;
+            }
+            if (source.tokens < 1) {
+                shedRateLimited.incrementAndGet();
+                return false;
+            }
+            if (current == Level.SHEDDING) {
+                shedOverload.incrementAndGet();
+                return false;
+            }
+            if (current == Level.DEGRADED && source.lastRoutineTimestamp != Long.MIN_VALUE
+                    && timestamp - source.lastRoutineTimestamp < DOWNSAMPLE_MILLIS) {
+                shedDownsampled.incrementAndGet();
+                return false;
+            }
+            source.tokens -= 1;
+            source.lastRoutineTimestamp = timestamp;
+        }
+        admittedRoutine.incrementAndGet();
+        return true;
+    }
+
+    // Queues admitted readings for storage. Waits while the queue is full, which also stops the caller from
+    // reading more from its devices (TCP then pushes back on them).
+    void submit(Batch batch) {
+        if (batch.size == 0) {
+            return;
+        }
+        if (!room.tryAcquire(batch.size)) {
+            submitWaits.incrementAndGet();
+            room.acquireUninterruptibly(batch.size);
+        }
+        queue.add(batch);
+        int queued = capacity - room.availablePermits();
+        if (queued > peakQueued) {
+            peakQueued = queued;
+        }
+        updateLevel(queued);
+    }
+
+    private void drain() {
+        while (true) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                for (int i = 0; i < batch.size; i++) {
+                    // One bad reading (or patient) must not stop the storage thread or lose the rest of the batch.
+                    try {
+                        batch.patients[i].enterVitals(batch.timestamps[i], batch.heartRates[i],
+                                batch.oxygenLevels[i], batch.systolic[i], batch.diastolic[i], batch.temperatures[i],
+                                batch.vitalsDb);
+                        stored.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        SystemLogs.addLog("Could not store reading for patient " + batch.patients[i].getUserId()
+                                + ": " + e);
+                    }
+                }
+            } finally {
+                room.release(batch.size);
+                updateLevel(capacity - room.availablePermits());
+            }
+        }
+    }
+
+    private void updateLevel(int queued) {
+        double fill = (double) queued / capacity;
+        Level next = fill >= SHEDDING_AT ? Level.SHEDDING : fill >= DEGRADED_AT ? Level.DEGRADED : Level.NORMAL;
+        Level previous = level.getAndSet(next);
+        if (previous != next) {
+            SystemLogs.addLog("Vitals ingest load " + previous + " -> " + next + " (" + queued + " of " + capacity
+                    + " queued)");
+        }
+    }
+
+    Level level() {
+        return level.get();
+    }
+
+    int queued() {
+        return capacity - room.availablePermits();
+    }
+
+    long shed() {
+        return shedRateLimited.get() + shedDownsampled.get() + shedOverload.get();
+    }
+
+    long admittedCritical() {
+        return admittedCritical.get();
+    }
+
+    long admitted() {
+        return admittedRoutine.get() + admittedCritical.get();
+    }
+
+    long stored() {
+        return stored.get();
+    }
+
+    // Admitted readings that could not be stored (see the system log).
+    long failed() {
+        return failed.get();
+    }
+
+    // Waits (up to the given time) until every admitted reading has been stored or has failed; true if so.
+    boolean awaitStored(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (stored.get() + failed.get() < admitted()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    String metrics() {
+        return String.format("Ingest load %s, %d of %d queued (peak %d), %d producer waits%n"
+                        + "Admitted: %d routine, %d critical; stored %d, failed %d%n"
+                        + "Shed: %d over device rate, %d downsampled, %d dropped under overload",
+                level(), queued(), capacity, peakQueued, submitWaits.get(), admittedRoutine.get(),
+                admittedCritical.get(), stored.get(), failed.get(), shedRateLimited.get(), shedDownsampled.get(),
+                shedOverload.get());
+    }
+}
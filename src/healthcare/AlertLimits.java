@@ -0,0 +1,13 @@
+package healthcare;
+
+// Vital sign limits of the EmergencyAlert rules. Kept in their own file so the analytics, rule evaluation,
+// pipeline and waveform modules can use them; EmergencyAlert itself lives in main.java.
+final class AlertLimits {
+    static final int HEART_RATE_WARNING = 100;
+    static final int HEART_RATE_CRITICAL = 120;
+    static final int BLOOD_PRESSURE_CRITICAL = 180;
+    static final int OXYGEN_LOW = 90;
+
+    private AlertLimits() {
+    }
+}
@@ -0,0 +1,236 @@
+package healthcare;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// AnomalyDetector looks for slow deterioration that never crosses the EmergencyAlert thresholds, e.g. SpO2
+// drifting from 98 to 93 over a few hours. Every reading of every patient goes through update().
+//
+// For each patient and vital it keeps a baseline: an exponentially weighted mean and mean absolute deviation
+// with a time constant of BASELINE_TAU (independent of how often readings arrive). Residuals are clipped to
+// +/- CLIP deviations before they update the baseline, so single artefacts (a loose sensor) hardly move it.
+// Each reading's residual in standard deviations feeds a two-sided CUSUM. When the upward or downward sum
+// passes THRESHOLD, a ChangePoint is reported; the baseline then jumps to the recent level (a fast EWMA)
+// and the sums restart, so a drift that keeps going is reported again.
+//
+// Memory per patient is fixed (a double[] plus two fields) and update() is O(1) and allocation-free unless it
+// reports a change. Readings older than the newest one seen for the patient (replays, replicas) are ignored.
+class AnomalyDetector {
+    static final String[] VITALS = {"heart rate", "SpO2", "systolic BP", "diastolic BP", "temperature"};
+    static final long BASELINE_TAU = 4 * 60 * 60 * 1000L;
+    static final long RECENT_TAU = 10 * 60 * 1000L;
+    // Readings needed before a patient's baseline is trusted.
+    static final int WARM_UP = 30;
+    static final double SLACK = 1.0;
+    static final double THRESHOLD = 8.0;
+    static final double CLIP = 4.0;
+    // Lower bounds for the deviation, since readings are rounded (HR, SpO2 and BP are whole numbers).
+    private static final double[] MIN_DEVIATION = {1.5, 0.6, 3.0, 2.0, 0.1};
+    // Mean absolute deviation to standard deviation for normally distributed noise.
+    private static final double MAD_TO_SD = 1.2533;
+
+    private static final int CHANNELS = VITALS.length;
+    private static final int MEAN = 0;
+    private static final int DEVIATION = 1;
+    private static final int RECENT = 2;
+    private static final int UP = 3;
+    private static final int DOWN = 4;
+    private static final int FIELDS = 5;
+
+    // A detected shift of one vital away from the patient's baseline.
+    static final class ChangePoint {
+        final String patientId;
+        final String vital;
+        final long timestamp;
+        final boolean rising;
+        final double baseline;
+        final double level;
+
+        ChangePoint(String patientId, String vital, long timestamp, boolean rising, double baseline, double level) {
+            this.patientId = patientId;
+            this.vital = vital;
+            this.timestamp = timestamp;
+            this.rising = rising;
+            this.baseline = baseline;
+            this.level = level;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s trending %s: baseline %.1f, now %.1f", vital, rising ? "up" : "down",
+                    baseline, level);
+        }
+    }
+
+    private static final class State {
+        final double[] values = new double[CHANNELS * FIELDS];
+        final int[] counts = new int[CHANNELS];
+        long lastTimestamp = Long.MIN_VALUE;
+    }
+
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+    private final Consumer<ChangePoint> sink;
+    private final AtomicLong reported = new AtomicLong();
+
+    // sink receives every change point, on the thread that stored the reading.
+    AnomalyDetector(Consumer<ChangePoint> sink) {
+        this.sink = sink;
+    }
+
+    // Missing values: VitalsSeries.NO_VALUE for the integer vitals, NaN for the temperature.
+    void update(String patientId, long timestamp, int heartRate, int oxygenLevel, int systolic, int diastolic,
+                double temperature) {
+        State state = states.computeIfAbsent(patientId, id -> new State());
+        ChangePoint change = null;
+        synchronized (state) {
+            if (timestamp <= state.lastTimestamp) {
+                return;
+            }
+            long elapsed = state.lastTimestamp == Long.MIN_VALUE ? 0 : timestamp - state.lastTimestamp;
+            state.lastTimestamp = timestamp;
+            double slow = 1 - Math.exp(-(double) elapsed / BASELINE_TAU);
+            double fast = 1 - Math.exp(-(double) elapsed / RECENT_TAU);
+            for (int c = 0; c < CHANNELS; c++) {
+                double x = value(c, heartRate, oxygenLevel, systolic, diastolic, temperature);
+                if (Double.isNaN(x)) {
+                    continue;
+                }
+                ChangePoint found = update(state, c, x, slow, fast, patientId, timestamp);
+                // If several vitals shift with the same reading, the first one is reported.
+                if (found != null && change == null) {
+                    change = found;
+                }
+            }
+        }
+        if (change != null) {
+            reported.incrementAndGet();
+            sink.accept(change);
+        }
+    }
+
+    private static double value(int channel, int heartRate, int oxygenLevel, int systolic, int diastolic,
+                                double temperature) {
+        int v;
+        switch (channel) {
+            case 0:
+                v = heartRate;
+                break;
+            case 1:
+                v = oxygenLevel;
+                break;
+            case 2:
+                v = systolic;
+                break;
+            case 3:
+                v = diastolic;
+                break;
+            default:
+                return temperature;
+        }
+        return v == VitalsSeries.NO_VALUE ? Double.NaN : v;
+    }
+
+    private static ChangePoint update(State state, int channel, double x, double slow, double fast,
+                                      String patientId, long timestamp) {
+        double[] s = state.values;
+        int base = channel * FIELDS;
+        int n = ++state.counts[channel];
+        if (n == 1) {
+            s[base + MEAN] = x;
+            s[base + RECENT] = x;
+            s[base + DEVIATION] = MIN_DEVIATION[channel];
+            return null;
+        }
+        double deviation = Math.max(s[base + DEVIATION], MIN_DEVIATION[channel]);
+        double residual = x - s[base + MEAN];
+        double z = residual / (deviation * MAD_TO_SD);
+        // Plain averages while warming up, so the baseline does not stick to the first reading.
+        double weight = n <= WARM_UP ? Math.max(slow, 1.0 / n) : slow;
+        double clipped = Math.max(-CLIP * deviation, Math.min(CLIP * deviation, residual));
+        s[base + MEAN] += weight * clipped;
+        s[base + DEVIATION] += weight * (Math.abs(clipped) - s[base + DEVIATION]);
+        s[base + RECENT] += Math.max(fast, 1.0 / n) * (x - s[base + RECENT]);
+        if (n <= WARM_UP) {
+            return null;
+        }
+        z = Math.max(-CLIP, Math.min(CLIP, z));
+        s[base + UP] = Math.max(0, s[base + UP] + z - SLACK);
+        s[base + DOWN] = Math.max(0, s[base + DOWN] - z - SLACK);
+        boolean rising = s[base + UP] > THRESHOLD;
+        if (!rising && s[base + DOWN] <= THRESHOLD) {
+            return null;
+        }
+        ChangePoint change = new ChangePoint(patientId, VITALS[channel], timestamp, rising, s[base + MEAN],
+                s[base + RECENT]);
+        s[base + MEAN] = s[base + RECENT];
+        s[base + UP] = 0;
+        s[base + DOWN] = 0;
+        return change;
+    }
+
+    // Drops the state of a patient (e.g. after the patient was removed or moved to another shard).
+    void forget(String patientId) {
+        states.remove(patientId);
+    }
+
+    long changePointsReported() {
+        return reported.get();
+    }
+
+    int patientsTracked() {
+        return states.size();
+    }
+
+    // Benchmark: java -cp bin healthcare.AnomalyDetector [patients] [hours]
+    // One reading per patient per minute with Gaussian noise. Patient P0's SpO2 drifts from 98 to 93 over the
+    // first six hours; every other patient is stable, so their change points are false alarms.
+    public static void main(String[] args) {
+        int patients = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int hours = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+        long[] firstDrift = {-1};
+        AtomicLong falseAlarms = new AtomicLong();
+        long start0 = 1_700_000_000_000L;
+        AnomalyDetector detector = new AnomalyDetector(cp -> {
+            if (cp.patientId.equals("P0")) {
+                if (firstDrift[0] < 0) {
+                    firstDrift[0] = cp.timestamp;
+                    System.out.println("P0 after " + (cp.timestamp - start0) / 60_000 + " min: " + cp);
+                }
+            } else {
+                falseAlarms.incrementAndGet();
+            }
+        });
+        String[] ids = new String[patients];
+        for (int p = 0; p < patients; p++) {
+            ids[p] = "P" + p;
+        }
+        Random random = new Random(42);
+        int minutes = hours * 60;
+        long updates = 0;
+        long nanos = 0;
+        for (int m = 0; m < minutes; m++) {
+            long ts = start0 + m * 60_000L;
+            long t0 = System.nanoTime();
+            for (int p = 0; p < patients; p++) {
+                double spo2Mean = p == 0 ? 98 - 5.0 * Math.min(1.0, m / 360.0) : 97;
+                detector.update(ids[p], ts, (int) Math.round(72 + 4 * random.nextGaussian()),
+                        (int) Math.round(spo2Mean + 0.8 * random.nextGaussian()),
+                        (int) Math.round(120 + 6 * random.nextGaussian()),
+                        (int) Math.round(80 + 4 * random.nextGaussian()), 36.8 + 0.15 * random.nextGaussian());
+            }
+            nanos += System.nanoTime() - t0;
+            updates += patients;
+        }
+        double patientHours = (double) (patients - 1) * hours;
+        System.out.printf("%d updates, %.0f ns per update (including the benchmark's random numbers)%n", updates,
+                (double) nanos / updates);
+        System.out.printf("False alarms on stable patients: %d (%.4f per patient-hour)%n", falseAlarms.get(),
+                falseAlarms.get() / patientHours);
+        if (firstDrift[0] < 0) {
+            System.out.println("P0's drift was not detected");
+        }
+    }
+}
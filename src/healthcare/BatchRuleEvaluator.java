@@ -0,0 +1,204 @@
+package healthcare;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// BatchRuleEvaluator checks blocks of readings against a patient's alert thresholds column by column,
+// instead of one reading at a time through an if-chain like EmergencyAlert.checkVitals.
+//
+// The kernel compares the heart rate, SpO2 and systolic columns with the thresholds using only subtraction,
+// shifts and ors: no branches and no calls, one int of rule bits per reading. The JIT (C2) turns such a loop
+// into SIMD code: with AVX2, eight readings per instruction. A second pass collects the indices of the flagged
+// readings. The scalar if-chain is kept as the fallback and as the reference the benchmark checks
+// the kernel against.
+//
+// An evaluator owns its scratch arrays and is not thread-safe; use one per thread. Callers pass blocks of about
+// BLOCK readings so the columns and the scratch stay in cache between the two passes.
+final class BatchRuleEvaluator {
+    // Readings per evaluate() call in the benchmark and in VitalsSeries; small enough for the L1/L2 cache.
+    static final int BLOCK = 4096;
+
+    // Rule bits reported per flagged reading.
+    static final int HEART_RATE = 1;
+    static final int OXYGEN = 2;
+    static final int SYSTOLIC = 4;
+
+    // Alert thresholds of one patient: a reading is flagged when heart rate > heartRateHigh,
+    // SpO2 < oxygenLow or systolic > systolicHigh (a missing systolic value never is).
+    static final class Thresholds {
+        static final Thresholds DEFAULT = new Thresholds(AlertLimits.HEART_RATE_CRITICAL, AlertLimits.OXYGEN_LOW,
+                AlertLimits.BLOOD_PRESSURE_CRITICAL);
+
+        final int heartRateHigh;
+        final int oxygenLow;
+        final int systolicHigh;
+
+        Thresholds(int heartRateHigh, int oxygenLow, int systolicHigh) {
+            if (heartRateHigh <= 0 || heartRateHigh > 300 || oxygenLow <= 0 || oxygenLow > 100
+                    || systolicHigh <= 0 || systolicHigh > 300) {
+                throw new IllegalArgumentException("Thresholds out of range: heart rate " + heartRateHigh
+                        + ", SpO2 " + oxygenLow + ", systolic " + systolicHigh);
+            }
+            this.heartRateHigh = heartRateHigh;
+            this.oxygenLow = oxygenLow;
+            this.systolicHigh = systolicHigh;
+        }
+
+        // The scalar check of one reading.
+        boolean isBrokenBy(int heartRate, int oxygenLevel, int systolic) {
+            return heartRate > heartRateHigh || oxygenLevel < oxygenLow
+                    || (systolic != VitalsSeries.NO_VALUE && systolic > systolicHigh);
+        }
+
+        @Override
+        public String toString() {
+            return "heart rate > " + heartRateHigh + ", SpO2 < " + oxygenLow + ", systolic > " + systolicHigh;
+        }
+    }
+
+    private final boolean scalar;
+    // Rule bits per reading, indexed like the columns (see flag); grown to the largest column evaluated.
+    private int[] reasons = new int[BLOCK];
+    private int[] indices = new int[BLOCK];
+
+    BatchRuleEvaluator() {
+        this(false);
+    }
+
+    // scalar = true uses the if-chain for every reading.
+    BatchRuleEvaluator(boolean scalar) {
+        this.scalar = scalar;
+    }
+
+    // Evaluates readings [from, to) of the columns and returns how many were flagged.
+    // row(k) and reasons(k) then describe the k-th flagged reading.
+    int evaluate(int[] heartRates, int[] oxygenLevels, int[] systolic, int from, int to, Thresholds t) {
+        if (reasons.length < to) {
+            reasons = new int[Math.max(to, reasons.length * 2)];
+        }
+        if (indices.length < to - from) {
+            indices = new int[Math.max(to - from, indices.length * 2)];
+        }
+        if (scalar) {
+            flagScalar(heartRates, oxygenLevels, systolic, from, to, t, reasons);
+        } else {
+            flag(heartRates, oxygenLevels, systolic, from, to, t, reasons);
+        }
+        return compact(reasons, from, to, indices);
+    }
+
+    // Column index of the k-th flagged reading of the last evaluate call.
+    int row(int k) {
+        return indices[k];
+    }
+
+    // Rule bits (HEART_RATE | OXYGEN | SYSTOLIC) of the k-th flagged reading.
+    int reasons(int k) {
+        return reasons[indices[k]];
+    }
+
+    // The vectorizable kernel. For a > b on small ints, (b - a) is negative exactly when the rule fires, so the
+    // sign bit is the rule bit. Systolic values are never negative except VitalsSeries.NO_VALUE, whose
+    // difference would overflow; '& ~s' clears the bit for it.
+    // reasons is written at the same index as the columns are read: C2 only vectorizes the loop when every
+    // array access uses the same index (an offset store, or storing bytes, runs one reading at a time, ~10x slower).
+    static void flag(int[] heartRates, int[] oxygenLevels, int[] systolic, int from, int to, Thresholds t,
+                     int[] reasons) {
+        int heartRateHigh = t.heartRateHigh;
+        int oxygenLow = t.oxygenLow;
+        int systolicHigh = t.systolicHigh;
+        for (int i = from; i < to; i++) {
+            int s = systolic[i];
+            reasons[i] = ((heartRateHigh - heartRates[i]) >>> 31)
+                    | (((oxygenLevels[i] - oxygenLow) >>> 31) << 1)
+                    | ((((systolicHigh - s) & ~s) >>> 31) << 2);
+        }
+    }
+
+    static void flagScalar(int[] heartRates, int[] oxygenLevels, int[] systolic, int from, int to, Thresholds t,
+                           int[] reasons) {
+        for (int i = from; i < to; i++) {
+            int r = 0;
+            if (heartRates[i] > t.heartRateHigh) {
+                r |= HEART_RATE;
+            }
+            if (oxygenLevels[i] < t.oxygenLow) {
+                r |= OXYGEN;
+            }
+            if (systolic[i] != VitalsSeries.NO_VALUE && systolic[i] > t.systolicHigh) {
+                r |= SYSTOLIC;
+            }
+            reasons[i] = r;
+        }
+    }
+
+    // Writes the positions of the non-zero entries of reasons[from, to) to indices; returns how many there are.
+    // Alerts are rare, so the branch is almost always predicted right; branch-free compaction (always store,
+    // advance the count by 0 or 1) measured about twice as slow at a 3% alert rate.
+    static int compact(int[] reasons, int from, int to, int[] indices) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (reasons[i] != 0) {
+                indices[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    // Benchmark: java -cp bin healthcare.BatchRuleEvaluator [readings]
+    // Compares the batch kernel with the scalar if-chain on random readings (about 2% flagged) and checks that
+    // both flag the same readings. Each variant is warmed up first so both are measured after JIT compilation.
+    public static void main(String[] args) {
+        int total = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(3);
+        int[] heartRates = new int[total];
+        int[] oxygen = new int[total];
+        int[] systolic = new int[total];
+        for (int i = 0; i < total; i++) {
+            heartRates[i] = 60 + random.nextInt(62);
+            oxygen[i] = 90 + random.nextInt(11) - (random.nextInt(100) == 0 ? 5 : 0);
+            systolic[i] = random.nextInt(50) == 0 ? VitalsSeries.NO_VALUE : 100 + random.nextInt(82);
+        }
+        Thresholds t = Thresholds.DEFAULT;
+        BatchRuleEvaluator batch = new BatchRuleEvaluator(false);
+        BatchRuleEvaluator scalarEvaluator = new BatchRuleEvaluator(true);
+        // Enough repeats per measurement to cover 20M readings, so small batches are not lost in timer noise.
+        int repeat = Math.max(1, 20_000_000 / total);
+        long[] batchFlagged = run(batch, heartRates, oxygen, systolic, t, repeat);
+        long[] scalarFlagged = run(scalarEvaluator, heartRates, oxygen, systolic, t, repeat);
+        long batchNanos = Long.MAX_VALUE;
+        long scalarNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 15; round++) {
+            long t0 = System.nanoTime();
+            run(batch, heartRates, oxygen, systolic, t, repeat);
+            long t1 = System.nanoTime();
+            run(scalarEvaluator, heartRates, oxygen, systolic, t, repeat);
+            long t2 = System.nanoTime();
+            batchNanos = Math.min(batchNanos, t1 - t0);
+            scalarNanos = Math.min(scalarNanos, t2 - t1);
+        }
+        double readings = (double) total * repeat;
+        System.out.printf("%d readings, %d flagged (%s)%n", total, batchFlagged[0] / repeat,
+                Arrays.equals(batchFlagged, scalarFlagged) ? "same as the if-chain" : "DIFFERENT from the if-chain");
+        System.out.printf("batch kernel: %6.0f M readings/s%nif-chain:     %6.0f M readings/s%nspeedup:      %6.1fx%n",
+                readings * 1e3 / batchNanos, readings * 1e3 / scalarNanos, (double) scalarNanos / batchNanos);
+    }
+
+    // Returns the number of flagged readings and a checksum of their positions and rule bits.
+    private static long[] run(BatchRuleEvaluator evaluator, int[] heartRates, int[] oxygen, int[] systolic,
+                            Thresholds t, int repeat) {
+        long flagged = 0;
+        long checksum = 0;
+        for (int r = 0; r < repeat; r++) {
+            for (int from = 0; from < heartRates.length; from += BLOCK) {
+                int to = Math.min(heartRates.length, from + BLOCK);
+                int matches = evaluator.evaluate(heartRates, oxygen, systolic, from, to, t);
+                for (int k = 0; k < matches; k++) {
+                    checksum = checksum * 31 + evaluator.row(k) * 8L + evaluator.reasons(k);
+                }
+                flagged += matches;
+            }
+        }
+        return new long[] {flagged, checksum};
+    }
+}
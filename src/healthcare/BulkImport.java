@@ -0,0 +1,584 @@
+package healthcare;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import healthcare.main.Doctor;
+import healthcare.main.Patient;
+import healthcare.main.SystemLogs;
+
+// BulkImport onboards patients and doctors from a file in one batch, e.g. when migrating a hospital.
+//
+// Accepted formats (chosen by file extension):
+//   .csv         role,id,name[,action] per line; an optional header line starting with "role"; fields may be
+//                quoted ("Smith, John"), with "" for a quote inside a quoted field, but not span lines
+//   .json/.jsonl a JSON array of objects or one object per line: {"role": "patient", "id": "P002",
+//                "name": "Jane Doe", "action": "add"}; values must be strings (nested values are rejected)
+// role is patient or doctor, action is add (the default), update (renames the user and keeps their data) or
+// remove. IDs may contain letters, digits, '-' and '_'.
+//
+// The file is split into chunks that are parsed and validated in parallel. IDs are then checked in one pass:
+// an ID that appears more than once in the file is only taken the first time, and existing users are found
+// through a hash map instead of a list scan per row. All accepted changes are applied to the lists at once
+// (one addAll and one removeIf per list), and one summary is written to the system logs.
+final class BulkImport {
+    private static final int CHUNK_CHARS = 1 << 20;
+    private static final int MAX_ERRORS_SHOWN = 10;
+
+    // One parsed input row. 'source' is the line (CSV, JSON Lines) or object number (JSON array), for errors.
+    private static final class Row {
+        final boolean doctor;
+        final String id;
+        final String name;
+        final String action;
+        final int source;
+
+        Row(boolean doctor, String id, String name, String action, int source) {
+            this.doctor = doctor;
+            this.id = id;
+            this.name = name;
+            this.action = action;
+            this.source = source;
+        }
+    }
+
+    // Parsed rows and errors of one chunk.
+    private static final class Parsed {
+        final List<Row> rows = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+    }
+
+    // What an import changed.
+    static final class Result {
+        int patientsAdded;
+        int doctorsAdded;
+        int updated;
+        int removed;
+        int duplicates;
+        int alreadyExisting;
+        int notFound;
+        int invalid;
+        final List<String> errors = new ArrayList<>();
+        long millis;
+
+        @Override
+        public String toString() {
+            return String.format("%d patients and %d doctors added, %d updated, %d removed; skipped %d duplicate IDs,"
+                            + " %d already existing, %d not found, %d invalid rows (%d ms)", patientsAdded,
+                    doctorsAdded, updated, removed, duplicates, alreadyExisting, notFound, invalid, millis);
+        }
+    }
+
+    private BulkImport() {
+    }
+
+    static Result importFile(Path file, List<Patient> patientDb, List<Doctor> doctorDb) throws IOException {
+        return importFile(file, patientDb, doctorDb, ForkJoinPool.commonPool());
+    }
+
+    static Result importFile(Path file, List<Patient> patientDb, List<Doctor> doctorDb, ForkJoinPool pool)
+            throws IOException {
+        long start = System.nanoTime();
+        String text = Files.readString(file, StandardCharsets.UTF_8);
+        String fileName = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean json = fileName.endsWith(".json") || fileName.endsWith(".jsonl");
+        List<int[]> chunks = json ? jsonChunks(text) : lineChunks(text);
+
+        List<Parsed> parsed = pool.submit(() -> chunks.parallelStream()
+                .map(range -> json ? parseJson(text, range) : parseCsv(text, range))
+                .collect(Collectors.toList())).join();
+
+        Result result = new Result();
+        for (Parsed p : parsed) {
+            result.invalid += p.errors.size();
+            addErrors(result, p.errors);
+        }
+        apply(parsed, json ? "object " : "line ", patientDb, doctorDb, result);
+        result.millis = (System.nanoTime() - start) / 1_000_000;
+        StringBuilder log = new StringBuilder("Bulk import from " + file + ": " + result);
+        for (String error : result.errors) {
+            log.append("\n  ").append(error);
+        }
+        SystemLogs.addLog(log.toString());
+        return result;
+    }
+
+    // Dedups, resolves against the existing users and applies everything as one batch.
+    private static void apply(List<Parsed> parsed, String sourceLabel, List<Patient> patientDb, List<Doctor> doctorDb,
+                              Result result) {
+        Map<String, Patient> patients = new HashMap<>(patientDb.size() * 2);
+        for (Patient p : patientDb) {
+            patients.put(p.getUserId(), p);
+        }
+        Map<String, Doctor> doctors = new HashMap<>(doctorDb.size() * 2);
+        for (Doctor d : doctorDb) {
+            doctors.put(d.getUserId(), d);
+        }
+        Set<String> seenPatients = new HashSet<>();
+        Set<String> seenDoctors = new HashSet<>();
+        List<Patient> newPatients = new ArrayList<>();
+        List<Doctor> newDoctors = new ArrayList<>();
+        Set<String> removedPatients = new HashSet<>();
+        Set<String> removedDoctors = new HashSet<>();
+        List<String> errors = new ArrayList<>();
+
+        for (Parsed p : parsed) {
+            for (Row row : p.rows) {
+                if (!(row.doctor ? seenDoctors : seenPatients).add(row.id)) {
+                    result.duplicates++;
+                    errors.add(sourceLabel + row.source + ": duplicate ID " + row.id);
+                    continue;
+                }
+                boolean exists = row.doctor ? doctors.containsKey(row.id) : patients.containsKey(row.id);
+                switch (row.action) {
+                    case "add":
+                        if (exists) {
+                            result.alreadyExisting++;
+                        } else if (row.doctor) {
+                            newDoctors.add(new Doctor(row.name, row.id));
+                        } else {
+                            newPatients.add(new Patient(row.name, row.id));
+                        }
+                        break;
+                    case "update":
+                        if (!exists) {
+                            result.notFound++;
+                        } else if (row.doctor) {
+                            doctors.get(row.id).setName(row.name);
+                            result.updated++;
+                        } else {
+                            patients.get(row.id).setName(row.name);
+                            result.updated++;
+                        }
+                        break;
+                    default:
+                        if (!exists) {
+                            result.notFound++;
+                        } else {
+                            (row.doctor ? removedDoctors : removedPatients).add(row.id);
+                        }
+                        break;
+                }
+            }
+        }
+        addErrors(result, errors);
+
+        if (!removedPatients.isEmpty()) {
+            patientDb.removeIf(p -> removedPatients.contains(p.getUserId()));
+            removedPatients.forEach(main.anomalyDetector::forget);
+        }
+        if (!removedDoctors.isEmpty()) {
+            doctorDb.removeIf(d -> removedDoctors.contains(d.getUserId()));
+        }
+        patientDb.addAll(newPatients);
+        doctorDb.addAll(newDoctors);
+        result.removed = removedPatients.size() + removedDoctors.size();
+        result.patientsAdded = newPatients.size();
+        result.doctorsAdded = newDoctors.size();
+    }
+
+    private static void addErrors(Result result, List<String> errors) {
+        for (String error : errors) {
+            if (result.errors.size() == MAX_ERRORS_SHOWN) {
+                return;
+            }
+            result.errors.add(error);
+        }
+    }
+
+    // Splits at line breaks into ranges of about CHUNK_CHARS. Each range is {start, end, first line number}.
+    private static List<int[]> lineChunks(String text) {
+        List<int[]> chunks = new ArrayList<>();
+        int start = 0;
+        int line = 1;
+        while (start < text.length()) {
+            int end = Math.min(text.length(), start + CHUNK_CHARS);
+            if (end < text.length()) {
+                int newline = text.indexOf('\n', end);
+                end = newline < 0 ? text.length() : newline + 1;
+            }
+            chunks.add(new int[] {start, end, line});
+            for (int i = start; i < end; i++) {
+                if (text.charAt(i) == '\n') {
+                    line++;
+                }
+            }
+            start = end;
+        }
+        return chunks;
+    }
+
+    // Finds the top-level JSON objects and groups them into ranges of about CHUNK_CHARS. The scan only
+    // tracks strings and brace depth; the objects themselves are parsed in parallel later.
+    // Each range is {start, end, number of the first object}.
+    private static List<int[]> jsonChunks(String text) {
+        List<int[]> chunks = new ArrayList<>();
+        int depth = 0;
+        boolean inString = false;
+        int chunkStart = -1;
+        int objects = 0;
+        int chunkFirst = 1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                if (depth++ == 0 && chunkStart < 0) {
+                    chunkStart = i;
+                    chunkFirst = objects + 1;
+                }
+            } else if (c == '}' && depth > 0) {
+                if (--depth == 0) {
+                    objects++;
+                    if (i + 1 - chunkStart >= CHUNK_CHARS) {
+                        chunks.add(new int[] {chunkStart, i + 1, chunkFirst});
+                        chunkStart = -1;
+                    }
+                }
+            }
+        }
+        if (chunkStart >= 0) {
+            chunks.add(new int[] {chunkStart, text.length(), chunkFirst});
+        }
+        return chunks;
+    }
+
+    private static Parsed parseCsv(String text, int[] range) {
+        Parsed parsed = new Parsed();
+        int line = range[2];
+        int pos = range[0];
+        List<String> fields = new ArrayList<>(4);
+        while (pos < range[1]) {
+            int end = text.indexOf('\n', pos);
+            if (end < 0 || end > range[1]) {
+                end = range[1];
+            }
+            String raw = text.substring(pos, end);
+            if (raw.endsWith("\r")) {
+                raw = raw.substring(0, raw.length() - 1);
+            }
+            if (!raw.isBlank() && !(line == 1 && raw.toLowerCase(Locale.ROOT).startsWith("role"))) {
+                String error = splitCsv(raw, fields);
+                if (error == null) {
+                    error = addRow(parsed, fields.get(0), fields.size() > 1 ? fields.get(1) : null,
+                            fields.size() > 2 ? fields.get(2) : null, fields.size() > 3 ? fields.get(3) : null,
+                            line);
+                }
+                if (error != null) {
+                    parsed.errors.add("line " + line + ": " + error);
+                }
+            }
+            line++;
+            pos = end + 1;
+        }
+        return parsed;
+    }
+
+    // Splits one CSV line into fields; returns an error message, or null.
+    private static String splitCsv(String line, List<String> fields) {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return "unterminated quote";
+        }
+        fields.add(field.toString().trim());
+        return null;
+    }
+
+    private static Parsed parseJson(String text, int[] range) {
+        Parsed parsed = new Parsed();
+        int number = range[2];
+        JsonReader reader = new JsonReader(text, range[0], range[1]);
+        Map<String, String> object = new HashMap<>();
+        while (reader.nextObject()) {
+            object.clear();
+            String error = reader.readObject(object);
+            if (error == null) {
+                error = addRow(parsed, object.get("role"), object.get("id"), object.get("name"), object.get("action"),
+                        number);
+            }
+            if (error != null) {
+                parsed.errors.add("object " + number + ": " + error);
+            }
+            number++;
+        }
+        return parsed;
+    }
+
+    // Validates one row and adds it; returns an error message, or null.
+    private static String addRow(Parsed parsed, String role, String id, String name, String action, int source) {
+        if (role == null || !(role.equalsIgnoreCase("patient") || role.equalsIgnoreCase("doctor"))) {
+            return "role must be patient or doctor";
+        }
+        if (id == null || id.isEmpty()) {
+            return "missing ID";
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return "invalid ID " + id;
+            }
+        }
+        String normalizedAction = action == null || action.isEmpty() ? "add" : action.toLowerCase(Locale.ROOT);
+        if (!normalizedAction.equals("add") && !normalizedAction.equals("update")
+                && !normalizedAction.equals("remove")) {
+            return "unknown action " + action;
+        }
+        if ((name == null || name.isEmpty()) && !normalizedAction.equals("remove")) {
+            return "missing name for " + id;
+        }
+        parsed.rows.add(new Row(role.equalsIgnoreCase("doctor"), id, name, normalizedAction, source));
+        return null;
+    }
+
+    // Minimal reader for flat JSON objects with string (or bare scalar) values.
+    private static final class JsonReader {
+        private final String text;
+        private final int end;
+        private int pos;
+
+        JsonReader(String text, int start, int end) {
+            this.text = text;
+            this.pos = start;
+            this.end = end;
+        }
+
+        // Moves to the next '{'; false when there is none left.
+        boolean nextObject() {
+            while (pos < end && text.charAt(pos) != '{') {
+                pos++;
+            }
+            return pos < end;
+        }
+
+        String readObject(Map<String, String> into) {
+            int objectEnd = findObjectEnd();
+            pos++;
+            try {
+                skipSpace();
+                if (peek() == '}') {
+                    pos++;
+                    return null;
+                }
+                while (true) {
+                    skipSpace();
+                    String key = readString();
+                    skipSpace();
+                    expect(':');
+                    skipSpace();
+                    char c = peek();
+                    if (c == '{' || c == '[') {
+                        throw new IllegalArgumentException("nested value for " + key);
+                    }
+                    into.put(key, c == '"' ? readString() : readBare());
+                    skipSpace();
+                    if (peek() == ',') {
+                        pos++;
+                    } else {
+                        expect('}');
+                        return null;
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                pos = objectEnd;
+                return e.getMessage();
+            }
+        }
+
+        // Position just after the '}' closing the object at pos, so a bad object can be skipped.
+        private int findObjectEnd() {
+            int depth = 0;
+            boolean inString = false;
+            for (int i = pos; i < end; i++) {
+                char c = text.charAt(i);
+                if (inString) {
+                    if (c == '\\') {
+                        i++;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{') {
+                    depth++;
+                } else if (c == '}' && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            return end;
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = next();
+                switch (e) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'u':
+                        if (pos + 4 > end) {
+                            throw new IllegalArgumentException("bad escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new IllegalArgumentException("bad escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        sb.append(e);
+                }
+            }
+        }
+
+        // A number, true, false or null, returned as text (null as Java null).
+        private String readBare() {
+            int start = pos;
+            while (pos < end && ",} \t\r\n".indexOf(text.charAt(pos)) < 0) {
+                pos++;
+            }
+            String value = text.substring(start, pos);
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("missing value");
+            }
+            return value.equals("null") ? null : value;
+        }
+
+        private void skipSpace() {
+            while (pos < end && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() {
+            if (pos >= end) {
+                throw new IllegalArgumentException("unexpected end of object");
+            }
+            return text.charAt(pos);
+        }
+
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char c) {
+            if (next() != c) {
+                throw new IllegalArgumentException("expected '" + c + "' at offset " + (pos - 1));
+            }
+        }
+    }
+
+    // Benchmark: java -cp bin healthcare.BulkImport [users] [dir]
+    // Writes a CSV and a JSON file with the given number of users and imports each into empty lists.
+    public static void main(String[] args) throws IOException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path dir = Files.createDirectories(Path.of(args.length > 1 ? args[1] : "import-demo"));
+        Path csv = dir.resolve("users.csv");
+        Path json = dir.resolve("users.json");
+        try (BufferedWriter out = Files.newBufferedWriter(csv)) {
+            out.write("role,id,name,action\n");
+            for (int i = 0; i < users; i++) {
+                out.write(i % 50 == 0 ? "doctor,D" + i + ",\"Doctor, No. " + i + "\",add\n"
+                        : "patient,P" + i + ",Patient " + i + ",add\n");
+            }
+            // A few rows that must be rejected.
+            out.write("patient,P1,Duplicate,add\nnurse,N1,Nobody,add\npatient,bad id,Bad,add\n");
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(json)) {
+            out.write("[\n");
+            for (int i = 0; i < users; i++) {
+                out.write("  {\"role\": \"" + (i % 50 == 0 ? "doctor" : "patient") + "\", \"id\": \""
+                        + (i % 50 == 0 ? "D" : "P") + i + "\", \"name\": \"User \\\"" + i + "\\\"\"}"
+                        + (i + 1 < users ? ",\n" : "\n"));
+            }
+            out.write("]\n");
+        }
+        for (Path file : List.of(csv, json)) {
+            List<Patient> patients = new SnapshotList<>();
+            List<Doctor> doctors = new SnapshotList<>();
+            Result result = importFile(file, patients, doctors);
+            System.out.println(file.getFileName() + ": " + result);
+            for (String error : result.errors) {
+                System.out.println("  " + error);
+            }
+        }
+        // A second pass over the same CSV with half the rows turned into updates and removals.
+        List<Patient> patients = new SnapshotList<>();
+        List<Doctor> doctors = new SnapshotList<>();
+        importFile(csv, patients, doctors);
+        Path changes = dir.resolve("changes.csv");
+        List<String> lines = IntStream.range(0, users).filter(i -> i % 50 != 0)
+                .mapToObj(i -> "patient,P" + i + "," + (i % 2 == 0 ? "Renamed " + i + ",update" : ",remove"))
+                .collect(Collectors.toList());
+        Files.write(changes, lines);
+        System.out.println("changes.csv: " + importFile(changes, patients, doctors) + "; patients left: "
+                + patients.size());
+    }
+}
@@ -0,0 +1,242 @@
+package healthcare;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import healthcare.main.Appointment;
+import healthcare.main.VitalSign;
+
+// ChangeFeed is an in-memory change log for vitals, appointment status changes, notifications and prescriptions.
+// Every change gets the next sequence number (starting at 1) and is kept in a fixed-size ring, so consumers
+// such as dashboards, analytics or replicas can read increments instead of re-reading full state, and
+// resume after a restart from the last sequence number they processed.
+// When a consumer falls further behind than the ring holds, it gets an OffsetTrimmedException and has to
+// reload full state before resuming from latestSeq() + 1.
+// Listeners (addListener) are called on the writing thread before the write returns, for consumers such as
+// caches that must never serve data older than the last completed write.
+// Readings ingested through VitalsDatabase.ingestVitals (device feeds) are not logged here, so that path stays
+// allocation-free; LiveFeed streams them.
+class ChangeFeed {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int MAX_DELIVERY_BATCH = 256;
+
+    enum Type { VITALS, APPOINTMENT, NOTIFICATION, PRESCRIPTION }
+
+    // One change. 'key' is the patient ID (for notifications: the recipient name or ID).
+    static final class Event {
+        final long seq;
+        final Type type;
+        final String key;
+        final long timestamp;
+        // VITALS
+        final VitalSign vitals;
+        // APPOINTMENT
+        final String doctorName;
+        final String date;
+        final String oldStatus;
+        final String newStatus;
+        // NOTIFICATION, PRESCRIPTION (the prescription text)
+        final String message;
+
+        private Event(long seq, Type type, String key, long timestamp, VitalSign vitals, String doctorName,
+                      String date, String oldStatus, String newStatus, String message) {
+            this.seq = seq;
+            this.type = type;
+            this.key = key;
+            this.timestamp = timestamp;
+            this.vitals = vitals;
+            this.doctorName = doctorName;
+            this.date = date;
+            this.oldStatus = oldStatus;
+            this.newStatus = newStatus;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case VITALS:
+                    return "#" + seq + " vitals " + key + " @" + timestamp + ": " + vitals;
+                case APPOINTMENT:
+                    return "#" + seq + " appointment " + key + " with Dr. " + doctorName + " on " + date + ": "
+                            + (oldStatus == null ? "new" : oldStatus) + " -> " + newStatus;
+                case PRESCRIPTION:
+                    return "#" + seq + " prescription " + key + ": " + message;
+                default:
+                    return "#" + seq + " notification " + key + ": " + message;
+            }
+        }
+    }
+
+    // Thrown when a consumer asks for sequence numbers that have already left the ring.
+    static final class OffsetTrimmedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        OffsetTrimmedException(long requested, long oldest) {
+            super("Change " + requested + " is no longer retained; the oldest retained change is " + oldest);
+        }
+    }
+
+    private final Event[] ring;
+    private final List<Consumer<Event>> listeners = new CopyOnWriteArrayList<>();
+    private long nextSeq = 1;
+    private int waitingSubscribers;
+
+    ChangeFeed() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    ChangeFeed(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        ring = new Event[capacity];
+    }
+
+    // Calls the listener with every change from now on, on the thread that made the change. Listeners must be
+    // quick and must not write to the feed.
+    void addListener(Consumer<Event> listener) {
+        listeners.add(listener);
+    }
+
+    void vitalsStored(String patientId, long timestamp, VitalSign vitals) {
+        append(Type.VITALS, patientId, timestamp, vitals, null, null, null, null, null);
+    }
+
+    // oldStatus is null for a newly requested appointment.
+    void appointmentChanged(Appointment appointment, String oldStatus) {
+        append(Type.APPOINTMENT, appointment.getPatientId(), System.currentTimeMillis(), null,
+                appointment.getDoctorName(), appointment.getAppointmentDate(), oldStatus, appointment.getStatus(), null);
+    }
+
+    void notificationAdded(String recipient, String message) {
+        append(Type.NOTIFICATION, recipient, System.currentTimeMillis(), null, null, null, null, null, message);
+    }
+
+    void prescriptionAdded(String patientId, String prescription) {
+        append(Type.PRESCRIPTION, patientId, System.currentTimeMillis(), null, null, null, null, null, prescription);
+    }
+
+    private void append(Type type, String key, long timestamp, VitalSign vitals, String doctorName,
+                        String date, String oldStatus, String newStatus, String message) {
+        Event event;
+        synchronized (this) {
+            long seq = nextSeq++;
+            event = new Event(seq, type, key, timestamp, vitals, doctorName, date, oldStatus, newStatus, message);
+            ring[(int) (seq % ring.length)] = event;
+            if (waitingSubscribers > 0) {
+                notifyAll();
+            }
+        }
+        for (Consumer<Event> listener : listeners) {
+            listener.accept(event);
+        }
+    }
+
+    // Sequence number of the newest change, or 0 if nothing has happened yet.
+    synchronized long latestSeq() {
+        return nextSeq - 1;
+    }
+
+    // Sequence number of the oldest change still retained.
+    synchronized long oldestSeq() {
+        return Math.max(1, nextSeq - ring.length);
+    }
+
+    // Returns up to 'max' changes starting at fromSeq (fewer, or none, if the feed is not that far yet).
+    synchronized List<Event> poll(long fromSeq, int max) {
+        long oldest = oldestSeq();
+        if (fromSeq < oldest) {
+            throw new OffsetTrimmedException(fromSeq, oldest);
+        }
+        List<Event> events = new ArrayList<>();
+        for (long seq = fromSeq; seq < nextSeq && events.size() < max; seq++) {
+            events.add(ring[(int) (seq % ring.length)]);
+        }
+        return events;
+    }
+
+    // Pushes every change from fromSeq on to the subscriber, respecting its demand. Delivery runs on a
+    // dedicated daemon thread per subscription; cancel() stops it. Use latestSeq() + 1 to only see new changes.
+    void subscribe(long fromSeq, Flow.Subscriber<? super Event> subscriber) {
+        FeedSubscription subscription = new FeedSubscription(fromSeq, subscriber);
+        subscriber.onSubscribe(subscription);
+        Thread thread = new Thread(subscription::deliver, "change-feed-subscriber");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private final class FeedSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Event> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private volatile boolean cancelled;
+        private long next;
+
+        FeedSubscription(long fromSeq, Flow.Subscriber<? super Event> subscriber) {
+            this.next = fromSeq;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Demand must be positive: " + n));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            wakeUp();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            wakeUp();
+        }
+
+        private void wakeUp() {
+            synchronized (ChangeFeed.this) {
+                ChangeFeed.this.notifyAll();
+            }
+        }
+
+        private void deliver() {
+            try {
+                while (!cancelled) {
+                    List<Event> batch;
+                    synchronized (ChangeFeed.this) {
+                        while (!cancelled && (demand.get() == 0 || next >= nextSeq)) {
+                            waitingSubscribers++;
+                            try {
+                                ChangeFeed.this.wait();
+                            } finally {
+                                waitingSubscribers--;
+                            }
+                        }
+                        if (cancelled) {
+                            return;
+                        }
+                        batch = poll(next, (int) Math.min(demand.get(), MAX_DELIVERY_BATCH));
+                    }
+                    for (Event event : batch) {
+                        if (cancelled) {
+                            return;
+                        }
+                        subscriber.onNext(event);
+                        next = event.seq + 1;
+                        demand.decrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                cancelled = true;
+                subscriber.onError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package healthcare;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import healthcare.main.SystemLogs;
+
+// ColdVitalsStore keeps fully aged vitals blocks in memory-mapped segment files on local disk.
+// Blocks from all patients are appended to the current segment; when it is full a new one is started.
+// Each segment is mapped exactly once, so the number of mappings grows with data size, not with block count.
+// A block is addressed by a location: (segment index << 32) | offset of the block bytes.
+//
+// Segments are kept across restarts. Every block is stored as a record that names its patient:
+//   int    block length (written last, so 0 marks the end of the segment; -1 is a tombstone, see forget())
+//   short  patient ID length, then the patient ID in UTF-8
+//   bytes  the CompressedVitalsBlock
+// Opening a directory maps its vitals-*.seg files, rebuilds the per-patient block lists from these records and
+// continues appending to the last segment. A VitalsSeries created for a patient later re-attaches the
+// patient's blocks (see VitalsSeries.attachCold), so the cold tier of a patient survives both eviction by
+// PatientStore and a restart. A LOCK file keeps a second store from writing into the same directory.
+class ColdVitalsStore {
+    static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    private static final String LOCK_FILE = "LOCK";
+    private static final int TOMBSTONE = -1;
+
+    // A stored block of one patient.
+    static final class BlockRef {
+        final long location;
+        final int length;
+
+        BlockRef(long location, int length) {
+            this.location = location;
+            this.length = length;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    // Held open for the life of the store: closing it would release the lock.
+    private final FileChannel lockChannel;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    // Blocks of each patient in append order; the lists are guarded by the store.
+    private final Map<String, List<BlockRef>> blocks = new HashMap<>();
+    private MappedByteBuffer active;
+    private int position;
+
+    ColdVitalsStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    ColdVitalsStore(Path directory, long segmentBytes) throws IOException {
+        if (segmentBytes <= CompressedVitalsBlock.HEADER_BYTES || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentBytes);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = (int) segmentBytes;
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock lock = lockChannel.tryLock();
+            if (lock == null) {
+                throw new IOException("Cold vitals directory " + directory + " is in use by another process");
+            }
+        } catch (OverlappingFileLockException e) {
+            lockChannel.close();
+            throw new IOException("Cold vitals directory " + directory + " is already open", e);
+        } catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+        reopen();
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    // Copies the patient's block into the active segment and returns the location of the block bytes.
+    synchronized long append(String patientId, ByteBuffer block) throws IOException {
+        byte[] id = patientId.getBytes(StandardCharsets.UTF_8);
+        int length = block.remaining();
+        int recordBytes = 4 + 2 + id.length + length;
+        if (id.length == 0 || id.length > 0xFFFF || recordBytes > segmentBytes) {
+            throw new IllegalArgumentException("Block of " + length + " bytes for '" + patientId
+                    + "' does not fit in a segment");
+        }
+        if (active == null || position + recordBytes > active.capacity()) {
+            openSegment();
+        }
+        int blockAt = position + 4 + 2 + id.length;
+        active.putShort(position + 4, (short) id.length);
+        active.put(position + 6, id);
+        active.put(blockAt, block, block.position(), length);
+        // The length goes in last: a record cut short by a crash still reads as the end of the segment.
+        active.putInt(position, length);
+        long location = ((long) (segments.size() - 1) << 32) | blockAt;
+        position += recordBytes;
+        blocks.computeIfAbsent(patientId, k -> new ArrayList<>()).add(new BlockRef(location, length));
+        return location;
+    }
+
+    // The patient's blocks in the order they were stored.
+    synchronized List<BlockRef> blocksOf(String patientId) {
+        List<BlockRef> list = blocks.get(patientId);
+        return list == null ? List.of() : new ArrayList<>(list);
+    }
+
+    // Drops the patient's blocks (the patient was deleted or moved to another shard). A tombstone record makes
+    // the drop survive a restart; the space is not reclaimed.
+    synchronized void forget(String patientId) throws IOException {
+        if (blocks.remove(patientId) == null) {
+            return;
+        }
+        byte[] id = patientId.getBytes(StandardCharsets.UTF_8);
+        int recordBytes = 4 + 2 + id.length;
+        if (active == null || position + recordBytes > active.capacity()) {
+            openSegment();
+        }
+        active.putShort(position + 4, (short) id.length);
+        active.put(position + 6, id);
+        active.putInt(position, TOMBSTONE);
+        position += recordBytes;
+    }
+
+    // Returns a read-only slice of the mapped segment holding the block.
+    ByteBuffer read(long location, int length) {
+        MappedByteBuffer segment = segments.get((int) (location >>> 32));
+        return segment.slice((int) location, length).asReadOnlyBuffer();
+    }
+
+    // Flushes dirty pages of every segment to disk.
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    // Maps the existing segments in order and indexes their records.
+    private void reopen() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(f -> f.getFileName().toString().matches("vitals-\\d{5}\\.seg")).sorted().toList();
+        }
+        for (Path file : files) {
+            if (!file.getFileName().toString().equals(segmentName(segments.size()))) {
+                // Locations are segment indexes, so a gap cannot be skipped.
+                throw new IOException("Cold vitals segment " + segmentName(segments.size()) + " is missing in "
+                        + directory);
+            }
+            MappedByteBuffer segment;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            }
+            segments.add(segment);
+            active = segment;
+            position = scan(segment, segments.size() - 1);
+        }
+        if (!segments.isEmpty()) {
+            long count = 0;
+            for (List<BlockRef> list : blocks.values()) {
+                count += list.size();
+            }
+            SystemLogs.addLog("Reopened " + segments.size() + " cold vitals segments in " + directory + ": "
+                    + count + " blocks of " + blocks.size() + " patients");
+        }
+    }
+
+    // Indexes the records of one segment and returns where the next record goes.
+    private int scan(MappedByteBuffer segment, int index) {
+        int at = 0;
+        while (at + 6 <= segment.capacity()) {
+            int length = segment.getInt(at);
+            if (length == 0) {
+                break;
+            }
+            int idLength = segment.getShort(at + 4) & 0xFFFF;
+            int blockAt = at + 6 + idLength;
+            int end = blockAt + Math.max(length, 0);
+            if (idLength == 0 || end > segment.capacity() || length < TOMBSTONE
+                    || (length > 0 && length < CompressedVitalsBlock.HEADER_BYTES)) {
+                SystemLogs.addLog("Cold vitals segment " + segmentName(index) + " is damaged at offset " + at
+                        + "; the rest of it is ignored");
+                // Nothing more is appended to a damaged segment.
+                return segment.capacity();
+            }
+            byte[] id = new byte[idLength];
+            segment.get(at + 6, id);
+            String patientId = new String(id, StandardCharsets.UTF_8);
+            if (length == TOMBSTONE) {
+                blocks.remove(patientId);
+            } else {
+                blocks.computeIfAbsent(patientId, k -> new ArrayList<>())
+                        .add(new BlockRef(((long) index << 32) | blockAt, length));
+            }
+            at = end;
+        }
+        return at;
+    }
+
+    private void openSegment() throws IOException {
+        Path file = directory.resolve(segmentName(segments.size()));
+        // CREATE_NEW: an existing segment is never overwritten.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            active = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segments.add(active);
+        position = 0;
+    }
+
+    private static String segmentName(int index) {
+        return String.format("vitals-%05d.seg", index);
+    }
+}
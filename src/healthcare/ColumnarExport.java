@@ -0,0 +1,734 @@
+package healthcare;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import healthcare.main.Appointment;
+import healthcare.main.Patient;
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalSign;
+import healthcare.main.VitalsDatabase;
+
+// ColumnarExport writes research extracts of vitals, appointments and medical history in a chunked, columnar,
+// compressed file format (".hcx") and reads them back.
+//
+// Patients are split into partitions by a hash of their ID. Each partition is written by its own thread to
+// its own file (part-00000.hcx, part-00001.hcx, ...). Rows are buffered per table in chunks of at most
+// CHUNK_ROWS rows, and a chunk is written out as soon as it is full, so memory use does not grow with the
+// size of the export. Patients that a PatientStore still holds on disk are read from their segment one at a
+// time, without being hydrated.
+//
+// File layout (big endian):
+//   file    := "HCX1" version:int fromTs:long toTs:long partition:int partitions:int chunk* footer
+//   chunk   := table:byte rows:int minTs:long maxTs:long columnCount:byte column*
+//   column  := encoding:byte rawBytes:int storedBytes:int data[storedBytes]    (data is DEFLATE-compressed)
+//   footer  := chunkCount:int (offset:long table:byte rows:int minTs:long maxTs:long)* footerOffset:long "HCX1"
+// A reader starts from the last 12 bytes, reads the footer, and can skip chunks by table or time range.
+//
+// Tables and their columns, in file order:
+//   VITALS        patient_id RLE_STRING, timestamp DELTA_LONG, heart_rate / oxygen_level / systolic /
+//                 diastolic DELTA_INT, temperature XOR_DOUBLE
+//   APPOINTMENTS  patient_id RLE_STRING, doctor STRING, epoch_day DELTA_INT, status DELTA_INT (Status ordinal;
+//                 OTHER statuses lose their text)
+//   HISTORY       patient_id RLE_STRING, timestamp DELTA_LONG, record STRING
+// Timestamps are epoch millis. Missing vitals are VitalsSeries.NO_VALUE, missing dates Appointment.NO_DATE,
+// and history records without a readable date have timestamp Long.MIN_VALUE. The min/max of an appointment
+// chunk are the start of its first and last day.
+//
+// Encodings before compression: DELTA_LONG and DELTA_INT store each value as a zigzag varint of the difference
+// to the previous value (the first one to 0). XOR_DOUBLE stores the 8 bytes of each value XOR the previous one.
+// STRING stores a varint of the UTF-8 length plus one and the bytes; 0 stands for a null value (a patient or
+// doctor the record does not name). RLE_STRING stores runs as (STRING value, varint length).
+final class ColumnarExport {
+    static final int MAGIC = 0x48435831;  // "HCX1"
+    // Version 2 encodes null strings (see STRING above).
+    static final int VERSION = 2;
+    static final int CHUNK_ROWS = 64 * 1024;
+    static final String FILE_PATTERN = "part-%05d.hcx";
+    private static final int FOOTER_TAIL_BYTES = 8 + 4;
+    // Deflate dominates the export time; the fastest level writes about twice as fast as the default level
+    // for roughly a quarter more bytes, since the delta encodings have already removed most redundancy.
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+    // Format of the timestamp MedicalHistory.addRecord puts in front of every record (Date.toString()).
+    private static final DateTimeFormatter HISTORY_DATE =
+            DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+
+    enum Table {
+        VITALS("patient_id", "timestamp", "heart_rate", "oxygen_level", "systolic", "diastolic", "temperature"),
+        APPOINTMENTS("patient_id", "doctor", "epoch_day", "status"),
+        HISTORY("patient_id", "timestamp", "record");
+
+        final List<String> columns;
+
+        Table(String... columns) {
+            this.columns = List.of(columns);
+        }
+    }
+
+    enum Encoding { DELTA_LONG, DELTA_INT, XOR_DOUBLE, STRING, RLE_STRING }
+
+    // Receives rows when a file is read back. Values are Long, Integer, Double or String, in column order.
+    interface RowVisitor {
+        void accept(Table table, Object[] row);
+    }
+
+    // Totals of one export.
+    static final class Result {
+        final List<Path> files;
+        final long vitalsRows;
+        final long appointmentRows;
+        final long historyRows;
+        final long bytes;
+        final long millis;
+
+        Result(List<Path> files, long vitalsRows, long appointmentRows, long historyRows, long bytes, long millis) {
+            this.files = files;
+            this.vitalsRows = vitalsRows;
+            this.appointmentRows = appointmentRows;
+            this.historyRows = historyRows;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files, %d vitals, %d appointments, %d history rows, %.1f MB in %d ms",
+                    files.size(), vitalsRows, appointmentRows, historyRows, bytes / 1e6, millis);
+        }
+    }
+
+    private ColumnarExport() {
+    }
+
+    // Exports everything with fromTs <= timestamp < toTs (Long.MIN_VALUE / Long.MAX_VALUE for no limit) into dir,
+    // using the given number of partitions and writer threads.
+    static Result export(Path dir, List<Patient> patients, List<Appointment> appointments, VitalsDatabase vitalsDb,
+                         long fromTs, long toTs, int partitions) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        List<Patient> patientList = new ArrayList<>(patients);
+        List<Appointment> appointmentList = new ArrayList<>(appointments);
+        ExecutorService pool = Executors.newFixedThreadPool(partitions);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            for (int p = 0; p < partitions; p++) {
+                int partition = p;
+                Path file = dir.resolve(String.format(FILE_PATTERN, p));
+                files.add(file);
+                futures.add(pool.submit(() -> writePartition(file, partition, partitions, patientList,
+                        appointmentList, vitalsDb, fromTs, toTs)));
+            }
+            long[] totals = new long[3];
+            long bytes = 0;
+            for (int p = 0; p < partitions; p++) {
+                long[] counts = futures.get(p).get();
+                for (int t = 0; t < totals.length; t++) {
+                    totals[t] += counts[t];
+                }
+                bytes += Files.size(files.get(p));
+            }
+            Result result = new Result(files, totals[0], totals[1], totals[2], bytes,
+                    (System.nanoTime() - start) / 1_000_000);
+            SystemLogs.addLog("Exported " + result + " to " + dir);
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Export failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Records without a patient ID (e.g. an appointment whose patient was never set) go to partition 0.
+    static int partitionOf(String patientId, int partitions) {
+        return patientId == null ? 0 : Math.floorMod(patientId.hashCode(), partitions);
+    }
+
+    private static long[] writePartition(Path file, int partition, int partitions, List<Patient> patients,
+                                         List<Appointment> appointments, VitalsDatabase vitalsDb, long fromTs,
+                                         long toTs) throws IOException {
+        PatientStore store = vitalsDb.getPatientStore();
+        int fromDay = fromTs == Long.MIN_VALUE ? Integer.MIN_VALUE : epochDayOf(fromTs);
+        int toDay = toTs == Long.MAX_VALUE ? Integer.MAX_VALUE : epochDayOf(toTs - 1);
+        try (Writer writer = new Writer(file, partition, partitions, fromTs, toTs)) {
+            for (Patient patient : patients) {
+                if (partitionOf(patient.getUserId(), partitions) == partition) {
+                    writer.addPatient(patient, vitalsDb, store);
+                }
+            }
+            for (Appointment a : appointments) {
+                if (partitionOf(a.getPatientId(), partitions) == partition) {
+                    int day = a.getEpochDay();
+                    boolean unfiltered = fromDay == Integer.MIN_VALUE && toDay == Integer.MAX_VALUE;
+                    if (day == Appointment.NO_DATE ? unfiltered : day >= fromDay && day <= toDay) {
+                        writer.addAppointment(a);
+                    }
+                }
+            }
+            writer.finish();
+            return new long[] {writer.rows[0], writer.rows[1], writer.rows[2]};
+        }
+    }
+
+    private static int epochDayOf(long millis) {
+        return (int) ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault())
+                .toLocalDate().toEpochDay();
+    }
+
+    // Timestamp in front of a history record, or Long.MIN_VALUE if it has none that can be read.
+    static long historyTimestamp(String record) {
+        int colon = record.indexOf(": ");
+        if (colon < 0) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return ZonedDateTime.parse(record.substring(0, colon), HISTORY_DATE).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // Rows of one table, waiting to be written as a chunk.
+    private static final class Chunk {
+        final Table table;
+        final String[] patients = new String[CHUNK_ROWS];
+        final long[] timestamps;
+        final int[][] ints;
+        final double[] doubles;
+        final String[] strings;
+        int rows;
+        long minTs = Long.MAX_VALUE;
+        long maxTs = Long.MIN_VALUE;
+
+        Chunk(Table table) {
+            this.table = table;
+            boolean vitals = table == Table.VITALS;
+            this.timestamps = table != Table.APPOINTMENTS ? new long[CHUNK_ROWS] : null;
+            this.ints = vitals ? new int[4][CHUNK_ROWS] : table == Table.APPOINTMENTS ? new int[2][CHUNK_ROWS] : null;
+            this.doubles = vitals ? new double[CHUNK_ROWS] : null;
+            this.strings = vitals ? null : new String[CHUNK_ROWS];
+        }
+
+        void time(long ts) {
+            if (ts != Long.MIN_VALUE) {
+                minTs = Math.min(minTs, ts);
+                maxTs = Math.max(maxTs, ts);
+            }
+        }
+
+        void clear() {
+            rows = 0;
+            minTs = Long.MAX_VALUE;
+            maxTs = Long.MIN_VALUE;
+            // Let the strings go; the primitive columns are simply overwritten.
+            Arrays.fill(patients, null);
+            if (strings != null) {
+                Arrays.fill(strings, null);
+            }
+        }
+    }
+
+    // Writes one partition file. Not thread-safe; every partition has its own writer.
+    private static final class Writer implements Closeable {
+        private final OutputStream out;
+        private final Chunk vitals = new Chunk(Table.VITALS);
+        private final Chunk appointments = new Chunk(Table.APPOINTMENTS);
+        private final Chunk history = new Chunk(Table.HISTORY);
+        private final long fromTs;
+        private final long toTs;
+        private final long[] rows = new long[3];
+        // Footer entries: offset, table, rows, minTs, maxTs.
+        private final List<long[]> index = new ArrayList<>();
+        private long position;
+
+        // Buffers reused for every chunk and column.
+        private final ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream(1 << 20);
+        private final ByteSink raw = new ByteSink(1 << 20);
+        private final ByteSink stored = new ByteSink(1 << 18);
+        private final Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+
+        Writer(Path file, int partition, int partitions, long fromTs, long toTs) throws IOException {
+            this.out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+            this.fromTs = fromTs;
+            this.toTs = toTs;
+            DataOutputStream header = new DataOutputStream(chunkBytes);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeLong(fromTs);
+            header.writeLong(toTs);
+            header.writeInt(partition);
+            header.writeInt(partitions);
+            flushBytes();
+        }
+
+        void addPatient(Patient patient, VitalsDatabase vitalsDb, PatientStore store) throws IOException {
+            String id = patient.getUserId();
+            PatientSnapshot onDisk = store == null ? null : store.readIfOnDisk(patient);
+            List<String> records;
+            if (onDisk != null) {
+                for (int i = 0; i < onDisk.vitals.size(); i++) {
+                    long ts = onDisk.vitalTimestamps.get(i);
+                    if (ts >= fromTs && ts < toTs) {
+                        VitalSign v = onDisk.vitals.get(i);
+                        addVitals(id, ts, v.getHeartRate(), v.getOxygenLevel(),
+                                VitalsSeries.parseSystolic(v.getBloodPressure()),
+                                VitalsSeries.parseDiastolic(v.getBloodPressure()), v.getTemperature());
+                    }
+                }
+                records = onDisk.historyRecords;
+            } else {
+                VitalsSeries series = vitalsDb.getSeries(id);
+                if (series != null) {
+                    try {
+                        series.view().scan(fromTs, toTs, (row, ts, hr, ox, sys, dia, temp) -> {
+                            try {
+                                addVitals(id, ts, hr, ox, sys, dia, temp);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                }
+                records = patient.getMedicalHistory().getHistoryRecords();
+            }
+            boolean unfiltered = fromTs == Long.MIN_VALUE && toTs == Long.MAX_VALUE;
+            for (String record : records) {
+                long ts = historyTimestamp(record);
+                if (ts == Long.MIN_VALUE ? unfiltered : ts >= fromTs && ts < toTs) {
+                    addHistory(id, ts, ts == Long.MIN_VALUE ? record : record.substring(record.indexOf(": ") + 2));
+                }
+            }
+        }
+
+        void addVitals(String patientId, long ts, int hr, int ox, int sys, int dia, double temp) throws IOException {
+            Chunk c = vitals;
+            int r = c.rows++;
+            c.patients[r] = patientId;
+            c.timestamps[r] = ts;
+            c.ints[0][r] = hr;
+            c.ints[1][r] = ox;
+            c.ints[2][r] = sys;
+            c.ints[3][r] = dia;
+            c.doubles[r] = temp;
+            c.time(ts);
+            rows[0]++;
+            if (c.rows == CHUNK_ROWS) {
+                writeChunk(c);
+            }
+        }
+
+        void addAppointment(Appointment a) throws IOException {
+            Chunk c = appointments;
+            int r = c.rows++;
+            c.patients[r] = a.getPatientId();
+            c.strings[r] = a.getDoctorName();
+            c.ints[0][r] = a.getEpochDay();
+            c.ints[1][r] = a.getStatusCode().ordinal();
+            if (a.getEpochDay() != Appointment.NO_DATE) {
+                c.time(a.getEpochDay() * 86_400_000L);
+            }
+            rows[1]++;
+            if (c.rows == CHUNK_ROWS) {
+                writeChunk(c);
+            }
+        }
+
+        void addHistory(String patientId, long ts, String record) throws IOException {
+            Chunk c = history;
+            int r = c.rows++;
+            c.patients[r] = patientId;
+            c.timestamps[r] = ts;
+            c.strings[r] = record;
+            c.time(ts);
+            rows[2]++;
+            if (c.rows == CHUNK_ROWS) {
+                writeChunk(c);
+            }
+        }
+
+        void finish() throws IOException {
+            writeChunk(vitals);
+            writeChunk(appointments);
+            writeChunk(history);
+            long footerOffset = position;
+            DataOutputStream footer = new DataOutputStream(chunkBytes);
+            footer.writeInt(index.size());
+            for (long[] entry : index) {
+                footer.writeLong(entry[0]);
+                footer.writeByte((int) entry[1]);
+                footer.writeInt((int) entry[2]);
+                footer.writeLong(entry[3]);
+                footer.writeLong(entry[4]);
+            }
+            footer.writeLong(footerOffset);
+            footer.writeInt(MAGIC);
+            flushBytes();
+        }
+
+        private void writeChunk(Chunk c) throws IOException {
+            if (c.rows == 0) {
+                return;
+            }
+            index.add(new long[] {position, c.table.ordinal(), c.rows, c.minTs, c.maxTs});
+            DataOutputStream header = new DataOutputStream(chunkBytes);
+            header.writeByte(c.table.ordinal());
+            header.writeInt(c.rows);
+            header.writeLong(c.minTs);
+            header.writeLong(c.maxTs);
+            header.writeByte(c.table.columns.size());
+            writeStrings(c.patients, c.rows, true);
+            switch (c.table) {
+                case VITALS:
+                    writeLongs(c.timestamps, c.rows);
+                    for (int[] column : c.ints) {
+                        writeInts(column, c.rows);
+                    }
+                    writeDoubles(c.doubles, c.rows);
+                    break;
+                case APPOINTMENTS:
+                    writeStrings(c.strings, c.rows, false);
+                    writeInts(c.ints[0], c.rows);
+                    writeInts(c.ints[1], c.rows);
+                    break;
+                default:
+                    writeLongs(c.timestamps, c.rows);
+                    writeStrings(c.strings, c.rows, false);
+                    break;
+            }
+            flushBytes();
+            c.clear();
+        }
+
+        private void writeLongs(long[] values, int n) throws IOException {
+            long previous = 0;
+            for (int i = 0; i < n; i++) {
+                raw.putVarLong(zigzag(values[i] - previous));
+                previous = values[i];
+            }
+            writeColumn(Encoding.DELTA_LONG);
+        }
+
+        private void writeInts(int[] values, int n) throws IOException {
+            long previous = 0;
+            for (int i = 0; i < n; i++) {
+                raw.putVarLong(zigzag(values[i] - previous));
+                previous = values[i];
+            }
+            writeColumn(Encoding.DELTA_INT);
+        }
+
+        private void writeDoubles(double[] values, int n) throws IOException {
+            long previous = 0;
+            for (int i = 0; i < n; i++) {
+                long bits = Double.doubleToRawLongBits(values[i]);
+                raw.putLong(bits ^ previous);
+                previous = bits;
+            }
+            writeColumn(Encoding.XOR_DOUBLE);
+        }
+
+        private void writeStrings(String[] values, int n, boolean runLength) throws IOException {
+            if (runLength) {
+                int i = 0;
+                while (i < n) {
+                    int run = 1;
+                    while (i + run < n && Objects.equals(values[i + run], values[i])) {
+                        run++;
+                    }
+                    raw.putString(values[i]);
+                    raw.putVarLong(run);
+                    i += run;
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    raw.putString(values[i]);
+                }
+            }
+            writeColumn(runLength ? Encoding.RLE_STRING : Encoding.STRING);
+        }
+
+        // Compresses the raw column bytes and appends the column to the chunk.
+        private void writeColumn(Encoding encoding) throws IOException {
+            deflater.reset();
+            deflater.setInput(raw.bytes, 0, raw.size);
+            deflater.finish();
+            stored.size = 0;
+            while (!deflater.finished()) {
+                stored.ensure(4096);
+                stored.size += deflater.deflate(stored.bytes, stored.size, stored.bytes.length - stored.size);
+            }
+            DataOutputStream column = new DataOutputStream(chunkBytes);
+            column.writeByte(encoding.ordinal());
+            column.writeInt(raw.size);
+            column.writeInt(stored.size);
+            column.write(stored.bytes, 0, stored.size);
+            raw.size = 0;
+        }
+
+        private void flushBytes() throws IOException {
+            chunkBytes.writeTo(out);
+            position += chunkBytes.size();
+            chunkBytes.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    // Growable byte array for encoding columns; unlike ByteArrayOutputStream it does not lock on every byte.
+    private static final class ByteSink {
+        byte[] bytes;
+        int size;
+
+        ByteSink(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + extra, bytes.length * 2));
+            }
+        }
+
+        void putVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        void putLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        void putString(String s) {
+            if (s == null) {
+                putVarLong(0);
+                return;
+            }
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            putVarLong(utf8.length + 1L);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+    }
+
+    // Reads the rows of the given tables back from one export file, chunk by chunk.
+    static void read(Path file, Set<Table> tables, RowVisitor visitor) throws IOException {
+        Table[] allTables = Table.values();
+        Encoding[] encodings = Encoding.values();
+        try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an export file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported export version " + version + ": " + file);
+            }
+            in.seek(in.length() - FOOTER_TAIL_BYTES);
+            long footerOffset = in.readLong();
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Export file is incomplete: " + file);
+            }
+            in.seek(footerOffset);
+            int chunkCount = in.readInt();
+            long[] offsets = new long[chunkCount];
+            Table[] chunkTables = new Table[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                offsets[i] = in.readLong();
+                chunkTables[i] = allTables[in.readByte()];
+                in.readInt();
+                in.readLong();
+                in.readLong();
+            }
+            for (int i = 0; i < chunkCount; i++) {
+                if (!tables.contains(chunkTables[i])) {
+                    continue;
+                }
+                in.seek(offsets[i]);
+                Table table = allTables[in.readByte()];
+                int rows = in.readInt();
+                in.readLong();
+                in.readLong();
+                int columnCount = in.readByte();
+                Object[][] columns = new Object[columnCount][];
+                for (int c = 0; c < columnCount; c++) {
+                    Encoding encoding = encodings[in.readByte()];
+                    int rawBytes = in.readInt();
+                    byte[] stored = new byte[in.readInt()];
+                    in.readFully(stored);
+                    byte[] rawData = new byte[rawBytes];
+                    try (InputStream inflater = new InflaterInputStream(new ByteArrayInputStream(stored))) {
+                        new DataInputStream(inflater).readFully(rawData);
+                    }
+                    columns[c] = decodeColumn(encoding, new DataInputStream(new ByteArrayInputStream(rawData)), rows);
+                }
+                for (int r = 0; r < rows; r++) {
+                    Object[] row = new Object[columnCount];
+                    for (int c = 0; c < columnCount; c++) {
+                        row[c] = columns[c][r];
+                    }
+                    visitor.accept(table, row);
+                }
+            }
+        }
+    }
+
+    private static Object[] decodeColumn(Encoding encoding, DataInputStream in, int rows) throws IOException {
+        Object[] values = new Object[rows];
+        long previous = 0;
+        int r = 0;
+        while (r < rows) {
+            switch (encoding) {
+                case DELTA_LONG:
+                    previous += unzigzag(readVarLong(in));
+                    values[r++] = previous;
+                    break;
+                case DELTA_INT:
+                    previous += unzigzag(readVarLong(in));
+                    values[r++] = (int) previous;
+                    break;
+                case XOR_DOUBLE:
+                    previous ^= in.readLong();
+                    values[r++] = Double.longBitsToDouble(previous);
+                    break;
+                case STRING:
+                    values[r++] = readString(in);
+                    break;
+                default:
+                    String value = readString(in);
+                    long run = readVarLong(in);
+                    for (long k = 0; k < run; k++) {
+                        values[r++] = value;
+                    }
+                    break;
+            }
+        }
+        return values;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        long lengthPlusOne = readVarLong(in);
+        if (lengthPlusOne == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) (lengthPlusOne - 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long z) {
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    // Benchmark: java -cp bin healthcare.ColumnarExport [patients] [readingsPerPatient] [dir]
+    // Builds an in-memory dataset, exports it with one and with several writer threads, and reads it back.
+    public static void main(String[] args) throws IOException {
+        int patientCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int readings = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        Path dir = Path.of(args.length > 2 ? args[2] : "export-demo");
+
+        VitalsDatabase vitalsDb = new VitalsDatabase();
+        List<Patient> patients = new ArrayList<>();
+        List<Appointment> appointments = new ArrayList<>();
+        Random random = new Random(3);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < patientCount; i++) {
+            Patient p = new Patient("Patient " + i, String.format("P%06d", i));
+            List<Long> timestamps = new ArrayList<>();
+            List<VitalSign> vitals = new ArrayList<>();
+            for (int r = 0; r < readings; r++) {
+                timestamps.add(now - (readings - r) * 60_000L);
+                vitals.add(new VitalSign(60 + random.nextInt(40), 92 + random.nextInt(8),
+                        (110 + random.nextInt(30)) + "/" + (70 + random.nextInt(20)), 36.2 + random.nextInt(15) / 10.0));
+            }
+            vitalsDb.restoreVitals(p.getUserId(), timestamps, vitals);
+            p.getMedicalHistory().addRecord("Admitted for observation");
+            appointments.add(new Appointment(LocalDate.now().plusDays(random.nextInt(60)).toString(), "Dr. Demo",
+                    p.getUserId(), "Pending"));
+            patients.add(p);
+        }
+        long halfway = now - readings / 2 * 60_000L;
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.println("One writer:   " + export(dir.resolve("single"), patients, appointments, vitalsDb,
+                Long.MIN_VALUE, Long.MAX_VALUE, 1));
+        Result parallel = export(dir.resolve("parallel"), patients, appointments, vitalsDb, Long.MIN_VALUE,
+                Long.MAX_VALUE, threads);
+        System.out.println(threads + " writers:   " + parallel);
+        System.out.println("Last half:    " + export(dir.resolve("filtered"), patients, appointments, vitalsDb,
+                halfway, Long.MAX_VALUE, threads));
+
+        long[] counts = new long[3];
+        for (Path file : parallel.files) {
+            read(file, EnumSet.allOf(Table.class), (table, row) -> counts[table.ordinal()]++);
+        }
+        System.out.printf("Read back: %d vitals, %d appointments, %d history rows%n", counts[0], counts[1], counts[2]);
+    }
+}
@@ -0,0 +1,298 @@
+package healthcare;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// CompressedVitalsBlock is an immutable, Gorilla-style compressed run of vitals readings.
+//
+// Layout (big endian):
+//   long  firstRow    row number of the first reading in the series
+//   int   count       number of readings in the block
+//   long  minTs       smallest timestamp in the block
+//   long  maxTs       largest timestamp in the block
+//   bits  rows        one row after another, each row holding:
+//                       timestamp   delta-of-delta:  '0' | '10'+7 | '110'+9 | '1110'+12 | '1111'+64 bits (zigzag)
+//                       heart rate, oxygen, systolic, diastolic
+//                                   delta vs previous row:  '0' | '10'+4 | '110'+8 | '1110'+16 | '1111'+64 bits (zigzag)
+//                       temperature XOR vs previous row:  '0' | '10'+meaningful bits | '11'+6 lead+6 len+bits
+//
+// The same bytes are used for warm blocks (held on heap) and cold blocks (a slice of a memory-mapped segment).
+final class CompressedVitalsBlock {
+    static final int HEADER_BYTES = 8 + 4 + 8 + 8;
+
+    private final ByteBuffer data;
+    private final long firstRow;
+    private final int count;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+
+    // Wraps an encoded block; the buffer is only read with absolute gets so it can be shared between threads.
+    CompressedVitalsBlock(ByteBuffer data) {
+        this.data = data;
+        this.firstRow = data.getLong(0);
+        this.count = data.getInt(8);
+        this.minTimestamp = data.getLong(12);
+        this.maxTimestamp = data.getLong(20);
+    }
+
+    long firstRow() {
+        return firstRow;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long minTimestamp() {
+        return minTimestamp;
+    }
+
+    long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    int sizeInBytes() {
+        return data.limit();
+    }
+
+    // Read-only view of the encoded bytes (for writing the block to a cold segment).
+    ByteBuffer bytes() {
+        return data.asReadOnlyBuffer();
+    }
+
+    // Compresses rows [from, to) of the given columns into a new block.
+    static CompressedVitalsBlock encode(long firstRow, long[] timestamps, int[] heartRates, int[] oxygenLevels,
+            int[] systolic, int[] diastolic, double[] temperatures, int from, int to) {
+        BitWriter out = new BitWriter(HEADER_BYTES, (to - from) * 4);
+        long minTs = Long.MAX_VALUE;
+        long maxTs = Long.MIN_VALUE;
+        long prevTs = 0;
+        long prevDelta = 0;
+        int prevHr = 0, prevOx = 0, prevSys = 0, prevDia = 0;
+        long prevTemp = 0;
+        int prevLeading = -1, prevTrailing = 0;
+        for (int i = from; i < to; i++) {
+            long ts = timestamps[i];
+            minTs = Math.min(minTs, ts);
+            maxTs = Math.max(maxTs, ts);
+            if (i == from) {
+                out.write(ts, 64);
+            } else {
+                long delta = ts - prevTs;
+                writeDeltaOfDelta(out, delta - prevDelta);
+                prevDelta = delta;
+            }
+            prevTs = ts;
+
+            writeIntDelta(out, heartRates[i], prevHr);
+            writeIntDelta(out, oxygenLevels[i], prevOx);
+            writeIntDelta(out, systolic[i], prevSys);
+            writeIntDelta(out, diastolic[i], prevDia);
+            prevHr = heartRates[i];
+            prevOx = oxygenLevels[i];
+            prevSys = systolic[i];
+            prevDia = diastolic[i];
+
+            long temp = Double.doubleToRawLongBits(temperatures[i]);
+            if (i == from) {
+                out.write(temp, 64);
+            } else {
+                long xor = temp ^ prevTemp;
+                if (xor == 0) {
+                    out.write(0, 1);
+                } else {
+                    int leading = Long.numberOfLeadingZeros(xor);
+                    int trailing = Long.numberOfTrailingZeros(xor);
+                    if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                        out.write(0b10, 2);
+                        out.write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+                    } else {
+                        int meaningful = 64 - leading - trailing;
+                        out.write(0b11, 2);
+                        out.write(leading, 6);
+                        out.write(meaningful - 1, 6);
+                        out.write(xor >>> trailing, meaningful);
+                        prevLeading = leading;
+                        prevTrailing = trailing;
+                    }
+                }
+            }
+            prevTemp = temp;
+        }
+        byte[] bytes = out.toByteArray();
+        ByteBuffer header = ByteBuffer.wrap(bytes);
+        header.putLong(0, firstRow);
+        header.putInt(8, to - from);
+        header.putLong(12, minTs);
+        header.putLong(20, maxTs);
+        return new CompressedVitalsBlock(ByteBuffer.wrap(bytes));
+    }
+
+    // Decodes the block and hands every reading with minTs <= timestamp < maxTs to the visitor.
+    void decode(long minTs, long maxTs, VitalsSeries.Visitor visitor) {
+        BitReader in = new BitReader(data, HEADER_BYTES);
+        long ts = 0;
+        long delta = 0;
+        int hr = 0, ox = 0, sys = 0, dia = 0;
+        long temp = 0;
+        int leading = 0, trailing = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                ts = in.read(64);
+            } else {
+                delta += readDeltaOfDelta(in);
+                ts += delta;
+            }
+            hr = readIntDelta(in, hr);
+            ox = readIntDelta(in, ox);
+            sys = readIntDelta(in, sys);
+            dia = readIntDelta(in, dia);
+            if (i == 0) {
+                temp = in.read(64);
+            } else if (in.read(1) == 1) {
+                if (in.read(1) == 1) {
+                    leading = (int) in.read(6);
+                    int meaningful = (int) in.read(6) + 1;
+                    trailing = 64 - leading - meaningful;
+                }
+                long xor = in.read(64 - leading - trailing) << trailing;
+                temp ^= xor;
+            }
+            if (ts >= minTs && ts < maxTs) {
+                visitor.accept(firstRow + i, ts, hr, ox, sys, dia, Double.longBitsToDouble(temp));
+            }
+        }
+    }
+
+    private static void writeDeltaOfDelta(BitWriter out, long dod) {
+        long z = zigzag(dod);
+        if (z == 0) {
+            out.write(0, 1);
+        } else if (z < (1L << 7)) {
+            out.write(0b10, 2);
+            out.write(z, 7);
+        } else if (z < (1L << 9)) {
+            out.write(0b110, 3);
+            out.write(z, 9);
+        } else if (z < (1L << 12)) {
+            out.write(0b1110, 4);
+            out.write(z, 12);
+        } else {
+            out.write(0b1111, 4);
+            out.write(z, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (in.read(1) == 0) {
+            return 0;
+        }
+        if (in.read(1) == 0) {
+            return unzigzag(in.read(7));
+        }
+        if (in.read(1) == 0) {
+            return unzigzag(in.read(9));
+        }
+        if (in.read(1) == 0) {
+            return unzigzag(in.read(12));
+        }
+        return unzigzag(in.read(64));
+    }
+
+    private static void writeIntDelta(BitWriter out, int value, int previous) {
+        long z = zigzag((long) value - previous);
+        if (z == 0) {
+            out.write(0, 1);
+        } else if (z < (1L << 4)) {
+            out.write(0b10, 2);
+            out.write(z, 4);
+        } else if (z < (1L << 8)) {
+            out.write(0b110, 3);
+            out.write(z, 8);
+        } else if (z < (1L << 16)) {
+            out.write(0b1110, 4);
+            out.write(z, 16);
+        } else {
+            out.write(0b1111, 4);
+            out.write(z, 64);
+        }
+    }
+
+    private static int readIntDelta(BitReader in, int previous) {
+        long delta;
+        if (in.read(1) == 0) {
+            return previous;
+        } else if (in.read(1) == 0) {
+            delta = unzigzag(in.read(4));
+        } else if (in.read(1) == 0) {
+            delta = unzigzag(in.read(8));
+        } else if (in.read(1) == 0) {
+            delta = unzigzag(in.read(16));
+        } else {
+            delta = unzigzag(in.read(64));
+        }
+        return (int) (previous + delta);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long z) {
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    // Writes bit fields most significant bit first into a growable byte array.
+    private static final class BitWriter {
+        private byte[] buf;
+        private long bitPos;
+
+        BitWriter(int headerBytes, int expectedBytes) {
+            buf = new byte[headerBytes + Math.max(expectedBytes, 16)];
+            bitPos = headerBytes * 8L;
+        }
+
+        void write(long value, int bits) {
+            while (bits > 0) {
+                int byteIndex = (int) (bitPos >>> 3);
+                if (byteIndex >= buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int free = 8 - (int) (bitPos & 7);
+                int n = Math.min(free, bits);
+                int chunk = (int) ((value >>> (bits - n)) & ((1 << n) - 1));
+                buf[byteIndex] |= (byte) (chunk << (free - n));
+                bits -= n;
+                bitPos += n;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, (int) ((bitPos + 7) >>> 3));
+        }
+    }
+
+    // Reads bit fields written by BitWriter using absolute gets only.
+    private static final class BitReader {
+        private final ByteBuffer buf;
+        private long bitPos;
+
+        BitReader(ByteBuffer buf, int startByte) {
+            this.buf = buf;
+            this.bitPos = startByte * 8L;
+        }
+
+        long read(int bits) {
+            long result = 0;
+            while (bits > 0) {
+                int b = buf.get((int) (bitPos >>> 3)) & 0xFF;
+                int free = 8 - (int) (bitPos & 7);
+                int n = Math.min(free, bits);
+                result = (result << n) | ((b >>> (free - n)) & ((1 << n) - 1));
+                bits -= n;
+                bitPos += n;
+            }
+            return result;
+        }
+    }
+}
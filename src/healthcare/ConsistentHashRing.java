@@ -0,0 +1,89 @@
+package healthcare;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// ConsistentHashRing maps keys (patient user IDs) to nodes.
+// Every node is placed on the ring many times (virtual nodes) so keys spread evenly, and adding or
+// removing a node only moves the keys that fall between it and its neighbours.
+class ConsistentHashRing<N> {
+    static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int virtualNodes;
+    private final TreeMap<Integer, String> ring = new TreeMap<>();
+    private final Map<String, N> nodes = new LinkedHashMap<>();
+
+    ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    synchronized void addNode(String nodeId, N node) {
+        if (nodes.containsKey(nodeId)) {
+            throw new IllegalArgumentException("Node already on the ring: " + nodeId);
+        }
+        nodes.put(nodeId, node);
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(nodeId + "#" + i), nodeId);
+        }
+    }
+
+    synchronized N removeNode(String nodeId) {
+        N node = nodes.remove(nodeId);
+        if (node != null) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.remove(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+        return node;
+    }
+
+    // Returns the ID of the node owning the key, or null if the ring is empty.
+    synchronized String ownerId(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        SortedMap<Integer, String> tail = ring.tailMap(hash(key));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    // Returns the node owning the key, or null if the ring is empty.
+    synchronized N owner(String key) {
+        String id = ownerId(key);
+        return id == null ? null : nodes.get(id);
+    }
+
+    synchronized N node(String nodeId) {
+        return nodes.get(nodeId);
+    }
+
+    synchronized List<String> nodeIds() {
+        return Collections.unmodifiableList(new ArrayList<>(nodes.keySet()));
+    }
+
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    // String.hashCode spread with the murmur3 finalizer so similar IDs (P001, P002, ...) land far apart.
+    static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
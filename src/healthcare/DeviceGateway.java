@@ -0,0 +1,689 @@
+package healthcare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import healthcare.main.Patient;
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalsDatabase;
+
+// DeviceGateway lets wearables stream vitals over a persistent TCP connection, instead of vitals only being
+// typed in at the Scanner prompts. It is non-blocking: a few event loops (one Selector each) serve all
+// connections, so tens of thousands of mostly idle devices cost a socket and a small buffer each, not a thread.
+//
+// Protocol. Every frame is  u16 length (of type + payload) | u8 type | payload, big endian:
+//   HELLO      1  device -> gateway   u8 version, str device ID, str token
+//   WELCOME    2  gateway -> device   u64 highest sequence number acknowledged for the device (0 = none yet)
+//   VITALS     3  device -> gateway   u16 count, then count records of 25 bytes:
+//                                       u64 sequence number, u64 timestamp (epoch millis), u16 heart rate,
+//                                       u8 SpO2, u16 systolic, u16 diastolic (0 = not measured),
+//                                       i16 temperature in 1/100 degrees C (-32768 = not measured)
+//   ACK        4  gateway -> device   u64 highest sequence number handled (queued for storage, or shed)
+//   HEARTBEAT  5  device -> gateway   no payload; answered with an ACK
+//   ERROR      6  gateway -> device   str message; the gateway closes the connection after sending it
+//   WAVEFORM   7  device -> gateway   u8 channel (0 = ECG, 1 = PPG), u16 sample rate in Hz, f32 gain,
+//                                       u64 timestamp of the first sample, u16 count, then count i16 samples
+// str is a u16 byte length followed by UTF-8.
+//
+// A device numbers its readings 1, 2, 3, ..., sends them in that order and keeps them until they are
+// acknowledged. After a reconnect WELCOME tells it where to resume. Readings at or below the highest sequence
+// number seen so far are duplicates (retransmissions) and are dropped, so every reading is stored at most once.
+// Each new reading then goes through AdmissionControl, which may shed it under overload; the admitted ones are
+// collected into a batch per event loop pass and queued for storage before they are acknowledged. A connection
+// that has sent nothing (not even a heartbeat) for HEARTBEAT_TIMEOUT_MILLIS is closed.
+//
+// Waveforms are a continuous stream, not individual readings: WAVEFORM frames carry no sequence number, are
+// not acknowledged and skip admission control. They go straight into the patient's WaveformStore stream on
+// the event loop (constant work per sample); a lost frame shows up there as a gap.
+class DeviceGateway implements Closeable {
+    static final int PROTOCOL_VERSION = 1;
+    static final byte HELLO = 1;
+    static final byte WELCOME = 2;
+    static final byte VITALS = 3;
+    static final byte ACK = 4;
+    static final byte HEARTBEAT = 5;
+    static final byte ERROR = 6;
+    static final byte WAVEFORM = 7;
+
+    static final int RECORD_BYTES = 25;
+    static final int MAX_FRAME_BYTES = 0xFFFF;
+    static final long HEARTBEAT_TIMEOUT_MILLIS = 30_000;
+    static final long HELLO_TIMEOUT_MILLIS = 10_000;
+    static final int DEFAULT_MAX_CONNECTIONS = 50_000;
+    // A connection whose unsent replies grow past this is not reading them and is closed.
+    private static final int MAX_PENDING_OUTPUT = 64 * 1024;
+    private static final int BATCH_SIZE = 4096;
+
+    // A registered device: which patient it belongs to and the hash of its token.
+    private static final class Device {
+        final String deviceId;
+        final String patientId;
+        final byte[] tokenHash;
+        final AdmissionControl.Source source;
+        // Highest sequence number accepted into a batch and highest acknowledged; guarded by the Device.
+        long acceptedSeq;
+        long ackedSeq;
+        Connection connection;
+
+        Device(String deviceId, String patientId, byte[] tokenHash, AdmissionControl.Source source) {
+            this.deviceId = deviceId;
+            this.patientId = patientId;
+            this.tokenHash = tokenHash;
+            this.source = source;
+        }
+    }
+
+    private final Map<String, Device> devices = new ConcurrentHashMap<>();
+    private final Function<String, Patient> patients;
+    private final VitalsDatabase vitalsDb;
+    private final WaveformStore waveforms;
+    private final AdmissionControl admission;
+    private final int maxConnections;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong readingsReceived = new AtomicLong();
+    private final AtomicLong duplicatesDropped = new AtomicLong();
+    private final AtomicLong samplesReceived = new AtomicLong();
+    private final AtomicLong protocolErrors = new AtomicLong();
+    private final AtomicLong authFailures = new AtomicLong();
+    private volatile boolean running = true;
+
+    // patients resolves a patient ID once per device connection. Port 0 picks a free port.
+    DeviceGateway(InetSocketAddress address, Function<String, Patient> patients, VitalsDatabase vitalsDb,
+                  WaveformStore waveforms, AdmissionControl admission) throws IOException {
+        this(address, patients, vitalsDb, waveforms, admission,
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), DEFAULT_MAX_CONNECTIONS);
+    }
+
+    DeviceGateway(InetSocketAddress address, Function<String, Patient> patients, VitalsDatabase vitalsDb,
+                  WaveformStore waveforms, AdmissionControl admission, int eventLoops, int maxConnections)
+            throws IOException {
+        this.patients = patients;
+        this.vitalsDb = vitalsDb;
+        this.waveforms = waveforms;
+        this.admission = admission;
+        this.maxConnections = maxConnections;
+        server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        // The first loop also accepts connections and hands them out round-robin.
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    // Registers a device for a patient and returns its new token. The token is shown only here; the gateway
+    // keeps a SHA-256 hash of it. Registering an existing device again replaces its token.
+    String registerDevice(String deviceId, String patientId) {
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Device device = new Device(deviceId, patientId, sha256(token), admission.source(deviceId));
+        Device old = devices.put(deviceId, device);
+        if (old != null) {
+            synchronized (old) {
+                device.acceptedSeq = old.ackedSeq;
+                device.ackedSeq = old.ackedSeq;
+            }
+        }
+        SystemLogs.addLog("Device " + deviceId + " registered for patient " + patientId);
+        return token;
+    }
+
+    String stats() {
+        return String.format("%d devices registered, %d connected; %d readings received, %d duplicates dropped,"
+                        + " %d waveform samples, %d protocol errors, %d failed logins", devices.size(),
+                connections.get(), readingsReceived.get(), duplicatesDropped.get(), samplesReceived.get(),
+                protocolErrors.get(), authFailures.get());
+    }
+
+    // Readings received once each (duplicates excluded), whether admitted or shed.
+    long readingsReceived() {
+        return readingsReceived.get();
+    }
+
+    long duplicatesDropped() {
+        return duplicatesDropped.get();
+    }
+
+    long samplesReceived() {
+        return samplesReceived.get();
+    }
+
+    int connectionCount() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        server.close();
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            try {
+                loop.thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private static byte[] sha256(String token) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // One connection, owned by a single event loop.
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final EventLoop loop;
+        final long openedAt;
+        ByteBuffer in = ByteBuffer.allocate(512);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        int pendingOutput;
+        long lastHeard;
+        Device device;
+        Patient patient;
+        boolean ackPending;
+        boolean closing;
+        // This connection's waveform streams, by WaveformStore.Kind ordinal; opened by the first frame of each.
+        final WaveformStore.Stream[] streams = new WaveformStore.Stream[WaveformStore.Kind.values().length];
+
+        Connection(SocketChannel channel, SelectionKey key, EventLoop loop, long now) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.openedAt = now;
+            this.lastHeard = now;
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        // Connections of this loop that another loop wants closed (see closeFromAnyThread).
+        final Queue<Connection> toClose = new ConcurrentLinkedQueue<>();
+        final List<Connection> open = new ArrayList<>();
+        // Pending readings, column by column.
+        final Patient[] batchPatients = new Patient[BATCH_SIZE];
+        final long[] batchTimestamps = new long[BATCH_SIZE];
+        final int[] batchHeartRates = new int[BATCH_SIZE];
+        final int[] batchOxygen = new int[BATCH_SIZE];
+        final int[] batchSystolic = new int[BATCH_SIZE];
+        final int[] batchDiastolic = new int[BATCH_SIZE];
+        final double[] batchTemperatures = new double[BATCH_SIZE];
+        int batchSize;
+        final List<Connection> awaitingAck = new ArrayList<>();
+        final ByteBuffer scratch = ByteBuffer.allocate(MAX_FRAME_BYTES + 2);
+        final short[] samples = new short[MAX_FRAME_BYTES / 2];
+        int nextLoop;
+        long lastSweep;
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "device-gateway-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(1000);
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        register(channel);
+                    }
+                    Connection superseded;
+                    while ((superseded = toClose.poll()) != null) {
+                        close(superseded);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptAll();
+                            continue;
+                        }
+                        Connection c = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            read(c);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flushOutput(c);
+                        }
+                    }
+                    flushBatch();
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        lastSweep = now;
+                        closeIdle(now);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Closed while shutting down.
+            } catch (IOException | RuntimeException e) {
+                SystemLogs.addLog("Device gateway event loop stopped: " + e);
+            } finally {
+                for (Connection c : new ArrayList<>(open)) {
+                    close(c);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Nothing left to release.
+                }
+            }
+        }
+
+        private void acceptAll() throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                if (connections.get() >= maxConnections) {
+                    channel.close();
+                    continue;
+                }
+                EventLoop target = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                if (target == this) {
+                    register(channel);
+                } else {
+                    target.accepted.add(channel);
+                    target.selector.wakeup();
+                }
+            }
+        }
+
+        private void register(SocketChannel channel) throws IOException {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            Connection c = new Connection(channel, key, this, System.currentTimeMillis());
+            key.attach(c);
+            open.add(c);
+            connections.incrementAndGet();
+        }
+
+        private void read(Connection c) {
+            try {
+                int n = c.channel.read(c.in);
+                if (n < 0) {
+                    close(c);
+                    return;
+                }
+                c.lastHeard = System.currentTimeMillis();
+                c.in.flip();
+                while (!c.closing && c.in.remaining() >= 2) {
+                    int length = c.in.getShort(c.in.position()) & 0xFFFF;
+                    if (length == 0) {
+                        fail(c, "Empty frame");
+                        return;
+                    }
+                    if (c.in.remaining() < 2 + length) {
+                        if (c.in.capacity() < 2 + length) {
+                            // A large batch: grow the buffer up to the maximum frame size.
+                            ByteBuffer bigger = ByteBuffer.allocate(2 + length);
+                            bigger.put(c.in);
+                            c.in = bigger;
+                            return;
+                        }
+                        break;
+                    }
+                    c.in.getShort();
+                    int end = c.in.position() + length;
+                    ByteBuffer frame = c.in.slice(c.in.position(), length);
+                    c.in.position(end);
+                    handleFrame(c, frame);
+                }
+                c.in.compact();
+            } catch (IOException e) {
+                close(c);
+            }
+        }
+
+        private void handleFrame(Connection c, ByteBuffer frame) {
+            byte type = frame.get();
+            try {
+                if (c.device == null) {
+                    if (type != HELLO) {
+                        fail(c, "Expected HELLO");
+                    } else {
+                        hello(c, frame);
+                    }
+                    return;
+                }
+                switch (type) {
+                    case VITALS:
+                        vitals(c, frame);
+                        break;
+                    case WAVEFORM:
+                        waveform(c, frame);
+                        break;
+                    case HEARTBEAT:
+                        c.ackPending = true;
+                        if (!awaitingAck.contains(c)) {
+                            awaitingAck.add(c);
+                        }
+                        break;
+                    default:
+                        fail(c, "Unexpected frame type " + type);
+                }
+            } catch (BufferUnderflowException e) {
+                fail(c, "Truncated frame of type " + type);
+            } catch (RuntimeException e) {
+                // A bad frame or a failure while storing it ends this connection only, not the whole loop.
+                SystemLogs.addLog("Device gateway could not handle a frame of type " + type
+                        + (c.device == null ? "" : " from " + c.device.deviceId) + ": " + e);
+                fail(c, "Could not handle frame of type " + type);
+            }
+        }
+
+        private void hello(Connection c, ByteBuffer frame) {
+            int version = frame.get() & 0xFF;
+            String deviceId = readString(frame);
+            String token = readString(frame);
+            if (version != PROTOCOL_VERSION) {
+                fail(c, "Unsupported protocol version " + version);
+                return;
+            }
+            Device device = devices.get(deviceId);
+            // The hash is compared even for unknown devices, so the reply time does not reveal which IDs exist.
+            byte[] presented = sha256(token);
+            boolean valid = MessageDigest.isEqual(presented, device == null ? new byte[presented.length]
+                    : device.tokenHash);
+            if (device == null || !valid) {
+                authFailures.incrementAndGet();
+                fail(c, "Unknown device or wrong token");
+                return;
+            }
+            Patient patient = patients.apply(device.patientId);
+            if (patient == null) {
+                fail(c, "Patient " + device.patientId + " is not registered");
+                return;
+            }
+            long resumeFrom;
+            Connection previous;
+            synchronized (device) {
+                previous = device.connection;
+                device.connection = c;
+                // Readings accepted by the old connection but not acknowledged yet are sent again by the device.
+                device.acceptedSeq = device.ackedSeq;
+                resumeFrom = device.ackedSeq;
+            }
+            if (previous != null && previous != c) {
+                // The device reconnected; the old connection is dead or a duplicate.
+                if (previous.loop == this) {
+                    close(previous);
+                } else {
+                    closeFromAnyThread(previous);
+                }
+            }
+            c.device = device;
+            c.patient = patient;
+            ByteBuffer reply = ByteBuffer.allocate(2 + 1 + 8);
+            reply.putShort((short) 9).put(WELCOME).putLong(resumeFrom).flip();
+            send(c, reply);
+        }
+
+        private void vitals(Connection c, ByteBuffer frame) {
+            int count = frame.getShort() & 0xFFFF;
+            if (frame.remaining() != count * RECORD_BYTES) {
+                fail(c, "VITALS frame with " + count + " records has " + frame.remaining() + " bytes");
+                return;
+            }
+            Device device = c.device;
+            String patientId = c.patient.getUserId();
+            BatchRuleEvaluator.Thresholds thresholds = vitalsDb.getAlertThresholds(patientId);
+            for (int i = 0; i < count; i++) {
+                long seq = frame.getLong();
+                long timestamp = frame.getLong();
+                int heartRate = frame.getShort() & 0xFFFF;
+                int oxygen = frame.get() & 0xFF;
+                int systolic = frame.getShort() & 0xFFFF;
+                int diastolic = frame.getShort() & 0xFFFF;
+                short temperature = frame.getShort();
+                synchronized (device) {
+                    if (device.connection != c) {
+                        // Superseded by a newer connection of the same device.
+                        return;
+                    }
+                    if (seq <= device.acceptedSeq) {
+                        duplicatesDropped.incrementAndGet();
+                        continue;
+                    }
+                    device.acceptedSeq = seq;
+                }
+                readingsReceived.incrementAndGet();
+                int systolicValue = systolic == 0 ? VitalsSeries.NO_VALUE : systolic;
+                if (!admission.admit(device.source, patientId, timestamp, heartRate, oxygen, systolicValue,
+                        thresholds)) {
+                    // Shed under overload: acknowledged like the rest, so the device does not send it again.
+                    continue;
+                }
+                if (batchSize == BATCH_SIZE) {
+                    flushBatch();
+                }
+                int b = batchSize++;
+                batchPatients[b] = c.patient;
+                batchTimestamps[b] = timestamp;
+                batchHeartRates[b] = heartRate;
+                batchOxygen[b] = oxygen;
+                batchSystolic[b] = systolicValue;
+                batchDiastolic[b] = diastolic == 0 ? VitalsSeries.NO_VALUE : diastolic;
+                batchTemperatures[b] = temperature == Short.MIN_VALUE ? Double.NaN : temperature / 100.0;
+            }
+            if (!c.ackPending) {
+                c.ackPending = true;
+                awaitingAck.add(c);
+            }
+        }
+
+        private void waveform(Connection c, ByteBuffer frame) {
+            int channel = frame.get() & 0xFF;
+            int sampleRate = frame.getShort() & 0xFFFF;
+            float gain = frame.getFloat();
+            long timestamp = frame.getLong();
+            int count = frame.getShort() & 0xFFFF;
+            if (channel >= WaveformStore.Kind.values().length) {
+                fail(c, "Unknown waveform channel " + channel);
+                return;
+            }
+            if (frame.remaining() != count * 2) {
+                fail(c, "WAVEFORM frame with " + count + " samples has " + frame.remaining() + " bytes");
+                return;
+            }
+            WaveformStore.Stream stream = c.streams[channel];
+            if (stream == null || stream.sampleRate != sampleRate || stream.gain != gain) {
+                try {
+                    stream = waveforms.open(c.patient.getUserId(), WaveformStore.Kind.values()[channel], sampleRate,
+                            gain);
+                } catch (IllegalArgumentException e) {
+                    fail(c, e.getMessage());
+                    return;
+                }
+                c.streams[channel] = stream;
+            }
+            frame.asShortBuffer().get(samples, 0, count);
+            stream.ingest(timestamp, samples, 0, count);
+            samplesReceived.addAndGet(count);
+        }
+
+        // Queues the pending readings for storage (waiting while the ingest queue is full), then acknowledges them.
+        private void flushBatch() {
+            if (batchSize > 0) {
+                admission.submit(new AdmissionControl.Batch(vitalsDb, batchPatients, batchTimestamps, batchHeartRates,
+                        batchOxygen, batchSystolic, batchDiastolic, batchTemperatures, batchSize));
+                Arrays.fill(batchPatients, 0, batchSize, null);
+                batchSize = 0;
+            }
+            for (Connection c : awaitingAck) {
+                c.ackPending = false;
+                if (c.closing) {
+                    continue;
+                }
+                long acked;
+                synchronized (c.device) {
+                    if (c.device.connection == c) {
+                        c.device.ackedSeq = c.device.acceptedSeq;
+                    }
+                    acked = c.device.ackedSeq;
+                }
+                ByteBuffer ack = ByteBuffer.allocate(2 + 1 + 8);
+                ack.putShort((short) 9).put(ACK).putLong(acked).flip();
+                send(c, ack);
+            }
+            awaitingAck.clear();
+        }
+
+        private void send(Connection c, ByteBuffer frame) {
+            if (c.closing) {
+                return;
+            }
+            try {
+                if (c.out.isEmpty()) {
+                    c.channel.write(frame);
+                    if (!frame.hasRemaining()) {
+                        return;
+                    }
+                }
+                c.out.add(frame);
+                c.pendingOutput += frame.remaining();
+                if (c.pendingOutput > MAX_PENDING_OUTPUT) {
+                    close(c);
+                    return;
+                }
+                c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close(c);
+            }
+        }
+
+        private void flushOutput(Connection c) {
+            try {
+                while (!c.out.isEmpty()) {
+                    ByteBuffer frame = c.out.peek();
+                    int before = frame.remaining();
+                    c.channel.write(frame);
+                    c.pendingOutput -= before - frame.remaining();
+                    if (frame.hasRemaining()) {
+                        return;
+                    }
+                    c.out.poll();
+                }
+                if (c.closing) {
+                    close(c);
+                } else {
+                    c.key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                close(c);
+            }
+        }
+
+        // Sends an ERROR frame and closes the connection once it has been written.
+        private void fail(Connection c, String message) {
+            protocolErrors.incrementAndGet();
+            byte[] text = message.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocate(2 + 1 + 2 + text.length);
+            frame.putShort((short) (1 + 2 + text.length)).put(ERROR).putShort((short) text.length).put(text).flip();
+            send(c, frame);
+            c.closing = true;
+            if (c.out.isEmpty()) {
+                close(c);
+            }
+        }
+
+        private void closeIdle(long now) {
+            for (Connection c : new ArrayList<>(open)) {
+                long limit = c.device == null ? HELLO_TIMEOUT_MILLIS : HEARTBEAT_TIMEOUT_MILLIS;
+                if (now - c.lastHeard > limit || (c.device == null && now - c.openedAt > HELLO_TIMEOUT_MILLIS)) {
+                    close(c);
+                }
+            }
+        }
+
+        private void close(Connection c) {
+            if (!open.remove(c)) {
+                return;
+            }
+            c.closing = true;
+            connections.decrementAndGet();
+            c.key.cancel();
+            try {
+                c.channel.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+            if (c.device != null) {
+                synchronized (c.device) {
+                    if (c.device.connection == c) {
+                        c.device.connection = null;
+                    }
+                }
+            }
+        }
+    }
+
+    // Closes a connection of another event loop: the owning loop closes it as soon as it wakes up, so it
+    // leaves the loop's open list and the connection count right away.
+    private static void closeFromAnyThread(Connection c) {
+        c.loop.toClose.add(c);
+        c.loop.selector.wakeup();
+    }
+
+    private static String readString(ByteBuffer frame) {
+        int length = frame.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,376 @@
+package healthcare;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import healthcare.main.Patient;
+import healthcare.main.VitalsDatabase;
+
+// DeviceSimulator plays many wearables against a DeviceGateway from a single thread, to try the gateway
+// without hardware. Each simulated device logs in, sends a VITALS frame of `batch` readings every `interval`
+// (one reading per second of device time), and a HEARTBEAT when it has nothing to send. Like a real device it
+// keeps readings until they are acknowledged and resumes from the WELCOME sequence number after reconnecting.
+// To exercise deduplication a fraction of the frames is sent twice and some devices drop their connection
+// now and then.
+class DeviceSimulator {
+    static final long HEARTBEAT_INTERVAL_MILLIS = 5_000;
+
+    private static final class SimulatedDevice {
+        final String deviceId;
+        final String token;
+        final int profile;
+        SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(256);
+        ByteBuffer out;
+        boolean welcomed;
+        long nextSeq = 1;
+        long ackedSeq;
+        long lastSentAt;
+        long nextSendAt;
+        // One outstanding frame is timed at a time, for the ack latency.
+        long timedSeq;
+        long timedAt;
+
+        SimulatedDevice(String deviceId, String token, int profile) {
+            this.deviceId = deviceId;
+            this.token = token;
+            this.profile = profile;
+        }
+    }
+
+    private final InetSocketAddress gateway;
+    private final List<SimulatedDevice> devices = new ArrayList<>();
+    private final Random random = new Random(7);
+    private final long baseTimestamp = System.currentTimeMillis() - 24 * 60 * 60 * 1000L;
+    private final int batch;
+    private final long intervalMillis;
+    private final double duplicateRate;
+    private final double reconnectRate;
+    private Selector selector;
+    private long framesSent;
+    private long duplicateFramesSent;
+    private long reconnects;
+    private long errors;
+    private long[] latencies = new long[1024];
+    private int latencyCount;
+
+    DeviceSimulator(InetSocketAddress gateway, int batch, long intervalMillis, double duplicateRate,
+                    double reconnectRate) {
+        this.gateway = gateway;
+        this.batch = batch;
+        this.intervalMillis = intervalMillis;
+        this.duplicateRate = duplicateRate;
+        this.reconnectRate = reconnectRate;
+    }
+
+    void addDevice(String deviceId, String token) {
+        devices.add(new SimulatedDevice(deviceId, token, devices.size()));
+    }
+
+    // Runs the devices for the given time, then stops sending new readings and waits (up to drainMillis) until
+    // every reading has been acknowledged.
+    void run(long millis, long drainMillis) throws IOException {
+        selector = Selector.open();
+        long now = System.currentTimeMillis();
+        for (SimulatedDevice d : devices) {
+            d.nextSendAt = now + random.nextInt((int) Math.max(1, intervalMillis));
+            connect(d);
+        }
+        long stopSending = now + millis;
+        long deadline = stopSending + drainMillis;
+        while (true) {
+            now = System.currentTimeMillis();
+            boolean sending = now < stopSending;
+            if (!sending && (allAcknowledged() || now >= deadline)) {
+                break;
+            }
+            selector.select(5);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                SimulatedDevice d = (SimulatedDevice) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                try {
+                    if (key.isConnectable()) {
+                        d.channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                        sendHello(d);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(d);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(d);
+                    }
+                } catch (IOException e) {
+                    errors++;
+                    reconnect(d);
+                }
+            }
+            now = System.currentTimeMillis();
+            for (SimulatedDevice d : devices) {
+                if (d.welcomed && d.out == null && d.channel.isOpen()) {
+                    tick(d, now, sending);
+                }
+            }
+        }
+        for (SimulatedDevice d : devices) {
+            d.channel.close();
+        }
+        selector.close();
+    }
+
+    private void connect(SimulatedDevice d) throws IOException {
+        d.channel = SocketChannel.open();
+        d.channel.configureBlocking(false);
+        d.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        d.welcomed = false;
+        d.out = null;
+        d.in.clear();
+        d.timedSeq = 0;
+        if (d.channel.connect(gateway)) {
+            d.channel.register(selector, SelectionKey.OP_READ, d);
+            sendHello(d);
+        } else {
+            d.channel.register(selector, SelectionKey.OP_CONNECT, d);
+        }
+    }
+
+    private void reconnect(SimulatedDevice d) {
+        reconnects++;
+        try {
+            d.channel.close();
+            connect(d);
+        } catch (IOException e) {
+            errors++;
+        }
+    }
+
+    private void tick(SimulatedDevice d, long now, boolean sending) throws IOException {
+        if (sending && now >= d.nextSendAt) {
+            d.nextSendAt += intervalMillis;
+            if (random.nextDouble() < reconnectRate) {
+                reconnect(d);
+                return;
+            }
+            boolean duplicate = d.nextSeq > batch && random.nextDouble() < duplicateRate;
+            long first = duplicate ? d.nextSeq - batch : d.nextSeq;
+            if (duplicate) {
+                duplicateFramesSent++;
+            } else {
+                d.nextSeq += batch;
+            }
+            send(d, vitalsFrame(d, first, batch), now);
+            if (!duplicate && d.timedSeq == 0) {
+                d.timedSeq = first + batch - 1;
+                d.timedAt = System.nanoTime();
+            }
+        } else if (d.ackedSeq < d.nextSeq - 1 && now - d.lastSentAt >= 1000) {
+            // Not acknowledged within a second: send everything unacknowledged again.
+            resendUnacknowledged(d, now);
+        } else if (now - d.lastSentAt >= HEARTBEAT_INTERVAL_MILLIS) {
+            ByteBuffer frame = ByteBuffer.allocate(3);
+            frame.putShort((short) 1).put(DeviceGateway.HEARTBEAT).flip();
+            send(d, frame, now);
+        }
+    }
+
+    // Readings must reach the gateway in sequence order, so after a reconnect the unacknowledged ones go first.
+    private void resendUnacknowledged(SimulatedDevice d, long now) throws IOException {
+        int perFrame = (DeviceGateway.MAX_FRAME_BYTES - 3) / DeviceGateway.RECORD_BYTES;
+        List<ByteBuffer> frames = new ArrayList<>();
+        int bytes = 0;
+        for (long first = d.ackedSeq + 1; first < d.nextSeq; first += perFrame) {
+            ByteBuffer frame = vitalsFrame(d, first, (int) Math.min(perFrame, d.nextSeq - first));
+            frames.add(frame);
+            bytes += frame.remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(bytes);
+        frames.forEach(all::put);
+        send(d, all.flip(), now);
+    }
+
+    // The readings are a function of the device and the sequence number, so a retransmission is identical.
+    private ByteBuffer vitalsFrame(SimulatedDevice d, long firstSeq, int count) {
+        int length = 1 + 2 + count * DeviceGateway.RECORD_BYTES;
+        ByteBuffer frame = ByteBuffer.allocate(2 + length);
+        frame.putShort((short) length).put(DeviceGateway.VITALS).putShort((short) count);
+        for (long seq = firstSeq; seq < firstSeq + count; seq++) {
+            long wave = (seq * 7 + d.profile) % 11;
+            frame.putLong(seq);
+            frame.putLong(baseTimestamp + seq * 1000);
+            frame.putShort((short) (68 + d.profile % 10 + wave));
+            frame.put((byte) (95 + (seq + d.profile) % 5));
+            boolean cuff = seq % 60 == 0;
+            frame.putShort((short) (cuff ? 115 + wave : 0));
+            frame.putShort((short) (cuff ? 75 + wave / 2 : 0));
+            frame.putShort(seq % 300 == 0 ? (short) (3670 + wave) : Short.MIN_VALUE);
+        }
+        return frame.flip();
+    }
+
+    private void sendHello(SimulatedDevice d) throws IOException {
+        byte[] id = d.deviceId.getBytes(StandardCharsets.UTF_8);
+        byte[] token = d.token.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 1 + 2 + id.length + 2 + token.length;
+        ByteBuffer frame = ByteBuffer.allocate(2 + length);
+        frame.putShort((short) length).put(DeviceGateway.HELLO).put((byte) DeviceGateway.PROTOCOL_VERSION)
+                .putShort((short) id.length).put(id).putShort((short) token.length).put(token).flip();
+        send(d, frame, System.currentTimeMillis());
+    }
+
+    private void send(SimulatedDevice d, ByteBuffer frame, long now) throws IOException {
+        framesSent++;
+        d.lastSentAt = now;
+        d.channel.write(frame);
+        if (frame.hasRemaining()) {
+            d.out = frame;
+            d.channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void flush(SimulatedDevice d) throws IOException {
+        d.channel.write(d.out);
+        if (!d.out.hasRemaining()) {
+            d.out = null;
+            d.channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read(SimulatedDevice d) throws IOException {
+        if (d.channel.read(d.in) < 0) {
+            throw new IOException("Closed by the gateway");
+        }
+        d.in.flip();
+        while (d.in.remaining() >= 2 && d.in.remaining() >= 2 + (d.in.getShort(d.in.position()) & 0xFFFF)) {
+            int length = d.in.getShort() & 0xFFFF;
+            int end = d.in.position() + length;
+            byte type = d.in.get();
+            if (type == DeviceGateway.WELCOME) {
+                d.welcomed = true;
+                d.ackedSeq = d.in.getLong();
+                // Resume after what the gateway stored; later readings are sent again.
+                d.nextSeq = Math.max(d.nextSeq, d.ackedSeq + 1);
+                if (d.ackedSeq < d.nextSeq - 1) {
+                    resendUnacknowledged(d, System.currentTimeMillis());
+                }
+            } else if (type == DeviceGateway.ACK) {
+                d.ackedSeq = Math.max(d.ackedSeq, d.in.getLong());
+                if (d.timedSeq != 0 && d.ackedSeq >= d.timedSeq) {
+                    recordLatency(System.nanoTime() - d.timedAt);
+                    d.timedSeq = 0;
+                }
+            } else if (type == DeviceGateway.ERROR) {
+                byte[] text = new byte[d.in.getShort() & 0xFFFF];
+                d.in.get(text);
+                throw new IOException("Gateway error: " + new String(text, StandardCharsets.UTF_8));
+            }
+            d.in.position(end);
+        }
+        d.in.compact();
+    }
+
+    private void recordLatency(long nanos) {
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        }
+        latencies[latencyCount++] = nanos;
+    }
+
+    private boolean allAcknowledged() {
+        for (SimulatedDevice d : devices) {
+            if (d.ackedSeq < d.nextSeq - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Distinct readings the devices produced (retransmissions not counted).
+    long readingsProduced() {
+        return readingsProduced(id -> true);
+    }
+
+    long readingsProduced(Predicate<String> deviceIds) {
+        long total = 0;
+        for (SimulatedDevice d : devices) {
+            if (deviceIds.test(d.deviceId)) {
+                total += d.nextSeq - 1;
+            }
+        }
+        return total;
+    }
+
+    String report() {
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        String latency = latencyCount == 0 ? "no acks timed" : String.format("ack latency p50 %.1f ms, p99 %.1f ms",
+                sorted[latencyCount / 2] / 1e6, sorted[(int) (latencyCount * 0.99)] / 1e6);
+        return String.format("%d devices, %d frames sent (%d duplicates), %d reconnects, %d errors; %s",
+                devices.size(), framesSent, duplicateFramesSent, reconnects, errors, latency);
+    }
+
+    // Benchmark: java -cp bin healthcare.DeviceSimulator [devices] [seconds] [readings per frame] [interval ms]
+    //                                                      [queue capacity] [device rate per second]
+    // Starts a gateway on a free loopback port with one patient per device and checks that every reading the
+    // devices produced was received exactly once, despite duplicated frames and reconnects. Every 20th patient
+    // has an active alert; with a small queue or a low device rate the run overloads admission control, and the
+    // check is then that none of those patients' readings were shed.
+    public static void main(String[] args) throws Exception {
+        int deviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int batch = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long interval = args.length > 3 ? Long.parseLong(args[3]) : 200;
+        int capacity = args.length > 4 ? Integer.parseInt(args[4]) : AdmissionControl.DEFAULT_CAPACITY;
+        double rate = args.length > 5 ? Double.parseDouble(args[5]) : 100;
+        VitalsDatabase vitalsDb = new VitalsDatabase();
+        AdmissionControl admission = new AdmissionControl(capacity, rate, (int) Math.max(1, rate * 10));
+        Map<String, Patient> patients = new HashMap<>();
+        for (int i = 0; i < deviceCount; i++) {
+            String id = "SIM" + i;
+            patients.put(id, new Patient("Simulated " + i, id));
+            if (i % 20 == 0) {
+                admission.alertRaised(id);
+            }
+        }
+        try (DeviceGateway gateway = new DeviceGateway(new InetSocketAddress("127.0.0.1", 0), patients::get,
+                vitalsDb, new WaveformStore(event -> { }), admission)) {
+            DeviceSimulator simulator = new DeviceSimulator(new InetSocketAddress("127.0.0.1", gateway.getPort()),
+                    batch, interval, 0.02, 0.0005);
+            for (int i = 0; i < deviceCount; i++) {
+                simulator.addDevice("W" + i, gateway.registerDevice("W" + i, "SIM" + i));
+            }
+            long t0 = System.nanoTime();
+            simulator.run(seconds * 1000L, 10_000);
+            admission.awaitStored(10_000);
+            double elapsed = (System.nanoTime() - t0) / 1e9;
+            long produced = simulator.readingsProduced();
+            long received = gateway.readingsReceived();
+            long alerting = simulator.readingsProduced(id -> Integer.parseInt(id.substring(1)) % 20 == 0);
+            System.out.println(simulator.report());
+            System.out.println(gateway.stats());
+            System.out.println(admission.metrics());
+            System.out.printf("%d readings produced, %d received (%s), %.0f readings/s%n", produced, received,
+                    produced == received ? "each exactly once" : "MISMATCH", received / elapsed);
+            System.out.printf("Patients with active alerts: %d readings produced, %d admitted (%s)%n", alerting,
+                    admission.admittedCritical(), alerting == admission.admittedCritical() ? "none shed" : "MISMATCH");
+        }
+    }
+}
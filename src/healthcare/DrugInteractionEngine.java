@@ -0,0 +1,254 @@
+package healthcare;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import healthcare.main.Patient;
+import healthcare.main.Prescription;
+import healthcare.main.SystemLogs;
+
+// DrugInteractionEngine checks medications against a local interaction table.
+// The table is loaded once into a dictionary (medication name -> dense int ID) and a bitset adjacency
+// matrix: row i has bit j set when drugs i and j interact. Checking a new drug against a patient's current
+// prescriptions is then one hash lookup per name and one bit test per pair. Severity and description are
+// only looked up for the pairs that actually interact.
+//
+// The table file has one pair per line, "drug,drug,severity,description"; lines starting with # are comments.
+// A reload swaps in a complete new table at once, so checks never see a half-loaded one.
+class DrugInteractionEngine {
+    static final String DEFAULT_TABLE = "drug_interactions.csv";
+    private static final Path SOURCE_TABLE = Path.of("src", "healthcare", DEFAULT_TABLE);
+
+    // One interacting pair found by a check.
+    static final class Interaction {
+        final String drug;
+        final String otherDrug;
+        final String severity;
+        final String description;
+
+        Interaction(String drug, String otherDrug, String severity, String description) {
+            this.drug = drug;
+            this.otherDrug = otherDrug;
+            this.severity = severity;
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return drug + " + " + otherDrug + " (" + severity + "): " + description;
+        }
+    }
+
+    // An immutable loaded table.
+    private static final class Table {
+        final Map<String, Integer> ids;
+        final String[] names;
+        final long[][] matrix;
+        // Key = (lower id << 32) | higher id.
+        final Map<Long, String[]> details;
+
+        Table(Map<String, Integer> ids, String[] names, long[][] matrix, Map<Long, String[]> details) {
+            this.ids = ids;
+            this.names = names;
+            this.matrix = matrix;
+            this.details = details;
+        }
+
+        int id(String medication) {
+            Integer id = ids.get(normalize(medication));
+            return id == null ? -1 : id;
+        }
+
+        boolean interacts(int a, int b) {
+            return (matrix[a][b >>> 6] & (1L << b)) != 0;
+        }
+
+        Interaction describe(int a, int b) {
+            String[] d = details.get(pairKey(a, b));
+            return new Interaction(names[a], names[b], d[0], d[1]);
+        }
+    }
+
+    private volatile Table table;
+
+    DrugInteractionEngine() {
+        table = new Table(new HashMap<>(), new String[0], new long[0][], new HashMap<>());
+    }
+
+    // Loads the table bundled next to this class (the NetBeans build copies it into the classes folder), or
+    // from the source tree when compiled with plain javac and run from the project root; empty if neither exists.
+    static DrugInteractionEngine loadDefault() {
+        DrugInteractionEngine engine = new DrugInteractionEngine();
+        try (InputStream in = DrugInteractionEngine.class.getResourceAsStream(DEFAULT_TABLE)) {
+            if (in != null) {
+                engine.table = build(readLines(in));
+            } else if (Files.exists(SOURCE_TABLE)) {
+                engine.table = build(Files.readAllLines(SOURCE_TABLE, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            SystemLogs.addLog("Could not load drug interaction table: " + e.getMessage());
+        }
+        return engine;
+    }
+
+    // Replaces the table with the one in the given file.
+    void load(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            table = build(readLines(in));
+        }
+        SystemLogs.addLog("Drug interaction table loaded from " + file + " (" + table.names.length + " medications)");
+    }
+
+    int medicationCount() {
+        return table.names.length;
+    }
+
+    // Interactions between a new medication and the ones the patient is already prescribed.
+    List<Interaction> check(String medication, List<Prescription> current) {
+        Table t = table;
+        int id = t.id(medication);
+        if (id < 0) {
+            return Collections.emptyList();
+        }
+        List<Interaction> found = null;
+        for (Prescription p : current) {
+            int other = t.id(p.getMedicationName());
+            if (other >= 0 && t.interacts(id, other)) {
+                if (found == null) {
+                    found = new ArrayList<>();
+                }
+                found.add(t.describe(id, other));
+            }
+        }
+        return found == null ? Collections.emptyList() : found;
+    }
+
+    // Interactions among the patient's own prescriptions (each pair reported once).
+    List<Interaction> checkAll(List<Prescription> prescriptions) {
+        Table t = table;
+        int[] ids = new int[prescriptions.size()];
+        int n = 0;
+        for (Prescription p : prescriptions) {
+            int id = t.id(p.getMedicationName());
+            if (id >= 0) {
+                ids[n++] = id;
+            }
+        }
+        List<Interaction> found = Collections.emptyList();
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (t.interacts(ids[i], ids[j])) {
+                    if (found.isEmpty()) {
+                        found = new ArrayList<>();
+                    }
+                    found.add(t.describe(ids[i], ids[j]));
+                }
+            }
+        }
+        return found;
+    }
+
+    // Re-checks every patient in parallel (e.g. after the table changed) and returns the patients with at
+    // least one interaction among their prescriptions, keyed by patient ID. With a PatientStore, patients that
+    // are not in memory are checked from their segment on disk instead of being loaded (store may be null).
+    Map<String, List<Interaction>> recheckAll(List<Patient> patients, PatientStore store) {
+        return recheckAll(patients, store, ForkJoinPool.commonPool());
+    }
+
+    Map<String, List<Interaction>> recheckAll(List<Patient> patients, PatientStore store, ForkJoinPool pool) {
+        Map<String, List<Interaction>> result = new ConcurrentHashMap<>();
+        List<Patient> copy = new ArrayList<>(patients);
+        pool.submit(() -> copy.parallelStream().forEach(p -> {
+            List<Interaction> found = checkAll(prescriptionsOf(p, store));
+            if (!found.isEmpty()) {
+                result.put(p.getUserId(), found);
+            }
+        })).join();
+        return result;
+    }
+
+    // The patient's prescriptions, read from disk when the patient is not in memory.
+    private static List<Prescription> prescriptionsOf(Patient p, PatientStore store) {
+        if (store != null) {
+            try {
+                PatientSnapshot onDisk = store.readIfOnDisk(p);
+                if (onDisk != null) {
+                    return onDisk.prescriptions;
+                }
+            } catch (IOException e) {
+                SystemLogs.addLog("Could not read prescriptions of " + p.getUserId() + " from disk, loading the patient: "
+                        + e.getMessage());
+            }
+        }
+        return p.getPrescriptions();
+    }
+
+    private static List<String> readLines(InputStream in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static Table build(List<String> lines) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        List<int[]> pairs = new ArrayList<>();
+        Map<Long, String[]> details = new HashMap<>();
+        int lineNo = 0;
+        for (String line : lines) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split(",", 4);
+            if (parts.length < 3) {
+                throw new IOException("Bad interaction table line " + lineNo + ": " + line);
+            }
+            int a = intern(ids, names, parts[0]);
+            int b = intern(ids, names, parts[1]);
+            pairs.add(new int[] {a, b});
+            details.put(pairKey(a, b), new String[] {parts[2].trim(), parts.length > 3 ? parts[3].trim() : ""});
+        }
+        int n = names.size();
+        long[][] matrix = new long[n][(n + 63) >>> 6];
+        for (int[] pair : pairs) {
+            matrix[pair[0]][pair[1] >>> 6] |= 1L << pair[1];
+            matrix[pair[1]][pair[0] >>> 6] |= 1L << pair[0];
+        }
+        return new Table(ids, names.toArray(new String[0]), matrix, details);
+    }
+
+    private static int intern(Map<String, Integer> ids, List<String> names, String name) {
+        return ids.computeIfAbsent(normalize(name), key -> {
+            names.add(name.trim());
+            return names.size() - 1;
+        });
+    }
+
+    private static String normalize(String medication) {
+        return medication.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static long pairKey(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+}
@@ -0,0 +1,349 @@
+package healthcare;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import healthcare.main.SystemLogs;
+
+// EscalationEngine tracks emergency and panic alerts until a clinician acknowledges them. Each alert gets an ID
+// and goes to its first recipient (the patient's doctor, or the first on-call clinician). If nobody acknowledges
+// it within the acknowledgement timeout it escalates to the next on-call clinician and then to the charge nurse,
+// who is paged again every timeout until someone acknowledges.
+//
+// All pending deadlines live in one DelayQueue served by a single thread, so thousands of open alerts cost one
+// queue entry each, not a thread or a Timer each. Acknowledging does not search the queue: the entry stays and
+// is skipped when it comes due, because the alert is no longer open at that level. Acknowledged alerts are
+// dropped from the engine, and open alerts are indexed by recipient, so a clinician's list does not scan every
+// alert ever raised.
+class EscalationEngine implements AutoCloseable {
+    static final long DEFAULT_ACK_TIMEOUT_MILLIS = 60_000;
+
+    enum State { OPEN, ACKNOWLEDGED }
+
+    static final class Alert {
+        final long id;
+        final String patient;
+        final String message;
+        final long raisedAt;
+        // Guarded by the Alert.
+        private State state = State.OPEN;
+        private int level;
+        private final List<String> notified = new ArrayList<>(3);
+        private String acknowledgedBy;
+        private long acknowledgedAt;
+
+        private Alert(long id, String patient, String message, long raisedAt) {
+            this.id = id;
+            this.patient = patient;
+            this.message = message;
+            this.raisedAt = raisedAt;
+        }
+
+        synchronized State state() {
+            return state;
+        }
+
+        synchronized int level() {
+            return level;
+        }
+
+        synchronized List<String> notified() {
+            return new ArrayList<>(notified);
+        }
+
+        synchronized String acknowledgedBy() {
+            return acknowledgedBy;
+        }
+
+        @Override
+        public synchronized String toString() {
+            String status = state == State.OPEN ? "OPEN, level " + level + ", notified " + notified
+                    : "acknowledged by " + acknowledgedBy + " after " + (acknowledgedAt - raisedAt) / 1000 + " s";
+            return "Alert #" + id + " (" + patient + "): " + message + " [" + status + "]";
+        }
+    }
+
+    // A deadline: if the alert is still open at this level when it comes due, it escalates.
+    private static final class Deadline implements Delayed {
+        final Alert alert;
+        final int level;
+        final long dueNanos;
+
+        Deadline(Alert alert, int level, long dueNanos) {
+            this.alert = alert;
+            this.level = level;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Deadline) other).dueNanos);
+        }
+    }
+
+    private final BiConsumer<String, String> sink;
+    private final long ackTimeoutNanos;
+    // Open alerts by ID, and by every recipient (lower case) they were sent to.
+    private final Map<Long, Alert> alerts = new ConcurrentHashMap<>();
+    private final Map<String, Set<Alert>> openByRecipient = new ConcurrentHashMap<>();
+    private final DelayQueue<Deadline> deadlines = new DelayQueue<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicLong escalations = new AtomicLong();
+    // Largest delay between a deadline and its escalation, for the accuracy check.
+    private volatile long maxLatenessNanos;
+    private volatile List<String> onCall = List.of();
+    private volatile String chargeNurse;
+    private final Thread scheduler;
+
+    // sink delivers (recipient, message), e.g. main::addNotification.
+    EscalationEngine(BiConsumer<String, String> sink, long ackTimeoutMillis) {
+        this.sink = sink;
+        this.ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+        scheduler = new Thread(this::run, "alert-escalation");
+        scheduler.setDaemon(true);
+        scheduler.start();
+    }
+
+    // The on-call clinicians in escalation order, and the charge nurse who receives alerts last.
+    void setRoster(List<String> onCall, String chargeNurse) {
+        this.onCall = List.copyOf(onCall);
+        this.chargeNurse = chargeNurse == null || chargeNurse.isBlank() ? null : chargeNurse;
+        SystemLogs.addLog("On-call roster set: " + onCall + ", charge nurse " + this.chargeNurse);
+    }
+
+    List<String> onCall() {
+        return onCall;
+    }
+
+    String chargeNurse() {
+        return chargeNurse;
+    }
+
+    // Opens an alert for the patient. firstRecipient may be null, in which case the first on-call clinician
+    // receives it.
+    Alert raise(String patient, String firstRecipient, String message) {
+        Alert alert = new Alert(nextId.getAndIncrement(), patient, message, System.currentTimeMillis());
+        alerts.put(alert.id, alert);
+        String recipient = firstRecipient != null && !firstRecipient.isBlank() ? firstRecipient
+                : nextRecipient(alert, 0);
+        String notification;
+        synchronized (alert) {
+            notification = addRecipient(alert, recipient);
+            deadlines.add(new Deadline(alert, 0, System.nanoTime() + ackTimeoutNanos));
+        }
+        // Delivered outside the lock, so a slow sink does not hold up acknowledgements of the alert.
+        sink.accept(recipient, notification);
+        SystemLogs.addLog("Alert #" + alert.id + " raised for " + patient + ", sent to " + recipient);
+        return alert;
+    }
+
+    // Marks the alert as seen. Returns false if there is no such alert or it was already acknowledged.
+    boolean acknowledge(long alertId, String clinician) {
+        Alert alert = alerts.get(alertId);
+        if (alert == null) {
+            return false;
+        }
+        synchronized (alert) {
+            if (alert.state != State.OPEN) {
+                return false;
+            }
+            alert.state = State.ACKNOWLEDGED;
+            alert.acknowledgedBy = clinician;
+            alert.acknowledgedAt = System.currentTimeMillis();
+            for (String recipient : alert.notified) {
+                Set<Alert> open = openByRecipient.get(recipient.toLowerCase(Locale.ROOT));
+                if (open != null) {
+                    open.remove(alert);
+                }
+            }
+        }
+        alerts.remove(alertId);
+        SystemLogs.addLog("Alert #" + alertId + " acknowledged by " + clinician);
+        return true;
+    }
+
+    // The alert if it is still open, otherwise null.
+    Alert get(long alertId) {
+        return alerts.get(alertId);
+    }
+
+    // Open alerts that were sent to the recipient (at any level), oldest first.
+    List<Alert> openAlertsFor(String recipient) {
+        Set<Alert> open = openByRecipient.get(recipient.toLowerCase(Locale.ROOT));
+        if (open == null) {
+            return new ArrayList<>();
+        }
+        List<Alert> result = new ArrayList<>(open);
+        result.sort((a, b) -> Long.compare(a.id, b.id));
+        return result;
+    }
+
+    int openCount() {
+        return alerts.size();
+    }
+
+    long escalations() {
+        return escalations.get();
+    }
+
+    long maxLatenessMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatenessNanos);
+    }
+
+    @Override
+    public void close() {
+        scheduler.interrupt();
+    }
+
+    private void run() {
+        while (true) {
+            Deadline due;
+            try {
+                due = deadlines.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long lateness = System.nanoTime() - due.dueNanos;
+            try {
+                escalate(due, lateness);
+            } catch (RuntimeException e) {
+                // A failing sink must not stop the escalation of every other alert.
+                SystemLogs.addLog("Escalation of alert #" + due.alert.id + " failed: " + e);
+            }
+        }
+    }
+
+    private void escalate(Deadline due, long lateness) {
+        Alert alert = due.alert;
+        String recipient;
+        int level;
+        String notification;
+        synchronized (alert) {
+            if (alert.state != State.OPEN || alert.level != due.level) {
+                // Acknowledged in the meantime.
+                return;
+            }
+            if (lateness > maxLatenessNanos) {
+                maxLatenessNanos = lateness;
+            }
+            level = alert.level + 1;
+            recipient = nextRecipient(alert, level);
+            alert.level = level;
+            notification = addRecipient(alert, recipient);
+            deadlines.add(new Deadline(alert, level, due.dueNanos + ackTimeoutNanos));
+        }
+        // Outside the lock: the scheduler thread does not block acknowledgements while the sink delivers. An
+        // acknowledgement that comes in meanwhile does not recall this message, as it would not have before.
+        sink.accept(recipient, notification);
+        escalations.incrementAndGet();
+        SystemLogs.addLog("Alert #" + alert.id + " not acknowledged, escalated to " + recipient
+                + " (level " + level + ")");
+    }
+
+    // Levels 0 and 1 go to the next on-call clinician who has not had the alert yet, later levels to the charge
+    // nurse. Without a charge nurse the rest of the roster follows, and then the last recipient is paged again.
+    private String nextRecipient(Alert alert, int level) {
+        if (level < 2 || chargeNurse == null) {
+            for (String clinician : onCall) {
+                if (!containsIgnoreCase(alert.notified, clinician)) {
+                    return clinician;
+                }
+            }
+        }
+        if (chargeNurse != null) {
+            return chargeNurse;
+        }
+        // Nobody configured: the alert stays open and is only visible in the system logs.
+        return alert.notified.isEmpty() ? "unassigned" : alert.notified.get(alert.notified.size() - 1);
+    }
+
+    // Records that the recipient has the alert and returns the message for the sink, which the caller delivers
+    // after releasing the lock. Caller holds the alert's lock and the alert is open.
+    private String addRecipient(Alert alert, String recipient) {
+        if (!containsIgnoreCase(alert.notified, recipient)) {
+            alert.notified.add(recipient);
+            openByRecipient.computeIfAbsent(recipient.toLowerCase(Locale.ROOT), k -> ConcurrentHashMap.newKeySet())
+                    .add(alert);
+        }
+        String prefix = alert.level == 0 ? "Alert #" : "ESCALATED Alert #";
+        return prefix + alert.id + " for " + alert.patient + ": " + alert.message
+                + " (acknowledge in Doctor Menu > Acknowledge Alert)";
+    }
+
+    private static boolean containsIgnoreCase(List<String> names, String name) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Benchmark: java -cp bin healthcare.EscalationEngine [alerts] [timeout ms]
+    // Raises the alerts spread over half a timeout; every other one is acknowledged right away. Checks that no
+    // acknowledged alert escalates, that every other alert goes to the on-call clinician and then to the charge
+    // nurse, and reports how late the escalations fired.
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        long timeout = args.length > 1 ? Long.parseLong(args[1]) : 1_000;
+        AtomicLong delivered = new AtomicLong();
+        CountDownLatch nurse = new CountDownLatch(count / 2);
+        EscalationEngine engine = new EscalationEngine((recipient, message) -> {
+            delivered.incrementAndGet();
+            if (recipient.equals("N1")) {
+                nurse.countDown();
+            }
+        }, timeout);
+        engine.setRoster(List.of("D1", "D2", "D3"), "N1");
+        Alert[] raised = new Alert[count];
+        long raiseNanos = 0;
+        int chunk = Math.max(1, count / 50);
+        for (int i = 0; i < count; i++) {
+            long t0 = System.nanoTime();
+            raised[i] = engine.raise("P" + i, "D1", "Panic button pressed");
+            raiseNanos += System.nanoTime() - t0;
+            if (i % 2 == 1) {
+                engine.acknowledge(raised[i - 1].id, "D1");
+            }
+            if (i % chunk == chunk - 1) {
+                Thread.sleep(timeout / 100);
+            }
+        }
+        boolean done = nurse.await(timeout * 5, TimeUnit.MILLISECONDS);
+        // Let any wrong escalation of an acknowledged alert happen before counting.
+        Thread.sleep(timeout / 2);
+        int ackedEscalated = 0;
+        int reachedNurse = 0;
+        for (int i = 0; i < count; i++) {
+            List<String> notified = raised[i].notified();
+            if (i % 2 == 0 && notified.size() > 1) {
+                ackedEscalated++;
+            }
+            if (notified.equals(List.of("D1", "D2", "N1"))) {
+                reachedNurse++;
+            }
+        }
+        System.out.printf("%d alerts raised (%.1f us each), %d still open%n", count, raiseNanos / 1e3 / count,
+                engine.openCount());
+        System.out.printf("%d unacknowledged alerts reached the charge nurse via D2%s; %d acknowledged alerts"
+                + " escalated%n", reachedNurse, done ? "" : " (timed out waiting)", ackedEscalated);
+        System.out.printf("%d escalations, %d messages, max lateness %d ms%n", engine.escalations(),
+                delivered.get(), engine.maxLatenessMillis());
+        engine.close();
+    }
+}
@@ -0,0 +1,658 @@
+package healthcare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import healthcare.main.SystemLogs;
+
+// LiveFeed pushes new vitals readings and alerts to dashboards as Server-Sent Events, so clinicians no longer
+// have to pull with viewAlerts or viewPatientData. A dashboard opens
+//
+//   GET /events?patients=P001,P002     readings and alerts of these patients
+//   GET /events?doctor=D001            the doctor's ward: patients with approved appointments, and the doctor's
+//                                      own alerts
+//
+// and keeps the connection open. Events look like
+//
+//   id: 42
+//   event: vitals                      (or: alert)
+//   data: {"patient":"P001","timestamp":...,"heartRate":72,...}
+//
+// Each event is encoded once, into a direct buffer, on the thread that stored the reading or raised the alert,
+// and only if some dashboard watches that patient. Every subscriber then gets a duplicate() of that buffer: its
+// own position over the shared bytes, written straight to the socket with a gathering write, without copying.
+// A single event loop serves all dashboards. A dashboard that stops reading (more than MAX_PENDING_BYTES
+// waiting) is dropped instead of holding memory; it can reconnect. A comment line goes out every
+// PING_INTERVAL_MILLIS so proxies keep the connection open and dead clients are noticed.
+//
+// The feed does not authenticate dashboards, so main binds it to the loopback interface; remote dashboards
+// need an authenticating proxy in front of it.
+class LiveFeed implements Closeable {
+    static final int DEFAULT_MAX_SUBSCRIBERS = 10_000;
+    static final int MAX_PENDING_BYTES = 256 * 1024;
+    static final long PING_INTERVAL_MILLIS = 15_000;
+    private static final int MAX_REQUEST_BYTES = 8192;
+    private static final int MAX_GATHER = 64;
+    private static final ByteBuffer PING = direct(": ping\n\n".getBytes(StandardCharsets.US_ASCII));
+    private static final byte[] PREAMBLE = ("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n"
+            + "Cache-Control: no-cache\r\nConnection: keep-alive\r\n\r\nretry: 5000\n\n")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    // An encoded event on its way to the event loop. Readings are matched on the exact patient ID, alerts on
+    // the recipient in lower case (alerts are addressed by name or ID).
+    private static final class Pending {
+        final String key;
+        final boolean alert;
+        final ByteBuffer bytes;
+
+        Pending(String key, boolean alert, ByteBuffer bytes) {
+            this.key = key;
+            this.alert = alert;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Subscriber {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer request = ByteBuffer.allocate(1024);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        int pendingBytes;
+        boolean streaming;
+        boolean dirty;
+        List<String> readingKeys = List.of();
+        List<String> alertKeys = List.of();
+
+        Subscriber(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final Function<String, Collection<String>> wards;
+    private final Function<String, String> patientNames;
+    private final int maxSubscribers;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // Keys with at least one subscriber; read by producers to skip unwatched events, written by the event loop.
+    private final Set<String> watchedReadings = ConcurrentHashMap.newKeySet();
+    private final Set<String> watchedAlerts = ConcurrentHashMap.newKeySet();
+    // Owned by the event loop.
+    private final Map<String, List<Subscriber>> readingSubscribers = new HashMap<>();
+    private final Map<String, List<Subscriber>> alertSubscribers = new HashMap<>();
+    private final List<Subscriber> streaming = new ArrayList<>();
+    // Subscribers with new events queued in this pass; each is flushed once, with one gathering write.
+    private final List<Subscriber> dirty = new ArrayList<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicLong eventsPublished = new AtomicLong();
+    private long deliveries;
+    private long slowDropped;
+    private volatile int subscriberCount;
+    private volatile boolean running = true;
+    private long lastPing = System.currentTimeMillis();
+
+    // wards maps a doctor ID to the IDs and names the doctor's dashboard follows (null if there is no such
+    // doctor); patientNames maps a patient ID to the name alerts may be addressed to (or null).
+    LiveFeed(InetSocketAddress address, Function<String, Collection<String>> wards,
+             Function<String, String> patientNames, int maxSubscribers) throws IOException {
+        this.wards = wards;
+        this.patientNames = patientNames;
+        this.maxSubscribers = maxSubscribers;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::run, "live-feed");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    // Publishes a stored reading if any dashboard watches the patient. Missing values: VitalsSeries.NO_VALUE
+    // for the integer vitals, NaN for the temperature.
+    void reading(String patientId, long timestamp, int heartRate, int oxygenLevel, int systolic, int diastolic,
+                 double temperature) {
+        if (!watchedReadings.contains(patientId)) {
+            return;
+        }
+        StringBuilder data = new StringBuilder(160);
+        data.append("{\"patient\":");
+        appendJson(data, patientId);
+        data.append(",\"timestamp\":").append(timestamp).append(",\"heartRate\":").append(heartRate)
+                .append(",\"oxygenLevel\":").append(oxygenLevel);
+        if (systolic != VitalsSeries.NO_VALUE) {
+            data.append(",\"systolic\":").append(systolic);
+        }
+        if (diastolic != VitalsSeries.NO_VALUE) {
+            data.append(",\"diastolic\":").append(diastolic);
+        }
+        if (!Double.isNaN(temperature)) {
+            data.append(",\"temperature\":").append(temperature);
+        }
+        data.append('}');
+        enqueue(new Pending(patientId, false, encode("vitals", data)));
+    }
+
+    // Publishes a notification (threshold, trend, rhythm and escalation alerts, reminders) if any dashboard
+    // watches the recipient.
+    void alert(String recipient, String message) {
+        String key = recipient.toLowerCase(Locale.ROOT);
+        if (!watchedAlerts.contains(key)) {
+            return;
+        }
+        StringBuilder data = new StringBuilder(64 + message.length());
+        data.append("{\"recipient\":");
+        appendJson(data, recipient);
+        data.append(",\"timestamp\":").append(System.currentTimeMillis()).append(",\"message\":");
+        appendJson(data, message);
+        data.append('}');
+        enqueue(new Pending(key, true, encode("alert", data)));
+    }
+
+    String stats() {
+        return String.format("%d dashboards connected; %d events published, %d deliveries, %d slow dashboards"
+                + " dropped", subscriberCount, eventsPublished.get(), deliveries, slowDropped);
+    }
+
+    int subscriberCount() {
+        return subscriberCount;
+    }
+
+    long slowDropped() {
+        return slowDropped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ByteBuffer encode(String event, StringBuilder data) {
+        StringBuilder sb = new StringBuilder(data.length() + 40);
+        sb.append("id: ").append(nextId.getAndIncrement()).append("\nevent: ").append(event).append("\ndata: ")
+                .append(data).append("\n\n");
+        return direct(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+    }
+
+    private void enqueue(Pending event) {
+        eventsPublished.incrementAndGet();
+        pending.add(event);
+        // One wakeup per loop pass is enough, however many events arrive meanwhile.
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(1000);
+                wakeupPending.set(false);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Subscriber s = (Subscriber) key.attachment();
+                    if (key.isReadable()) {
+                        read(s);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(s);
+                    }
+                }
+                dispatch();
+                long now = System.currentTimeMillis();
+                if (now - lastPing >= PING_INTERVAL_MILLIS) {
+                    lastPing = now;
+                    for (Subscriber s : new ArrayList<>(streaming)) {
+                        send(s, PING.duplicate());
+                    }
+                }
+                flushDirty();
+            }
+        } catch (ClosedSelectorException e) {
+            // Closed while shutting down.
+        } catch (IOException | RuntimeException e) {
+            SystemLogs.addLog("Live feed stopped: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Already gone.
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing left to release.
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Subscriber(channel, key));
+        }
+    }
+
+    // Reads the HTTP request; once the headers are complete the connection becomes an event stream.
+    // Anything a streaming dashboard sends afterwards is ignored.
+    private void read(Subscriber s) {
+        try {
+            if (s.streaming) {
+                ByteBuffer discard = ByteBuffer.allocate(256);
+                if (s.channel.read(discard) < 0) {
+                    drop(s);
+                }
+                return;
+            }
+            if (!s.request.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_REQUEST_BYTES, s.request.capacity() * 2));
+                bigger.put(s.request.flip());
+                s.request = bigger;
+            }
+            if (s.channel.read(s.request) < 0) {
+                drop(s);
+                return;
+            }
+            String text = new String(s.request.array(), 0, s.request.position(), StandardCharsets.ISO_8859_1);
+            int end = text.indexOf("\r\n\r\n");
+            if (end < 0) {
+                if (s.request.position() >= MAX_REQUEST_BYTES) {
+                    reject(s, "431 Request Header Fields Too Large");
+                }
+                return;
+            }
+            handleRequest(s, text.substring(0, text.indexOf("\r\n")));
+        } catch (IOException e) {
+            drop(s);
+        }
+    }
+
+    private void handleRequest(Subscriber s, String requestLine) {
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[0].equals("GET")) {
+            reject(s, "405 Method Not Allowed");
+            return;
+        }
+        int q = parts[1].indexOf('?');
+        String path = q < 0 ? parts[1] : parts[1].substring(0, q);
+        if (!path.equals("/events")) {
+            reject(s, "404 Not Found");
+            return;
+        }
+        Map<String, String> params = new HashMap<>();
+        if (q >= 0) {
+            for (String pair : parts[1].substring(q + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    try {
+                        params.put(pair.substring(0, eq),
+                                URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                    } catch (IllegalArgumentException e) {
+                        // A malformed escape such as %zz.
+                        reject(s, "400 Bad Request");
+                        return;
+                    }
+                }
+            }
+        }
+        Set<String> readingKeys = new LinkedHashSet<>();
+        Set<String> alertKeys = new LinkedHashSet<>();
+        String patients = params.get("patients");
+        if (patients != null) {
+            for (String id : patients.split(",")) {
+                if (!id.isBlank()) {
+                    addPatient(id.trim(), readingKeys, alertKeys);
+                }
+            }
+        }
+        String doctor = params.get("doctor");
+        if (doctor != null) {
+            Collection<String> ward = wards.apply(doctor.trim());
+            if (ward == null) {
+                reject(s, "404 Not Found");
+                return;
+            }
+            alertKeys.add(doctor.trim().toLowerCase(Locale.ROOT));
+            for (String key : ward) {
+                // The ward lists patient IDs and names and the doctor's own name: readings are keyed by ID only.
+                readingKeys.add(key);
+                alertKeys.add(key.toLowerCase(Locale.ROOT));
+            }
+        }
+        if (readingKeys.isEmpty() && alertKeys.isEmpty()) {
+            reject(s, "400 Bad Request");
+            return;
+        }
+        if (subscriberCount >= maxSubscribers) {
+            reject(s, "503 Service Unavailable");
+            return;
+        }
+        s.streaming = true;
+        s.request = null;
+        s.readingKeys = new ArrayList<>(readingKeys);
+        s.alertKeys = new ArrayList<>(alertKeys);
+        streaming.add(s);
+        subscriberCount = streaming.size();
+        watch(s.readingKeys, readingSubscribers, watchedReadings, s);
+        watch(s.alertKeys, alertSubscribers, watchedAlerts, s);
+        send(s, ByteBuffer.wrap(PREAMBLE));
+        flushDirty();
+    }
+
+    private void addPatient(String id, Set<String> readingKeys, Set<String> alertKeys) {
+        readingKeys.add(id);
+        alertKeys.add(id.toLowerCase(Locale.ROOT));
+        String name = patientNames.apply(id);
+        if (name != null) {
+            alertKeys.add(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private void reject(Subscriber s, String status) {
+        byte[] response = ("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        try {
+            s.channel.write(ByteBuffer.wrap(response));
+        } catch (IOException e) {
+            // Closed below anyway.
+        }
+        drop(s);
+    }
+
+    // Hands every pending event to its subscribers, sharing the encoded bytes.
+    private void dispatch() {
+        Pending event;
+        while ((event = pending.poll()) != null) {
+            List<Subscriber> subscribers = (event.alert ? alertSubscribers : readingSubscribers).get(event.key);
+            if (subscribers == null) {
+                continue;
+            }
+            // send() may drop a slow subscriber, which edits this list.
+            for (Subscriber s : subscribers.toArray(new Subscriber[0])) {
+                deliveries++;
+                send(s, event.bytes.duplicate());
+            }
+        }
+    }
+
+    private void send(Subscriber s, ByteBuffer bytes) {
+        if (!s.channel.isOpen()) {
+            return;
+        }
+        if (s.pendingBytes + bytes.remaining() > MAX_PENDING_BYTES) {
+            slowDropped++;
+            SystemLogs.addLog("Live feed dropped a dashboard that stopped reading ("
+                    + s.pendingBytes + " bytes waiting)");
+            drop(s);
+            return;
+        }
+        boolean idle = s.out.isEmpty();
+        s.out.add(bytes);
+        s.pendingBytes += bytes.remaining();
+        // With output already waiting, the socket is full and OP_WRITE will flush it.
+        if (idle && !s.dirty) {
+            s.dirty = true;
+            dirty.add(s);
+        }
+    }
+
+    private void flushDirty() {
+        for (Subscriber s : dirty) {
+            s.dirty = false;
+            if (s.channel.isOpen()) {
+                flush(s);
+            }
+        }
+        dirty.clear();
+    }
+
+    private void flush(Subscriber s) {
+        try {
+            while (!s.out.isEmpty()) {
+                int n = 0;
+                long offered = 0;
+                for (ByteBuffer b : s.out) {
+                    gather[n++] = b;
+                    offered += b.remaining();
+                    if (n == MAX_GATHER) {
+                        break;
+                    }
+                }
+                long written = s.channel.write(gather, 0, n);
+                s.pendingBytes -= (int) written;
+                Arrays.fill(gather, 0, n, null);
+                while (!s.out.isEmpty() && !s.out.peek().hasRemaining()) {
+                    s.out.poll();
+                }
+                if (written < offered) {
+                    // The socket buffer is full; continue when the channel is writable again.
+                    break;
+                }
+            }
+            int ops = s.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (s.key.isValid() && s.key.interestOps() != ops) {
+                s.key.interestOps(ops);
+            }
+        } catch (IOException e) {
+            drop(s);
+        }
+    }
+
+    private void drop(Subscriber s) {
+        s.key.cancel();
+        try {
+            s.channel.close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+        if (!s.streaming || !streaming.remove(s)) {
+            return;
+        }
+        subscriberCount = streaming.size();
+        unwatch(s.readingKeys, readingSubscribers, watchedReadings, s);
+        unwatch(s.alertKeys, alertSubscribers, watchedAlerts, s);
+        s.out.clear();
+    }
+
+    private static void watch(List<String> keys, Map<String, List<Subscriber>> subscribers, Set<String> watched,
+                              Subscriber s) {
+        for (String key : keys) {
+            subscribers.computeIfAbsent(key, k -> new ArrayList<>()).add(s);
+            watched.add(key);
+        }
+    }
+
+    private static void unwatch(List<String> keys, Map<String, List<Subscriber>> subscribers, Set<String> watched,
+                                Subscriber s) {
+        for (String key : keys) {
+            List<Subscriber> list = subscribers.get(key);
+            list.remove(s);
+            if (list.isEmpty()) {
+                subscribers.remove(key);
+                watched.remove(key);
+            }
+        }
+    }
+
+    static void appendJson(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    // Benchmark: java -cp bin healthcare.LiveFeed [dashboards] [readings] [patients]
+    // Connects the dashboards (each watching 10 random patients) and one dashboard that never reads, publishes
+    // the readings round-robin over the patients, and checks that every dashboard received exactly the readings
+    // of its patients while the stalled one was dropped.
+    public static void main(String[] args) throws Exception {
+        int dashboards = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int readings = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int patients = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+        java.util.Random random = new java.util.Random(11);
+        try (LiveFeed feed = new LiveFeed(new InetSocketAddress("127.0.0.1", 0), id -> null, id -> null,
+                DEFAULT_MAX_SUBSCRIBERS)) {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", feed.getPort());
+            Selector clients = Selector.open();
+            int[][] watching = new int[dashboards][];
+            long[] received = new long[dashboards];
+            int[] matched = new int[dashboards];
+            for (int d = 0; d < dashboards; d++) {
+                watching[d] = random.ints(0, patients).distinct().limit(10).toArray();
+                StringBuilder query = new StringBuilder();
+                for (int p : watching[d]) {
+                    query.append(query.length() == 0 ? "" : ",").append('P').append(p);
+                }
+                SocketChannel channel = SocketChannel.open(address);
+                channel.write(ByteBuffer.wrap(("GET /events?patients=" + query + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII)));
+                channel.configureBlocking(false);
+                channel.register(clients, SelectionKey.OP_READ, d);
+            }
+            // The stalled dashboard watches every patient and never reads.
+            SocketChannel stalled = SocketChannel.open();
+            stalled.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+            stalled.connect(address);
+            StringBuilder all = new StringBuilder();
+            for (int p = 0; p < patients; p++) {
+                all.append(all.length() == 0 ? "" : ",").append('P').append(p);
+            }
+            stalled.write(ByteBuffer.wrap(("GET /events?patients=" + all + " HTTP/1.1\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII)));
+            while (feed.subscriberCount() < dashboards + 1) {
+                Thread.sleep(10);
+            }
+            long[] expected = new long[dashboards];
+            long[] perPatient = new long[patients];
+            String[] ids = new String[patients];
+            for (int p = 0; p < patients; p++) {
+                ids[p] = "P" + p;
+            }
+            byte[] pattern = "event: vitals".getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long t0 = System.nanoTime();
+            Thread publisher = new Thread(() -> {
+                for (int i = 0; i < readings; i++) {
+                    int p = i % patients;
+                    feed.reading(ids[p], 1_700_000_000_000L + i, 60 + i % 40, 95 + i % 5, 120, 80, 36.9);
+                }
+            });
+            for (int i = 0; i < readings; i++) {
+                perPatient[i % patients]++;
+            }
+            long total = 0;
+            for (int d = 0; d < dashboards; d++) {
+                for (int p : watching[d]) {
+                    expected[d] += perPatient[p];
+                }
+                total += expected[d];
+            }
+            publisher.start();
+            long got = 0;
+            long deadline = System.currentTimeMillis() + 60_000;
+            while (got < total && System.currentTimeMillis() < deadline) {
+                clients.select(100);
+                for (SelectionKey key : clients.selectedKeys()) {
+                    int d = (Integer) key.attachment();
+                    buffer.clear();
+                    int n = ((SocketChannel) key.channel()).read(buffer);
+                    for (int i = 0; i < n; i++) {
+                        byte b = buffer.get(i);
+                        matched[d] = b == pattern[matched[d]] ? matched[d] + 1 : (b == pattern[0] ? 1 : 0);
+                        if (matched[d] == pattern.length) {
+                            matched[d] = 0;
+                            received[d]++;
+                            got++;
+                        }
+                    }
+                }
+                clients.selectedKeys().clear();
+            }
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            publisher.join();
+            int exact = 0;
+            for (int d = 0; d < dashboards; d++) {
+                if (received[d] == expected[d]) {
+                    exact++;
+                }
+            }
+            System.out.println(feed.stats());
+            System.out.printf("%d readings to %d dashboards: %d deliveries in %.2f s (%.0f deliveries/s)%n", readings,
+                    dashboards, got, seconds, got / seconds);
+            System.out.printf("%d of %d dashboards received exactly their patients' readings; stalled dashboard %s%n",
+                    exact, dashboards, feed.slowDropped() == 1 ? "dropped" : "NOT dropped");
+            stalled.close();
+            for (SelectionKey key : clients.keys()) {
+                key.channel().close();
+            }
+            clients.close();
+        }
+    }
+}
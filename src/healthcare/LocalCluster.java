@@ -0,0 +1,114 @@
+package healthcare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import healthcare.main.VitalSign;
+
+// LocalCluster runs a sharded patient store on one machine: each node is a LocalPatientShard behind its
+// own ShardServer on loopback, and the router reaches every node through a RemotePatientShard, exactly as
+// it would across machines. Nodes started as separate processes (ShardServer.main) can be attached by port.
+class LocalCluster implements Closeable {
+    private final ShardRouter router = new ShardRouter();
+    private final Map<String, ShardServer> servers = new LinkedHashMap<>();
+    private final Map<String, RemotePatientShard> clients = new LinkedHashMap<>();
+    private int nextNode = 1;
+
+    ShardRouter getRouter() {
+        return router;
+    }
+
+    // Starts a new in-JVM node and adds it to the ring; returns its ID.
+    synchronized String startNode() throws IOException {
+        String nodeId = "node-" + nextNode++;
+        ShardServer server = new ShardServer(new LocalPatientShard(), 0);
+        servers.put(nodeId, server);
+        attach(nodeId, server.getPort());
+        return nodeId;
+    }
+
+    // Adds a node running elsewhere on this machine (e.g. another process) to the ring.
+    synchronized void attach(String nodeId, int port) throws IOException {
+        RemotePatientShard client = new RemotePatientShard(port);
+        clients.put(nodeId, client);
+        router.addNode(nodeId, client);
+    }
+
+    // Gracefully removes a node: its patients are moved off before it shuts down.
+    synchronized void stopNode(String nodeId) throws IOException {
+        router.removeNode(nodeId);
+        closeNode(nodeId);
+    }
+
+    // Simulates a crash: the node disappears without handing over its patients.
+    synchronized void killNode(String nodeId) throws IOException {
+        closeNode(nodeId);
+        router.forgetNode(nodeId);
+    }
+
+    private void closeNode(String nodeId) throws IOException {
+        RemotePatientShard client = clients.remove(nodeId);
+        if (client != null) {
+            client.close();
+        }
+        ShardServer server = servers.remove(nodeId);
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (String nodeId : clients.keySet().toArray(new String[0])) {
+            closeNode(nodeId);
+        }
+    }
+
+    // Small simulation: 3 nodes, 3000 patients with a few readings each, then a node joins and one leaves.
+    // Prints how the patients are spread and checks every patient is still reachable after each change.
+    public static void main(String[] args) throws IOException {
+        int patients = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        try (LocalCluster cluster = new LocalCluster()) {
+            for (int i = 0; i < 3; i++) {
+                cluster.startNode();
+            }
+            ShardRouter router = cluster.getRouter();
+            for (int i = 0; i < patients; i++) {
+                String id = String.format("P%06d", i);
+                router.addPatient(id, "Patient " + i);
+                for (int r = 0; r < 3; r++) {
+                    router.enterVitals(id, new VitalSign(70 + r, 97, "120/80", 36.6));
+                }
+                router.addNotification(id, "Welcome to remote monitoring");
+            }
+            System.out.println("Initial distribution: " + router.distribution());
+
+            long start = System.nanoTime();
+            String added = cluster.startNode();
+            System.out.printf("Added %s in %d ms: %s%n", added, (System.nanoTime() - start) / 1_000_000,
+                    router.distribution());
+            verify(router, patients);
+
+            start = System.nanoTime();
+            cluster.stopNode("node-1");
+            System.out.printf("Removed node-1 in %d ms: %s%n", (System.nanoTime() - start) / 1_000_000,
+                    router.distribution());
+            verify(router, patients);
+        }
+    }
+
+    private static void verify(ShardRouter router, int patients) {
+        int missing = 0;
+        for (int i = 0; i < patients; i++) {
+            String id = String.format("P%06d", i);
+            String vitals = router.retrieveVitals(id);
+            if (vitals == null || vitals.split("\n").length != 3 || router.inbox(id).size() != 1) {
+                missing++;
+            }
+        }
+        System.out.println(missing == 0 ? "All patients reachable with their data."
+                : missing + " patients missing data!");
+    }
+}
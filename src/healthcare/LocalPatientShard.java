@@ -0,0 +1,126 @@
+package healthcare;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import healthcare.main.Appointment;
+import healthcare.main.Patient;
+import healthcare.main.VitalSign;
+import healthcare.main.VitalsDatabase;
+
+// LocalPatientShard keeps its patients in a hash map, their vitals in its own VitalsDatabase and their history
+// in its own TextIndex. The database is a scratch one, so a shard's readings never reach the application's
+// change feed, anomaly detector or dashboards.
+class LocalPatientShard implements PatientShard {
+    private final Map<String, Patient> patients = new ConcurrentHashMap<>();
+    private final VitalsDatabase vitalsDb = VitalsDatabase.scratch();
+    private final TextIndex textIndex = new TextIndex();
+
+    VitalsDatabase getVitalsDb() {
+        return vitalsDb;
+    }
+
+    TextIndex getTextIndex() {
+        return textIndex;
+    }
+
+    Patient getPatient(String userId) {
+        return patients.get(userId);
+    }
+
+    @Override
+    public boolean addPatient(String userId, String name) {
+        Patient patient = new Patient(name, userId);
+        patient.getMedicalHistory().indexInto(textIndex);
+        return patients.putIfAbsent(userId, patient) == null;
+    }
+
+    @Override
+    public boolean hasPatient(String userId) {
+        return patients.containsKey(userId);
+    }
+
+    @Override
+    public boolean enterVitals(String userId, long timestamp, VitalSign vitals) {
+        Patient patient = patients.get(userId);
+        if (patient == null) {
+            return false;
+        }
+        // Same effect as Patient.enterVitals, minus the console output.
+        vitalsDb.storeVitals(userId, vitals, timestamp);
+        patient.getMedicalHistory().addRecord("Vitals recorded: " + vitals);
+        return true;
+    }
+
+    @Override
+    public String retrieveVitals(String userId) {
+        return vitalsDb.retrieveVitals(userId);
+    }
+
+    @Override
+    public boolean addNotification(String userId, String message) {
+        Patient patient = patients.get(userId);
+        if (patient == null) {
+            return false;
+        }
+        patient.addInboxMessage(message);
+        return true;
+    }
+
+    @Override
+    public List<String> inbox(String userId) {
+        Patient patient = patients.get(userId);
+        return patient == null ? Collections.emptyList() : new ArrayList<>(patient.getInboxMessages());
+    }
+
+    @Override
+    public boolean recordAppointment(String userId, String doctorName, String date, String status) {
+        Patient patient = patients.get(userId);
+        if (patient == null) {
+            return false;
+        }
+        int doctorRef = Appointment.DOCTOR_IDS.find(doctorName);
+        for (Appointment a : patient.getAppointments()) {
+            if (a.isWithDoctor(doctorRef, doctorName) && a.isOn(date)) {
+                a.setStatus(status);
+                return true;
+            }
+        }
+        patient.getAppointments().add(new Appointment(date, doctorName, userId, status));
+        return true;
+    }
+
+    @Override
+    public Set<String> patientIds() {
+        return new HashSet<>(patients.keySet());
+    }
+
+    @Override
+    public PatientSnapshot exportPatient(String userId) {
+        Patient patient = patients.get(userId);
+        return patient == null ? null : PatientSnapshot.of(patient, vitalsDb);
+    }
+
+    @Override
+    public void importPatient(PatientSnapshot snapshot) {
+        // Drop whatever an earlier, interrupted move may have left behind before restoring.
+        removePatient(snapshot.userId);
+        Patient patient = snapshot.restore(vitalsDb);
+        patient.getMedicalHistory().indexInto(textIndex);
+        for (String record : snapshot.historyRecords) {
+            textIndex.add(snapshot.userId, TextIndex.Source.HISTORY, record);
+        }
+        patients.put(snapshot.userId, patient);
+    }
+
+    @Override
+    public void removePatient(String userId) {
+        patients.remove(userId);
+        vitalsDb.removeVitals(userId);
+    }
+}
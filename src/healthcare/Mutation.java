@@ -0,0 +1,170 @@
+package healthcare;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import healthcare.main.Patient;
+import healthcare.main.VitalSign;
+
+// Mutation is one entry of a shard's replication log: a single change to one patient's state.
+// The leader records the exact result of each change (e.g. the date-stamped history line), so applying
+// the same mutations in sequence order on a follower yields an identical copy.
+final class Mutation {
+    static final byte ADD_PATIENT = 1;
+    static final byte VITALS = 2;
+    static final byte HISTORY = 3;
+    static final byte INBOX = 4;
+    static final byte APPOINTMENT = 5;
+    static final byte IMPORT = 6;
+    static final byte REMOVE = 7;
+
+    final long seq;
+    final byte type;
+    final String userId;
+    // Type-specific fields; unused ones stay at their defaults. For VITALS, 'text' is the client's request ID
+    // (null if the client sent none).
+    final String text;
+    final String text2;
+    final String text3;
+    final long timestamp;
+    final VitalSign vitals;
+    final PatientSnapshot snapshot;
+
+    private Mutation(long seq, byte type, String userId, String text, String text2, String text3, long timestamp,
+            VitalSign vitals, PatientSnapshot snapshot) {
+        this.seq = seq;
+        this.type = type;
+        this.userId = userId;
+        this.text = text;
+        this.text2 = text2;
+        this.text3 = text3;
+        this.timestamp = timestamp;
+        this.vitals = vitals;
+        this.snapshot = snapshot;
+    }
+
+    static Mutation addPatient(long seq, String userId, String name) {
+        return new Mutation(seq, ADD_PATIENT, userId, name, null, null, 0, null, null);
+    }
+
+    static Mutation vitals(long seq, String userId, String requestId, long timestamp, VitalSign vitals) {
+        return new Mutation(seq, VITALS, userId, requestId, null, null, timestamp, vitals, null);
+    }
+
+    static Mutation history(long seq, String userId, String record) {
+        return new Mutation(seq, HISTORY, userId, record, null, null, 0, null, null);
+    }
+
+    static Mutation inbox(long seq, String userId, String message) {
+        return new Mutation(seq, INBOX, userId, message, null, null, 0, null, null);
+    }
+
+    static Mutation appointment(long seq, String userId, String doctorName, String date, String status) {
+        return new Mutation(seq, APPOINTMENT, userId, doctorName, date, status, 0, null, null);
+    }
+
+    static Mutation importPatient(long seq, PatientSnapshot snapshot) {
+        return new Mutation(seq, IMPORT, snapshot.userId, null, null, null, 0, null, snapshot);
+    }
+
+    static Mutation remove(long seq, String userId) {
+        return new Mutation(seq, REMOVE, userId, null, null, null, 0, null, null);
+    }
+
+    // The client request ID a VITALS mutation was written under, or null.
+    String requestId() {
+        return type == VITALS ? text : null;
+    }
+
+    // Applies the change to a follower's shard. Vitals are restored rather than stored: the leader already
+    // published the reading, so a follower must not raise alerts or feed events for it again.
+    void applyTo(LocalPatientShard shard) {
+        Patient patient = shard.getPatient(userId);
+        switch (type) {
+            case ADD_PATIENT:
+                shard.addPatient(userId, text);
+                break;
+            case VITALS:
+                shard.getVitalsDb().restoreVitals(userId, timestamp, vitals);
+                break;
+            case HISTORY:
+                if (patient != null) {
+                    patient.getMedicalHistory().getHistoryRecords().add(text);
+                }
+                break;
+            case INBOX:
+                shard.addNotification(userId, text);
+                break;
+            case APPOINTMENT:
+                shard.recordAppointment(userId, text, text2, text3);
+                break;
+            case IMPORT:
+                shard.importPatient(snapshot);
+                break;
+            case REMOVE:
+                shard.removePatient(userId);
+                break;
+            default:
+                throw new IllegalStateException("Unknown mutation type: " + type);
+        }
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(seq);
+        out.writeByte(type);
+        out.writeUTF(userId);
+        switch (type) {
+            case ADD_PATIENT:
+            case HISTORY:
+            case INBOX:
+                out.writeUTF(text);
+                break;
+            case VITALS:
+                out.writeUTF(text == null ? "" : text);
+                out.writeLong(timestamp);
+                out.writeInt(vitals.getHeartRate());
+                out.writeInt(vitals.getOxygenLevel());
+                out.writeUTF(vitals.getBloodPressure() == null ? "" : vitals.getBloodPressure());
+                out.writeDouble(vitals.getTemperature());
+                break;
+            case APPOINTMENT:
+                out.writeUTF(text);
+                out.writeUTF(text2);
+                out.writeUTF(text3);
+                break;
+            case IMPORT:
+                snapshot.writeTo(out);
+                break;
+            default:
+                break;
+        }
+    }
+
+    static Mutation readFrom(DataInput in) throws IOException {
+        long seq = in.readLong();
+        byte type = in.readByte();
+        String userId = in.readUTF();
+        switch (type) {
+            case ADD_PATIENT:
+                return addPatient(seq, userId, in.readUTF());
+            case HISTORY:
+                return history(seq, userId, in.readUTF());
+            case INBOX:
+                return inbox(seq, userId, in.readUTF());
+            case VITALS:
+                String requestId = in.readUTF();
+                long timestamp = in.readLong();
+                return vitals(seq, userId, requestId.isEmpty() ? null : requestId, timestamp,
+                        new VitalSign(in.readInt(), in.readInt(), in.readUTF(), in.readDouble()));
+            case APPOINTMENT:
+                return appointment(seq, userId, in.readUTF(), in.readUTF(), in.readUTF());
+            case IMPORT:
+                return importPatient(seq, PatientSnapshot.readFrom(in));
+            case REMOVE:
+                return remove(seq, userId);
+            default:
+                throw new IOException("Unknown mutation type: " + type);
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package healthcare;
+
+// Notifiable interface for consistent notification behavior.
+interface Notifiable {
+    void sendNotification(String recipient, String message);
+}
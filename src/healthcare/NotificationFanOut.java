@@ -0,0 +1,205 @@
+package healthcare;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import healthcare.main.SystemLogs;
+
+// NotificationFanOut sends a batch of notifications concurrently, one virtual thread per send.
+// The sends of one batch run inside a scope (a virtual-thread executor closed with try-with-resources), so
+// no send outlives the call: when the timeout expires the remaining sends are interrupted and reported as
+// timed out. A semaphore per channel type (e.g. all EmailNotification instances share one) caps the number
+// of concurrent connections to that channel's backend.
+class NotificationFanOut {
+    static final int DEFAULT_PERMITS_PER_CHANNEL = 32;
+    static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+    enum Outcome { SENT, FAILED, TIMED_OUT }
+
+    // One message for one recipient over one channel.
+    static final class Delivery {
+        final Notifiable channel;
+        final String recipient;
+        final String message;
+        // The trace the delivery was created in; the send runs on another thread (see Tracing).
+        final Tracing.Span trace;
+
+        Delivery(Notifiable channel, String recipient, String message) {
+            this.channel = channel;
+            this.recipient = recipient;
+            this.message = message;
+            this.trace = main.tracing.current();
+        }
+    }
+
+    // Aggregate result of a batch: the outcome of every delivery (same order as submitted) and the wall time.
+    static final class Result {
+        private final List<Delivery> deliveries;
+        private final Outcome[] outcomes;
+        private final long elapsedMillis;
+
+        private Result(List<Delivery> deliveries, Outcome[] outcomes, long elapsedMillis) {
+            this.deliveries = deliveries;
+            this.outcomes = outcomes;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        Outcome outcome(int index) {
+            return outcomes[index];
+        }
+
+        Delivery delivery(int index) {
+            return deliveries.get(index);
+        }
+
+        int count(Outcome outcome) {
+            int n = 0;
+            for (Outcome o : outcomes) {
+                if (o == outcome) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        // True when every delivery was sent.
+        boolean isComplete() {
+            return count(Outcome.SENT) == outcomes.length;
+        }
+
+        long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return count(Outcome.SENT) + " sent, " + count(Outcome.FAILED) + " failed, " + count(Outcome.TIMED_OUT)
+                    + " timed out in " + elapsedMillis + " ms";
+        }
+    }
+
+    private final Map<Class<?>, Semaphore> permits = new ConcurrentHashMap<>();
+    private final int defaultPermits;
+    private final Duration timeout;
+
+    NotificationFanOut() {
+        this(DEFAULT_PERMITS_PER_CHANNEL, DEFAULT_TIMEOUT);
+    }
+
+    NotificationFanOut(int defaultPermits, Duration timeout) {
+        if (defaultPermits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive: " + defaultPermits);
+        }
+        this.defaultPermits = defaultPermits;
+        this.timeout = timeout;
+    }
+
+    // Sets the maximum number of concurrent sends for one channel type. Call before the channel is used.
+    void setChannelLimit(Class<? extends Notifiable> channelType, int limit) {
+        permits.put(channelType, new Semaphore(limit));
+    }
+
+    Result send(List<Delivery> deliveries) {
+        return send(deliveries, timeout);
+    }
+
+    // Sends every delivery and waits until all are done or the timeout expires, whichever comes first.
+    Result send(List<Delivery> deliveries, Duration timeout) {
+        long start = System.nanoTime();
+        AtomicReferenceArray<Outcome> outcomes = new AtomicReferenceArray<>(deliveries.size());
+        List<Callable<Void>> tasks = new ArrayList<>(deliveries.size());
+        for (int i = 0; i < deliveries.size(); i++) {
+            int index = i;
+            Delivery d = deliveries.get(i);
+            tasks.add(() -> {
+                Semaphore channelPermits = permits.computeIfAbsent(d.channel.getClass(),
+                        type -> new Semaphore(defaultPermits));
+                // The span includes the wait for a permit: a busy channel delays the alert as much as a slow one.
+                try (Tracing.Span span = main.tracing.child("NotificationFanOut.send", d.trace)) {
+                    span.attribute("recipient", d.recipient);
+                    channelPermits.acquire();
+                    try {
+                        d.channel.sendNotification(d.recipient, d.message);
+                        outcomes.compareAndSet(index, null, Outcome.SENT);
+                    } catch (RuntimeException e) {
+                        outcomes.compareAndSet(index, null, Outcome.FAILED);
+                        SystemLogs.addLog("Notification to " + d.recipient + " failed: " + e);
+                    } finally {
+                        channelPermits.release();
+                    }
+                }
+                return null;
+            });
+        }
+        try (ExecutorService scope = Executors.newVirtualThreadPerTaskExecutor()) {
+            // invokeAll cancels (interrupts) whatever has not finished when the timeout expires;
+            // closing the scope then waits for those threads to exit.
+            List<Future<Void>> futures = scope.invokeAll(tasks, timeout.toNanos(), TimeUnit.NANOSECONDS);
+            for (int i = 0; i < futures.size(); i++) {
+                if (futures.get(i).isCancelled()) {
+                    outcomes.compareAndSet(i, null, Outcome.TIMED_OUT);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Outcome[] result = new Outcome[deliveries.size()];
+        for (int i = 0; i < result.length; i++) {
+            // Anything without an outcome was still waiting or sending when the batch ended.
+            outcomes.compareAndSet(i, null, Outcome.TIMED_OUT);
+            result[i] = outcomes.get(i);
+        }
+        return new Result(deliveries, result, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // Sends the deliveries one after another on the calling thread (the mode without fan-out).
+    static Result sequential(List<Delivery> deliveries) {
+        long start = System.nanoTime();
+        Outcome[] outcomes = new Outcome[deliveries.size()];
+        for (int i = 0; i < outcomes.length; i++) {
+            Delivery d = deliveries.get(i);
+            try {
+                d.channel.sendNotification(d.recipient, d.message);
+                outcomes[i] = Outcome.SENT;
+            } catch (RuntimeException e) {
+                outcomes[i] = Outcome.FAILED;
+                SystemLogs.addLog("Notification to " + d.recipient + " failed: " + e);
+            }
+        }
+        return new Result(deliveries, outcomes, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // Sends one alert to 300 recipients over a channel that takes 50 ms per message, first one after the
+    // other and then fanned out, to compare the wall time.
+    public static void main(String[] args) {
+        Notifiable slowSms = (recipient, message) -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        List<Delivery> deliveries = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            deliveries.add(new Delivery(slowSms, "patient-" + i, "Clinic closed today"));
+        }
+        long sequentialMillis = sequential(deliveries.subList(0, 20)).getElapsedMillis() * deliveries.size() / 20;
+        NotificationFanOut fanOut = new NotificationFanOut(DEFAULT_PERMITS_PER_CHANNEL, Duration.ofSeconds(5));
+        fanOut.setChannelLimit(slowSms.getClass(), 300);
+        System.out.println("Sequential (estimated from 20 sends): ~" + sequentialMillis + " ms");
+        System.out.println("Fan-out, 300 permits:  " + fanOut.send(deliveries));
+        fanOut.setChannelLimit(slowSms.getClass(), 30);
+        System.out.println("Fan-out, 30 permits:   " + fanOut.send(deliveries));
+        System.out.println("Fan-out, 200 ms limit: " + fanOut.send(deliveries, Duration.ofMillis(200)));
+    }
+}
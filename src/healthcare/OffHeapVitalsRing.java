@@ -0,0 +1,148 @@
+package healthcare;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.sun.management.ThreadMXBean;
+
+import healthcare.main.VitalsDatabase;
+
+// OffHeapVitalsRing is a fixed-size ring of vitals records in direct (off-heap) memory.
+// It is the landing area for the allocation-free ingest path: a reading is written as raw bytes at a
+// fixed offset, so no VitalSign, String or Date is created per reading.
+//
+// Record layout (24 bytes, native byte order):
+//   0  long   timestamp (epoch millis)
+//   8  short  heart rate
+//   10 short  oxygen level
+//   12 short  systolic      (Short.MIN_VALUE = no value)
+//   14 short  diastolic     (Short.MIN_VALUE = no value)
+//   16 double temperature
+//
+// The ring is not thread-safe by itself; VitalsSeries only touches it while holding its own lock.
+final class OffHeapVitalsRing {
+    static final int RECORD_BYTES = 24;
+    private static final int OFFSET_TIMESTAMP = 0;
+    private static final int OFFSET_HEART_RATE = 8;
+    private static final int OFFSET_OXYGEN = 10;
+    private static final int OFFSET_SYSTOLIC = 12;
+    private static final int OFFSET_DIASTOLIC = 14;
+    private static final int OFFSET_TEMPERATURE = 16;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    // head = next sequence to write, tail = next sequence to read; slot = sequence % capacity.
+    private long head;
+    private long tail;
+
+    OffHeapVitalsRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Ring capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity * RECORD_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int size() {
+        return (int) (head - tail);
+    }
+
+    boolean isFull() {
+        return head - tail == capacity;
+    }
+
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    // Writes one record. The caller must make room first (see isFull).
+    void write(long timestamp, int heartRate, int oxygenLevel, int systolic, int diastolic, double temperature) {
+        if (isFull()) {
+            throw new IllegalStateException("Vitals ring is full");
+        }
+        int base = (int) (head % capacity) * RECORD_BYTES;
+        buffer.putLong(base + OFFSET_TIMESTAMP, timestamp);
+        buffer.putShort(base + OFFSET_HEART_RATE, toShort(heartRate));
+        buffer.putShort(base + OFFSET_OXYGEN, toShort(oxygenLevel));
+        buffer.putShort(base + OFFSET_SYSTOLIC, toShort(systolic));
+        buffer.putShort(base + OFFSET_DIASTOLIC, toShort(diastolic));
+        buffer.putDouble(base + OFFSET_TEMPERATURE, temperature);
+        head++;
+    }
+
+    // Moves every buffered record into the series' hot tier, oldest first, and empties the ring.
+    void drainTo(VitalsSeries series) {
+        while (tail < head) {
+            int base = (int) (tail % capacity) * RECORD_BYTES;
+            series.appendHot(buffer.getLong(base + OFFSET_TIMESTAMP),
+                    fromShort(buffer.getShort(base + OFFSET_HEART_RATE)),
+                    fromShort(buffer.getShort(base + OFFSET_OXYGEN)),
+                    fromShort(buffer.getShort(base + OFFSET_SYSTOLIC)),
+                    fromShort(buffer.getShort(base + OFFSET_DIASTOLIC)),
+                    buffer.getDouble(base + OFFSET_TEMPERATURE));
+            tail++;
+        }
+    }
+
+    // Vitals are stored as shorts; out-of-range values are clamped and VitalsSeries.NO_VALUE is kept as a marker.
+    private static short toShort(int value) {
+        if (value == VitalsSeries.NO_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) Math.max(Short.MIN_VALUE + 1, Math.min(Short.MAX_VALUE, value));
+    }
+
+    private static int fromShort(short value) {
+        return value == Short.MIN_VALUE ? VitalsSeries.NO_VALUE : value;
+    }
+
+    // Allocation check: java -cp bin healthcare.OffHeapVitalsRing [readings]
+    // Measures the bytes the ingest thread allocates for VitalsDatabase.ingestVitals once warm, over enough
+    // readings to fill and drain the ring several times. The hot arrays are grown during warm-up, so the
+    // measurement covers only the ring and drain path. After 20 unmeasured rounds every one of the 3 measured
+    // rounds must allocate 0 bytes, or the check fails.
+    public static void main(String[] args) {
+        int readings = args.length > 0 ? Integer.parseInt(args[0]) : 4 * VitalsSeries.RING_CAPACITY;
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        VitalsDatabase vitalsDb = new VitalsDatabase();
+        long timestamp = 1_700_000_000_000L;
+        int warmupRounds = 20;
+        int rounds = 3;
+        // Warm-up (JIT) that leaves the hot arrays just past a doubling, with room for every later reading.
+        int hotCapacity = Integer.highestOneBit(Math.max(16_384,
+                (warmupRounds + rounds) * readings + 2 * VitalsSeries.RING_CAPACITY) - 1) * 2;
+        for (int i = 0; i <= hotCapacity; i++) {
+            vitalsDb.ingestVitals("P1", timestamp++, 60 + i % 40, 97, 120, 80, 36.6);
+        }
+        vitalsDb.allSeries().iterator().next().hotSize();
+        // Unmeasured rounds of the exact measured loop give the JIT time to settle; after them every round
+        // must allocate nothing.
+        int allocatingRounds = 0;
+        for (int round = -warmupRounds; round < rounds; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < readings; i++) {
+                vitalsDb.ingestVitals("P1", timestamp++, 60 + i % 40, 97, 120, 80, 36.6);
+            }
+            long bytes = threads.getThreadAllocatedBytes(thread) - before;
+            if (round < 0) {
+                continue;
+            }
+            System.out.printf("%d readings (%d ring drains): %d bytes allocated, %.3f bytes per 1000 readings%n",
+                    readings, readings / VitalsSeries.RING_CAPACITY, bytes, bytes * 1000.0 / readings);
+            if (bytes > 0) {
+                allocatingRounds++;
+            }
+        }
+        if (allocatingRounds > 0) {
+            System.out.println("FAILED: the ingest path allocated in " + allocatingRounds + " of " + rounds
+                    + " rounds");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package healthcare;
+
+import java.util.List;
+import java.util.Set;
+
+import healthcare.main.VitalSign;
+
+// PatientShard is one partition of the patient population: the patients it owns, their per-patient
+// state and their vitals. LocalPatientShard holds the data in this JVM; RemotePatientShard talks to a
+// ShardServer over a socket. ShardRouter decides which shard owns which patient.
+interface PatientShard {
+    // Registers a patient on this shard; returns false if the ID already exists.
+    boolean addPatient(String userId, String name);
+
+    boolean hasPatient(String userId);
+
+    // Records a reading taken at 'timestamp' (epoch millis); returns false if the patient is unknown.
+    boolean enterVitals(String userId, long timestamp, VitalSign vitals);
+
+    // Same contract as VitalsDatabase.retrieveVitals.
+    String retrieveVitals(String userId);
+
+    // Puts a message in the patient's inbox; returns false if the patient is unknown.
+    boolean addNotification(String userId, String message);
+
+    List<String> inbox(String userId);
+
+    // Adds the appointment to the patient's list, or updates the status of the one with the same
+    // doctor and date; returns false if the patient is unknown.
+    boolean recordAppointment(String userId, String doctorName, String date, String status);
+
+    Set<String> patientIds();
+
+    // Copies a patient's full state out of the shard (null if unknown).
+    PatientSnapshot exportPatient(String userId);
+
+    void importPatient(PatientSnapshot snapshot);
+
+    void removePatient(String userId);
+}
@@ -0,0 +1,161 @@
+package healthcare;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import healthcare.main.Appointment;
+import healthcare.main.Feedback;
+import healthcare.main.Patient;
+import healthcare.main.Prescription;
+import healthcare.main.VitalSign;
+import healthcare.main.VitalsDatabase;
+
+// PatientSnapshot is everything a shard holds for one patient, in a form that can be sent over the wire.
+// It is used to move patients between shards when nodes join or leave.
+final class PatientSnapshot {
+    final String userId;
+    final String name;
+    final List<String> historyRecords = new ArrayList<>();
+    final List<String> inboxMessages = new ArrayList<>();
+    final List<String> chatMessages = new ArrayList<>();
+    final List<Feedback> feedbacks = new ArrayList<>();
+    final List<Prescription> prescriptions = new ArrayList<>();
+    final List<Appointment> appointments = new ArrayList<>();
+    // Vitals as parallel lists: one timestamp and one VitalSign per reading.
+    final List<Long> vitalTimestamps = new ArrayList<>();
+    final List<VitalSign> vitals = new ArrayList<>();
+
+    PatientSnapshot(String userId, String name) {
+        this.userId = userId;
+        this.name = name;
+    }
+
+    // Captures a patient and their vitals.
+    static PatientSnapshot of(Patient patient, VitalsDatabase vitalsDb) {
+        PatientSnapshot s = new PatientSnapshot(patient.getUserId(), patient.getName());
+        s.historyRecords.addAll(patient.getMedicalHistory().getHistoryRecords());
+        s.inboxMessages.addAll(patient.getInboxMessages());
+        s.chatMessages.addAll(patient.getChatMessages());
+        s.feedbacks.addAll(patient.getFeedbacks());
+        s.prescriptions.addAll(patient.getPrescriptions());
+        s.appointments.addAll(patient.getAppointments());
+        VitalsSeries series = vitalsDb.getSeries(patient.getUserId());
+        if (series != null) {
+            VitalsSeries.View view = series.view();
+            view.scan((row, ts, hr, ox, sys, dia, temp) -> {
+                s.vitalTimestamps.add(ts);
+                s.vitals.add(view.toVitalSign(row, hr, ox, sys, dia, temp));
+            });
+        }
+        return s;
+    }
+
+    // Rebuilds the patient and puts their vitals back into the given database. The readings were published
+    // when they were first stored, so they are not published again.
+    Patient restore(VitalsDatabase vitalsDb) {
+        Patient patient = new Patient(name, userId);
+        patient.getMedicalHistory().getHistoryRecords().addAll(historyRecords);
+        for (String msg : inboxMessages) {
+            patient.addInboxMessage(msg);
+        }
+        for (String msg : chatMessages) {
+            patient.addChatMessage(msg);
+        }
+        patient.getFeedbacks().addAll(feedbacks);
+        patient.getPrescriptions().addAll(prescriptions);
+        patient.getAppointments().addAll(appointments);
+        vitalsDb.restoreVitals(userId, vitalTimestamps, vitals);
+        return patient;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(userId);
+        out.writeUTF(name);
+        writeStrings(out, historyRecords);
+        writeStrings(out, inboxMessages);
+        writeStrings(out, chatMessages);
+        out.writeInt(feedbacks.size());
+        for (Feedback f : feedbacks) {
+            writeNullable(out, f.getFeedbackText());
+            writeNullable(out, f.getPatientId());
+            writeNullable(out, f.getDoctorId());
+        }
+        out.writeInt(prescriptions.size());
+        for (Prescription p : prescriptions) {
+            writeNullable(out, p.getDoctorName());
+            writeNullable(out, p.getMedicationName());
+            writeNullable(out, p.getDosage());
+            writeNullable(out, p.getSchedule());
+        }
+        out.writeInt(appointments.size());
+        for (Appointment a : appointments) {
+            writeNullable(out, a.getAppointmentDate());
+            writeNullable(out, a.getDoctorName());
+            writeNullable(out, a.getStatus());
+        }
+        out.writeInt(vitals.size());
+        for (int i = 0; i < vitals.size(); i++) {
+            VitalSign v = vitals.get(i);
+            out.writeLong(vitalTimestamps.get(i));
+            out.writeInt(v.getHeartRate());
+            out.writeInt(v.getOxygenLevel());
+            out.writeUTF(v.getBloodPressure() == null ? "" : v.getBloodPressure());
+            out.writeDouble(v.getTemperature());
+        }
+    }
+
+    static PatientSnapshot readFrom(DataInput in) throws IOException {
+        PatientSnapshot s = new PatientSnapshot(in.readUTF(), in.readUTF());
+        readStrings(in, s.historyRecords);
+        readStrings(in, s.inboxMessages);
+        readStrings(in, s.chatMessages);
+        int feedbackCount = in.readInt();
+        for (int i = 0; i < feedbackCount; i++) {
+            s.feedbacks.add(new Feedback(readNullable(in), readNullable(in), readNullable(in)));
+        }
+        int prescriptionCount = in.readInt();
+        for (int i = 0; i < prescriptionCount; i++) {
+            s.prescriptions.add(new Prescription(readNullable(in), readNullable(in), readNullable(in),
+                    readNullable(in)));
+        }
+        int appointmentCount = in.readInt();
+        for (int i = 0; i < appointmentCount; i++) {
+            s.appointments.add(new Appointment(readNullable(in), readNullable(in), s.userId, readNullable(in)));
+        }
+        int vitalsCount = in.readInt();
+        for (int i = 0; i < vitalsCount; i++) {
+            s.vitalTimestamps.add(in.readLong());
+            s.vitals.add(new VitalSign(in.readInt(), in.readInt(), in.readUTF(), in.readDouble()));
+        }
+        return s;
+    }
+
+    static void writeStrings(DataOutput out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String v : values) {
+            out.writeUTF(v);
+        }
+    }
+
+    // A string that may be null: a presence flag, then the string if there is one.
+    static void writeNullable(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void readStrings(DataInput in, List<String> into) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            into.add(in.readUTF());
+        }
+    }
+}
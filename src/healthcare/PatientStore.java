@@ -0,0 +1,469 @@
+package healthcare;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import healthcare.main.Appointment;
+import healthcare.main.AppointmentManager;
+import healthcare.main.Doctor;
+import healthcare.main.Feedback;
+import healthcare.main.Patient;
+import healthcare.main.Prescription;
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalSign;
+import healthcare.main.VitalsDatabase;
+
+// PatientStore persists users to a data directory and loads patients back lazily.
+//
+// Layout of the data directory:
+//   users.dir           the user directory: every doctor (with alerts and chat), every patient (ID and name
+//                       only) and the global appointment list; this is all that is read at startup
+//   patients/<id>.seg   one segment per patient with the heavy state (history, inbox, chat, feedback,
+//                       prescriptions, appointments, vitals) in PatientSnapshot format
+//
+// Startup time therefore depends on the number of users, not on how much history they have. A patient's
+// segment is read the first time their state is used, either through a Patient accessor or through the
+// VitalsDatabase. When more than maxResident patients are in memory, or the heap is nearly full, the least
+// recently used ones are written back to their segments and dropped. Pinned patients (see Patient.pin) are
+// never evicted. Every change to a patient's lists pins the patient first: Patient's own methods, Doctor
+// feedback and prescriptions, and VitalsPipeline. So no change goes into a copy that was already written back.
+//
+// Readings are appended under the patient's lock (see VitalsDatabase), the same lock eviction holds while it
+// writes the segment and drops the vitals, so no reading lands between the two.
+//
+// Population queries cover the patients on disk without hydrating them. The analytics read their segments
+// (see onDiskPatients and readIfOnDisk). The text index is not persisted: a patient's records are indexed
+// when they are first hydrated in this process, and the first search across all patients indexes the
+// rest from their segments (see indexAll).
+class PatientStore {
+    static final String DIRECTORY_FILE = "users.dir";
+    static final int DEFAULT_MAX_RESIDENT = 10_000;
+    // Version 2 of both formats writes nullable fields with a presence flag.
+    private static final int DIRECTORY_MAGIC = 0x55535232;  // "USR2"
+    private static final int SEGMENT_MAGIC = 0x50534732;    // "PSG2"
+    // Share of the maximum heap above which patients are evicted regardless of maxResident.
+    private static final double HEAP_PRESSURE = 0.85;
+
+    private final Path dir;
+    private final Path segmentDir;
+    private final VitalsDatabase vitalsDb;
+    private final int maxResident;
+    // Every patient this store knows about, hydrated or not.
+    private final Map<String, Patient> patients = new ConcurrentHashMap<>();
+    // Patients whose records are in main.textIndex; the index never drops documents, so each is added once.
+    private final Set<String> indexed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger resident = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong hydrations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private PatientStore(Path dir, VitalsDatabase vitalsDb, int maxResident) {
+        this.dir = dir;
+        this.segmentDir = dir.resolve("patients");
+        this.vitalsDb = vitalsDb;
+        this.maxResident = maxResident;
+    }
+
+    // Reads the user directory in dir (if there is one) into patientDb, doctorDb and the global appointment
+    // list. Patients are added unhydrated. The returned store is attached to vitalsDb.
+    static PatientStore open(Path dir, VitalsDatabase vitalsDb, int maxResident, List<Patient> patientDb,
+                             List<Doctor> doctorDb) throws IOException {
+        PatientStore store = new PatientStore(dir, vitalsDb, maxResident);
+        Files.createDirectories(store.segmentDir);
+        Path file = dir.resolve(DIRECTORY_FILE);
+        if (Files.exists(file)) {
+            List<Patient> loadedPatients = new ArrayList<>();
+            List<Doctor> loadedDoctors = new ArrayList<>();
+            List<Appointment> appointments = new ArrayList<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != DIRECTORY_MAGIC) {
+                    throw new IOException("Not a user directory: " + file);
+                }
+                int doctorCount = in.readInt();
+                for (int i = 0; i < doctorCount; i++) {
+                    Doctor d = new Doctor(in.readUTF(), in.readUTF());
+                    PatientSnapshot.readStrings(in, d.getAlertsReceived());
+                    PatientSnapshot.readStrings(in, d.getChatMessages());
+                    loadedDoctors.add(d);
+                }
+                int patientCount = in.readInt();
+                for (int i = 0; i < patientCount; i++) {
+                    Patient p = new Patient(in.readUTF(), in.readUTF());
+                    p.attach(store, true);
+                    store.patients.put(p.getUserId(), p);
+                    loadedPatients.add(p);
+                }
+                int appointmentCount = in.readInt();
+                for (int i = 0; i < appointmentCount; i++) {
+                    String date = PatientSnapshot.readNullable(in);
+                    String doctorName = PatientSnapshot.readNullable(in);
+                    String patientId = PatientSnapshot.readNullable(in);
+                    appointments.add(new Appointment(date, doctorName, patientId, PatientSnapshot.readNullable(in)));
+                }
+            }
+            patientDb.addAll(loadedPatients);
+            doctorDb.addAll(loadedDoctors);
+            AppointmentManager.setAppointmentsGlobal(appointments);
+            SystemLogs.addLog("Loaded user directory from " + dir + ": " + loadedPatients.size() + " patients, "
+                    + loadedDoctors.size() + " doctors");
+        }
+        vitalsDb.attachStore(store);
+        return store;
+    }
+
+    // Writes the user directory and the segment of every patient in memory. Patients that were never
+    // hydrated are already up to date on disk; segments of patients no longer in patientDb are deleted.
+    void save(List<Patient> patientDb, List<Doctor> doctorDb, List<Appointment> appointments) throws IOException {
+        Set<String> ids = new HashSet<>();
+        for (Patient p : patientDb) {
+            ids.add(p.getUserId());
+            if (patients.putIfAbsent(p.getUserId(), p) == null) {
+                // Registered since startup: from now on this store manages it. Its records were indexed as
+                // they were added.
+                p.attach(this, false);
+                indexed.add(p.getUserId());
+                resident.incrementAndGet();
+            }
+            synchronized (p) {
+                if (p.isHydrated()) {
+                    writeSegment(p);
+                }
+            }
+        }
+        for (String id : new ArrayList<>(patients.keySet())) {
+            if (!ids.contains(id)) {
+                Patient removed = patients.remove(id);
+                if (removed != null && removed.isHydrated()) {
+                    resident.decrementAndGet();
+                }
+                vitalsDb.removeVitals(id);
+                Files.deleteIfExists(segment(id));
+            }
+        }
+        Path tmp = dir.resolve(DIRECTORY_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(DIRECTORY_MAGIC);
+            out.writeInt(doctorDb.size());
+            for (Doctor d : doctorDb) {
+                out.writeUTF(d.getName());
+                out.writeUTF(d.getUserId());
+                PatientSnapshot.writeStrings(out, d.getAlertsReceived());
+                PatientSnapshot.writeStrings(out, d.getChatMessages());
+            }
+            out.writeInt(patientDb.size());
+            for (Patient p : patientDb) {
+                out.writeUTF(p.getName());
+                out.writeUTF(p.getUserId());
+            }
+            out.writeInt(appointments.size());
+            for (Appointment a : appointments) {
+                PatientSnapshot.writeNullable(out, a.getAppointmentDate());
+                PatientSnapshot.writeNullable(out, a.getDoctorName());
+                PatientSnapshot.writeNullable(out, a.getPatientId());
+                PatientSnapshot.writeNullable(out, a.getStatus());
+            }
+        }
+        Files.move(tmp, dir.resolve(DIRECTORY_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        SystemLogs.addLog("Saved " + patientDb.size() + " patients and " + doctorDb.size() + " doctors to " + dir);
+    }
+
+    // Called by the VitalsDatabase before it touches a patient's vitals. Returns the (hydrated) patient, whose
+    // lock writers hold while appending, or null if this store does not manage the patient.
+    Patient access(String patientId) {
+        Patient p = patients.get(patientId);
+        if (p != null) {
+            p.ensureHydrated();
+        }
+        return p;
+    }
+
+    // Reads the patient's segment into memory (called through Patient.ensureHydrated()).
+    void hydrate(Patient p) {
+        synchronized (p) {
+            if (p.isHydrated()) {
+                return;
+            }
+            Path file = segment(p.getUserId());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != SEGMENT_MAGIC) {
+                    throw new IOException("Not a patient segment: " + file);
+                }
+                int readCount = in.readInt();
+                PatientSnapshot s = PatientSnapshot.readFrom(in);
+                p.load(s, readCount);
+                vitalsDb.restoreVitals(p.getUserId(), s.vitalTimestamps, s.vitals);
+                if (indexed.add(p.getUserId())) {
+                    index(s);
+                }
+            } catch (NoSuchFileException e) {
+                // Nothing was ever written for this patient, but some of their readings may be in cold storage.
+                vitalsDb.restoreVitals(p.getUserId(), List.of(), List.of());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not load patient " + p.getUserId(), e);
+            }
+            // Only now may other threads use the patient, after the vitals are back in place.
+            p.markHydrated();
+            resident.incrementAndGet();
+            hydrations.incrementAndGet();
+        }
+        // A writer re-hydrating under the patient's lock must not evict other patients while holding it;
+        // the next hydration catches up.
+        if (!Thread.holdsLock(p)) {
+            evictIfNeeded();
+        }
+    }
+
+    private static void index(PatientSnapshot s) {
+        for (String record : s.historyRecords) {
+            main.textIndex.add(s.userId, TextIndex.Source.HISTORY, record);
+        }
+        for (Feedback f : s.feedbacks) {
+            main.textIndex.add(s.userId, TextIndex.Source.FEEDBACK, f.getFeedbackText());
+        }
+        for (Prescription p : s.prescriptions) {
+            main.textIndex.add(s.userId, TextIndex.Source.PRESCRIPTION, p.toString());
+        }
+    }
+
+    // Indexes the records of every patient that is not in main.textIndex yet, reading their segments without
+    // hydrating them. Called before a search across all patients; after the first call only patients
+    // registered since then are left, and those were indexed as their records were added.
+    void indexAll() {
+        for (Patient p : patients.values()) {
+            if (indexed.contains(p.getUserId())) {
+                continue;
+            }
+            try {
+                PatientSnapshot s = readIfOnDisk(p);
+                // null: hydrated meanwhile, and hydrate() indexed them. Whoever adds the ID first indexes.
+                if (s != null && indexed.add(p.getUserId())) {
+                    index(s);
+                }
+            } catch (IOException e) {
+                SystemLogs.addLog("Could not index patient " + p.getUserId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Patients whose state is on disk right now; read them with readIfOnDisk.
+    List<Patient> onDiskPatients() {
+        List<Patient> onDisk = new ArrayList<>();
+        for (Patient p : patients.values()) {
+            if (!p.isHydrated()) {
+                onDisk.add(p);
+            }
+        }
+        return onDisk;
+    }
+
+    // Reads a patient's persisted state without hydrating them (for bulk readers such as ColumnarExport that
+    // should not pull every patient into memory). Returns null if the patient is in memory; use the live
+    // patient then.
+    PatientSnapshot readIfOnDisk(Patient p) throws IOException {
+        synchronized (p) {
+            if (p.isHydrated()) {
+                return null;
+            }
+            Path file = segment(p.getUserId());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != SEGMENT_MAGIC) {
+                    throw new IOException("Not a patient segment: " + file);
+                }
+                in.readInt();
+                return PatientSnapshot.readFrom(in);
+            } catch (NoSuchFileException e) {
+                return new PatientSnapshot(p.getUserId(), p.getName());
+            }
+        }
+    }
+
+    // Writes the least recently used patients back to disk until the store is within its limits.
+    private void evictIfNeeded() {
+        boolean pressure = heapUnderPressure();
+        if ((resident.get() <= maxResident && !pressure) || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Evict in batches so the scan below is not repeated for every hydration.
+            int target = pressure ? resident.get() / 2 : maxResident * 9 / 10;
+            List<Patient> candidates = new ArrayList<>();
+            for (Patient p : patients.values()) {
+                if (p.isHydrated() && !p.isPinned()) {
+                    candidates.add(p);
+                }
+            }
+            candidates.sort(Comparator.comparingLong(Patient::getLastAccess));
+            for (Patient p : candidates) {
+                if (resident.get() <= target) {
+                    break;
+                }
+                evict(p);
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private void evict(Patient p) {
+        synchronized (p) {
+            // Patient.pin() counts the pin before it hydrates, so a patient pinned from here on is either
+            // skipped or hydrated again once this eviction is done.
+            if (!p.isHydrated() || p.isPinned()) {
+                return;
+            }
+            try {
+                writeSegment(p);
+            } catch (IOException e) {
+                // Keep the patient in memory; nothing is lost.
+                SystemLogs.addLog("Could not write patient " + p.getUserId() + " to disk: " + e.getMessage());
+                return;
+            }
+            p.unload();
+            vitalsDb.unloadVitals(p.getUserId());
+            resident.decrementAndGet();
+            evictions.incrementAndGet();
+        }
+    }
+
+    // Caller holds the patient's lock (or is the only one using it) and the patient is hydrated.
+    private void writeSegment(Patient p) throws IOException {
+        PatientSnapshot s = PatientSnapshot.of(p, vitalsDb);
+        Path file = segment(p.getUserId());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(p.getInboxReadCount());
+            s.writeTo(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path segment(String patientId) {
+        // User IDs are short codes like P001; anything else that is not a safe file name gets escaped.
+        StringBuilder name = new StringBuilder();
+        for (char c : patientId.toCharArray()) {
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                name.append(c);
+            } else {
+                name.append('%').append(String.format("%04x", (int) c));
+            }
+        }
+        return segmentDir.resolve(name.append(".seg").toString());
+    }
+
+    private static boolean heapUnderPressure() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory() > rt.maxMemory() * HEAP_PRESSURE;
+    }
+
+    int residentCount() {
+        return resident.get();
+    }
+
+    String stats() {
+        return "patients=" + patients.size() + ", in memory=" + resident.get() + ", hydrations=" + hydrations.get()
+                + ", evictions=" + evictions.get();
+    }
+
+    // Startup benchmark: java -cp bin healthcare.PatientStore <dir> [patients] [readingsPerPatient]
+    // Creates a dataset in dir if there is none, then compares a lazy open with reading every segment.
+    public static void main(String[] args) throws IOException {
+        Path dir = Path.of(args.length > 0 ? args[0] : "patient-data");
+        int patientCount = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int readings = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        if (!Files.exists(dir.resolve(DIRECTORY_FILE))) {
+            long start = System.nanoTime();
+            generate(dir, patientCount, readings);
+            System.out.printf("Generated %d patients with %d readings each in %.1f s%n", patientCount, readings,
+                    (System.nanoTime() - start) / 1e9);
+        }
+
+        VitalsDatabase vitalsDb = new VitalsDatabase();
+        List<Patient> patientDb = new ArrayList<>();
+        List<Doctor> doctorDb = new ArrayList<>();
+        long start = System.nanoTime();
+        PatientStore store = open(dir, vitalsDb, 1_000, patientDb, doctorDb);
+        System.out.printf("Lazy open: %d patients ready in %.0f ms%n", patientDb.size(),
+                (System.nanoTime() - start) / 1e6);
+
+        Random random = new Random(7);
+        start = System.nanoTime();
+        int views = 5_000;
+        long records = 0;
+        for (int i = 0; i < views; i++) {
+            Patient p = patientDb.get(random.nextInt(patientDb.size()));
+            records += p.getMedicalHistory().getHistoryRecords().size();
+            VitalsSeries series = vitalsDb.getSeries(p.getUserId());
+            records += series == null ? 0 : series.size();
+        }
+        System.out.printf("%d random patient views (%d records) in %.0f ms; %s%n", views, records,
+                (System.nanoTime() - start) / 1e6, store.stats());
+
+        start = System.nanoTime();
+        long total = 0;
+        for (Patient p : patientDb) {
+            Path file = store.segment(p.getUserId());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                in.readInt();
+                in.readInt();
+                total += PatientSnapshot.readFrom(in).vitals.size();
+            }
+        }
+        System.out.printf("Eager load of every segment for comparison: %d readings in %.0f ms%n", total,
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    private static void generate(Path dir, int patientCount, int readings) throws IOException {
+        VitalsDatabase vitalsDb = new VitalsDatabase();
+        PatientStore store = new PatientStore(dir, vitalsDb, Integer.MAX_VALUE);
+        Files.createDirectories(store.segmentDir);
+        List<Patient> patientDb = new ArrayList<>();
+        List<Doctor> doctorDb = List.of(new Doctor("Generated Doctor", "D001"));
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < patientCount; i++) {
+            Patient p = new Patient("Patient " + i, String.format("P%06d", i));
+            List<Long> timestamps = new ArrayList<>();
+            List<VitalSign> vitals = new ArrayList<>();
+            for (int r = 0; r < readings; r++) {
+                VitalSign v = new VitalSign(60 + random.nextInt(40), 92 + random.nextInt(8),
+                        (110 + random.nextInt(30)) + "/" + (70 + random.nextInt(20)), 36.2 + random.nextInt(15) / 10.0);
+                timestamps.add(now - (readings - r) * 60_000L);
+                vitals.add(v);
+                if (r % 10 == 0) {
+                    p.getMedicalHistory().getHistoryRecords().add("Vitals recorded: " + v);
+                }
+            }
+            vitalsDb.restoreVitals(p.getUserId(), timestamps, vitals);
+            // Write each patient out right away so the generator does not hold the whole dataset.
+            store.writeSegment(p);
+            vitalsDb.unloadVitals(p.getUserId());
+            p.unload();
+            p.attach(store, true);
+            store.patients.put(p.getUserId(), p);
+            patientDb.add(p);
+        }
+        store.save(patientDb, doctorDb, List.of());
+    }
+}
@@ -0,0 +1,318 @@
+package healthcare;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import healthcare.main.Appointment;
+import healthcare.main.Patient;
+import healthcare.main.Prescription;
+import healthcare.main.VitalsDatabase;
+
+// PatientSummaryCache keeps ready-made dashboard summaries of patients in memory so that doctors opening many
+// patient views (e.g. on a ward round) do not rescan vitals and history every time.
+//
+// Eviction is a size-aware segmented LRU: new entries go to a probation segment, entries hit a second time move
+// to a protected segment (80% of the budget), and the least recently used probation entry is evicted first.
+// One-off views therefore cannot push out the patients that are looked at again and again.
+//
+// Entries are invalidated by the ChangeFeed events of that patient (vitals, appointments, notifications,
+// prescriptions) and by device readings (VitalsDatabase.ingestVitals). Invalidation runs on the writing thread
+// before the write returns, so a read after a write never gets the summary from before it. A summary that was
+// being built while a change to the same patient came in is returned but not cached, so a stale summary is
+// never stored.
+class PatientSummaryCache {
+    static final long DEFAULT_MAX_BYTES = 8L << 20;
+    // Trend of the summary covers this many hours.
+    static final int TREND_HOURS = 6;
+    private static final int RECENT_ALERTS = 5;
+
+    // Everything a dashboard shows for one patient. Immutable.
+    static final class Summary {
+        final String patientId;
+        final String name;
+        final String latestVitals;
+        final long latestTimestamp;
+        final VitalsAnalytics.PatientTrend trend;
+        final List<String> prescriptions;
+        final List<String> upcomingAppointments;
+        final int unreadAlerts;
+        final List<String> recentAlerts;
+        final int weight;
+
+        Summary(String patientId, String name, String latestVitals, long latestTimestamp,
+                VitalsAnalytics.PatientTrend trend, List<String> prescriptions, List<String> upcomingAppointments,
+                int unreadAlerts, List<String> recentAlerts) {
+            this.patientId = patientId;
+            this.name = name;
+            this.latestVitals = latestVitals;
+            this.latestTimestamp = latestTimestamp;
+            this.trend = trend;
+            this.prescriptions = prescriptions;
+            this.upcomingAppointments = upcomingAppointments;
+            this.unreadAlerts = unreadAlerts;
+            this.recentAlerts = recentAlerts;
+            this.weight = estimateWeight();
+        }
+
+        // Builds the summary from the patient's current data.
+        static Summary build(Patient patient, VitalsDatabase vitalsDb) {
+            String latest = null;
+            long[] latestTs = {0};
+            VitalsAnalytics.PatientTrend trend = null;
+            VitalsSeries series = vitalsDb.getSeries(patient.getUserId());
+            if (series != null) {
+                VitalsSeries.View view = series.view();
+                String[] text = new String[1];
+                view.latest((row, ts, hr, ox, sys, dia, temp) -> {
+                    text[0] = view.toVitalSign(row, hr, ox, sys, dia, temp).toString();
+                    latestTs[0] = ts;
+                });
+                latest = text[0];
+                trend = VitalsAnalytics.trendSince(view, latestTs[0] - TREND_HOURS * 3_600_000L);
+            }
+            List<String> prescriptions = new ArrayList<>();
+            for (Prescription p : patient.getPrescriptions()) {
+                prescriptions.add(p.getMedicationName() + " " + p.getDosage() + " (" + p.getSchedule() + ")");
+            }
+            int today = (int) LocalDate.now().toEpochDay();
+            List<String> upcoming = new ArrayList<>();
+            for (Appointment a : patient.getAppointments()) {
+                if (a.getStatusCode() != Appointment.Status.CANCELLED && a.getEpochDay() != Appointment.NO_DATE
+                        && a.getEpochDay() >= today) {
+                    upcoming.add(a.toString());
+                }
+            }
+            List<String> unread = patient.getUnreadInboxMessages();
+            List<String> recent = new ArrayList<>(unread.subList(Math.max(0, unread.size() - RECENT_ALERTS), unread.size()));
+            return new Summary(patient.getUserId(), patient.getName(), latest, latestTs[0], trend,
+                    Collections.unmodifiableList(prescriptions), Collections.unmodifiableList(upcoming), unread.size(),
+                    Collections.unmodifiableList(recent));
+        }
+
+        // Rough heap footprint in bytes, used to keep the cache within its budget.
+        private int estimateWeight() {
+            int bytes = 96 + sizeOf(patientId) + sizeOf(name) + sizeOf(latestVitals) + (trend == null ? 0 : 32);
+            for (List<String> list : List.of(prescriptions, upcomingAppointments, recentAlerts)) {
+                bytes += 40;
+                for (String s : list) {
+                    bytes += sizeOf(s);
+                }
+            }
+            return bytes;
+        }
+
+        private static int sizeOf(String s) {
+            return s == null ? 0 : 48 + s.length();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Patient ").append(patientId).append(" (").append(name).append(")\n");
+            sb.append("  Latest vitals: ").append(latestVitals == null ? "none" : latestVitals).append('\n');
+            sb.append("  Trend (last ").append(TREND_HOURS).append("h): ")
+                    .append(trend == null ? "not enough readings" : trend).append('\n');
+            sb.append("  Prescriptions: ").append(prescriptions.isEmpty() ? "none" : String.join("; ", prescriptions)).append('\n');
+            sb.append("  Upcoming appointments: ")
+                    .append(upcomingAppointments.isEmpty() ? "none" : String.join("; ", upcomingAppointments)).append('\n');
+            sb.append("  Unread alerts: ").append(unreadAlerts);
+            for (String alert : recentAlerts) {
+                sb.append("\n    ").append(alert);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final long maxBytes;
+    private final long protectedMaxBytes;
+    // Both maps are in access order: the first entry is the least recently used.
+    private final LinkedHashMap<String, Summary> probation = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Summary> protectedSegment = new LinkedHashMap<>(64, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    // Summaries being built right now; a change to their patient marks them stale.
+    private final Set<Load> loads = ConcurrentHashMap.newKeySet();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    PatientSummaryCache(ChangeFeed feed) {
+        this(feed, DEFAULT_MAX_BYTES);
+    }
+
+    PatientSummaryCache(ChangeFeed feed, long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.protectedMaxBytes = maxBytes * 8 / 10;
+        // Notifications can be addressed by patient name instead of ID.
+        feed.addListener(event -> onChange(event.key, event.type == ChangeFeed.Type.NOTIFICATION));
+    }
+
+    // A summary being built by get().
+    private static final class Load {
+        final String patientId;
+        volatile boolean stale;
+
+        Load(String patientId) {
+            this.patientId = patientId;
+        }
+    }
+
+    // Returns the cached summary, or builds it with the loader and caches it.
+    Summary get(String patientId, Supplier<Summary> loader) {
+        synchronized (this) {
+            Summary s = protectedSegment.get(patientId);
+            if (s != null) {
+                hits++;
+                return s;
+            }
+            s = probation.remove(patientId);
+            if (s != null) {
+                hits++;
+                probationBytes -= s.weight;
+                promote(patientId, s);
+                return s;
+            }
+            misses++;
+        }
+        // The load stays registered until the result is cached, so a change either marks it stale before
+        // the check below or removes the cached entry after it.
+        Load load = new Load(patientId);
+        loads.add(load);
+        try {
+            Summary loaded = loader.get();
+            if (loaded != null && loaded.weight <= maxBytes) {
+                synchronized (this) {
+                    if (!load.stale && !protectedSegment.containsKey(patientId) && !probation.containsKey(patientId)) {
+                        probation.put(patientId, loaded);
+                        probationBytes += loaded.weight;
+                        evict();
+                    }
+                }
+            }
+            return loaded;
+        } finally {
+            loads.remove(load);
+        }
+    }
+
+    // Drops the patient's summary, e.g. after a change that is not published on the ChangeFeed.
+    void invalidate(String patientId) {
+        onChange(patientId, false);
+    }
+
+    synchronized void clear() {
+        for (Load load : loads) {
+            load.stale = true;
+        }
+        probation.clear();
+        protectedSegment.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    private void onChange(String key, boolean matchNames) {
+        // Checked first so the device ingest path does not allocate an iterator when nothing is loading.
+        if (!loads.isEmpty()) {
+            for (Load load : loads) {
+                // A name-addressed notification cannot be matched before the load knows the name, so it marks
+                // every running load.
+                if (matchNames || load.patientId.equals(key)) {
+                    load.stale = true;
+                }
+            }
+        }
+        synchronized (this) {
+            if (remove(key)) {
+                invalidations++;
+                return;
+            }
+            if (!matchNames) {
+                return;
+            }
+            for (Summary s : new ArrayList<>(protectedSegment.values())) {
+                if (s.name.equalsIgnoreCase(key) && remove(s.patientId)) {
+                    invalidations++;
+                }
+            }
+            for (Summary s : new ArrayList<>(probation.values())) {
+                if (s.name.equalsIgnoreCase(key) && remove(s.patientId)) {
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    private boolean remove(String patientId) {
+        Summary s = protectedSegment.remove(patientId);
+        if (s != null) {
+            protectedBytes -= s.weight;
+            return true;
+        }
+        s = probation.remove(patientId);
+        if (s != null) {
+            probationBytes -= s.weight;
+            return true;
+        }
+        return false;
+    }
+
+    // Moves a probation entry to the protected segment; protected overflow goes back to probation.
+    private void promote(String patientId, Summary s) {
+        protectedSegment.put(patientId, s);
+        protectedBytes += s.weight;
+        Iterator<Map.Entry<String, Summary>> it = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedMaxBytes && it.hasNext()) {
+            Map.Entry<String, Summary> eldest = it.next();
+            it.remove();
+            protectedBytes -= eldest.getValue().weight;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().weight;
+        }
+        evict();
+    }
+
+    private void evict() {
+        while (probationBytes + protectedBytes > maxBytes) {
+            LinkedHashMap<String, Summary> victims = probation.isEmpty() ? protectedSegment : probation;
+            Iterator<Map.Entry<String, Summary>> it = victims.entrySet().iterator();
+            Map.Entry<String, Summary> eldest = it.next();
+            it.remove();
+            if (victims == probation) {
+                probationBytes -= eldest.getValue().weight;
+            } else {
+                protectedBytes -= eldest.getValue().weight;
+            }
+            evictions++;
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized double hitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    synchronized String stats() {
+        return String.format("entries=%d (%d protected), bytes=%d/%d, hits=%d, misses=%d, hit rate=%.1f%%, "
+                        + "evictions=%d, invalidations=%d", probation.size() + protectedSegment.size(),
+                protectedSegment.size(), probationBytes + protectedBytes, maxBytes, hits, misses, hitRate() * 100,
+                evictions, invalidations);
+    }
+}
@@ -0,0 +1,299 @@
+package healthcare;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import healthcare.main.VitalSign;
+
+// RemotePatientShard is the client side of ShardServer. Calls are serialized over one connection;
+// network failures surface as UncheckedIOException, errors raised by the remote shard as IllegalStateException.
+class RemotePatientShard implements PatientShard, Closeable {
+    private final String host;
+    private final int port;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    RemotePatientShard(int port) throws IOException {
+        this(InetAddress.getLoopbackAddress().getHostAddress(), port);
+    }
+
+    RemotePatientShard(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    @Override
+    public synchronized boolean addPatient(String userId, String name) {
+        try {
+            out.writeByte(ShardServer.OP_ADD_PATIENT);
+            out.writeUTF(userId);
+            out.writeUTF(name);
+            awaitOk();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasPatient(String userId) {
+        try {
+            out.writeByte(ShardServer.OP_HAS_PATIENT);
+            out.writeUTF(userId);
+            awaitOk();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean enterVitals(String userId, long timestamp, VitalSign vitals) {
+        try {
+            out.writeByte(ShardServer.OP_ENTER_VITALS);
+            out.writeUTF(userId);
+            out.writeLong(timestamp);
+            out.writeInt(vitals.getHeartRate());
+            out.writeInt(vitals.getOxygenLevel());
+            out.writeUTF(vitals.getBloodPressure() == null ? "" : vitals.getBloodPressure());
+            out.writeDouble(vitals.getTemperature());
+            awaitOk();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    // Sends a vitals write tagged with a request ID to a replica leader; retries with the same ID are
+    // stored only once.
+    synchronized boolean enterVitals(String requestId, String userId, long timestamp, VitalSign vitals) {
+        try {
+            out.writeByte(ShardServer.OP_ENTER_VITALS_ONCE);
+            out.writeUTF(requestId);
+            out.writeUTF(userId);
+            out.writeLong(timestamp);
+            out.writeInt(vitals.getHeartRate());
+            out.writeInt(vitals.getOxygenLevel());
+            out.writeUTF(vitals.getBloodPressure() == null ? "" : vitals.getBloodPressure());
+            out.writeDouble(vitals.getTemperature());
+            awaitOk();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized String retrieveVitals(String userId) {
+        try {
+            out.writeByte(ShardServer.OP_RETRIEVE_VITALS);
+            out.writeUTF(userId);
+            awaitOk();
+            return ShardServer.readNullableLongString(in);
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean addNotification(String userId, String message) {
+        try {
+            out.writeByte(ShardServer.OP_ADD_NOTIFICATION);
+            out.writeUTF(userId);
+            out.writeUTF(message);
+            awaitOk();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized List<String> inbox(String userId) {
+        try {
+            out.writeByte(ShardServer.OP_INBOX);
+            out.writeUTF(userId);
+            awaitOk();
+            List<String> messages = new ArrayList<>();
+            PatientSnapshot.readStrings(in, messages);
+            return messages;
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean recordAppointment(String userId, String doctorName, String date, String status) {
+        try {
+            out.writeByte(ShardServer.OP_RECORD_APPOINTMENT);
+            out.writeUTF(userId);
+            out.writeUTF(doctorName);
+            out.writeUTF(date);
+            out.writeUTF(status);
+            awaitOk();
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized Set<String> patientIds() {
+        try {
+            out.writeByte(ShardServer.OP_PATIENT_IDS);
+            awaitOk();
+            List<String> ids = new ArrayList<>();
+            PatientSnapshot.readStrings(in, ids);
+            return new HashSet<>(ids);
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized PatientSnapshot exportPatient(String userId) {
+        try {
+            out.writeByte(ShardServer.OP_EXPORT);
+            out.writeUTF(userId);
+            awaitOk();
+            return in.readBoolean() ? PatientSnapshot.readFrom(in) : null;
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized void importPatient(PatientSnapshot snapshot) {
+        try {
+            out.writeByte(ShardServer.OP_IMPORT);
+            snapshot.writeTo(out);
+            awaitOk();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public synchronized void removePatient(String userId) {
+        try {
+            out.writeByte(ShardServer.OP_REMOVE);
+            out.writeUTF(userId);
+            awaitOk();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    // Returns {role ordinal, applied sequence number, leader term} of a replica node.
+    synchronized long[] replicaStatus() {
+        try {
+            out.writeByte(ShardServer.OP_REPLICA_STATUS);
+            awaitOk();
+            return new long[]{in.readByte(), in.readLong(), in.readLong()};
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    // Sends a batch of mutations from the leader of 'term' to a follower; returns its applied sequence number.
+    synchronized long replicate(long term, List<Mutation> batch) {
+        try {
+            out.writeByte(ShardServer.OP_REPLICATE);
+            out.writeLong(term);
+            out.writeInt(batch.size());
+            for (Mutation m : batch) {
+                m.writeTo(out);
+            }
+            awaitOk();
+            return in.readLong();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    // Replaces a follower's state with a snapshot; returns its applied sequence number.
+    synchronized long installSnapshot(long term, long seq, List<PatientSnapshot> patients, List<String> requestIds) {
+        try {
+            out.writeByte(ShardServer.OP_INSTALL_SNAPSHOT);
+            out.writeLong(term);
+            out.writeLong(seq);
+            out.writeInt(patients.size());
+            for (PatientSnapshot p : patients) {
+                p.writeTo(out);
+            }
+            PatientSnapshot.writeStrings(out, requestIds);
+            awaitOk();
+            return in.readLong();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    // Makes the replica the leader for 'term' of the followers on the given ports.
+    synchronized void promote(long term, List<Integer> followerPorts) {
+        try {
+            out.writeByte(ShardServer.OP_PROMOTE);
+            out.writeLong(term);
+            out.writeInt(followerPorts.size());
+            for (int p : followerPorts) {
+                out.writeInt(p);
+            }
+            awaitOk();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    // Turns the replica into a follower in 'term'.
+    synchronized void follow(long term) {
+        try {
+            out.writeByte(ShardServer.OP_FOLLOW);
+            out.writeLong(term);
+            awaitOk();
+        } catch (IOException e) {
+            throw failure(e);
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    // Sends the buffered request and reads the status byte of the response.
+    private void awaitOk() throws IOException {
+        out.flush();
+        if (in.readByte() != ShardServer.STATUS_OK) {
+            throw new IllegalStateException("Shard " + host + ":" + port + " failed: " + in.readUTF());
+        }
+    }
+
+    private UncheckedIOException failure(IOException e) {
+        return new UncheckedIOException("Shard " + host + ":" + port + " unreachable", e);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public String toString() {
+        return "RemotePatientShard[" + host + ":" + port + "]";
+    }
+}
@@ -0,0 +1,377 @@
+package healthcare;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalSign;
+
+// ReplicaGroup is one replicated shard as seen by the router: a leader and its followers, each a
+// ReplicatedShard behind a ShardServer on a loopback port (in this JVM or in separate processes).
+// It implements PatientShard by sending every call to the current leader. A monitor thread checks the
+// leader with heartbeats; when it misses too many, or a call to it fails, the follower with the highest
+// applied sequence number is promoted for a new leader term and the remaining nodes become its followers.
+// Each vitals write gets a request ID that is reused if the call is retried on the new leader, so a write
+// that reached the old leader and its followers before the failure is not stored twice.
+class ReplicaGroup implements PatientShard, Closeable {
+    static final long DEFAULT_HEARTBEAT_MILLIS = 100;
+    static final int DEFAULT_MISSED_HEARTBEATS = 3;
+
+    private final Map<Integer, RemotePatientShard> nodes = new LinkedHashMap<>();
+    private final long heartbeatMillis;
+    private final int missedHeartbeats;
+    private final Thread monitor;
+    private volatile boolean running = true;
+    private volatile int leaderPort;
+    private volatile RemotePatientShard heartbeatClient;
+    // Term of the current leader; each promotion uses a higher one.
+    private long term;
+    private final String clientId = UUID.randomUUID().toString();
+    private final AtomicLong requestCounter = new AtomicLong();
+    private int failovers;
+    private long lastFailoverMillis;
+
+    // Connects to the replicas on the given ports and makes the first one the leader.
+    ReplicaGroup(List<Integer> ports) throws IOException {
+        this(ports, DEFAULT_HEARTBEAT_MILLIS, DEFAULT_MISSED_HEARTBEATS);
+    }
+
+    ReplicaGroup(List<Integer> ports, long heartbeatMillis, int missedHeartbeats) throws IOException {
+        if (ports.isEmpty()) {
+            throw new IllegalArgumentException("A replica group needs at least one node");
+        }
+        this.heartbeatMillis = heartbeatMillis;
+        this.missedHeartbeats = missedHeartbeats;
+        for (int port : ports) {
+            RemotePatientShard node = new RemotePatientShard(port);
+            nodes.put(port, node);
+            term = Math.max(term, node.replicaStatus()[2]);
+        }
+        leaderPort = ports.get(0);
+        term++;
+        nodes.get(leaderPort).promote(term, new ArrayList<>(ports.subList(1, ports.size())));
+        heartbeatClient = new RemotePatientShard(leaderPort);
+        monitor = new Thread(this::monitorLeader, "replica-group-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    int getLeaderPort() {
+        return leaderPort;
+    }
+
+    synchronized int getFailovers() {
+        return failovers;
+    }
+
+    // How long the last failover took, from detecting the failure to the new leader being promoted.
+    synchronized long getLastFailoverMillis() {
+        return lastFailoverMillis;
+    }
+
+    private void monitorLeader() {
+        int misses = 0;
+        while (running) {
+            try {
+                Thread.sleep(heartbeatMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            int port = leaderPort;
+            try {
+                heartbeatClient.replicaStatus();
+                misses = 0;
+            } catch (RuntimeException e) {
+                if (++misses >= missedHeartbeats) {
+                    failover(port);
+                    misses = 0;
+                }
+            }
+        }
+    }
+
+    // Promotes the most up-to-date reachable follower, unless someone already replaced 'failedPort'.
+    private synchronized void failover(int failedPort) {
+        if (leaderPort != failedPort || !running) {
+            return;
+        }
+        long start = System.nanoTime();
+        closeQuietly(nodes.remove(failedPort));
+        closeQuietly(heartbeatClient);
+        // Pick the next term, then fence the remaining nodes with it before choosing among them: from then on
+        // they reject batches from the old leader, so it cannot change them while the group fails over.
+        long newTerm = term + 1;
+        for (Map.Entry<Integer, RemotePatientShard> e : new ArrayList<>(nodes.entrySet())) {
+            try {
+                newTerm = Math.max(newTerm, e.getValue().replicaStatus()[2] + 1);
+            } catch (RuntimeException ex) {
+                closeQuietly(nodes.remove(e.getKey()));
+            }
+        }
+        int best = -1;
+        long bestSeq = -1;
+        for (Map.Entry<Integer, RemotePatientShard> e : new ArrayList<>(nodes.entrySet())) {
+            try {
+                e.getValue().follow(newTerm);
+                long seq = e.getValue().replicaStatus()[1];
+                if (seq > bestSeq) {
+                    bestSeq = seq;
+                    best = e.getKey();
+                }
+            } catch (RuntimeException ex) {
+                closeQuietly(nodes.remove(e.getKey()));
+            }
+        }
+        if (best < 0) {
+            SystemLogs.addLog("Replica group lost its last node (port " + failedPort + ")");
+            return;
+        }
+        List<Integer> followers = new ArrayList<>(nodes.keySet());
+        followers.remove(Integer.valueOf(best));
+        term = newTerm;
+        nodes.get(best).promote(term, followers);
+        try {
+            heartbeatClient = new RemotePatientShard(best);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        leaderPort = best;
+        failovers++;
+        lastFailoverMillis = (System.nanoTime() - start) / 1_000_000;
+        SystemLogs.addLog("Replica on port " + best + " promoted to leader for term " + term + " (seq " + bestSeq
+                + ") after port " + failedPort + " failed; took " + lastFailoverMillis + " ms");
+    }
+
+    // Runs the call on the leader; if the leader can't be reached, fails over once and retries.
+    private <T> T onLeader(Function<RemotePatientShard, T> call) {
+        for (int attempt = 0; ; attempt++) {
+            int port = leaderPort;
+            RemotePatientShard leader;
+            synchronized (this) {
+                leader = nodes.get(port);
+            }
+            try {
+                if (leader == null) {
+                    throw new IllegalStateException("No leader available");
+                }
+                return call.apply(leader);
+            } catch (UncheckedIOException e) {
+                if (attempt > 0) {
+                    throw e;
+                }
+                failover(port);
+            }
+        }
+    }
+
+    @Override
+    public boolean addPatient(String userId, String name) {
+        return onLeader(s -> s.addPatient(userId, name));
+    }
+
+    @Override
+    public boolean hasPatient(String userId) {
+        return onLeader(s -> s.hasPatient(userId));
+    }
+
+    @Override
+    public boolean enterVitals(String userId, long timestamp, VitalSign vitals) {
+        String requestId = clientId + ":" + requestCounter.incrementAndGet();
+        return onLeader(s -> s.enterVitals(requestId, userId, timestamp, vitals));
+    }
+
+    @Override
+    public String retrieveVitals(String userId) {
+        return onLeader(s -> s.retrieveVitals(userId));
+    }
+
+    @Override
+    public boolean addNotification(String userId, String message) {
+        return onLeader(s -> s.addNotification(userId, message));
+    }
+
+    @Override
+    public List<String> inbox(String userId) {
+        return onLeader(s -> s.inbox(userId));
+    }
+
+    @Override
+    public boolean recordAppointment(String userId, String doctorName, String date, String status) {
+        return onLeader(s -> s.recordAppointment(userId, doctorName, date, status));
+    }
+
+    @Override
+    public Set<String> patientIds() {
+        return onLeader(RemotePatientShard::patientIds);
+    }
+
+    @Override
+    public PatientSnapshot exportPatient(String userId) {
+        return onLeader(s -> s.exportPatient(userId));
+    }
+
+    @Override
+    public void importPatient(PatientSnapshot snapshot) {
+        onLeader(s -> {
+            s.importPatient(snapshot);
+            return null;
+        });
+    }
+
+    @Override
+    public void removePatient(String userId) {
+        onLeader(s -> {
+            s.removePatient(userId);
+            return null;
+        });
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ignored) {
+                // nothing left to do
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        monitor.interrupt();
+        closeQuietly(heartbeatClient);
+        for (RemotePatientShard node : nodes.values()) {
+            closeQuietly(node);
+        }
+        nodes.clear();
+    }
+
+    // Kill-the-leader simulation. A writer streams vitals for 100 patients through the group; after two
+    // seconds the leader process is killed with SIGKILL, so it cannot ship pending writes or close its
+    // connections. Each reading carries its per-patient write number in the heart rate field, so the final
+    // check reports acknowledged readings that were lost and readings stored twice, besides the failover time.
+    //   java -cp bin healthcare.ReplicaGroup [none|one|all]            three replicas as child processes, leader
+    //                                                                  killed automatically
+    //   java -cp bin healthcare.ReplicaGroup <mode> <port> <port> ...  replicas started separately with
+    //                                                                  "ShardServer <port> <mode>"; kill the leader
+    //                                                                  process yourself (e.g. kill -9)
+    public static void main(String[] args) throws Exception {
+        ReplicatedShard.AckMode mode = ReplicatedShard.AckMode.valueOf(args.length > 0 ? args[0].toUpperCase() : "ONE");
+        Map<Integer, Process> processes = new LinkedHashMap<>();
+        List<Integer> ports = new ArrayList<>();
+        if (args.length > 1) {
+            for (int i = 1; i < args.length; i++) {
+                ports.add(Integer.parseInt(args[i]));
+            }
+        } else {
+            String java = ProcessHandle.current().info().command().orElse("java");
+            for (int i = 0; i < 3; i++) {
+                Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "healthcare.ShardServer", "0", mode.name()).redirectErrorStream(true).start();
+                // The node prints "Shard node listening on 127.0.0.1:<port> (replica)" once it accepts connections.
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+                String line = reader.readLine();
+                if (line == null || !line.startsWith("Shard node listening")) {
+                    process.destroyForcibly();
+                    throw new IOException("Replica process failed to start: " + line);
+                }
+                int port = Integer.parseInt(line.replaceAll(".*:(\\d+).*", "$1"));
+                processes.put(port, process);
+                ports.add(port);
+            }
+        }
+        int patients = 100;
+        int[] attempts = new int[patients];
+        List<BitSet> acked = new ArrayList<>();
+        for (int p = 0; p < patients; p++) {
+            acked.add(new BitSet());
+        }
+        try (ReplicaGroup group = new ReplicaGroup(ports)) {
+            for (int p = 0; p < patients; p++) {
+                group.addPatient("P" + p, "Patient " + p);
+            }
+            long runUntil = System.currentTimeMillis() + 6000;
+            long killAt = System.currentTimeMillis() + 2000;
+            long killedNanos = 0;
+            long firstWriteAfterKill = 0;
+            long writes = 0;
+            boolean killed = false;
+            int p = 0;
+            while (System.currentTimeMillis() < runUntil) {
+                if (!killed && !processes.isEmpty() && System.currentTimeMillis() >= killAt) {
+                    int leader = group.getLeaderPort();
+                    processes.get(leader).destroyForcibly().waitFor();
+                    killed = true;
+                    killedNanos = System.nanoTime();
+                    System.out.println("Killed leader process on port " + leader);
+                }
+                int writeNumber = ++attempts[p];
+                try {
+                    if (group.enterVitals("P" + p, System.currentTimeMillis(),
+                            new VitalSign(writeNumber, 97, "120/80", 36.6))) {
+                        acked.get(p).set(writeNumber);
+                        writes++;
+                        if (killed && firstWriteAfterKill == 0) {
+                            firstWriteAfterKill = System.nanoTime();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    if (processes.isEmpty() && !killed) {
+                        killed = true;
+                        killedNanos = System.nanoTime();
+                    }
+                    Thread.sleep(10);
+                }
+                p = (p + 1) % patients;
+            }
+            long lost = 0;
+            long duplicated = 0;
+            for (int q = 0; q < patients; q++) {
+                BitSet stored = new BitSet();
+                String vitals = group.retrieveVitals("P" + q);
+                if (vitals != null) {
+                    for (String line : vitals.split("\n")) {
+                        if (line.isEmpty()) {
+                            continue;
+                        }
+                        int start = line.indexOf("Heart Rate: ") + "Heart Rate: ".length();
+                        int writeNumber = Integer.parseInt(line.substring(start, line.indexOf(" bpm", start)));
+                        if (stored.get(writeNumber)) {
+                            duplicated++;
+                        }
+                        stored.set(writeNumber);
+                    }
+                }
+                BitSet missing = (BitSet) acked.get(q).clone();
+                missing.andNot(stored);
+                lost += missing.cardinality();
+            }
+            System.out.println("Ack mode: " + mode + ", acknowledged writes: " + writes + ", failovers: "
+                    + group.getFailovers());
+            if (killed && firstWriteAfterKill > 0) {
+                System.out.println("Writes resumed " + (firstWriteAfterKill - killedNanos) / 1_000_000
+                        + " ms after the leader died (promotion itself took " + group.getLastFailoverMillis() + " ms)");
+            }
+            System.out.println("Acknowledged readings lost: " + lost + ", readings stored twice: " + duplicated);
+        } finally {
+            for (Process process : processes.values()) {
+                process.destroyForcibly();
+            }
+        }
+    }
+}
@@ -0,0 +1,572 @@
+package healthcare;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalSign;
+
+// ReplicatedShard is a LocalPatientShard that takes part in leader/follower replication.
+//
+// On the leader every write is applied locally and appended to an in-memory replication log as one or
+// more Mutations. One shipper thread per follower sends the log asynchronously in batches; how long a
+// write waits for followers is set by the AckMode. A follower that has fallen behind the retained part of
+// the log is first brought up to date with a full snapshot, then continues from the log tail.
+//
+// Followers only accept replicated mutations; client writes are rejected until the node is promoted.
+// Promotion (see ReplicaGroup) turns a follower into the leader for the remaining nodes.
+//
+// Every promotion starts a new, higher leader term. Batches and snapshots carry the sender's term, and a
+// node rejects anything from an older term, so a deposed leader that is still running cannot overwrite the
+// new leader's followers. A leader that learns of a newer term steps down; as its log may hold writes the
+// new leader never saw, it forgets its position and is re-seeded with a snapshot.
+//
+// A vitals write can carry a client request ID. Leader and followers remember recent IDs, so a client
+// that retries a write on the new leader after a failover does not store the reading twice.
+class ReplicatedShard implements PatientShard {
+    enum Role { LEADER, FOLLOWER }
+
+    // How many followers must have applied a write before it returns to the caller.
+    enum AckMode { NONE, ONE, ALL }
+
+    static final int DEFAULT_MAX_BATCH = 512;
+    static final long DEFAULT_LINGER_MILLIS = 2;
+    static final int DEFAULT_LOG_RETENTION = 100_000;
+    static final long DEFAULT_ACK_TIMEOUT_MILLIS = 2000;
+    // How many recent request IDs are remembered for duplicate detection.
+    static final int REQUEST_ID_RETENTION = 100_000;
+
+    private final LocalPatientShard local = new LocalPatientShard();
+    private final AckMode ackMode;
+    private final long ackTimeoutMillis;
+    private final int maxBatch;
+    private final long lingerMillis;
+    private final int logRetention;
+
+    private volatile Role role = Role.FOLLOWER;
+    // Highest leader term this node has seen.
+    private long term;
+    // Highest sequence number applied to 'local' (on the leader: the last one appended).
+    private long appliedSeq;
+    // Recent client request IDs and the sequence number each was stored under.
+    private final Map<String, Long> appliedRequests = new LinkedHashMap<String, Long>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > REQUEST_ID_RETENTION;
+        }
+    };
+    private ReplicationLog log;
+    private final List<FollowerLink> followers = new ArrayList<>();
+    private long ackTimeouts;
+
+    ReplicatedShard(AckMode ackMode) {
+        this(ackMode, DEFAULT_ACK_TIMEOUT_MILLIS, DEFAULT_MAX_BATCH, DEFAULT_LINGER_MILLIS, DEFAULT_LOG_RETENTION);
+    }
+
+    ReplicatedShard(AckMode ackMode, long ackTimeoutMillis, int maxBatch, long lingerMillis, int logRetention) {
+        this.ackMode = ackMode;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        this.maxBatch = maxBatch;
+        this.lingerMillis = lingerMillis;
+        this.logRetention = logRetention;
+    }
+
+    Role getRole() {
+        return role;
+    }
+
+    synchronized long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    synchronized long getTerm() {
+        return term;
+    }
+
+    synchronized long getAckTimeouts() {
+        return ackTimeouts;
+    }
+
+    // ---- Role changes ----
+
+    // Makes this node the leader for 'newTerm' and starts shipping its log to the followers on the given
+    // loopback ports. The term must be at least the highest this node has seen.
+    synchronized void promote(long newTerm, List<Integer> followerPorts) {
+        if (newTerm < term) {
+            throw new IllegalStateException("Stale term " + newTerm + ": replica is already at term " + term);
+        }
+        stopFollowers();
+        term = newTerm;
+        role = Role.LEADER;
+        log = new ReplicationLog(appliedSeq, logRetention);
+        for (int port : followerPorts) {
+            FollowerLink link = new FollowerLink(port, term);
+            followers.add(link);
+            link.start();
+        }
+        SystemLogs.addLog("Shard replica promoted to leader for term " + term + " at seq " + appliedSeq + " with "
+                + followerPorts.size() + " followers");
+    }
+
+    // Makes this node a follower in 'newTerm': it stops shipping, rejects client writes and from then on
+    // rejects messages from older leaders. ReplicaGroup fences the remaining nodes this way before it
+    // promotes a new leader.
+    synchronized void follow(long newTerm) {
+        checkTerm(newTerm);
+        stopLeading();
+    }
+
+    private void stopLeading() {
+        stopFollowers();
+        role = Role.FOLLOWER;
+        log = null;
+    }
+
+    // Stops all background threads (used when the node shuts down).
+    synchronized void shutdown() {
+        stopFollowers();
+    }
+
+    private void stopFollowers() {
+        for (FollowerLink link : followers) {
+            link.stop();
+        }
+        followers.clear();
+        notifyAll();
+    }
+
+    // Accepts a message from the leader of 'leaderTerm': rejects older terms and steps down for newer ones.
+    private void checkTerm(long leaderTerm) {
+        if (leaderTerm < term) {
+            throw new IllegalStateException("Rejected message from stale leader term " + leaderTerm
+                    + ": replica is at term " + term);
+        }
+        if (leaderTerm > term) {
+            stepDown(leaderTerm);
+        }
+    }
+
+    // Adopts a newer term. A leader that is deposed this way may have applied writes the new leader never
+    // saw, so it drops its position; the new leader then sends it a snapshot.
+    private void stepDown(long newTerm) {
+        term = newTerm;
+        if (role == Role.LEADER) {
+            stopLeading();
+            appliedSeq = -1;
+            SystemLogs.addLog("Shard replica stepped down: a leader for term " + newTerm + " exists");
+        }
+    }
+
+    // ---- Follower side ----
+
+    // Applies a batch of replicated mutations in order, skipping ones already applied.
+    synchronized long applyBatch(long leaderTerm, List<Mutation> batch) {
+        checkTerm(leaderTerm);
+        requireRole(Role.FOLLOWER);
+        for (Mutation m : batch) {
+            if (m.seq <= appliedSeq) {
+                continue;
+            }
+            if (m.seq != appliedSeq + 1) {
+                throw new IllegalStateException("Replication gap: expected seq " + (appliedSeq + 1) + ", got " + m.seq);
+            }
+            m.applyTo(local);
+            appliedSeq = m.seq;
+            if (m.requestId() != null) {
+                appliedRequests.put(m.requestId(), m.seq);
+            }
+        }
+        return appliedSeq;
+    }
+
+    // Replaces the whole state with a leader snapshot taken at 'seq', including the recent request IDs.
+    synchronized long installSnapshot(long leaderTerm, long seq, List<PatientSnapshot> patients,
+            List<String> requestIds) {
+        checkTerm(leaderTerm);
+        requireRole(Role.FOLLOWER);
+        for (String userId : local.patientIds()) {
+            local.removePatient(userId);
+        }
+        for (PatientSnapshot p : patients) {
+            local.importPatient(p);
+        }
+        appliedRequests.clear();
+        for (String requestId : requestIds) {
+            appliedRequests.put(requestId, seq);
+        }
+        appliedSeq = seq;
+        return appliedSeq;
+    }
+
+    // ---- Leader side: writes ----
+
+    @Override
+    public boolean addPatient(String userId, String name) {
+        long seq;
+        long writeTerm;
+        synchronized (this) {
+            requireRole(Role.LEADER);
+            writeTerm = term;
+            if (!local.addPatient(userId, name)) {
+                return false;
+            }
+            seq = append(Mutation.addPatient(appliedSeq + 1, userId, name));
+        }
+        awaitAck(seq, writeTerm);
+        return true;
+    }
+
+    @Override
+    public boolean enterVitals(String userId, long timestamp, VitalSign vitals) {
+        return enterVitals(null, userId, timestamp, vitals);
+    }
+
+    // Like enterVitals, but a write whose 'requestId' was already stored is not stored again; the call
+    // only waits for the original write to be acknowledged.
+    boolean enterVitals(String requestId, String userId, long timestamp, VitalSign vitals) {
+        long seq;
+        long writeTerm;
+        synchronized (this) {
+            requireRole(Role.LEADER);
+            writeTerm = term;
+            Long stored = requestId == null ? null : appliedRequests.get(requestId);
+            if (stored != null) {
+                seq = stored;
+            } else {
+                if (!local.enterVitals(userId, timestamp, vitals)) {
+                    return false;
+                }
+                append(Mutation.vitals(appliedSeq + 1, userId, requestId, timestamp, vitals));
+                List<String> history = local.getPatient(userId).getMedicalHistory().getHistoryRecords();
+                seq = append(Mutation.history(appliedSeq + 1, userId, history.get(history.size() - 1)));
+                if (requestId != null) {
+                    appliedRequests.put(requestId, seq);
+                }
+            }
+        }
+        awaitAck(seq, writeTerm);
+        return true;
+    }
+
+    @Override
+    public boolean addNotification(String userId, String message) {
+        long seq;
+        long writeTerm;
+        synchronized (this) {
+            requireRole(Role.LEADER);
+            writeTerm = term;
+            if (!local.addNotification(userId, message)) {
+                return false;
+            }
+            seq = append(Mutation.inbox(appliedSeq + 1, userId, message));
+        }
+        awaitAck(seq, writeTerm);
+        return true;
+    }
+
+    @Override
+    public boolean recordAppointment(String userId, String doctorName, String date, String status) {
+        long seq;
+        long writeTerm;
+        synchronized (this) {
+            requireRole(Role.LEADER);
+            writeTerm = term;
+            if (!local.recordAppointment(userId, doctorName, date, status)) {
+                return false;
+            }
+            seq = append(Mutation.appointment(appliedSeq + 1, userId, doctorName, date, status));
+        }
+        awaitAck(seq, writeTerm);
+        return true;
+    }
+
+    @Override
+    public void importPatient(PatientSnapshot snapshot) {
+        long seq;
+        long writeTerm;
+        synchronized (this) {
+            requireRole(Role.LEADER);
+            writeTerm = term;
+            local.importPatient(snapshot);
+            seq = append(Mutation.importPatient(appliedSeq + 1, snapshot));
+        }
+        awaitAck(seq, writeTerm);
+    }
+
+    @Override
+    public void removePatient(String userId) {
+        long seq;
+        long writeTerm;
+        synchronized (this) {
+            requireRole(Role.LEADER);
+            writeTerm = term;
+            local.removePatient(userId);
+            seq = append(Mutation.remove(appliedSeq + 1, userId));
+        }
+        awaitAck(seq, writeTerm);
+    }
+
+    // ---- Reads are served from the local copy ----
+
+    @Override
+    public boolean hasPatient(String userId) {
+        return local.hasPatient(userId);
+    }
+
+    @Override
+    public String retrieveVitals(String userId) {
+        return local.retrieveVitals(userId);
+    }
+
+    @Override
+    public List<String> inbox(String userId) {
+        return local.inbox(userId);
+    }
+
+    @Override
+    public Set<String> patientIds() {
+        return local.patientIds();
+    }
+
+    @Override
+    public synchronized PatientSnapshot exportPatient(String userId) {
+        return local.exportPatient(userId);
+    }
+
+    // ---- Internals ----
+
+    private void requireRole(Role expected) {
+        if (role != expected) {
+            throw new IllegalStateException("Replica is not the " + expected.name().toLowerCase());
+        }
+    }
+
+    // Appends to the log; called with the lock held, right after the change was applied locally.
+    private long append(Mutation m) {
+        log.append(m);
+        appliedSeq = m.seq;
+        return m.seq;
+    }
+
+    // Blocks until enough followers acknowledged 'seq' for the configured AckMode, or the timeout passes.
+    // Fails if the node stopped leading 'writeTerm' first, since the write may then be discarded.
+    private synchronized void awaitAck(long seq, long writeTerm) {
+        if (ackMode == AckMode.NONE) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+        while (true) {
+            if (role != Role.LEADER || term != writeTerm) {
+                throw new IllegalStateException("Leadership for term " + writeTerm
+                        + " ended before the write was replicated");
+            }
+            if (acknowledged(seq)) {
+                return;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                ackTimeouts++;
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private boolean acknowledged(long seq) {
+        if (followers.isEmpty()) {
+            return true;
+        }
+        int acked = 0;
+        for (FollowerLink f : followers) {
+            if (f.ackedSeq >= seq) {
+                acked++;
+            }
+        }
+        return ackMode == AckMode.ONE ? acked >= 1 : acked == followers.size();
+    }
+
+    private synchronized void onAck() {
+        notifyAll();
+    }
+
+    // A consistent copy of every patient together with the sequence number it reflects.
+    private synchronized Snapshot snapshot() {
+        List<PatientSnapshot> patients = new ArrayList<>();
+        for (String userId : local.patientIds()) {
+            patients.add(local.exportPatient(userId));
+        }
+        return new Snapshot(appliedSeq, patients, new ArrayList<>(appliedRequests.keySet()));
+    }
+
+    private static final class Snapshot {
+        final long seq;
+        final List<PatientSnapshot> patients;
+        final List<String> requestIds;
+
+        Snapshot(long seq, List<PatientSnapshot> patients, List<String> requestIds) {
+            this.seq = seq;
+            this.patients = patients;
+            this.requestIds = requestIds;
+        }
+    }
+
+    // The leader's log of recent mutations. Sequence numbers are consecutive; only the newest
+    // 'retention' entries are kept, and followers that need older ones get a snapshot instead.
+    private static final class ReplicationLog {
+        private final int retention;
+        private final List<Mutation> entries = new ArrayList<>();
+        private long firstSeq;
+
+        ReplicationLog(long lastAppliedSeq, int retention) {
+            this.firstSeq = lastAppliedSeq + 1;
+            this.retention = retention;
+        }
+
+        synchronized void append(Mutation m) {
+            entries.add(m);
+            if (entries.size() > retention) {
+                int drop = entries.size() - retention / 2;
+                entries.subList(0, drop).clear();
+                firstSeq += drop;
+            }
+            notifyAll();
+        }
+
+        // Waits for entries starting at 'from' and returns up to 'max' of them. After the first entry shows up
+        // it lingers briefly so writes arriving close together share a batch. Returns null if 'from' was
+        // already trimmed, or an empty list if nothing arrived within 'waitMillis'.
+        synchronized List<Mutation> awaitBatch(long from, int max, long lingerMillis, long waitMillis)
+                throws InterruptedException {
+            if (from < firstSeq) {
+                return null;
+            }
+            long lastSeq = firstSeq + entries.size() - 1;
+            if (from > lastSeq) {
+                wait(waitMillis);
+                if (from < firstSeq) {
+                    return null;
+                }
+                lastSeq = firstSeq + entries.size() - 1;
+                if (from > lastSeq) {
+                    return Collections.emptyList();
+                }
+            }
+            if (lastSeq - from + 1 < max && lingerMillis > 0) {
+                wait(lingerMillis);
+                if (from < firstSeq) {
+                    return null;
+                }
+                lastSeq = firstSeq + entries.size() - 1;
+            }
+            int start = (int) (from - firstSeq);
+            int end = (int) Math.min(entries.size(), start + (long) max);
+            return new ArrayList<>(entries.subList(start, end));
+        }
+    }
+
+    // Ships the log to one follower on its own thread, reconnecting after failures.
+    private final class FollowerLink implements Runnable {
+        private final int port;
+        // The term this link ships for; the follower rejects it once a newer leader exists.
+        private final long leaderTerm;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile long ackedSeq = -1;
+        private RemotePatientShard client;
+
+        FollowerLink(int port, long leaderTerm) {
+            this.port = port;
+            this.leaderTerm = leaderTerm;
+            this.thread = new Thread(this, "replication-shipper-" + port);
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            thread.interrupt();
+            closeClient();
+        }
+
+        @Override
+        public void run() {
+            long next = -1;
+            while (running) {
+                try {
+                    if (client == null) {
+                        client = new RemotePatientShard(port);
+                        long[] status = client.replicaStatus();
+                        if (status[2] > leaderTerm) {
+                            synchronized (ReplicatedShard.this) {
+                                if (term < status[2]) {
+                                    stepDown(status[2]);
+                                }
+                            }
+                            return;
+                        }
+                        next = status[1] + 1;
+                    }
+                    ReplicationLog currentLog;
+                    synchronized (ReplicatedShard.this) {
+                        currentLog = log;
+                    }
+                    if (currentLog == null) {
+                        return;
+                    }
+                    List<Mutation> batch = currentLog.awaitBatch(next, maxBatch, lingerMillis, 100);
+                    long acked;
+                    if (batch == null) {
+                        Snapshot snap = snapshot();
+                        acked = client.installSnapshot(leaderTerm, snap.seq, snap.patients, snap.requestIds);
+                    } else if (batch.isEmpty()) {
+                        continue;
+                    } else {
+                        acked = client.replicate(leaderTerm, batch);
+                    }
+                    next = acked + 1;
+                    ackedSeq = acked;
+                    onAck();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (UncheckedIOException | IOException | IllegalStateException e) {
+                    // Follower unreachable or out of sync: reconnect and resume from its reported position.
+                    closeClient();
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void closeClient() {
+            RemotePatientShard c = client;
+            client = null;
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (IOException ignored) {
+                    // already closing
+                }
+            }
+        }
+    }
+}
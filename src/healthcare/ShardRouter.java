@@ -0,0 +1,232 @@
+package healthcare;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalSign;
+
+// ShardRouter partitions patients across shard nodes by consistent hashing of their user ID.
+// Every per-patient call (vitals, queries, notifications) is forwarded to the owning shard.
+// When a node joins or leaves, the patients whose owner changed are moved with their full state.
+// Routing and rebalancing share a read/write lock, so no call is routed to a node mid-move.
+// A rebalance is all or nothing: if a move fails, the patients already moved are moved back and the ring is
+// restored, so every patient stays reachable at its old owner.
+class ShardRouter {
+    private final ConsistentHashRing<PatientShard> ring;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    ShardRouter() {
+        this(new ConsistentHashRing<>());
+    }
+
+    ShardRouter(ConsistentHashRing<PatientShard> ring) {
+        this.ring = ring;
+    }
+
+    // Adds a node and moves over the patients it now owns. Returns the number of patients moved.
+    int addNode(String nodeId, PatientShard shard) {
+        lock.writeLock().lock();
+        try {
+            List<String> others = ring.nodeIds();
+            ring.addNode(nodeId, shard);
+            List<Move> moved = new ArrayList<>();
+            try {
+                for (String otherId : others) {
+                    PatientShard other = ring.node(otherId);
+                    for (String userId : other.patientIds()) {
+                        if (nodeId.equals(ring.ownerId(userId))) {
+                            move(userId, other, shard);
+                            moved.add(new Move(userId, other, shard));
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                undo(moved);
+                ring.removeNode(nodeId);
+                SystemLogs.addLog("Shard node " + nodeId + " could not join: " + e.getMessage());
+                throw e;
+            }
+            SystemLogs.addLog("Shard node " + nodeId + " joined, " + moved.size() + " patients moved to it");
+            return moved.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Removes a (still reachable) node after handing its patients to their new owners.
+    // Returns the number of patients moved.
+    int removeNode(String nodeId) {
+        lock.writeLock().lock();
+        try {
+            if (ring.node(nodeId) == null) {
+                throw new IllegalArgumentException("Unknown shard node: " + nodeId);
+            }
+            if (ring.size() == 1) {
+                throw new IllegalStateException("Cannot remove the last shard node");
+            }
+            PatientShard leaving = ring.removeNode(nodeId);
+            List<Move> moved = new ArrayList<>();
+            try {
+                for (String userId : leaving.patientIds()) {
+                    PatientShard to = ring.owner(userId);
+                    move(userId, leaving, to);
+                    moved.add(new Move(userId, leaving, to));
+                }
+            } catch (RuntimeException e) {
+                undo(moved);
+                ring.addNode(nodeId, leaving);
+                SystemLogs.addLog("Shard node " + nodeId + " could not leave: " + e.getMessage());
+                throw e;
+            }
+            SystemLogs.addLog("Shard node " + nodeId + " left, " + moved.size() + " patients moved off it");
+            return moved.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Drops a node that is gone for good (crashed); its patients are not recoverable from here.
+    void forgetNode(String nodeId) {
+        lock.writeLock().lock();
+        try {
+            ring.removeNode(nodeId);
+            SystemLogs.addLog("Shard node " + nodeId + " dropped from the ring");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // A completed move, kept so a failed rebalance can be undone.
+    private static final class Move {
+        final String userId;
+        final PatientShard from;
+        final PatientShard to;
+
+        Move(String userId, PatientShard from, PatientShard to) {
+            this.userId = userId;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    // The patient is only removed from its old owner once the new owner has imported it, so a failure here
+    // leaves it (at worst twice, never zero times) on the old owner.
+    private static void move(String userId, PatientShard from, PatientShard to) {
+        PatientSnapshot snapshot = from.exportPatient(userId);
+        if (snapshot != null) {
+            to.importPatient(snapshot);
+            from.removePatient(userId);
+        }
+    }
+
+    // Moves patients back to where they were, newest move first. Failures are logged and the rest continue;
+    // a patient whose move back fails stays on the node it was moved to.
+    private static void undo(List<Move> moved) {
+        for (int i = moved.size() - 1; i >= 0; i--) {
+            Move m = moved.get(i);
+            try {
+                move(m.userId, m.to, m.from);
+            } catch (RuntimeException e) {
+                SystemLogs.addLog("Could not move patient " + m.userId + " back during rollback: " + e.getMessage());
+            }
+        }
+    }
+
+    // ID of the node that owns the patient.
+    String ownerOf(String userId) {
+        lock.readLock().lock();
+        try {
+            return ring.ownerId(userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean addPatient(String userId, String name) {
+        lock.readLock().lock();
+        try {
+            return shardFor(userId).addPatient(userId, name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean enterVitals(String userId, VitalSign vitals) {
+        return enterVitals(userId, System.currentTimeMillis(), vitals);
+    }
+
+    boolean enterVitals(String userId, long timestamp, VitalSign vitals) {
+        lock.readLock().lock();
+        try {
+            return shardFor(userId).enterVitals(userId, timestamp, vitals);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    String retrieveVitals(String userId) {
+        lock.readLock().lock();
+        try {
+            return shardFor(userId).retrieveVitals(userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean addNotification(String userId, String message) {
+        lock.readLock().lock();
+        try {
+            return shardFor(userId).addNotification(userId, message);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<String> inbox(String userId) {
+        lock.readLock().lock();
+        try {
+            return shardFor(userId).inbox(userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean recordAppointment(String userId, String doctorName, String date, String status) {
+        lock.readLock().lock();
+        try {
+            return shardFor(userId).recordAppointment(userId, doctorName, date, status);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Number of patients held by each node, in join order.
+    Map<String, Integer> distribution() {
+        lock.readLock().lock();
+        try {
+            Map<String, Integer> counts = new LinkedHashMap<>();
+            for (String nodeId : ring.nodeIds()) {
+                counts.put(nodeId, ring.node(nodeId).patientIds().size());
+            }
+            return counts;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<String> nodeIds() {
+        return new ArrayList<>(ring.nodeIds());
+    }
+
+    private PatientShard shardFor(String userId) {
+        PatientShard shard = ring.owner(userId);
+        if (shard == null) {
+            throw new IllegalStateException("No shard nodes available");
+        }
+        return shard;
+    }
+}
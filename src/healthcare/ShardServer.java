@@ -0,0 +1,323 @@
+package healthcare;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import healthcare.main.VitalSign;
+
+// ShardServer exposes a LocalPatientShard over TCP so shards can run as separate processes
+// (or as several in-JVM instances on loopback). RemotePatientShard is the matching client.
+//
+// Every request is an op byte followed by its arguments; every response is a status byte
+// (STATUS_OK or STATUS_ERROR + message) followed by the result. All values use DataOutput encoding.
+//
+// Run a standalone node with:  java -cp bin healthcare.ShardServer <port>
+public class ShardServer implements Closeable {
+    static final byte OP_ADD_PATIENT = 1;
+    static final byte OP_HAS_PATIENT = 2;
+    static final byte OP_ENTER_VITALS = 3;
+    static final byte OP_RETRIEVE_VITALS = 4;
+    static final byte OP_ADD_NOTIFICATION = 5;
+    static final byte OP_INBOX = 6;
+    static final byte OP_PATIENT_IDS = 7;
+    static final byte OP_EXPORT = 8;
+    static final byte OP_IMPORT = 9;
+    static final byte OP_REMOVE = 10;
+    static final byte OP_RECORD_APPOINTMENT = 11;
+
+    // Replication ops, only served when the node hosts a ReplicatedShard.
+    static final byte OP_REPLICA_STATUS = 20;
+    static final byte OP_REPLICATE = 21;
+    static final byte OP_INSTALL_SNAPSHOT = 22;
+    static final byte OP_PROMOTE = 23;
+    static final byte OP_FOLLOW = 24;
+    static final byte OP_ENTER_VITALS_ONCE = 25;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    private final PatientShard shard;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "shard-server-worker");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean running = true;
+
+    // Starts serving the shard on the loopback interface; port 0 picks a free port.
+    ShardServer(PatientShard shard, int port) throws IOException {
+        this.shard = shard;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        workers.execute(this::acceptLoop);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    PatientShard getShard() {
+        return shard;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                workers.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Shard server accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            while (running) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                try {
+                    handle(op, in, out);
+                } catch (RuntimeException e) {
+                    out.writeByte(STATUS_ERROR);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // Client went away or the server is closing.
+        } catch (IOException e) {
+            System.out.println("Shard server connection failed: " + e.getMessage());
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    private void handle(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (op) {
+            case OP_ADD_PATIENT: {
+                boolean added = shard.addPatient(in.readUTF(), in.readUTF());
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(added);
+                break;
+            }
+            case OP_HAS_PATIENT: {
+                boolean has = shard.hasPatient(in.readUTF());
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(has);
+                break;
+            }
+            case OP_ENTER_VITALS: {
+                String userId = in.readUTF();
+                long timestamp = in.readLong();
+                VitalSign vitals = new VitalSign(in.readInt(), in.readInt(), in.readUTF(), in.readDouble());
+                boolean stored = shard.enterVitals(userId, timestamp, vitals);
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(stored);
+                break;
+            }
+            case OP_RETRIEVE_VITALS: {
+                String vitals = shard.retrieveVitals(in.readUTF());
+                out.writeByte(STATUS_OK);
+                writeNullableLongString(out, vitals);
+                break;
+            }
+            case OP_ADD_NOTIFICATION: {
+                boolean added = shard.addNotification(in.readUTF(), in.readUTF());
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(added);
+                break;
+            }
+            case OP_INBOX: {
+                List<String> inbox = shard.inbox(in.readUTF());
+                out.writeByte(STATUS_OK);
+                PatientSnapshot.writeStrings(out, inbox);
+                break;
+            }
+            case OP_RECORD_APPOINTMENT: {
+                boolean recorded = shard.recordAppointment(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(recorded);
+                break;
+            }
+            case OP_PATIENT_IDS: {
+                Set<String> ids = shard.patientIds();
+                out.writeByte(STATUS_OK);
+                PatientSnapshot.writeStrings(out, new ArrayList<>(ids));
+                break;
+            }
+            case OP_EXPORT: {
+                PatientSnapshot snapshot = shard.exportPatient(in.readUTF());
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(snapshot != null);
+                if (snapshot != null) {
+                    snapshot.writeTo(out);
+                }
+                break;
+            }
+            case OP_IMPORT: {
+                shard.importPatient(PatientSnapshot.readFrom(in));
+                out.writeByte(STATUS_OK);
+                break;
+            }
+            case OP_REMOVE: {
+                shard.removePatient(in.readUTF());
+                out.writeByte(STATUS_OK);
+                break;
+            }
+            case OP_REPLICA_STATUS: {
+                ReplicatedShard replica = replica();
+                out.writeByte(STATUS_OK);
+                out.writeByte(replica.getRole().ordinal());
+                out.writeLong(replica.getAppliedSeq());
+                out.writeLong(replica.getTerm());
+                break;
+            }
+            case OP_REPLICATE: {
+                long term = in.readLong();
+                int n = in.readInt();
+                List<Mutation> batch = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    batch.add(Mutation.readFrom(in));
+                }
+                long applied = replica().applyBatch(term, batch);
+                out.writeByte(STATUS_OK);
+                out.writeLong(applied);
+                break;
+            }
+            case OP_INSTALL_SNAPSHOT: {
+                long term = in.readLong();
+                long seq = in.readLong();
+                int n = in.readInt();
+                List<PatientSnapshot> patients = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    patients.add(PatientSnapshot.readFrom(in));
+                }
+                List<String> requestIds = new ArrayList<>();
+                PatientSnapshot.readStrings(in, requestIds);
+                long applied = replica().installSnapshot(term, seq, patients, requestIds);
+                out.writeByte(STATUS_OK);
+                out.writeLong(applied);
+                break;
+            }
+            case OP_PROMOTE: {
+                long term = in.readLong();
+                int n = in.readInt();
+                List<Integer> ports = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    ports.add(in.readInt());
+                }
+                replica().promote(term, ports);
+                out.writeByte(STATUS_OK);
+                break;
+            }
+            case OP_FOLLOW: {
+                replica().follow(in.readLong());
+                out.writeByte(STATUS_OK);
+                break;
+            }
+            case OP_ENTER_VITALS_ONCE: {
+                String requestId = in.readUTF();
+                String userId = in.readUTF();
+                long timestamp = in.readLong();
+                VitalSign vitals = new VitalSign(in.readInt(), in.readInt(), in.readUTF(), in.readDouble());
+                boolean stored = replica().enterVitals(requestId, userId, timestamp, vitals);
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(stored);
+                break;
+            }
+            default:
+                // The length of an unknown request is unknown too, so the rest of the stream cannot be read in
+                // step any more: answer with the error and drop the connection.
+                out.writeByte(STATUS_ERROR);
+                out.writeUTF("Unknown shard op: " + op);
+                out.flush();
+                throw new IOException("Unknown shard op " + op + ", connection closed");
+        }
+    }
+
+    private ReplicatedShard replica() {
+        if (!(shard instanceof ReplicatedShard)) {
+            throw new IllegalStateException("This node is not a replica");
+        }
+        return (ReplicatedShard) shard;
+    }
+
+    // writeUTF is limited to 64 KB, which a long vitals listing can exceed, so it is sent as raw UTF-8.
+    static void writeNullableLongString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readNullableLongString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (Socket s : connections) {
+            s.close();
+        }
+        if (shard instanceof ReplicatedShard) {
+            ((ReplicatedShard) shard).shutdown();
+        }
+        workers.shutdownNow();
+    }
+
+    // Starts a standalone shard node on the given port and keeps running until the process is killed.
+    // With a second argument (none, one or all) the node is a replica using that acknowledgement mode;
+    // it starts as a follower and waits for a ReplicaGroup to promote it.
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        PatientShard shard = args.length > 1
+                ? new ReplicatedShard(ReplicatedShard.AckMode.valueOf(args[1].toUpperCase()))
+                : new LocalPatientShard();
+        ShardServer server = new ShardServer(shard, port);
+        System.out.println("Shard node listening on 127.0.0.1:" + server.getPort()
+                + (args.length > 1 ? " (replica)" : ""));
+        // The server threads are daemons, so park the main thread to keep the process alive.
+        Thread.currentThread().join();
+    }
+}
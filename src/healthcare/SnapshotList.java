@@ -0,0 +1,194 @@
+package healthcare;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+// SnapshotList is the list used for patient history, inboxes, chat, alerts and appointments: data that is
+// written by ingest and notification threads while dashboards read it.
+//
+// The contents are published as an immutable version (array + size) through a volatile field. Appends are
+// amortized O(1): the element is written into free capacity past the published size and then a new version
+// with size + 1 is published, so readers holding an older version never see it. Only when the array is full
+// is it copied. Any other change (set, remove, insert) copies the array first. Writers are serialized;
+// readers never lock.
+//
+// Iteration always runs over the version current when it started, so a reader can loop over the list while
+// writers keep appending: no ConcurrentModificationException, no half-written entries, no write stalls.
+// snapshot() returns that consistent point-in-time view explicitly, e.g. to read size and elements together.
+final class SnapshotList<E> extends AbstractList<E> implements RandomAccess {
+    private static final Object[] NO_ITEMS = new Object[0];
+
+    // One published state. 'items' may hold more elements than 'size' (written by later appends).
+    private static final class Version {
+        final Object[] items;
+        final int size;
+
+        Version(Object[] items, int size) {
+            this.items = items;
+            this.size = size;
+        }
+    }
+
+    private volatile Version current = new Version(NO_ITEMS, 0);
+
+    SnapshotList() {
+    }
+
+    SnapshotList(Collection<? extends E> initial) {
+        addAll(initial);
+    }
+
+    // Immutable view of the list as it is now; later writes do not show up in it.
+    List<E> snapshot() {
+        return new View<>(current);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Version v = current;
+        Objects.checkIndex(index, v.size);
+        return (E) v.items[index];
+    }
+
+    @Override
+    public int size() {
+        return current.size;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return snapshot().iterator();
+    }
+
+    @Override
+    public synchronized boolean add(E element) {
+        Version v = current;
+        Object[] items = v.items;
+        if (v.size == items.length) {
+            items = Arrays.copyOf(items, Math.max(8, v.size * 2));
+        }
+        items[v.size] = element;
+        current = new Version(items, v.size + 1);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends E> elements) {
+        Object[] added = elements.toArray();
+        if (added.length == 0) {
+            return false;
+        }
+        Version v = current;
+        Object[] items = v.items;
+        int size = v.size + added.length;
+        if (size > items.length) {
+            items = Arrays.copyOf(items, Math.max(size, v.size * 2));
+        }
+        System.arraycopy(added, 0, items, v.size, added.length);
+        current = new Version(items, size);
+        return true;
+    }
+
+    @Override
+    public synchronized void add(int index, E element) {
+        Version v = current;
+        if (index == v.size) {
+            add(element);
+            return;
+        }
+        Objects.checkIndex(index, v.size);
+        Object[] items = new Object[Math.max(8, v.size + 1)];
+        System.arraycopy(v.items, 0, items, 0, index);
+        items[index] = element;
+        System.arraycopy(v.items, index, items, index + 1, v.size - index);
+        current = new Version(items, v.size + 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized E set(int index, E element) {
+        Version v = current;
+        Objects.checkIndex(index, v.size);
+        Object[] items = Arrays.copyOf(v.items, v.items.length);
+        items[index] = element;
+        current = new Version(items, v.size);
+        return (E) v.items[index];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized E remove(int index) {
+        Version v = current;
+        Objects.checkIndex(index, v.size);
+        Object[] items = new Object[v.items.length];
+        System.arraycopy(v.items, 0, items, 0, index);
+        System.arraycopy(v.items, index + 1, items, index, v.size - index - 1);
+        current = new Version(items, v.size - 1);
+        return (E) v.items[index];
+    }
+
+    @Override
+    public synchronized boolean remove(Object element) {
+        int index = snapshot().indexOf(element);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    // Removes every matching element with a single copy, so readers see either all or none of the removals.
+    @Override
+    public synchronized boolean removeIf(Predicate<? super E> filter) {
+        Version v = current;
+        Object[] kept = new Object[v.items.length];
+        int n = 0;
+        for (int i = 0; i < v.size; i++) {
+            @SuppressWarnings("unchecked")
+            E e = (E) v.items[i];
+            if (!filter.test(e)) {
+                kept[n++] = e;
+            }
+        }
+        if (n == v.size) {
+            return false;
+        }
+        current = new Version(kept, n);
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        current = new Version(NO_ITEMS, 0);
+    }
+
+    // Read-only list over one version.
+    private static final class View<E> extends AbstractList<E> implements RandomAccess {
+        private final Object[] items;
+        private final int size;
+
+        View(Version version) {
+            this.items = version.items;
+            this.size = version.size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            Objects.checkIndex(index, size);
+            return (E) items[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package healthcare;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import healthcare.main.SystemLogs;
+
+// SurrogateIds hands out small dense int IDs for names or user IDs, so records such as appointments can
+// store an int instead of a String and compare with ==. IDs start at 0 and are never reused.
+//
+// The table is shared by every record for the life of the process, so it is capped: once 'capacity' keys
+// are interned, new keys get NONE and callers keep the text themselves (as Appointment does). A null key is
+// never interned either. For a case-insensitive table, nameOf returns the first spelling seen for a key;
+// callers that display names must keep other spellings themselves.
+final class SurrogateIds {
+    static final int NONE = -1;
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final boolean ignoreCase;
+    private final int capacity;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private String[] names = new String[64];
+    private int size;
+    private boolean fullLogged;
+
+    // ignoreCase = true makes "Dr Smith" and "dr smith" the same ID (like the equalsIgnoreCase checks it replaces).
+    SurrogateIds(boolean ignoreCase) {
+        this(ignoreCase, DEFAULT_CAPACITY);
+    }
+
+    SurrogateIds(boolean ignoreCase, int capacity) {
+        this.ignoreCase = ignoreCase;
+        this.capacity = capacity;
+    }
+
+    // Returns the ID for the name, assigning a new one the first time it is seen; NONE for null or when the
+    // table is full.
+    int intern(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        Integer id = ids.get(key(name));
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(key(name));
+            if (id != null) {
+                return id;
+            }
+            if (size == capacity) {
+                if (!fullLogged) {
+                    fullLogged = true;
+                    SystemLogs.addLog("Surrogate ID table full at " + capacity + " entries; new names are kept as text");
+                }
+                return NONE;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, Math.min(size * 2, capacity));
+            }
+            names[size] = name;
+            ids.put(key(name), size);
+            return size++;
+        }
+    }
+
+    // Returns the ID for the name, or NONE if it has never been interned.
+    int find(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        Integer id = ids.get(key(name));
+        return id == null ? NONE : id;
+    }
+
+    synchronized String nameOf(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("Unknown id: " + id);
+        }
+        return names[id];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private String key(String name) {
+        return ignoreCase ? name.toLowerCase(Locale.ROOT) : name;
+    }
+}
@@ -0,0 +1,418 @@
+package healthcare;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+// TextIndex is an incremental inverted index over medical history records, doctor feedback and prescriptions.
+// Every indexed text is a document with a dense int ID; each term keeps a positional posting list
+// (documents in ID order, term frequency, and token positions), so term and phrase queries only touch the
+// postings of the query terms, never the texts themselves. Results are ranked with BM25.
+//
+// Query syntax: words separated by spaces must all occur; words in double quotes must occur as a phrase,
+// e.g.  metformin   or   "chest pain" dizziness
+//
+// Documents are never removed; the index holds a reference to each text, not a copy.
+final class TextIndex {
+    enum Source { HISTORY, FEEDBACK, PRESCRIPTION }
+
+    // BM25 parameters (the usual defaults).
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final Source[] SOURCES = Source.values();
+
+    // One search result.
+    static final class Hit {
+        final int docId;
+        final String patientId;
+        final Source source;
+        final String text;
+        final double score;
+
+        Hit(int docId, String patientId, Source source, String text, double score) {
+            this.docId = docId;
+            this.patientId = patientId;
+            this.source = source;
+            this.text = text;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s %s %.2f] %s", patientId, source.name().toLowerCase(), score, text);
+        }
+    }
+
+    // One page of ranked results plus the total number of matching documents.
+    static final class Page {
+        final int total;
+        final int offset;
+        final List<Hit> hits;
+
+        Page(int total, int offset, List<Hit> hits) {
+            this.total = total;
+            this.offset = offset;
+            this.hits = hits;
+        }
+    }
+
+    // Postings of one term: docs[i] holds the term freqs[i] times, at positions[posStart[i] .. posStart[i] + freqs[i]).
+    private static final class Postings {
+        int[] docs = new int[4];
+        int[] freqs = new int[4];
+        int[] posStart = new int[4];
+        int[] positions = new int[4];
+        int docCount;
+        int posCount;
+
+        void add(int doc, int position) {
+            if (docCount == 0 || docs[docCount - 1] != doc) {
+                if (docCount == docs.length) {
+                    int capacity = docCount * 2;
+                    docs = Arrays.copyOf(docs, capacity);
+                    freqs = Arrays.copyOf(freqs, capacity);
+                    posStart = Arrays.copyOf(posStart, capacity);
+                }
+                docs[docCount] = doc;
+                freqs[docCount] = 0;
+                posStart[docCount] = posCount;
+                docCount++;
+            }
+            freqs[docCount - 1]++;
+            if (posCount == positions.length) {
+                positions = Arrays.copyOf(positions, posCount * 2);
+            }
+            positions[posCount++] = position;
+        }
+
+        boolean hasPosition(int index, int position) {
+            int from = posStart[index];
+            return Arrays.binarySearch(positions, from, from + freqs[index], position) >= 0;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Uncapped: every document needs a patient ref, and a full table would leave NONE (-1) in the doc arrays.
+    private final SurrogateIds patients = new SurrogateIds(false, Integer.MAX_VALUE);
+    private final Map<String, Postings> terms = new HashMap<>();
+    private int[] docPatients = new int[1024];
+    private byte[] docSources = new byte[1024];
+    private int[] docLengths = new int[1024];
+    private String[] docTexts = new String[1024];
+    private int docCount;
+    private long totalLength;
+    // Document IDs of each patient in increasing order, indexed by patient ref.
+    private int[][] patientDocs = new int[64][];
+    private int[] patientDocCounts = new int[64];
+
+    // Indexes one text and returns its document ID.
+    int add(String patientId, Source source, String text) {
+        if (patientId == null) {
+            throw new IllegalArgumentException("Indexed text needs a patient ID");
+        }
+        List<String> tokens = tokenize(text);
+        int patientRef = patients.intern(patientId);
+        lock.writeLock().lock();
+        try {
+            int doc = docCount;
+            if (doc == docPatients.length) {
+                int capacity = doc * 2;
+                docPatients = Arrays.copyOf(docPatients, capacity);
+                docSources = Arrays.copyOf(docSources, capacity);
+                docLengths = Arrays.copyOf(docLengths, capacity);
+                docTexts = Arrays.copyOf(docTexts, capacity);
+            }
+            docPatients[doc] = patientRef;
+            docSources[doc] = (byte) source.ordinal();
+            docLengths[doc] = tokens.size();
+            docTexts[doc] = text;
+            addPatientDoc(patientRef, doc);
+            for (int i = 0; i < tokens.size(); i++) {
+                terms.computeIfAbsent(tokens.get(i), t -> new Postings()).add(doc, i);
+            }
+            totalLength += tokens.size();
+            docCount++;
+            return doc;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addPatientDoc(int patientRef, int doc) {
+        if (patientRef >= patientDocs.length) {
+            int capacity = Math.max(patientRef + 1, patientDocs.length * 2);
+            patientDocs = Arrays.copyOf(patientDocs, capacity);
+            patientDocCounts = Arrays.copyOf(patientDocCounts, capacity);
+        }
+        int[] docs = patientDocs[patientRef];
+        int count = patientDocCounts[patientRef];
+        if (docs == null) {
+            docs = new int[4];
+        } else if (count == docs.length) {
+            docs = Arrays.copyOf(docs, count * 2);
+        }
+        docs[count] = doc;
+        patientDocs[patientRef] = docs;
+        patientDocCounts[patientRef] = count + 1;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return docCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Ranked search. patientId and source are optional filters (null = all patients / all sources).
+    // Returns hits offset .. offset + limit of the ranking, best first.
+    Page search(String query, String patientId, Source source, int offset, int limit) {
+        List<String[]> clauses = parseQuery(query);
+        int patientRef = patientId == null ? SurrogateIds.NONE : patients.find(patientId);
+        if (clauses.isEmpty() || (patientId != null && patientRef == SurrogateIds.NONE)) {
+            return new Page(0, offset, Collections.emptyList());
+        }
+        int keep = offset + limit;
+        lock.readLock().lock();
+        try {
+            Matcher matcher = matcher(clauses);
+            if (matcher == null) {
+                return new Page(0, offset, Collections.emptyList());
+            }
+            // Min-heap of the best 'keep' documents; ties broken by newer document first.
+            PriorityQueue<Hit> best = new PriorityQueue<>(Comparator.<Hit>comparingDouble(h -> h.score)
+                    .thenComparingInt(h -> -h.docId));
+            double avgLength = docCount == 0 ? 1 : (double) totalLength / docCount;
+            int[] total = new int[1];
+            matcher.forEachMatch(patientRef, source, doc -> {
+                total[0]++;
+                if (keep == 0) {
+                    return;
+                }
+                double score = matcher.score(doc, avgLength);
+                if (best.size() < keep) {
+                    best.add(hit(doc, score));
+                } else if (score > best.peek().score) {
+                    best.poll();
+                    best.add(hit(doc, score));
+                }
+            });
+            List<Hit> ranked = new ArrayList<>(best);
+            ranked.sort(best.comparator().reversed());
+            List<Hit> page = offset >= ranked.size() ? Collections.emptyList() : ranked.subList(offset, ranked.size());
+            return new Page(total[0], offset, new ArrayList<>(page));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Patients with at least one matching document, e.g. everyone prescribed metformin.
+    Set<String> patientsMatching(String query, Source source) {
+        Set<String> result = new LinkedHashSet<>();
+        List<String[]> clauses = parseQuery(query);
+        if (clauses.isEmpty()) {
+            return result;
+        }
+        lock.readLock().lock();
+        try {
+            Matcher matcher = matcher(clauses);
+            if (matcher != null) {
+                boolean[] seen = new boolean[patients.size()];
+                matcher.forEachMatch(SurrogateIds.NONE, source, doc -> {
+                    if (!seen[docPatients[doc]]) {
+                        seen[docPatients[doc]] = true;
+                        result.add(patients.nameOf(docPatients[doc]));
+                    }
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    // Resolves the query terms to posting lists, or returns null if some term occurs nowhere.
+    // Caller holds the read lock.
+    private Matcher matcher(List<String[]> clauses) {
+        Postings[][] postings = new Postings[clauses.size()][];
+        for (int c = 0; c < clauses.size(); c++) {
+            String[] clause = clauses.get(c);
+            postings[c] = new Postings[clause.length];
+            for (int k = 0; k < clause.length; k++) {
+                postings[c][k] = terms.get(clause[k]);
+                if (postings[c][k] == null) {
+                    return null;
+                }
+            }
+        }
+        return new Matcher(postings);
+    }
+
+    // Evaluates one query. Candidate documents come in increasing order from the shortest list (the rarest
+    // term, or the patient's own documents when filtering by patient); every other posting list keeps a cursor
+    // that only moves forward, found by galloping search, so a match costs O(log gap) per term.
+    private final class Matcher {
+        private final Postings[][] postings;
+        private final int[][] cursors;
+        private final double[][] idf;
+
+        Matcher(Postings[][] postings) {
+            this.postings = postings;
+            this.cursors = new int[postings.length][];
+            this.idf = new double[postings.length][];
+            for (int c = 0; c < postings.length; c++) {
+                cursors[c] = new int[postings[c].length];
+                idf[c] = new double[postings[c].length];
+                for (int k = 0; k < postings[c].length; k++) {
+                    int df = postings[c][k].docCount;
+                    idf[c][k] = Math.log(1 + (docCount - df + 0.5) / (df + 0.5));
+                }
+            }
+        }
+
+        void forEachMatch(int patientRef, Source source, IntConsumer action) {
+            int[] candidates;
+            int count;
+            Postings shortest = postings[0][0];
+            for (Postings[] clause : postings) {
+                for (Postings p : clause) {
+                    if (p.docCount < shortest.docCount) {
+                        shortest = p;
+                    }
+                }
+            }
+            if (patientRef != SurrogateIds.NONE && patientDocCounts[patientRef] < shortest.docCount) {
+                candidates = patientDocs[patientRef];
+                count = patientDocCounts[patientRef];
+            } else {
+                candidates = shortest.docs;
+                count = shortest.docCount;
+            }
+            for (int i = 0; i < count; i++) {
+                int doc = candidates[i];
+                if (patientRef != SurrogateIds.NONE && docPatients[doc] != patientRef) {
+                    continue;
+                }
+                if (source != null && docSources[doc] != source.ordinal()) {
+                    continue;
+                }
+                if (matches(doc)) {
+                    action.accept(doc);
+                }
+            }
+        }
+
+        // Moves every cursor to 'doc' and checks terms and phrases; afterwards the cursors point at the doc.
+        private boolean matches(int doc) {
+            for (int c = 0; c < postings.length; c++) {
+                for (int k = 0; k < postings[c].length; k++) {
+                    Postings p = postings[c][k];
+                    int index = advance(p, cursors[c][k], doc);
+                    cursors[c][k] = index;
+                    if (index >= p.docCount || p.docs[index] != doc) {
+                        return false;
+                    }
+                }
+                if (postings[c].length > 1 && !phraseAt(c)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Phrase: some position p of the first word must be followed by word k at p + k.
+        private boolean phraseAt(int c) {
+            Postings first = postings[c][0];
+            int firstIndex = cursors[c][0];
+            int from = first.posStart[firstIndex];
+            for (int p = from; p < from + first.freqs[firstIndex]; p++) {
+                int start = first.positions[p];
+                boolean found = true;
+                for (int k = 1; k < postings[c].length && found; k++) {
+                    found = postings[c][k].hasPosition(cursors[c][k], start + k);
+                }
+                if (found) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // BM25 summed over every query term; only valid right after matches(doc) returned true.
+        double score(int doc, double avgLength) {
+            double score = 0;
+            double lengthNorm = K1 * (1 - B + B * docLengths[doc] / avgLength);
+            for (int c = 0; c < postings.length; c++) {
+                for (int k = 0; k < postings[c].length; k++) {
+                    int tf = postings[c][k].freqs[cursors[c][k]];
+                    score += idf[c][k] * tf * (K1 + 1) / (tf + lengthNorm);
+                }
+            }
+            return score;
+        }
+    }
+
+    // First index >= from whose document is >= doc (docCount if none): gallop, then binary search.
+    private static int advance(Postings p, int from, int doc) {
+        if (from >= p.docCount || p.docs[from] >= doc) {
+            return from;
+        }
+        int step = 1;
+        int low = from;
+        int high = from + 1;
+        while (high < p.docCount && p.docs[high] < doc) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        int index = Arrays.binarySearch(p.docs, low + 1, Math.min(high + 1, p.docCount), doc);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private Hit hit(int doc, double score) {
+        return new Hit(doc, patients.nameOf(docPatients[doc]), SOURCES[docSources[doc]], docTexts[doc], score);
+    }
+
+    // Splits the query into clauses: each unquoted word is a clause of one term, each quoted part one phrase.
+    static List<String[]> parseQuery(String query) {
+        List<String[]> clauses = new ArrayList<>();
+        String[] parts = query.split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            List<String> tokens = tokenize(parts[i]);
+            if (i % 2 == 1 && !tokens.isEmpty()) {
+                clauses.add(tokens.toArray(new String[0]));
+            } else {
+                for (String token : tokens) {
+                    clauses.add(new String[] {token});
+                }
+            }
+        }
+        return clauses;
+    }
+
+    // Lower-cased runs of letters and digits.
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,486 @@
+package healthcare;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import healthcare.main.Patient;
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalsDatabase;
+
+// Tracing answers "how long from a bad reading to the alert in the doctor's inbox?". A trace starts where a
+// reading enters (Patient.enterVitals, VitalsPipeline.submit) or where an alert is raised by hand (EmergencyAlert,
+// PanicButton), and every hop after it records a span: rule evaluation, NotificationService, the Notifiable
+// channels and main.addNotification.
+//
+// The current span is kept per thread, so hops called on the same thread become its children without passing
+// anything around. Work handed to another thread (pipeline stages, fan-out sends) carries its parent span along
+// and starts its span with child(name, parent). Spans are timed with System.nanoTime() and converted to wall
+// time only on export.
+//
+// Finished spans go into a fixed ring (the newest DEFAULT_CAPACITY are kept for export) and into a latency
+// histogram per span name. Spans marked delivered also add their time since the start of the trace to an
+// end-to-end histogram per kind of trace. Tracing is off by default; when off, every call returns a shared
+// no-op span and costs one volatile read. sampleEvery traces only one new trace in n.
+final class Tracing {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    static final String SERVICE_NAME = "remote-patient-monitoring";
+    private static final int SPANS_PER_EXPORT_LINE = 1000;
+
+    // One timed hop. Closing it ends the span and makes its parent the current span of the thread again.
+    static final class Span implements AutoCloseable {
+        private final Tracing tracer;
+        final long traceIdHigh;
+        final long traceIdLow;
+        final long spanId;
+        final long parentSpanId;
+        final String name;
+        final String rootName;
+        final long traceStartNanos;
+        final long startNanos;
+        final String threadName;
+        private final Span previous;
+        // Set on the no-op span returned inside an unsampled trace.
+        private final Tracing unsampledOf;
+        private long endNanos;
+        private boolean delivered;
+        private String[] attributes;
+        private int attributeCount;
+
+        private Span(Tracing tracer, long traceIdHigh, long traceIdLow, long parentSpanId, String name,
+                     String rootName, long traceStartNanos, long startNanos, Span previous) {
+            this.tracer = tracer;
+            this.traceIdHigh = traceIdHigh;
+            this.traceIdLow = traceIdLow;
+            this.spanId = nonZeroRandom();
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+            this.rootName = rootName;
+            this.traceStartNanos = traceStartNanos;
+            this.startNanos = startNanos;
+            this.threadName = Thread.currentThread().getName();
+            this.previous = previous;
+            this.unsampledOf = null;
+        }
+
+        // A no-op span.
+        private Span(String name, Tracing unsampledOf) {
+            this.tracer = null;
+            this.traceIdHigh = 0;
+            this.traceIdLow = 0;
+            this.spanId = 0;
+            this.parentSpanId = 0;
+            this.name = name;
+            this.rootName = null;
+            this.traceStartNanos = 0;
+            this.startNanos = 0;
+            this.threadName = null;
+            this.previous = null;
+            this.unsampledOf = unsampledOf;
+        }
+
+        boolean isRecording() {
+            return tracer != null;
+        }
+
+        Span attribute(String key, String value) {
+            if (tracer == null) {
+                return this;
+            }
+            if (attributes == null) {
+                attributes = new String[4];
+            } else if (attributeCount == attributes.length) {
+                attributes = Arrays.copyOf(attributes, attributeCount * 2);
+            }
+            attributes[attributeCount++] = key;
+            attributes[attributeCount++] = String.valueOf(value);
+            return this;
+        }
+
+        // Marks the hop where an alert reached its recipient; its end counts as the end of the trace.
+        Span markDelivered() {
+            delivered = true;
+            return this;
+        }
+
+        long durationNanos() {
+            return endNanos - startNanos;
+        }
+
+        @Override
+        public void close() {
+            if (tracer == null) {
+                if (unsampledOf != null) {
+                    unsampledOf.endUnsampled();
+                }
+                return;
+            }
+            if (endNanos != 0) {
+                return;
+            }
+            endNanos = System.nanoTime();
+            tracer.finish(this);
+        }
+    }
+
+    // Log-linear latency histogram: 8 buckets per power of two, so percentiles are within about 6%.
+    private static final class Histogram {
+        private static final int BUCKETS = 16 + 60 * 8;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            counts.incrementAndGet(bucket(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            if (nanos > maxNanos.get()) {
+                maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        static int bucket(long nanos) {
+            if (nanos < 16) {
+                return (int) nanos;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(nanos);
+            return Math.min(BUCKETS - 1, 16 + (exp - 4) * 8 + (int) ((nanos >>> (exp - 3)) & 7));
+        }
+
+        // Middle of the bucket's range.
+        static long value(int bucket) {
+            if (bucket < 16) {
+                return bucket;
+            }
+            int exp = (bucket - 16) / 8 + 4;
+            long low = (8L + (bucket - 16) % 8) << (exp - 3);
+            return low + (1L << (exp - 4));
+        }
+
+        long percentile(double p) {
+            long n = count.sum();
+            long rank = Math.max(1, (long) Math.ceil(n * p));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts.get(b);
+                if (seen >= rank) {
+                    return Math.min(value(b), maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+    }
+
+    // The current span of a thread, and how many unsampled traces it is inside.
+    private static final class Scope {
+        Span current;
+        int unsampled;
+    }
+
+    private static final Span DISABLED = new Span("disabled", null);
+
+    private final int capacity;
+    private final AtomicReferenceArray<Span> ring;
+    private final AtomicLong written = new AtomicLong();
+    private final Map<String, Histogram> stages = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> endToEnd = new ConcurrentHashMap<>();
+    private final ThreadLocal<Scope> scopes = ThreadLocal.withInitial(Scope::new);
+    private final AtomicLong traces = new AtomicLong();
+    private final Span unsampled = new Span("unsampled", this);
+    // Wall clock at nanoAnchor, to turn nanoTime readings into epoch nanoseconds on export.
+    private final long epochAnchorNanos;
+    private final long nanoAnchor;
+    private volatile boolean enabled;
+    private volatile int sampleEvery = 1;
+
+    Tracing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    Tracing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Span capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        ring = new AtomicReferenceArray<>(capacity);
+        epochAnchorNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        nanoAnchor = System.nanoTime();
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    // Turns tracing on (dropping what was recorded before) or off. Traces one in sampleEvery new traces.
+    void setEnabled(boolean on, int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("Sample rate must be at least 1: " + sampleEvery);
+        }
+        if (on && !enabled) {
+            reset();
+        }
+        this.sampleEvery = sampleEvery;
+        enabled = on;
+        SystemLogs.addLog(on ? "Latency tracing on, 1 in " + sampleEvery + " traces" : "Latency tracing off");
+    }
+
+    void reset() {
+        for (int i = 0; i < capacity; i++) {
+            ring.set(i, null);
+        }
+        written.set(0);
+        traces.set(0);
+        stages.clear();
+        endToEnd.clear();
+    }
+
+    // Starts a span under the current span of this thread, or a new trace if there is none.
+    Span start(String name) {
+        if (!enabled) {
+            return DISABLED;
+        }
+        Scope scope = scopes.get();
+        if (scope.unsampled > 0) {
+            scope.unsampled++;
+            return unsampled;
+        }
+        Span parent = scope.current;
+        if (parent != null) {
+            return open(scope, parent, name);
+        }
+        if (traces.getAndIncrement() % sampleEvery != 0) {
+            scope.unsampled++;
+            return unsampled;
+        }
+        long now = System.nanoTime();
+        Span span = new Span(this, nonZeroRandom(), nonZeroRandom(), 0, name, name, now, now, null);
+        scope.current = span;
+        return span;
+    }
+
+    // Starts a span under the current span of this thread; records nothing outside a trace.
+    Span child(String name) {
+        if (!enabled) {
+            return DISABLED;
+        }
+        Scope scope = scopes.get();
+        return scope.current == null || scope.unsampled > 0 ? DISABLED : open(scope, scope.current, name);
+    }
+
+    // Starts a span under a parent handed over from another thread (see current()).
+    Span child(String name, Span parent) {
+        if (!enabled || parent == null || !parent.isRecording()) {
+            return DISABLED;
+        }
+        return open(scopes.get(), parent, name);
+    }
+
+    // The current span of this thread, to hand to work done on another thread; null outside a trace.
+    Span current() {
+        if (!enabled) {
+            return null;
+        }
+        return scopes.get().current;
+    }
+
+    private Span open(Scope scope, Span parent, String name) {
+        Span span = new Span(this, parent.traceIdHigh, parent.traceIdLow, parent.spanId, name, parent.rootName,
+                parent.traceStartNanos, System.nanoTime(), scope.current);
+        scope.current = span;
+        return span;
+    }
+
+    private void finish(Span span) {
+        Scope scope = scopes.get();
+        if (scope.current == span) {
+            scope.current = span.previous;
+        }
+        long n = written.getAndIncrement();
+        ring.set((int) (n & (capacity - 1)), span);
+        stages.computeIfAbsent(span.name, k -> new Histogram()).record(span.durationNanos());
+        if (span.delivered) {
+            endToEnd.computeIfAbsent(span.rootName, k -> new Histogram())
+                    .record(span.endNanos - span.traceStartNanos);
+        }
+    }
+
+    private void endUnsampled() {
+        Scope scope = scopes.get();
+        if (scope.unsampled > 0) {
+            scope.unsampled--;
+        }
+    }
+
+    long spansRecorded() {
+        return written.get();
+    }
+
+    // Per-stage latency breakdown: every span name, then the end-to-end time from the start of a trace to each
+    // delivered alert, by the kind of hop that started the trace.
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Latency tracing %s (1 in %d traces), %d traces, %d spans (%d kept for export)%n",
+                enabled ? "on" : "off", sampleEvery, traces.get(), written.get(),
+                Math.min(written.get(), capacity)));
+        sb.append(String.format("%-36s %9s %10s %10s %10s %10s%n", "Stage (us)", "count", "mean", "p50", "p99",
+                "max"));
+        appendRows(sb, stages);
+        if (!endToEnd.isEmpty()) {
+            sb.append(String.format("%-36s%n", "Trace start to alert delivered (us)"));
+            appendRows(sb, endToEnd);
+        }
+        return sb.toString();
+    }
+
+    private static void appendRows(StringBuilder sb, Map<String, Histogram> histograms) {
+        List<String> names = new ArrayList<>(histograms.keySet());
+        names.sort(null);
+        for (String name : names) {
+            Histogram h = histograms.get(name);
+            long count = h.count.sum();
+            sb.append(String.format("%-36s %9d %10.1f %10.1f %10.1f %10.1f%n", name, count,
+                    h.totalNanos.sum() / 1e3 / Math.max(count, 1), h.percentile(0.50) / 1e3,
+                    h.percentile(0.99) / 1e3, h.maxNanos.get() / 1e3));
+        }
+    }
+
+    // Writes the kept spans as OTLP/JSON, one ExportTraceServiceRequest per line (the layout of the
+    // OpenTelemetry Collector's file exporter, readable by its otlpjsonfile receiver). Returns the span count.
+    int export(Path file) throws IOException {
+        long end = written.get();
+        List<Span> spans = new ArrayList<>();
+        for (long n = Math.max(0, end - capacity); n < end; n++) {
+            Span span = ring.get((int) (n & (capacity - 1)));
+            if (span != null) {
+                spans.add(span);
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            StringBuilder line = new StringBuilder(256 * SPANS_PER_EXPORT_LINE);
+            for (int from = 0; from < spans.size(); from += SPANS_PER_EXPORT_LINE) {
+                line.setLength(0);
+                line.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+                appendAttribute(line, "service.name", SERVICE_NAME);
+                line.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"healthcare.Tracing\"},\"spans\":[");
+                int to = Math.min(spans.size(), from + SPANS_PER_EXPORT_LINE);
+                for (int i = from; i < to; i++) {
+                    if (i > from) {
+                        line.append(',');
+                    }
+                    appendSpan(line, spans.get(i));
+                }
+                line.append("]}]}]}");
+                out.write(line.toString());
+                out.newLine();
+            }
+        }
+        SystemLogs.addLog("Exported " + spans.size() + " trace spans to " + file);
+        return spans.size();
+    }
+
+    private void appendSpan(StringBuilder sb, Span span) {
+        sb.append("{\"traceId\":\"").append(hex(span.traceIdHigh)).append(hex(span.traceIdLow))
+                .append("\",\"spanId\":\"").append(hex(span.spanId)).append('"');
+        if (span.parentSpanId != 0) {
+            sb.append(",\"parentSpanId\":\"").append(hex(span.parentSpanId)).append('"');
+        }
+        sb.append(",\"name\":");
+        LiveFeed.appendJson(sb, span.name);
+        // proto3 JSON writes 64-bit integers as strings. Kind 1 is SPAN_KIND_INTERNAL.
+        sb.append(",\"kind\":1,\"startTimeUnixNano\":\"").append(epochNanos(span.startNanos))
+                .append("\",\"endTimeUnixNano\":\"").append(epochNanos(span.endNanos)).append("\",\"attributes\":[");
+        appendAttribute(sb, "thread.name", span.threadName);
+        for (int i = 0; i < span.attributeCount; i += 2) {
+            sb.append(',');
+            appendAttribute(sb, span.attributes[i], span.attributes[i + 1]);
+        }
+        sb.append("]}");
+    }
+
+    private static void appendAttribute(StringBuilder sb, String key, String value) {
+        sb.append("{\"key\":");
+        LiveFeed.appendJson(sb, key);
+        sb.append(",\"value\":{\"stringValue\":");
+        LiveFeed.appendJson(sb, value);
+        sb.append("}}");
+    }
+
+    private long epochNanos(long nanoTime) {
+        return epochAnchorNanos + (nanoTime - nanoAnchor);
+    }
+
+    private static String hex(long v) {
+        String s = Long.toHexString(v);
+        return "0000000000000000".substring(s.length()) + s;
+    }
+
+    private static long nonZeroRandom() {
+        long v;
+        do {
+            v = ThreadLocalRandom.current().nextLong();
+        } while (v == 0);
+        return v;
+    }
+
+    // Benchmark: java -cp bin healthcare.Tracing [readings] [export file]
+    // Measures the cost of tracing on the device ingest path (off, then on), then traces readings through
+    // VitalsPipeline to a notification channel and prints the per-stage breakdown.
+    public static void main(String[] args) throws Exception {
+        int readings = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path exportFile = args.length > 1 ? Path.of(args[1]) : null;
+        Tracing tracing = main.tracing;
+        Patient[] patients = new Patient[500];
+        for (int i = 0; i < patients.length; i++) {
+            patients[i] = new Patient("P" + i, "P" + i);
+        }
+        // Tracing off, on for 1 in 100 readings, and on for every reading; the first round warms up.
+        int[] sampling = {0, 100, 1};
+        for (int round = 0; round < 2; round++) {
+            for (int sampleEvery : sampling) {
+                tracing.setEnabled(sampleEvery > 0, Math.max(sampleEvery, 1));
+                VitalsDatabase vitalsDb = new VitalsDatabase();
+                long start = System.nanoTime();
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < readings; i++) {
+                    patients[i % patients.length].enterVitals(now + i, 60 + i % 30, 97, VitalsSeries.NO_VALUE,
+                            VitalsSeries.NO_VALUE, Double.NaN, vitalsDb);
+                }
+                long elapsed = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.printf("enterVitals, tracing %-12s %6.0f ns per reading%n",
+                            sampleEvery == 0 ? "off" : "1 in " + sampleEvery, (double) elapsed / readings);
+                }
+            }
+        }
+        tracing.setEnabled(true, 1);
+        Notifiable pager = (recipient, message) -> main.addNotification(recipient, "Pager: " + message);
+        VitalsDatabase vitalsDb = new VitalsDatabase();
+        try (VitalsPipeline pipeline = new VitalsPipeline(vitalsDb, id -> null, List.of(pager))) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 20_000; i++) {
+                int oxygen = i % 50 == 0 ? 85 : 97;
+                pipeline.submit("P" + (i % patients.length) + "," + (now + i) + ",72," + oxygen + ",120/80,36.6");
+            }
+            pipeline.close(1, TimeUnit.MINUTES);
+        }
+        System.out.print(tracing.report());
+        if (exportFile != null) {
+            System.out.println(tracing.export(exportFile) + " spans written to " + exportFile);
+        }
+        tracing.setEnabled(false, 1);
+    }
+}
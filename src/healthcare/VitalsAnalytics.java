@@ -0,0 +1,378 @@
+package healthcare;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+import healthcare.main.Patient;
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalsDatabase;
+
+// VitalsAnalytics runs cohort-level aggregates over every patient's vitals.
+// The patients are split into shards that run as fork/join tasks, and each shard works directly
+// on the columns of VitalsSeries (across all storage tiers) instead of going through retrieveVitals.
+// With a PatientStore, patients on disk are included too: their series are read from their segments in
+// batches, without hydrating the patients, and scanned after the ones in memory.
+class VitalsAnalytics {
+    // Number of patients a leaf task handles before it stops splitting.
+    static final int SHARD_SIZE = 64;
+    // Number of on-disk patients whose series are read into memory at a time.
+    static final int DISK_BATCH = 1024;
+
+    // Histogram layout: heart rate in 10 bpm bins (0-249, last bin catches the rest), SpO2 in 1% bins (0-100).
+    static final int HEART_RATE_BIN_WIDTH = 10;
+    static final int HEART_RATE_BINS = 25;
+    static final int OXYGEN_BINS = 101;
+
+    private static final double MILLIS_PER_HOUR = 3_600_000.0;
+
+    private final VitalsDatabase vitalsDb;
+    private final ForkJoinPool pool;
+
+    VitalsAnalytics(VitalsDatabase vitalsDb) {
+        this(vitalsDb, ForkJoinPool.commonPool());
+    }
+
+    VitalsAnalytics(VitalsDatabase vitalsDb, ForkJoinPool pool) {
+        this.vitalsDb = vitalsDb;
+        this.pool = pool;
+    }
+
+    // Heart rate and SpO2 distributions for each hour of the day (0-23) in the given time zone.
+    HourlyDistribution hourlyDistribution(ZoneId zone) {
+        ZoneRules rules = zone.getRules();
+        return scan(HourlyDistribution::new, (d, view) -> {
+            HourOfDay hours = new HourOfDay(rules);
+            view.scan((row, ts, hr, ox, sys, dia, temp) -> d.add(hours.of(ts), hr, ox));
+        }, HourlyDistribution::addAll);
+    }
+
+    // Local hour of epoch-millis timestamps. The zone offset is looked up again only when a timestamp falls
+    // outside the period between the two transitions (e.g. DST changes) around the last lookup.
+    private static final class HourOfDay {
+        private final ZoneRules rules;
+        private long validFrom = Long.MAX_VALUE;
+        private long validTo = Long.MIN_VALUE;
+        private long offsetMillis;
+
+        HourOfDay(ZoneRules rules) {
+            this.rules = rules;
+        }
+
+        int of(long ts) {
+            if (ts < validFrom || ts >= validTo) {
+                Instant instant = Instant.ofEpochMilli(ts);
+                offsetMillis = rules.getOffset(instant).getTotalSeconds() * 1000L;
+                ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+                ZoneOffsetTransition next = rules.nextTransition(instant);
+                validFrom = previous == null ? Long.MIN_VALUE : previous.toEpochSecond() * 1000L;
+                validTo = next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000L;
+            }
+            return (int) Math.floorMod(Math.floorDiv(ts + offsetMillis, 3_600_000L), 24L);
+        }
+    }
+
+    // Share (0.0 - 1.0) of monitored patients whose latest reading breaches the EmergencyAlert thresholds.
+    double shareOutOfRange() {
+        // counts[0] = patients out of range, counts[1] = patients with at least one reading
+        long[] counts = scan(() -> new long[2], (c, view) -> view.latest((row, ts, hr, ox, sys, dia, temp) -> {
+            if (isOutOfRange(hr, sys, ox)) {
+                c[0]++;
+            }
+            c[1]++;
+        }), (a, b) -> {
+            a[0] += b[0];
+            a[1] += b[1];
+            return a;
+        });
+        return counts[1] == 0 ? 0.0 : (double) counts[0] / counts[1];
+    }
+
+    // Readings taken since 'since' that break their patient's alert thresholds (see BatchRuleEvaluator).
+    OverThresholds readingsOverThresholds(long since) {
+        return scan(OverThresholds::new, (acc, view) -> {
+            long n = view.countOverThresholds(since, Long.MAX_VALUE, vitalsDb.getAlertThresholds(view.getPatientId()),
+                    acc.evaluator);
+            acc.readings += n;
+            acc.patients += n > 0 ? 1 : 0;
+        }, (a, b) -> {
+            a.readings += b.readings;
+            a.patients += b.patients;
+            return a;
+        });
+    }
+
+    // Result of readingsOverThresholds; each shard has its own evaluator, since evaluators keep scratch arrays.
+    static final class OverThresholds {
+        private final BatchRuleEvaluator evaluator = new BatchRuleEvaluator();
+        long readings;
+        long patients;
+    }
+
+    // The k patients deteriorating fastest over the last windowMillis, ranked by SpO2 slope
+    // (steepest drop first) and then by heart rate slope (steepest rise first).
+    List<PatientTrend> topDeteriorating(int k, long windowMillis) {
+        if (k <= 0) {
+            return Collections.emptyList();
+        }
+        long since = System.currentTimeMillis() - windowMillis;
+        // Each shard keeps the k worst in a bounded heap whose head is the "least bad" one kept so far.
+        PriorityQueue<PatientTrend> heap = scan(
+                () -> new PriorityQueue<>(k + 1, PatientTrend.WORST_FIRST.reversed()),
+                (h, view) -> offer(h, trendSince(view, since), k),
+                (a, b) -> {
+                    for (PatientTrend t : b) {
+                        offer(a, t, k);
+                    }
+                    return a;
+                });
+        List<PatientTrend> result = new ArrayList<>(heap);
+        result.sort(PatientTrend.WORST_FIRST);
+        return result;
+    }
+
+    static boolean isOutOfRange(int heartRate, int systolic, int oxygenLevel) {
+        return heartRate > AlertLimits.HEART_RATE_CRITICAL
+                || systolic > AlertLimits.BLOOD_PRESSURE_CRITICAL
+                || oxygenLevel < AlertLimits.OXYGEN_LOW;
+    }
+
+    // Least-squares slopes (per hour) of SpO2 and heart rate over the readings taken at or after 'since'.
+    static PatientTrend trendSince(VitalsSeries.View view, long since) {
+        TrendAccumulator acc = new TrendAccumulator();
+        view.scan(since, Long.MAX_VALUE, acc);
+        return acc.toTrend(view.getPatientId());
+    }
+
+    // Running sums for a least-squares fit; time is measured in hours from the first reading seen.
+    private static final class TrendAccumulator implements VitalsSeries.Visitor {
+        private long n;
+        private long t0;
+        private double sumT, sumTT, sumO, sumTO, sumH, sumTH;
+
+        @Override
+        public void accept(long row, long timestamp, int heartRate, int oxygenLevel, int systolic, int diastolic,
+                double temperature) {
+            if (n == 0) {
+                t0 = timestamp;
+            }
+            double t = (timestamp - t0) / MILLIS_PER_HOUR;
+            sumT += t;
+            sumTT += t * t;
+            sumO += oxygenLevel;
+            sumTO += t * oxygenLevel;
+            sumH += heartRate;
+            sumTH += t * heartRate;
+            n++;
+        }
+
+        PatientTrend toTrend(String patientId) {
+            if (n < 2) {
+                return null;
+            }
+            double denom = n * sumTT - sumT * sumT;
+            if (denom == 0) {
+                return null;
+            }
+            double oxygenSlope = (n * sumTO - sumT * sumO) / denom;
+            double heartRateSlope = (n * sumTH - sumT * sumH) / denom;
+            return new PatientTrend(patientId, oxygenSlope, heartRateSlope);
+        }
+    }
+
+    private static void offer(PriorityQueue<PatientTrend> heap, PatientTrend t, int k) {
+        if (t == null) {
+            return;
+        }
+        heap.add(t);
+        if (heap.size() > k) {
+            heap.poll();
+        }
+    }
+
+    // Runs 'accumulate' over a snapshot of every series in parallel, one accumulator per shard,
+    // and folds the shard results together with 'combine' (which may reuse its first argument).
+    private <R> R scan(Supplier<R> newAccumulator, BiConsumer<R, VitalsSeries.View> accumulate, BinaryOperator<R> combine) {
+        PatientStore store = vitalsDb.getPatientStore();
+        // Taken before the snapshot, so a patient hydrated in between is found in one of the two.
+        List<Patient> onDisk = store == null ? List.of() : store.onDiskPatients();
+        List<VitalsSeries> snapshot = new ArrayList<>(vitalsDb.allSeries());
+        R result = pool.invoke(new ShardTask<>(snapshot, 0, snapshot.size(), newAccumulator, accumulate, combine));
+        if (onDisk.isEmpty()) {
+            return result;
+        }
+        Set<String> scanned = new HashSet<>();
+        for (VitalsSeries series : snapshot) {
+            scanned.add(series.getPatientId());
+        }
+        List<VitalsSeries> batch = new ArrayList<>();
+        for (int i = 0; i < onDisk.size(); i++) {
+            VitalsSeries series = seriesOf(store, onDisk.get(i), scanned);
+            if (series != null && series.size() > 0) {
+                batch.add(series);
+            }
+            if (batch.size() == DISK_BATCH || (i == onDisk.size() - 1 && !batch.isEmpty())) {
+                R part = pool.invoke(new ShardTask<>(batch, 0, batch.size(), newAccumulator, accumulate, combine));
+                result = combine.apply(result, part);
+                batch = new ArrayList<>();
+            }
+        }
+        return result;
+    }
+
+    // The series of a patient that was on disk when the scan started: read from their segment, or the one in
+    // memory if they were hydrated since (unless the in-memory snapshot already had it). Null if unreadable.
+    private VitalsSeries seriesOf(PatientStore store, Patient p, Set<String> scanned) {
+        try {
+            PatientSnapshot s = store.readIfOnDisk(p);
+            if (s != null) {
+                return vitalsDb.readSeries(p.getUserId(), s.vitalTimestamps, s.vitals);
+            }
+        } catch (IOException e) {
+            SystemLogs.addLog("Population analytics skipped patient " + p.getUserId() + ": " + e.getMessage());
+            return null;
+        }
+        return scanned.contains(p.getUserId()) ? null : vitalsDb.getSeries(p.getUserId());
+    }
+
+    // Fork/join task over a range of patients; splits in half until a range fits in one shard.
+    // Fork/join tasks are Serializable only by inheritance; they are never serialized, hence transient fields.
+    private static final class ShardTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+        private final transient List<VitalsSeries> series;
+        private final int from;
+        private final int to;
+        private final transient Supplier<R> newAccumulator;
+        private final transient BiConsumer<R, VitalsSeries.View> accumulate;
+        private final transient BinaryOperator<R> combine;
+
+        ShardTask(List<VitalsSeries> series, int from, int to, Supplier<R> newAccumulator,
+                BiConsumer<R, VitalsSeries.View> accumulate, BinaryOperator<R> combine) {
+            this.series = series;
+            this.from = from;
+            this.to = to;
+            this.newAccumulator = newAccumulator;
+            this.accumulate = accumulate;
+            this.combine = combine;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from <= SHARD_SIZE) {
+                R acc = newAccumulator.get();
+                for (int i = from; i < to; i++) {
+                    accumulate.accept(acc, series.get(i).view());
+                }
+                return acc;
+            }
+            int mid = (from + to) >>> 1;
+            ShardTask<R> left = new ShardTask<>(series, from, mid, newAccumulator, accumulate, combine);
+            ShardTask<R> right = new ShardTask<>(series, mid, to, newAccumulator, accumulate, combine);
+            left.fork();
+            R rightResult = right.compute();
+            return combine.apply(left.join(), rightResult);
+        }
+    }
+
+    // Per-hour histograms of heart rate and SpO2.
+    static final class HourlyDistribution {
+        final long[][] heartRate = new long[24][HEART_RATE_BINS];
+        final long[][] oxygen = new long[24][OXYGEN_BINS];
+
+        void add(int hour, int heartRate, int oxygenLevel) {
+            int hrBin = Math.min(Math.max(heartRate, 0) / HEART_RATE_BIN_WIDTH, HEART_RATE_BINS - 1);
+            int oxBin = Math.min(Math.max(oxygenLevel, 0), OXYGEN_BINS - 1);
+            this.heartRate[hour][hrBin]++;
+            this.oxygen[hour][oxBin]++;
+        }
+
+        // Adds the counts of 'other' into this distribution and returns it.
+        HourlyDistribution addAll(HourlyDistribution other) {
+            for (int h = 0; h < 24; h++) {
+                for (int i = 0; i < HEART_RATE_BINS; i++) {
+                    heartRate[h][i] += other.heartRate[h][i];
+                }
+                for (int i = 0; i < OXYGEN_BINS; i++) {
+                    oxygen[h][i] += other.oxygen[h][i];
+                }
+            }
+            return this;
+        }
+
+        long readings(int hour) {
+            long total = 0;
+            for (long c : heartRate[hour]) {
+                total += c;
+            }
+            return total;
+        }
+
+        // Approximate median heart rate for an hour (lower edge of the median bin), or -1 if empty.
+        int medianHeartRate(int hour) {
+            int bin = medianBin(heartRate[hour]);
+            return bin < 0 ? -1 : bin * HEART_RATE_BIN_WIDTH;
+        }
+
+        // Median SpO2 for an hour, or -1 if empty.
+        int medianOxygen(int hour) {
+            return medianBin(oxygen[hour]);
+        }
+
+        private static int medianBin(long[] bins) {
+            long total = 0;
+            for (long c : bins) {
+                total += c;
+            }
+            if (total == 0) {
+                return -1;
+            }
+            long half = (total + 1) / 2;
+            long running = 0;
+            for (int i = 0; i < bins.length; i++) {
+                running += bins[i];
+                if (running >= half) {
+                    return i;
+                }
+            }
+            return bins.length - 1;
+        }
+    }
+
+    // Trend of one patient: slopes are in units per hour.
+    static final class PatientTrend {
+        static final Comparator<PatientTrend> WORST_FIRST = Comparator
+                .comparingDouble((PatientTrend t) -> t.oxygenSlopePerHour)
+                .thenComparing(Comparator.comparingDouble((PatientTrend t) -> t.heartRateSlopePerHour).reversed())
+                .thenComparing(t -> t.patientId);
+
+        final String patientId;
+        final double oxygenSlopePerHour;
+        final double heartRateSlopePerHour;
+
+        PatientTrend(String patientId, double oxygenSlopePerHour, double heartRateSlopePerHour) {
+            this.patientId = patientId;
+            this.oxygenSlopePerHour = oxygenSlopePerHour;
+            this.heartRateSlopePerHour = heartRateSlopePerHour;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Patient %s: SpO2 %+.2f %%/h, Heart Rate %+.2f bpm/h",
+                    patientId, oxygenSlopePerHour, heartRateSlopePerHour);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package healthcare;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import healthcare.main.Patient;
+import healthcare.main.SystemLogs;
+import healthcare.main.VitalSign;
+import healthcare.main.VitalsDatabase;
+
+// VitalsPipeline is the streaming ingest path for device readings, built on java.util.concurrent.Flow:
+//
+//   source -> decode -> store -> rules -> notify (one stage per channel)
+//
+// Every stage has bounded buffers and only requests as many items from upstream as it has room for,
+// so a slow stage pushes back all the way to submit() instead of growing memory. Work inside a stage is
+// split over lanes by patient ID, so readings of one patient are always handled in order.
+// Nothing is dropped on the way, critical alerts included: each notification channel has its own stage and
+// buffer, so a slow channel only holds up ingest once its own buffer is full, and then slows it down to the
+// pace of that channel. Every alert is written to the patient's inbox by the rules stage; only critical ones
+// go on to the channels.
+//
+// The application itself does not use this pipeline: wearables stream through DeviceGateway and
+// AdmissionControl into VitalsDatabase.ingestVitals. VitalsPipeline is a standalone ingest component for
+// line-based device feeds, exercised by its own main and by the Tracing benchmark.
+class VitalsPipeline implements AutoCloseable {
+    static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    // A raw device line and the trace it was submitted in.
+    static final class Line {
+        final String text;
+        final Tracing.Span trace;
+
+        Line(String text, Tracing.Span trace) {
+            this.text = text;
+            this.trace = trace;
+        }
+    }
+
+    // A decoded reading travelling through the pipeline.
+    static final class Reading {
+        final String userId;
+        final long timestamp;
+        final VitalSign vitals;
+        // Parent of the reading's stage spans, set where the reading enters the pipeline; null when not traced.
+        Tracing.Span trace;
+
+        Reading(String userId, long timestamp, VitalSign vitals) {
+            this.userId = userId;
+            this.timestamp = timestamp;
+            this.vitals = vitals;
+        }
+    }
+
+    // An alert raised by the rules stage for a reading outside the EmergencyAlert thresholds.
+    static final class Alert {
+        final String userId;
+        final long timestamp;
+        final boolean critical;
+        final String message;
+        // The rules span that raised the alert, parent of the notification spans.
+        Tracing.Span trace;
+
+        Alert(String userId, long timestamp, boolean critical, String message) {
+            this.userId = userId;
+            this.timestamp = timestamp;
+            this.critical = critical;
+            this.message = message;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "vitals-pipeline");
+        t.setDaemon(true);
+        return t;
+    });
+    private final SubmissionPublisher<Line> source;
+    private final Stage<Line, Reading> decode;
+    private final Stage<Reading, Reading> store;
+    private final Stage<Reading, Alert> rules;
+    private final List<Stage<Alert, Alert>> notify = new ArrayList<>();
+
+    VitalsPipeline(VitalsDatabase vitalsDb, Function<String, Patient> patients, List<Notifiable> channels) {
+        this(vitalsDb, patients, channels, DEFAULT_BUFFER_SIZE, 1, 4, 2, 1);
+    }
+
+    // The parallelism arguments are the number of lanes (worker threads) of each stage;
+    // notifyParallelism applies to every channel separately.
+    VitalsPipeline(VitalsDatabase vitalsDb, Function<String, Patient> patients, List<Notifiable> channels,
+                   int bufferSize, int decodeParallelism, int storeParallelism, int ruleParallelism,
+                   int notifyParallelism) {
+        source = new SubmissionPublisher<>(executor, bufferSize);
+        // Keyed like the later stages, so all lines of a patient are decoded in order by one lane.
+        decode = new Stage<>("decode", decodeParallelism, bufferSize, line -> patientKey(line.text), line -> {
+            try (Tracing.Span span = main.tracing.child("VitalsPipeline.decode", line.trace)) {
+                Reading r = decode(line.text);
+                span.attribute("patient.id", r.userId);
+                r.trace = line.trace;
+                return r;
+            }
+        });
+        store = new Stage<>("store", storeParallelism, bufferSize, r -> r.userId.hashCode(), r -> {
+            try (Tracing.Span span = main.tracing.child("VitalsPipeline.store", r.trace)) {
+                span.attribute("patient.id", r.userId);
+                vitalsDb.storeVitals(r.userId, r.vitals, r.timestamp);
+                Patient patient = patients.apply(r.userId);
+                if (patient != null) {
+                    patient.pin();
+                    try {
+                        patient.getMedicalHistory().addRecord("Vitals recorded: " + r.vitals);
+                    } finally {
+                        patient.unpin();
+                    }
+                }
+                return r;
+            }
+        });
+        rules = new Stage<>("rules", ruleParallelism, bufferSize, r -> r.userId.hashCode(), r -> {
+            try (Tracing.Span span = main.tracing.child("VitalsPipeline.rules", r.trace)) {
+                Alert alert = evaluate(r);
+                if (alert == null || !alert.critical) {
+                    // Warnings end in the patient's inbox.
+                    return null;
+                }
+                alert.trace = span;
+                return alert;
+            }
+        });
+        source.subscribe(decode);
+        decode.subscribe(store);
+        store.subscribe(rules);
+        for (Notifiable channel : channels) {
+            // Lambdas have no readable class name, so those channels are numbered instead.
+            String name = channel.getClass().isHidden() ? "notify-" + (notify.size() + 1)
+                    : channel.getClass().getSimpleName();
+            Stage<Alert, Alert> stage = new Stage<>(name, notifyParallelism, bufferSize, a -> a.userId.hashCode(),
+                    a -> {
+                        try (Tracing.Span span = main.tracing.child("VitalsPipeline.notify " + name, a.trace)) {
+                            span.attribute("patient.id", a.userId);
+                            channel.sendNotification(a.userId, a.message);
+                        }
+                        return null;
+                    });
+            rules.subscribe(stage);
+            notify.add(stage);
+        }
+    }
+
+    // Submits a raw device line "userId,timestampMillis,heartRate,oxygenLevel,bloodPressure,temperature".
+    // Blocks while the pipeline is full.
+    // The trace of the reading starts here, so its time in the stage buffers counts towards alert latency.
+    void submit(String deviceLine) {
+        try (Tracing.Span span = main.tracing.start("VitalsPipeline.submit")) {
+            source.submit(new Line(deviceLine, span));
+        }
+    }
+
+    // Submits an already decoded reading; it skips the decode stage. Blocks while the pipeline is full.
+    void submit(String userId, long timestamp, VitalSign vitals) {
+        try (Tracing.Span span = main.tracing.start("VitalsPipeline.submit")) {
+            Reading reading = new Reading(userId, timestamp, vitals);
+            reading.trace = span;
+            decode.submit(reading);
+        }
+    }
+
+    // Parses a device line; malformed lines are rejected with an exception and counted by the stage.
+    static Reading decode(String line) {
+        String[] parts = line.split(",");
+        if (parts.length != 6) {
+            throw new IllegalArgumentException("Expected 6 fields but got " + parts.length + ": " + line);
+        }
+        VitalSign vitals = new VitalSign(Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()),
+                parts[4].trim(), Double.parseDouble(parts[5].trim()));
+        return new Reading(parts[0].trim(), Long.parseLong(parts[1].trim()), vitals);
+    }
+
+    // Hash of the patient ID of a raw device line, equal to the hash of the userId decode() reads from it.
+    static int patientKey(String line) {
+        int comma = line.indexOf(',');
+        return (comma < 0 ? line : line.substring(0, comma)).trim().hashCode();
+    }
+
+    // Applies the EmergencyAlert thresholds. Out-of-range readings are written to the patient's inbox right
+    // away and passed on to the notification channels; normal readings end here.
+    static Alert evaluate(Reading r) {
+        VitalSign v = r.vitals;
+        int systolic = VitalsSeries.parseSystolic(v.getBloodPressure());
+        Alert alert;
+        if (VitalsAnalytics.isOutOfRange(v.getHeartRate(), systolic, v.getOxygenLevel())) {
+            alert = new Alert(r.userId, r.timestamp, true, "Immediate attention needed. Abnormal vitals: " + v);
+        } else if (v.getHeartRate() > AlertLimits.HEART_RATE_WARNING) {
+            alert = new Alert(r.userId, r.timestamp, false, "Increased heart rate detected: " + v);
+        } else {
+            return null;
+        }
+        main.addNotification(r.userId, (alert.critical ? "Emergency Alert: " : "Warning: ") + alert.message);
+        return alert;
+    }
+
+    // One line per stage: items processed and failed, plus the current backlog.
+    List<String> stats() {
+        List<String> lines = new ArrayList<>();
+        lines.add(decode.stats());
+        lines.add(store.stats());
+        lines.add(rules.stats());
+        for (Stage<Alert, Alert> stage : notify) {
+            lines.add(stage.stats());
+        }
+        return lines;
+    }
+
+    // Stops accepting readings, waits until everything already submitted has passed every stage
+    // (or the timeout expires) and shuts the workers down.
+    boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        source.close();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained = true;
+        for (Stage<?, ?> stage : stagesInOrder()) {
+            try {
+                stage.completion.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                drained = false;
+            }
+        }
+        executor.shutdownNow();
+        return drained;
+    }
+
+    @Override
+    public void close() {
+        try {
+            close(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<Stage<?, ?>> stagesInOrder() {
+        List<Stage<?, ?>> stages = new ArrayList<>(List.of(decode, store, rules));
+        stages.addAll(notify);
+        return stages;
+    }
+
+    // A pipeline stage: subscribes to the upstream publisher, hands each item to one of its lanes and
+    // publishes the results (null results are filtered out). Each lane is a SubmissionPublisher with a single
+    // subscriber, so it has its own bounded buffer and processes items one at a time.
+    private final class Stage<I, O> extends SubmissionPublisher<O> implements Flow.Processor<I, O> {
+        private final String name;
+        private final int bufferSize;
+        private final ToIntFunction<I> laneKey;
+        private final Function<I, O> work;
+        private final List<SubmissionPublisher<I>> lanes = new ArrayList<>();
+        private final AtomicInteger openLanes;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+        private Flow.Subscription upstream;
+
+        Stage(String name, int parallelism, int bufferSize, ToIntFunction<I> laneKey, Function<I, O> work) {
+            super(executor, bufferSize);
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("Stage " + name + " needs at least one lane");
+            }
+            this.name = name;
+            this.bufferSize = bufferSize;
+            this.laneKey = laneKey;
+            this.work = work;
+            this.openLanes = new AtomicInteger(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                SubmissionPublisher<I> lane = new SubmissionPublisher<>(executor, bufferSize);
+                lane.subscribe(new LaneWorker());
+                lanes.add(lane);
+            }
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            upstream = subscription;
+            subscription.request(bufferSize);
+        }
+
+        @Override
+        public void onNext(I item) {
+            SubmissionPublisher<I> lane = lanes.get(Math.floorMod(laneKey.applyAsInt(item), lanes.size()));
+            // Blocks while the lane is full, which stops requesting from upstream.
+            lane.submit(item);
+            upstream.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            SystemLogs.addLog("Vitals pipeline stage " + name + " stopped: " + throwable);
+            for (SubmissionPublisher<I> lane : lanes) {
+                lane.closeExceptionally(throwable);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            for (SubmissionPublisher<I> lane : lanes) {
+                lane.close();
+            }
+        }
+
+        String stats() {
+            long backlog = 0;
+            for (SubmissionPublisher<I> lane : lanes) {
+                backlog += lane.estimateMaximumLag();
+            }
+            return String.format("%-18s lanes=%d processed=%d failed=%d backlog=%d",
+                    name, lanes.size(), processed.get(), failed.get(), backlog);
+        }
+
+        private void laneFinished(Throwable error) {
+            if (openLanes.decrementAndGet() == 0) {
+                if (error == null) {
+                    close();
+                    completion.complete(null);
+                } else {
+                    closeExceptionally(error);
+                    completion.completeExceptionally(error);
+                }
+            }
+        }
+
+        // Processes the items of one lane in order, asking for the next item only when done with the last.
+        private final class LaneWorker implements Flow.Subscriber<I> {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(I item) {
+                try {
+                    O result = work.apply(item);
+                    processed.incrementAndGet();
+                    if (result != null) {
+                        // Blocks while a downstream buffer is full.
+                        submit(result);
+                    }
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    SystemLogs.addLog("Vitals pipeline stage " + name + " rejected an item: " + e.getMessage());
+                }
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                laneFinished(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                laneFinished(null);
+            }
+        }
+    }
+
+    // Streams 50,000 device lines for 500 patients through the pipeline with a fast and a deliberately slow
+    // notification channel, then checks that every reading was stored and every critical alert reached both.
+    public static void main(String[] args) throws Exception {
+        VitalsDatabase vitalsDb = new VitalsDatabase();
+        AtomicLong fastDelivered = new AtomicLong();
+        AtomicLong slowDelivered = new AtomicLong();
+        Notifiable fast = (recipient, message) -> fastDelivered.incrementAndGet();
+        Notifiable slow = (recipient, message) -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            slowDelivered.incrementAndGet();
+        };
+        int patients = 500;
+        int readings = 50_000;
+        long critical = 0;
+        long start = System.nanoTime();
+        try (VitalsPipeline pipeline = new VitalsPipeline(vitalsDb, id -> null, List.of(fast, slow),
+                256, 1, 4, 2, 1)) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < readings; i++) {
+                int hr = i % 97 == 0 ? 135 : 60 + i % 30;
+                if (hr == 135) {
+                    critical++;
+                }
+                pipeline.submit("P" + (i % patients) + "," + (now + i) + "," + hr + ",97,120/80,36.6");
+            }
+            pipeline.close(1, TimeUnit.MINUTES);
+            pipeline.stats().forEach(System.out::println);
+        }
+        long stored = 0;
+        for (VitalsSeries series : vitalsDb.allSeries()) {
+            stored += series.size();
+        }
+        System.out.println("Submitted " + readings + ", stored " + stored + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms; alerts delivered fast=" + fastDelivered.get()
+                + " slow=" + slowDelivered.get() + " of " + critical + " ("
+                + (fastDelivered.get() == critical && slowDelivered.get() == critical ? "none lost" : "LOST ALERTS")
+                + ")");
+    }
+}
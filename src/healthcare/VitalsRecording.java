@@ -0,0 +1,358 @@
+package healthcare;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import healthcare.main.Patient;
+import healthcare.main.VitalsDatabase;
+
+// VitalsRecording captures the vitals stream a VitalsDatabase ingests into a compact binary file, and replays
+// such a file, to check rule and threshold changes (EmergencyAlert, per-patient thresholds, AnomalyDetector)
+// and performance changes to VitalsDatabase against real traffic.
+//
+// File layout (big endian): int MAGIC, short VERSION, long recording start (epoch millis), then entries:
+//   0x00                  new patient: UTF patient ID; patients are numbered in order of appearance
+//   0x80 | flags          reading: varint patient number, varint microseconds since the previous entry
+//                         (arrival time), zigzag varint timestamp minus the patient's previous timestamp,
+//                         varint heart rate, varint SpO2, then varint systolic (HAS_SYSTOLIC), varint diastolic
+//                         (HAS_DIASTOLIC), zigzag varint temperature in 1/100 degrees (TEMPERATURE_CENTI) or a
+//                         double (TEMPERATURE_RAW)
+// A typical reading takes about 12 bytes. A file cut short by a crash replays up to its last whole entry.
+//
+// Replay is single-threaded and in file order, so its output only depends on the file and the rules. Readings
+// go through Patient.enterVitals into a scratch VitalsDatabase, which does not feed the application's anomaly
+// detector, change feed or live feed. Alerts are computed by the replay's own threshold check and
+// AnomalyDetector, and stamped with the virtual clock (the reading timestamps), never the wall clock.
+// Two runs over the same file therefore give identical alert logs, which can be diffed line by line.
+final class VitalsRecording {
+    static final int MAGIC = 0x52504D56;
+    static final short VERSION = 1;
+    private static final int NEW_PATIENT = 0x00;
+    private static final int READING = 0x80;
+    private static final int HAS_SYSTOLIC = 1;
+    private static final int HAS_DIASTOLIC = 2;
+    private static final int TEMPERATURE_CENTI = 4;
+    private static final int TEMPERATURE_RAW = 8;
+
+    private VitalsRecording() {
+    }
+
+    // Appends readings to a recording file. Thread-safe; VitalsDatabase calls it for every reading it stores.
+    static final class Recorder implements Closeable {
+        private final DataOutputStream out;
+        private final Map<String, Integer> patients = new HashMap<>();
+        private long[] lastTimestamps = new long[64];
+        private long lastNanos = System.nanoTime();
+        private long readings;
+        private boolean closed;
+
+        Recorder(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(System.currentTimeMillis());
+        }
+
+        // Missing values: VitalsSeries.NO_VALUE for systolic/diastolic, NaN for the temperature.
+        // After close() the reading is ignored: a writer can still hold a recorder that was just replaced.
+        synchronized void record(String patientId, long timestamp, int heartRate, int oxygenLevel, int systolic,
+                                 int diastolic, double temperature) throws IOException {
+            if (closed) {
+                return;
+            }
+            Integer index = patients.get(patientId);
+            if (index == null) {
+                index = patients.size();
+                patients.put(patientId, index);
+                if (index == lastTimestamps.length) {
+                    lastTimestamps = Arrays.copyOf(lastTimestamps, index * 2);
+                }
+                out.writeByte(NEW_PATIENT);
+                out.writeUTF(patientId);
+            }
+            int flags = 0;
+            if (systolic != VitalsSeries.NO_VALUE) {
+                flags |= HAS_SYSTOLIC;
+            }
+            if (diastolic != VitalsSeries.NO_VALUE) {
+                flags |= HAS_DIASTOLIC;
+            }
+            long centi = Math.round(temperature * 100);
+            if (!Double.isNaN(temperature)) {
+                flags |= centi / 100.0 == temperature ? TEMPERATURE_CENTI : TEMPERATURE_RAW;
+            }
+            long now = System.nanoTime();
+            out.writeByte(READING | flags);
+            writeVarLong(out, index);
+            writeVarLong(out, (now - lastNanos) / 1000);
+            writeVarLong(out, zigzag(timestamp - lastTimestamps[index]));
+            writeVarLong(out, heartRate & 0xFFFFFFFFL);
+            writeVarLong(out, oxygenLevel & 0xFFFFFFFFL);
+            if ((flags & HAS_SYSTOLIC) != 0) {
+                writeVarLong(out, zigzag(systolic));
+            }
+            if ((flags & HAS_DIASTOLIC) != 0) {
+                writeVarLong(out, zigzag(diastolic));
+            }
+            if ((flags & TEMPERATURE_CENTI) != 0) {
+                writeVarLong(out, zigzag(centi));
+            } else if ((flags & TEMPERATURE_RAW) != 0) {
+                out.writeDouble(temperature);
+            }
+            // Arrival times are kept per entry, so rounding to microseconds does not add up.
+            lastNanos += (now - lastNanos) / 1000 * 1000;
+            lastTimestamps[index] = timestamp;
+            readings++;
+        }
+
+        synchronized long readings() {
+            return readings;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            out.close();
+        }
+    }
+
+    // Outcome of a replay. alerts holds one line per alert, in order.
+    static final class Report {
+        long readings;
+        int patients;
+        long thresholdAlerts;
+        long trendAlerts;
+        long firstTimestamp = Long.MAX_VALUE;
+        long lastTimestamp = Long.MIN_VALUE;
+        long wallNanos;
+        boolean truncated;
+        final List<String> alerts = new ArrayList<>();
+
+        // Fingerprint of the alert log: equal digests mean identical alerts.
+        String digest() {
+            try {
+                MessageDigest sha = MessageDigest.getInstance("SHA-256");
+                for (String line : alerts) {
+                    sha.update(line.getBytes(StandardCharsets.UTF_8));
+                    sha.update((byte) '\n');
+                }
+                return HexFormat.of().formatHex(sha.digest(), 0, 8);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            double seconds = wallNanos / 1e9;
+            double virtualHours = readings == 0 ? 0 : (lastTimestamp - firstTimestamp) / 3_600_000.0;
+            return String.format("%d readings of %d patients (%.1f h of virtual time%s) in %.2f s, %.0f readings/s%n"
+                            + "%d threshold alerts, %d trend alerts, alert digest %s", readings, patients,
+                    virtualHours, truncated ? ", file cut short" : "", seconds, readings / Math.max(seconds, 1e-9),
+                    thresholdAlerts, trendAlerts, digest());
+        }
+    }
+
+    // Replays a recording. speed 0 replays as fast as possible; otherwise arrivals are spaced like the
+    // recording, divided by speed (1 = real time). thresholds is the rule under test.
+    static Report replay(Path file, double speed, BatchRuleEvaluator.Thresholds thresholds) throws IOException {
+        Report report = new Report();
+        VitalsDatabase vitalsDb = VitalsDatabase.scratch();
+        List<Patient> patients = new ArrayList<>();
+        long[] lastTimestamps = new long[64];
+        AnomalyDetector detector = new AnomalyDetector(change -> {
+            report.trendAlerts++;
+            report.alerts.add(change.timestamp + " " + change.patientId + " TREND " + change);
+        });
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a vitals recording");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported recording version " + version);
+            }
+            in.readLong();
+            long start = System.nanoTime();
+            long arrivalMicros = 0;
+            while (true) {
+                int tag = in.read();
+                if (tag < 0) {
+                    break;
+                }
+                try {
+                    if (tag == NEW_PATIENT) {
+                        String id = in.readUTF();
+                        patients.add(new Patient(id, id));
+                        if (patients.size() > lastTimestamps.length) {
+                            lastTimestamps = Arrays.copyOf(lastTimestamps, patients.size() * 2);
+                        }
+                        continue;
+                    }
+                    if ((tag & READING) == 0) {
+                        throw new IOException("Corrupt recording: unknown entry " + tag);
+                    }
+                    int index = (int) readVarLong(in);
+                    arrivalMicros += readVarLong(in);
+                    long timestamp = lastTimestamps[index] + unzigzag(readVarLong(in));
+                    int heartRate = (int) readVarLong(in);
+                    int oxygenLevel = (int) readVarLong(in);
+                    int systolic = (tag & HAS_SYSTOLIC) != 0 ? (int) unzigzag(readVarLong(in)) : VitalsSeries.NO_VALUE;
+                    int diastolic = (tag & HAS_DIASTOLIC) != 0 ? (int) unzigzag(readVarLong(in))
+                            : VitalsSeries.NO_VALUE;
+                    double temperature = (tag & TEMPERATURE_CENTI) != 0 ? unzigzag(readVarLong(in)) / 100.0
+                            : (tag & TEMPERATURE_RAW) != 0 ? in.readDouble() : Double.NaN;
+                    lastTimestamps[index] = timestamp;
+                    if (speed > 0) {
+                        waitUntil(start + (long) (arrivalMicros * 1000 / speed));
+                    }
+                    Patient patient = patients.get(index);
+                    patient.enterVitals(timestamp, heartRate, oxygenLevel, systolic, diastolic, temperature, vitalsDb);
+                    if (thresholds.isBrokenBy(heartRate, oxygenLevel, systolic)) {
+                        report.thresholdAlerts++;
+                        report.alerts.add(timestamp + " " + patient.getUserId() + " THRESHOLD heart rate " + heartRate
+                                + ", SpO2 " + oxygenLevel + ", systolic " + systolic);
+                    }
+                    detector.update(patient.getUserId(), timestamp, heartRate, oxygenLevel, systolic, diastolic,
+                            temperature);
+                    report.readings++;
+                    report.firstTimestamp = Math.min(report.firstTimestamp, timestamp);
+                    report.lastTimestamp = Math.max(report.lastTimestamp, timestamp);
+                } catch (EOFException e) {
+                    report.truncated = true;
+                    break;
+                }
+            }
+            report.wallNanos = System.nanoTime() - start;
+        }
+        report.patients = patients.size();
+        return report;
+    }
+
+    private static void waitUntil(long nanoTime) {
+        long wait = nanoTime - System.nanoTime();
+        if (wait > 1_000_000) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long z) {
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    private static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Corrupt recording: varint too long");
+    }
+
+    // Tool and benchmark:
+    //   java -cp bin healthcare.VitalsRecording generate <file> [patients] [hours]
+    //       writes a synthetic recording (one reading per patient per minute, some patients deteriorating)
+    //   java -cp bin healthcare.VitalsRecording replay <file> [speed|max] [hr,spo2,systolic|default] [alerts file]
+    //       replays a recording with the given thresholds (default: EmergencyAlert's) and prints the report;
+    //       the alert log can be written out to diff two runs
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: VitalsRecording generate <file> [patients] [hours]");
+            System.out.println("       VitalsRecording replay <file> [speed|max] [hr,spo2,systolic|default]"
+                    + " [alerts file]");
+            return;
+        }
+        Path file = Path.of(args[1]);
+        if (args[0].equals("generate")) {
+            int patientCount = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+            int hours = args.length > 3 ? Integer.parseInt(args[3]) : 24;
+            long readings = generate(file, patientCount, hours);
+            System.out.printf("%d readings written to %s (%.1f bytes per reading)%n", readings, file,
+                    (double) Files.size(file) / readings);
+            return;
+        }
+        double speed = args.length > 2 && !args[2].equals("max") ? Double.parseDouble(args[2]) : 0;
+        BatchRuleEvaluator.Thresholds thresholds = BatchRuleEvaluator.Thresholds.DEFAULT;
+        if (args.length > 3 && !args[3].isBlank() && !args[3].equals("default")) {
+            String[] t = args[3].split(",");
+            thresholds = new BatchRuleEvaluator.Thresholds(Integer.parseInt(t[0].trim()), Integer.parseInt(t[1].trim()),
+                    Integer.parseInt(t[2].trim()));
+        }
+        Report report = replay(file, speed, thresholds);
+        System.out.println("Thresholds: " + thresholds);
+        System.out.println(report);
+        if (args.length > 4) {
+            try (BufferedWriter out = Files.newBufferedWriter(Path.of(args[4]))) {
+                for (String line : report.alerts) {
+                    out.write(line);
+                    out.newLine();
+                }
+            }
+            System.out.println("Alert log written to " + args[4]);
+        }
+    }
+
+    // Records synthetic traffic through a Recorder, as VitalsDatabase would.
+    private static long generate(Path file, int patientCount, int hours) throws IOException {
+        Random random = new Random(21);
+        long start = 1_700_000_000_000L;
+        try (Recorder recorder = new Recorder(file)) {
+            for (int m = 0; m < hours * 60; m++) {
+                for (int p = 0; p < patientCount; p++) {
+                    // Every 50th patient's SpO2 falls by 6 points over the recording.
+                    double drift = p % 50 == 0 ? 6.0 * m / (hours * 60) : 0;
+                    boolean cuff = m % 15 == 0;
+                    recorder.record("P" + p, start + m * 60_000L + random.nextInt(1000),
+                            (int) Math.round(75 + 8 * random.nextGaussian()),
+                            (int) Math.round(97 - drift + 0.8 * random.nextGaussian()),
+                            cuff ? (int) Math.round(125 + 12 * random.nextGaussian()) : VitalsSeries.NO_VALUE,
+                            cuff ? (int) Math.round(80 + 6 * random.nextGaussian()) : VitalsSeries.NO_VALUE,
+                            m % 60 == 0 ? Math.round(3680 + 20 * random.nextGaussian()) / 100.0 : Double.NaN);
+                }
+            }
+            return recorder.readings();
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package healthcare;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import healthcare.main.VitalSign;
+
+// VitalsSeries stores every reading of one patient column by column.
+// Each vital lives in its own primitive array (plus a timestamp column), so scans and aggregates
+// never have to touch VitalSign objects or formatted strings.
+//
+// Readings move through three tiers as they age:
+//   ring - an optional OffHeapVitalsRing that the allocation-free ingest path writes into; it is drained into
+//          the hot arrays whenever it fills up and before any read, so readers never see it
+//   hot  - the primitive arrays below, where new readings are appended
+//   warm - immutable CompressedVitalsBlocks held on heap
+//   cold - the same blocks written to a memory-mapped ColdVitalsStore; only a small primitive index stays on heap
+// Rows are numbered from 0 across all tiers and the tiers are consecutive ranges of rows (cold, then warm, then hot).
+class VitalsSeries {
+    // Marker used in the int columns when a value could not be parsed (e.g. free-text blood pressure).
+    static final int NO_VALUE = Integer.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Records per patient in the off-heap ingest ring (24 bytes each).
+    static final int RING_CAPACITY = 1024;
+
+    // Receives one reading at a time from a scan, without any per-reading objects.
+    interface Visitor {
+        void accept(long row, long timestamp, int heartRate, int oxygenLevel, int systolic, int diastolic,
+                double temperature);
+    }
+
+    private final String patientId;
+
+    // Hot tier. Arrays are never shifted in place: compaction copies the remaining rows into new arrays,
+    // so a View taken earlier keeps reading the arrays it captured.
+    private long hotBaseRow;
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private int[] heartRates = new int[INITIAL_CAPACITY];
+    private int[] oxygenLevels = new int[INITIAL_CAPACITY];
+    private int[] systolic = new int[INITIAL_CAPACITY];
+    private int[] diastolic = new int[INITIAL_CAPACITY];
+    private double[] temperatures = new double[INITIAL_CAPACITY];
+    private int size;
+
+    // Off-heap landing area for ingest(), created on first use.
+    private OffHeapVitalsRing ring;
+
+    // Warm tier, replaced (never modified) when blocks are added or moved to cold storage.
+    private List<CompressedVitalsBlock> warmBlocks = Collections.emptyList();
+
+    // Cold tier index, append-only.
+    private ColdVitalsStore coldStore;
+    private long[] coldLocations = new long[0];
+    private int[] coldLengths = new int[0];
+    private long[] coldMinTimestamps = new long[0];
+    private long[] coldMaxTimestamps = new long[0];
+    private int coldCount;
+
+    // Blood pressure strings that don't round-trip through "sys/dia" are kept here by row number,
+    // so retrieveVitals still prints exactly what was entered.
+    private final Map<Long, String> rawBloodPressure = new ConcurrentHashMap<>();
+
+    VitalsSeries(String patientId) {
+        this.patientId = patientId;
+    }
+
+    String getPatientId() {
+        return patientId;
+    }
+
+    // Appends one reading taken at the given time (epoch millis).
+    synchronized void append(long timestamp, VitalSign vitals) {
+        drainRing();
+        String bp = vitals.getBloodPressure();
+        int sys = parseSystolic(bp);
+        int dia = parseDiastolic(bp);
+        if (bp != null && !bp.equals(formatBloodPressure(sys, dia))) {
+            rawBloodPressure.put(hotBaseRow + size, bp);
+        }
+        appendHot(timestamp, vitals.getHeartRate(), vitals.getOxygenLevel(), sys, dia, vitals.getTemperature());
+    }
+
+    // Appends one reading from primitive values.
+    synchronized void append(long timestamp, int heartRate, int oxygenLevel, int sys, int dia, double temperature) {
+        drainRing();
+        appendHot(timestamp, heartRate, oxygenLevel, sys, dia, temperature);
+    }
+
+    // Allocation-free ingest: the reading is written straight into the off-heap ring.
+    // Only draining a full ring can allocate, and only when the hot arrays have to grow.
+    synchronized void ingest(long timestamp, int heartRate, int oxygenLevel, int sys, int dia, double temperature) {
+        if (ring == null) {
+            ring = new OffHeapVitalsRing(RING_CAPACITY);
+        } else if (ring.isFull()) {
+            ring.drainTo(this);
+        }
+        ring.write(timestamp, heartRate, oxygenLevel, sys, dia, temperature);
+    }
+
+    // Appends to the hot arrays; callers hold the lock and have drained the ring where order matters.
+    void appendHot(long timestamp, int heartRate, int oxygenLevel, int sys, int dia, double temperature) {
+        if (size == timestamps.length) {
+            resizeHot(0, timestamps.length * 2);
+        }
+        timestamps[size] = timestamp;
+        heartRates[size] = heartRate;
+        oxygenLevels[size] = oxygenLevel;
+        systolic[size] = sys;
+        diastolic[size] = dia;
+        temperatures[size] = temperature;
+        size++;
+    }
+
+    private void drainRing() {
+        if (ring != null && !ring.isEmpty()) {
+            ring.drainTo(this);
+        }
+    }
+
+    // Total number of readings across all tiers (including any still in the ring).
+    synchronized long size() {
+        return hotBaseRow + size + (ring == null ? 0 : ring.size());
+    }
+
+    // Number of readings in the hot tier.
+    synchronized int hotSize() {
+        drainRing();
+        return size;
+    }
+
+    // Returns a read-only, point-in-time view over all tiers.
+    synchronized View view() {
+        drainRing();
+        return new View(timestamps, heartRates, oxygenLevels, systolic, diastolic, temperatures, size, hotBaseRow,
+                warmBlocks, coldStore, coldLocations, coldLengths, coldMinTimestamps, coldMaxTimestamps, coldCount);
+    }
+
+    // Moves hot readings taken before hotCutoff into compressed warm blocks of at most maxBlockRows rows,
+    // then moves warm blocks whose newest reading is before coldCutoff into the cold store (if one is given).
+    // Returns the number of readings that left the hot tier.
+    synchronized int compact(long hotCutoff, long coldCutoff, int maxBlockRows, ColdVitalsStore store) {
+        drainRing();
+        int aged = 0;
+        while (aged < size && timestamps[aged] < hotCutoff) {
+            aged++;
+        }
+        if (aged > 0) {
+            List<CompressedVitalsBlock> warm = new ArrayList<>(warmBlocks);
+            for (int from = 0; from < aged; from += maxBlockRows) {
+                int to = Math.min(aged, from + maxBlockRows);
+                warm.add(CompressedVitalsBlock.encode(hotBaseRow + from, timestamps, heartRates, oxygenLevels,
+                        systolic, diastolic, temperatures, from, to));
+            }
+            warmBlocks = Collections.unmodifiableList(warm);
+            int remaining = size - aged;
+            resizeHot(aged, Math.max(INITIAL_CAPACITY, remaining * 2));
+            hotBaseRow += aged;
+            size = remaining;
+        }
+        if (store != null) {
+            moveToCold(coldCutoff, store);
+        }
+        return aged;
+    }
+
+    private void moveToCold(long coldCutoff, ColdVitalsStore store) {
+        if (coldStore != null && coldStore != store) {
+            throw new IllegalStateException("Series " + patientId + " already uses another cold store");
+        }
+        int moved = 0;
+        try {
+            while (moved < warmBlocks.size() && warmBlocks.get(moved).maxTimestamp() < coldCutoff) {
+                CompressedVitalsBlock block = warmBlocks.get(moved);
+                long location = store.append(patientId, block.bytes());
+                coldStore = store;
+                addColdIndex(location, block.sizeInBytes(), block.minTimestamp(), block.maxTimestamp());
+                moved++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to move vitals of " + patientId + " to cold storage", e);
+        } finally {
+            // Blocks that made it to disk must not stay in the warm tier as well.
+            if (moved > 0) {
+                warmBlocks = Collections.unmodifiableList(new ArrayList<>(warmBlocks.subList(moved, warmBlocks.size())));
+            }
+        }
+    }
+
+    // Re-attaches the cold blocks the store holds for this patient (after a restart or an eviction) to this
+    // still empty series. Only blocks that continue the rows from 0 without a gap are used. Returns the number
+    // of rows attached; readings restored afterwards must start at that row.
+    synchronized long attachCold(ColdVitalsStore store) {
+        if (size() != 0) {
+            throw new IllegalStateException("Series " + patientId + " already has readings");
+        }
+        long rows = 0;
+        for (ColdVitalsStore.BlockRef ref : store.blocksOf(patientId)) {
+            CompressedVitalsBlock block = new CompressedVitalsBlock(store.read(ref.location, ref.length));
+            if (block.firstRow() != rows) {
+                break;
+            }
+            addColdIndex(ref.location, ref.length, block.minTimestamp(), block.maxTimestamp());
+            rows += block.count();
+        }
+        if (rows > 0) {
+            coldStore = store;
+            hotBaseRow = rows;
+        }
+        return rows;
+    }
+
+    private void addColdIndex(long location, int length, long minTs, long maxTs) {
+        if (coldCount == coldLocations.length) {
+            int capacity = Math.max(8, coldCount * 2);
+            coldLocations = Arrays.copyOf(coldLocations, capacity);
+            coldLengths = Arrays.copyOf(coldLengths, capacity);
+            coldMinTimestamps = Arrays.copyOf(coldMinTimestamps, capacity);
+            coldMaxTimestamps = Arrays.copyOf(coldMaxTimestamps, capacity);
+        }
+        coldLocations[coldCount] = location;
+        coldLengths[coldCount] = length;
+        coldMinTimestamps[coldCount] = minTs;
+        coldMaxTimestamps[coldCount] = maxTs;
+        coldCount++;
+    }
+
+    // Replaces the hot arrays with new ones of the given capacity, starting at row 'from' of the old ones.
+    private void resizeHot(int from, int capacity) {
+        timestamps = Arrays.copyOfRange(timestamps, from, from + capacity);
+        heartRates = Arrays.copyOfRange(heartRates, from, from + capacity);
+        oxygenLevels = Arrays.copyOfRange(oxygenLevels, from, from + capacity);
+        systolic = Arrays.copyOfRange(systolic, from, from + capacity);
+        diastolic = Arrays.copyOfRange(diastolic, from, from + capacity);
+        temperatures = Arrays.copyOfRange(temperatures, from, from + capacity);
+    }
+
+    // Parses the systolic part of a "120/80" style string.
+    static int parseSystolic(String bloodPressure) {
+        return parseBloodPressurePart(bloodPressure, 0);
+    }
+
+    // Parses the diastolic part of a "120/80" style string.
+    static int parseDiastolic(String bloodPressure) {
+        return parseBloodPressurePart(bloodPressure, 1);
+    }
+
+    private static int parseBloodPressurePart(String bloodPressure, int part) {
+        if (bloodPressure == null) {
+            return NO_VALUE;
+        }
+        int slash = bloodPressure.indexOf('/');
+        String value;
+        if (slash < 0) {
+            value = part == 0 ? bloodPressure : null;
+        } else {
+            value = part == 0 ? bloodPressure.substring(0, slash) : bloodPressure.substring(slash + 1);
+        }
+        if (value == null) {
+            return NO_VALUE;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return NO_VALUE;
+        }
+    }
+
+    static String formatBloodPressure(int sys, int dia) {
+        if (sys == NO_VALUE) {
+            return "";
+        }
+        return dia == NO_VALUE ? String.valueOf(sys) : sys + "/" + dia;
+    }
+
+    // A consistent snapshot of the series across all tiers. Everything it references is immutable
+    // or append-only below the captured sizes, so it can be scanned without locking.
+    final class View {
+        private final long[] timestamps;
+        private final int[] heartRates;
+        private final int[] oxygenLevels;
+        private final int[] systolic;
+        private final int[] diastolic;
+        private final double[] temperatures;
+        private final int hotSize;
+        private final long hotBaseRow;
+        private final List<CompressedVitalsBlock> warmBlocks;
+        private final ColdVitalsStore coldStore;
+        private final long[] coldLocations;
+        private final int[] coldLengths;
+        private final long[] coldMinTimestamps;
+        private final long[] coldMaxTimestamps;
+        private final int coldCount;
+
+        private View(long[] timestamps, int[] heartRates, int[] oxygenLevels, int[] systolic, int[] diastolic,
+                double[] temperatures, int hotSize, long hotBaseRow, List<CompressedVitalsBlock> warmBlocks,
+                ColdVitalsStore coldStore, long[] coldLocations, int[] coldLengths, long[] coldMinTimestamps,
+                long[] coldMaxTimestamps, int coldCount) {
+            this.timestamps = timestamps;
+            this.heartRates = heartRates;
+            this.oxygenLevels = oxygenLevels;
+            this.systolic = systolic;
+            this.diastolic = diastolic;
+            this.temperatures = temperatures;
+            this.hotSize = hotSize;
+            this.hotBaseRow = hotBaseRow;
+            this.warmBlocks = warmBlocks;
+            this.coldStore = coldStore;
+            this.coldLocations = coldLocations;
+            this.coldLengths = coldLengths;
+            this.coldMinTimestamps = coldMinTimestamps;
+            this.coldMaxTimestamps = coldMaxTimestamps;
+            this.coldCount = coldCount;
+        }
+
+        String getPatientId() {
+            return patientId;
+        }
+
+        // Total number of readings in the view.
+        long size() {
+            return hotBaseRow + hotSize;
+        }
+
+        // Visits every reading in row order.
+        void scan(Visitor visitor) {
+            scan(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+        }
+
+        // Visits, in row order, every reading with fromTs <= timestamp < toTs.
+        // Blocks whose time range doesn't overlap are skipped without being decoded.
+        void scan(long fromTs, long toTs, Visitor visitor) {
+            scanBlocks(fromTs, toTs, visitor);
+            for (int i = 0; i < hotSize; i++) {
+                long ts = timestamps[i];
+                if (ts >= fromTs && ts < toTs) {
+                    visitor.accept(hotBaseRow + i, ts, heartRates[i], oxygenLevels[i], systolic[i], diastolic[i],
+                            temperatures[i]);
+                }
+            }
+        }
+
+        // Number of readings with fromTs <= timestamp < toTs that break the given thresholds. The hot tier is
+        // checked column by column with the evaluator; compressed blocks are decoded and checked per reading.
+        long countOverThresholds(long fromTs, long toTs, BatchRuleEvaluator.Thresholds thresholds,
+                                 BatchRuleEvaluator evaluator) {
+            long[] count = {0};
+            scanBlocks(fromTs, toTs, (row, ts, hr, ox, sys, dia, temp) -> {
+                if (thresholds.isBrokenBy(hr, ox, sys)) {
+                    count[0]++;
+                }
+            });
+            for (int from = 0; from < hotSize; from += BatchRuleEvaluator.BLOCK) {
+                int to = Math.min(hotSize, from + BatchRuleEvaluator.BLOCK);
+                int matches = evaluator.evaluate(heartRates, oxygenLevels, systolic, from, to, thresholds);
+                for (int k = 0; k < matches; k++) {
+                    long ts = timestamps[evaluator.row(k)];
+                    if (ts >= fromTs && ts < toTs) {
+                        count[0]++;
+                    }
+                }
+            }
+            return count[0];
+        }
+
+        // The cold and warm part of scan().
+        private void scanBlocks(long fromTs, long toTs, Visitor visitor) {
+            for (int b = 0; b < coldCount; b++) {
+                if (coldMaxTimestamps[b] >= fromTs && coldMinTimestamps[b] < toTs) {
+                    coldBlock(b).decode(fromTs, toTs, visitor);
+                }
+            }
+            for (CompressedVitalsBlock block : warmBlocks) {
+                if (block.maxTimestamp() >= fromTs && block.minTimestamp() < toTs) {
+                    block.decode(fromTs, toTs, visitor);
+                }
+            }
+        }
+
+        // Visits the most recent reading only. Returns false if the series is empty.
+        boolean latest(Visitor visitor) {
+            if (hotSize > 0) {
+                int i = hotSize - 1;
+                visitor.accept(hotBaseRow + i, timestamps[i], heartRates[i], oxygenLevels[i], systolic[i],
+                        diastolic[i], temperatures[i]);
+                return true;
+            }
+            CompressedVitalsBlock last;
+            if (!warmBlocks.isEmpty()) {
+                last = warmBlocks.get(warmBlocks.size() - 1);
+            } else if (coldCount > 0) {
+                last = coldBlock(coldCount - 1);
+            } else {
+                return false;
+            }
+            long lastRow = last.firstRow() + last.count() - 1;
+            last.decode(Long.MIN_VALUE, Long.MAX_VALUE, (row, ts, hr, ox, sys, dia, temp) -> {
+                if (row == lastRow) {
+                    visitor.accept(row, ts, hr, ox, sys, dia, temp);
+                }
+            });
+            return true;
+        }
+
+        // Blood pressure as entered for the given row.
+        String bloodPressure(long row, int sys, int dia) {
+            String raw = rawBloodPressure.get(row);
+            return raw != null ? raw : formatBloodPressure(sys, dia);
+        }
+
+        // Rebuilds a VitalSign from scanned values (used for display only).
+        VitalSign toVitalSign(long row, int heartRate, int oxygenLevel, int sys, int dia, double temperature) {
+            return new VitalSign(heartRate, oxygenLevel, bloodPressure(row, sys, dia), temperature);
+        }
+
+        private CompressedVitalsBlock coldBlock(int b) {
+            return new CompressedVitalsBlock(coldStore.read(coldLocations[b], coldLengths[b]));
+        }
+    }
+}
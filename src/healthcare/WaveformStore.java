@@ -0,0 +1,660 @@
+package healthcare;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// WaveformStore holds high-frequency ECG and PPG waveforms (typically 250 - 500 Hz), next to the spot readings
+// in VitalsDatabase. A device opens one Stream per patient and channel and pushes blocks of samples into it.
+//
+// Samples are raw ADC counts (short) with a per-stream gain (millivolts per count for ECG, arbitrary units
+// for PPG). They are collected in a chunk of CHUNK_SAMPLES and compressed when the chunk is full:
+//
+//   chunk    short  first sample (big endian)
+//            groups of up to 64 samples, each:
+//              byte   bit width w (0 - 17)
+//              bits   first-order deltas, zigzag encoded, w bits each, packed least significant bit first,
+//                     padded to a whole byte at the end of the group
+//
+// The start time and sample count of a chunk are kept next to its bytes. A gap in the timestamps (more than
+// two sample periods) closes the current chunk, so every chunk is contiguous. Chunks older than the retention
+// period are dropped.
+//
+// Every sample also goes through a streaming beat detector (Pan-Tompkins style: derivative, squaring,
+// moving-window integration, adaptive signal/noise thresholds, refractory period). It runs in constant time
+// and memory per sample. Beat-to-beat intervals give the heart rate and rhythm flags, and newly raised flags
+// are passed to the event sink. Streams are independent, so thousands can ingest concurrently.
+final class WaveformStore {
+    static final int CHUNK_SAMPLES = 1024;
+    static final int DEFAULT_RETENTION_SECONDS = 15 * 60;
+    private static final int GROUP = 64;
+    private static final int MAX_CHUNK_BYTES = 2 + (CHUNK_SAMPLES / GROUP + 1) * (1 + (GROUP * 17 + 7) / 8);
+
+    // The moving-window and refractory lengths differ because a PPG pulse is much wider than a QRS complex.
+    enum Kind {
+        ECG(0.150, 0.200),
+        PPG(0.250, 0.300);
+
+        final double windowSeconds;
+        final double refractorySeconds;
+
+        Kind(double windowSeconds, double refractorySeconds) {
+            this.windowSeconds = windowSeconds;
+            this.refractorySeconds = refractorySeconds;
+        }
+    }
+
+    enum Rhythm {
+        TACHYCARDIA("tachycardia"),
+        BRADYCARDIA("bradycardia"),
+        IRREGULAR("irregular rhythm"),
+        ECTOPY("frequent premature beats"),
+        PAUSE("pause");
+
+        final String description;
+
+        Rhythm(String description) {
+            this.description = description;
+        }
+    }
+
+    // A rhythm flag that was newly raised on a stream.
+    static final class RhythmEvent {
+        final String patientId;
+        final Kind kind;
+        final long timestamp;
+        final Rhythm rhythm;
+        final int heartRate;
+
+        RhythmEvent(String patientId, Kind kind, long timestamp, Rhythm rhythm, int heartRate) {
+            this.patientId = patientId;
+            this.kind = kind;
+            this.timestamp = timestamp;
+            this.rhythm = rhythm;
+            this.heartRate = heartRate;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " shows " + rhythm.description + (heartRate > 0 ? " (heart rate " + heartRate + ")" : "");
+        }
+    }
+
+    // A contiguous, decoded stretch of a waveform.
+    static final class Segment {
+        final long startTimestamp;
+        final double sampleRate;
+        final float gain;
+        final short[] samples;
+
+        Segment(long startTimestamp, double sampleRate, float gain, short[] samples) {
+            this.startTimestamp = startTimestamp;
+            this.sampleRate = sampleRate;
+            this.gain = gain;
+            this.samples = samples;
+        }
+
+        float value(int index) {
+            return samples[index] * gain;
+        }
+
+        long timestampOf(int index) {
+            return startTimestamp + Math.round(index * 1000.0 / sampleRate);
+        }
+    }
+
+    // One compressed chunk.
+    private static final class Chunk {
+        final long start;
+        final int count;
+        final byte[] data;
+
+        Chunk(long start, int count, byte[] data) {
+            this.start = start;
+            this.count = count;
+            this.data = data;
+        }
+    }
+
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    private final Consumer<RhythmEvent> sink;
+    private final int retentionSeconds;
+
+    WaveformStore(Consumer<RhythmEvent> sink) {
+        this(sink, DEFAULT_RETENTION_SECONDS);
+    }
+
+    WaveformStore(Consumer<RhythmEvent> sink, int retentionSeconds) {
+        if (retentionSeconds <= 0) {
+            throw new IllegalArgumentException("Retention must be positive: " + retentionSeconds);
+        }
+        this.sink = sink;
+        this.retentionSeconds = retentionSeconds;
+    }
+
+    // Returns the patient's stream for this channel, creating it on first use. A device should keep the
+    // returned stream and ingest into it directly.
+    Stream open(String patientId, Kind kind, double sampleRate, float gain) {
+        if (sampleRate < 50 || sampleRate > 10_000) {
+            throw new IllegalArgumentException("Unsupported sample rate: " + sampleRate);
+        }
+        Stream stream = streams.computeIfAbsent(key(patientId, kind),
+                k -> new Stream(patientId, kind, sampleRate, gain));
+        if (stream.sampleRate != sampleRate || stream.gain != gain) {
+            throw new IllegalArgumentException(kind + " stream of " + patientId + " is already open at "
+                    + stream.sampleRate + " Hz with gain " + stream.gain);
+        }
+        return stream;
+    }
+
+    // The stream, or null if the patient has no waveform of this kind.
+    Stream get(String patientId, Kind kind) {
+        return streams.get(key(patientId, kind));
+    }
+
+    void remove(String patientId) {
+        for (Kind kind : Kind.values()) {
+            streams.remove(key(patientId, kind));
+        }
+    }
+
+    private static String key(String patientId, Kind kind) {
+        return patientId + '/' + kind;
+    }
+
+    // Stream count, samples ingested and compression.
+    String stats() {
+        long samples = 0;
+        long bytes = 0;
+        long rawBytes = 0;
+        for (Stream stream : streams.values()) {
+            synchronized (stream) {
+                samples += stream.samplesIngested;
+                for (Chunk chunk : stream.chunks) {
+                    bytes += chunk.data.length;
+                    rawBytes += chunk.count * 2L;
+                }
+            }
+        }
+        return String.format("%d streams, %d samples ingested, %d KB stored (%.1fx smaller than raw)",
+                streams.size(), samples, bytes / 1024, bytes == 0 ? 0.0 : (double) rawBytes / bytes);
+    }
+
+    // The samples of one patient's waveform channel. ingest() and the readers synchronize on the stream,
+    // so one device thread per stream never waits for another stream.
+    final class Stream {
+        final String patientId;
+        final Kind kind;
+        final double sampleRate;
+        final float gain;
+        private final double periodMillis;
+        private final int maxChunks;
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+        private final short[] open = new short[CHUNK_SAMPLES];
+        private final byte[] encodeBuffer = new byte[MAX_CHUNK_BYTES];
+        private int openCount;
+        private long openStart;
+        private double expectedNext = Double.NaN;
+        private BeatDetector detector;
+        private short[] converted = new short[0];
+        private long samplesIngested;
+
+        private Stream(String patientId, Kind kind, double sampleRate, float gain) {
+            this.patientId = patientId;
+            this.kind = kind;
+            this.sampleRate = sampleRate;
+            this.gain = gain;
+            this.periodMillis = 1000.0 / sampleRate;
+            this.maxChunks = (int) Math.ceil(retentionSeconds * sampleRate / CHUNK_SAMPLES);
+            this.detector = new BeatDetector(kind, sampleRate);
+        }
+
+        // Adds length samples starting at samples[offset]; timestamp is the time of the first one (epoch millis).
+        synchronized void ingest(long timestamp, short[] samples, int offset, int length) {
+            if (!Double.isNaN(expectedNext) && Math.abs(timestamp - expectedNext) > 2 * periodMillis) {
+                // Gap or clock jump: the chunk so far stays contiguous and beat detection starts over.
+                seal();
+                detector = new BeatDetector(kind, sampleRate);
+            }
+            if (openCount == 0) {
+                openStart = timestamp;
+            }
+            for (int i = 0; i < length; i++) {
+                short sample = samples[offset + i];
+                open[openCount++] = sample;
+                int raised = detector.process(sample);
+                if (raised != 0) {
+                    raise(raised, timestamp + Math.round(i * periodMillis));
+                }
+                if (openCount == CHUNK_SAMPLES) {
+                    seal();
+                    openStart = timestamp + Math.round((i + 1) * periodMillis);
+                }
+            }
+            samplesIngested += length;
+            expectedNext = timestamp + length * periodMillis;
+        }
+
+        // Same as above for samples in physical units; they are divided by the gain and rounded to counts.
+        synchronized void ingest(long timestamp, float[] values, int offset, int length) {
+            if (converted.length < length) {
+                converted = new short[length];
+            }
+            for (int i = 0; i < length; i++) {
+                float counts = values[offset + i] / gain;
+                converted[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(counts)));
+            }
+            ingest(timestamp, converted, 0, length);
+        }
+
+        private void seal() {
+            if (openCount == 0) {
+                return;
+            }
+            int size = encode(open, openCount, encodeBuffer);
+            chunks.addLast(new Chunk(openStart, openCount, Arrays.copyOf(encodeBuffer, size)));
+            while (chunks.size() > maxChunks) {
+                chunks.removeFirst();
+            }
+            openCount = 0;
+        }
+
+        private void raise(int rhythms, long timestamp) {
+            int heartRate = detector.heartRate;
+            for (Rhythm rhythm : Rhythm.values()) {
+                if ((rhythms & (1 << rhythm.ordinal())) != 0) {
+                    sink.accept(new RhythmEvent(patientId, kind, timestamp, rhythm, heartRate));
+                }
+            }
+        }
+
+        // Heart rate over the last 8 beats, or 0 before enough beats were seen.
+        synchronized int heartRate() {
+            return detector.heartRate;
+        }
+
+        synchronized Set<Rhythm> rhythms() {
+            Set<Rhythm> set = EnumSet.noneOf(Rhythm.class);
+            for (Rhythm rhythm : Rhythm.values()) {
+                if ((detector.flags & (1 << rhythm.ordinal())) != 0) {
+                    set.add(rhythm);
+                }
+            }
+            return set;
+        }
+
+        synchronized long beats() {
+            return detector.beats;
+        }
+
+        // The stored samples between fromTs and toTs (inclusive), one segment per contiguous stretch.
+        List<Segment> read(long fromTs, long toTs) {
+            List<Chunk> selected = new ArrayList<>();
+            synchronized (this) {
+                for (Chunk chunk : chunks) {
+                    if (chunk.start <= toTs && endOf(chunk.start, chunk.count) >= fromTs) {
+                        selected.add(chunk);
+                    }
+                }
+                if (openCount > 0 && openStart <= toTs && endOf(openStart, openCount) >= fromTs) {
+                    int size = encode(open, openCount, encodeBuffer);
+                    selected.add(new Chunk(openStart, openCount, Arrays.copyOf(encodeBuffer, size)));
+                }
+            }
+            List<Segment> segments = new ArrayList<>();
+            short[] pending = null;
+            long pendingStart = 0;
+            int pendingCount = 0;
+            for (Chunk chunk : selected) {
+                short[] decoded = decode(chunk.data, chunk.count);
+                int from = (int) Math.max(0, Math.ceil((fromTs - chunk.start) / periodMillis));
+                int to = (int) Math.min(chunk.count, Math.floor((toTs - chunk.start) / periodMillis) + 1);
+                if (from >= to) {
+                    continue;
+                }
+                long start = chunk.start + Math.round(from * periodMillis);
+                boolean contiguous = pending != null
+                        && Math.abs(start - (pendingStart + pendingCount * periodMillis)) <= 2 * periodMillis;
+                if (!contiguous) {
+                    if (pending != null) {
+                        segments.add(new Segment(pendingStart, sampleRate, gain, Arrays.copyOf(pending, pendingCount)));
+                    }
+                    pending = new short[CHUNK_SAMPLES];
+                    pendingStart = start;
+                    pendingCount = 0;
+                }
+                if (pendingCount + (to - from) > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingCount + (to - from)));
+                }
+                System.arraycopy(decoded, from, pending, pendingCount, to - from);
+                pendingCount += to - from;
+            }
+            if (pending != null) {
+                segments.add(new Segment(pendingStart, sampleRate, gain, Arrays.copyOf(pending, pendingCount)));
+            }
+            return segments;
+        }
+
+        private double endOf(long start, int count) {
+            return start + (count - 1) * periodMillis;
+        }
+    }
+
+    // Compresses samples[0, count) into out (see the layout above); returns the number of bytes written.
+    static int encode(short[] samples, int count, byte[] out) {
+        out[0] = (byte) (samples[0] >> 8);
+        out[1] = (byte) samples[0];
+        int pos = 2;
+        int previous = samples[0];
+        for (int groupStart = 1; groupStart < count; groupStart += GROUP) {
+            int groupEnd = Math.min(count, groupStart + GROUP);
+            int all = 0;
+            int p = previous;
+            for (int i = groupStart; i < groupEnd; i++) {
+                int delta = samples[i] - p;
+                all |= (delta << 1) ^ (delta >> 31);
+                p = samples[i];
+            }
+            int width = 32 - Integer.numberOfLeadingZeros(all);
+            out[pos++] = (byte) width;
+            long bits = 0;
+            int used = 0;
+            for (int i = groupStart; i < groupEnd; i++) {
+                int delta = samples[i] - previous;
+                bits |= (long) ((delta << 1) ^ (delta >> 31)) << used;
+                used += width;
+                while (used >= 8) {
+                    out[pos++] = (byte) bits;
+                    bits >>>= 8;
+                    used -= 8;
+                }
+                previous = samples[i];
+            }
+            if (used > 0) {
+                out[pos++] = (byte) bits;
+            }
+        }
+        return pos;
+    }
+
+    static short[] decode(byte[] data, int count) {
+        short[] samples = new short[count];
+        int previous = (short) ((data[0] << 8) | (data[1] & 0xff));
+        samples[0] = (short) previous;
+        int pos = 2;
+        for (int groupStart = 1; groupStart < count; groupStart += GROUP) {
+            int groupEnd = Math.min(count, groupStart + GROUP);
+            int width = data[pos++];
+            long mask = (1L << width) - 1;
+            long bits = 0;
+            int available = 0;
+            for (int i = groupStart; i < groupEnd; i++) {
+                while (available < width) {
+                    bits |= (data[pos++] & 0xffL) << available;
+                    available += 8;
+                }
+                int zigzag = (int) (bits & mask);
+                bits >>>= width;
+                available -= width;
+                previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                samples[i] = (short) previous;
+            }
+        }
+        return samples;
+    }
+
+    // Streaming beat detection for one stream. Works on integer sample values, so the moving-window sum is exact.
+    private static final class BeatDetector {
+        private static final int HISTORY = 16;
+        private static final int LEARNING_SECONDS = 2;
+
+        final double sampleRate;
+        final int refractory;
+        final int learning;
+        final long pauseSamples;
+        // Last four input samples, for the derivative.
+        int x1, x2, x3, x4;
+        final long[] window;
+        int windowPos;
+        long windowSum;
+        long previous1, previous2;
+        long n;
+        long learningMax;
+        double learningSum;
+        double signalLevel;
+        double noiseLevel;
+        boolean inPeak;
+        long peakValue;
+        long peakAt;
+        long lastBeat = -1;
+        long beats;
+        // Recent beat-to-beat intervals in samples, and whether each one was premature.
+        final int[] intervals = new int[HISTORY];
+        final boolean[] premature = new boolean[HISTORY];
+        int intervalCount;
+        int intervalPos;
+        int heartRate;
+        int flags;
+
+        BeatDetector(Kind kind, double sampleRate) {
+            this.sampleRate = sampleRate;
+            this.window = new long[Math.max(1, (int) Math.round(kind.windowSeconds * sampleRate))];
+            this.refractory = (int) Math.round(kind.refractorySeconds * sampleRate);
+            this.learning = (int) (LEARNING_SECONDS * sampleRate);
+            this.pauseSamples = Math.round(3 * sampleRate);
+        }
+
+        // Feeds one sample; returns the rhythm flags (bit = Rhythm.ordinal()) raised by it, usually 0.
+        int process(int x) {
+            n++;
+            long derivative = 2L * x + x1 - x3 - 2L * x4;
+            x4 = x3;
+            x3 = x2;
+            x2 = x1;
+            x1 = x;
+            long squared = derivative * derivative;
+            windowSum += squared - window[windowPos];
+            window[windowPos] = squared;
+            if (++windowPos == window.length) {
+                windowPos = 0;
+            }
+            long m = windowSum;
+            int raised = 0;
+            if (n <= learning) {
+                learningMax = Math.max(learningMax, m);
+                learningSum += m;
+                if (n == learning) {
+                    signalLevel = learningMax / 3.0;
+                    noiseLevel = learningSum / learning / 2;
+                }
+            } else {
+                double threshold = noiseLevel + 0.25 * (signalLevel - noiseLevel);
+                if (intervalCount > 0 && n - lastBeat > 1.66 * averageInterval(Math.min(8, intervalCount))) {
+                    // Probably missed a beat: look for a smaller peak.
+                    threshold *= 0.5;
+                }
+                if (m > threshold) {
+                    if (!inPeak || m > peakValue) {
+                        peakValue = m;
+                        peakAt = n;
+                    }
+                    inPeak = true;
+                } else if (inPeak) {
+                    inPeak = false;
+                    if (lastBeat < 0 || peakAt - lastBeat >= refractory) {
+                        signalLevel = 0.125 * peakValue + 0.875 * signalLevel;
+                        raised = beat(peakAt);
+                    } else {
+                        noiseLevel = 0.125 * peakValue + 0.875 * noiseLevel;
+                    }
+                } else if (previous1 > previous2 && previous1 >= m) {
+                    noiseLevel = 0.125 * previous1 + 0.875 * noiseLevel;
+                }
+                int pause = 1 << Rhythm.PAUSE.ordinal();
+                if (lastBeat >= 0 && n - lastBeat > pauseSamples && (flags & pause) == 0) {
+                    flags |= pause;
+                    raised |= pause;
+                }
+            }
+            previous2 = previous1;
+            previous1 = m;
+            return raised;
+        }
+
+        private int beat(long at) {
+            beats++;
+            long previousBeat = lastBeat;
+            lastBeat = at;
+            if (previousBeat < 0) {
+                return 0;
+            }
+            long interval = at - previousBeat;
+            if (interval > pauseSamples) {
+                // Handled as a pause by process(); the interval is not a heart rate.
+                return 0;
+            }
+            boolean early = intervalCount >= 8 && interval < 0.8 * averageInterval(8);
+            intervals[intervalPos] = (int) interval;
+            premature[intervalPos] = early;
+            intervalPos = (intervalPos + 1) % HISTORY;
+            intervalCount = Math.min(HISTORY, intervalCount + 1);
+
+            int updated = flags & ~(1 << Rhythm.PAUSE.ordinal());
+            if (intervalCount >= 8) {
+                heartRate = (int) Math.round(60 * sampleRate / averageInterval(8));
+                updated = set(updated, Rhythm.TACHYCARDIA, heartRate > AlertLimits.HEART_RATE_WARNING);
+                updated = set(updated, Rhythm.BRADYCARDIA, heartRate < 50);
+            }
+            if (intervalCount == HISTORY) {
+                double successive = 0;
+                int prematureCount = 0;
+                for (int i = 1; i < HISTORY; i++) {
+                    successive += Math.abs(intervalAgo(i - 1) - intervalAgo(i));
+                }
+                for (boolean p : premature) {
+                    prematureCount += p ? 1 : 0;
+                }
+                double mean = averageInterval(HISTORY);
+                updated = set(updated, Rhythm.IRREGULAR, successive / (HISTORY - 1) / mean > 0.15);
+                updated = set(updated, Rhythm.ECTOPY, prematureCount >= 3);
+            }
+            int raised = updated & ~flags;
+            flags = updated;
+            return raised;
+        }
+
+        private static int set(int flags, Rhythm rhythm, boolean on) {
+            int bit = 1 << rhythm.ordinal();
+            return on ? flags | bit : flags & ~bit;
+        }
+
+        // The interval 'ago' beats back (0 = the latest).
+        private int intervalAgo(int ago) {
+            return intervals[Math.floorMod(intervalPos - 1 - ago, HISTORY)];
+        }
+
+        private double averageInterval(int count) {
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += intervalAgo(i);
+            }
+            return (double) sum / count;
+        }
+    }
+
+    // Benchmark: java -cp bin healthcare.WaveformStore [streams] [seconds]
+    // Synthetic 250 Hz ECG streams with noise and baseline wander, fed one second per stream at a time.
+    // Stream 0 has an irregular rhythm, stream 1 runs at 130 bpm; the others are regular at 55 - 95 bpm.
+    public static void main(String[] args) {
+        int streamCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        double rate = 250;
+        float gain = 0.005f;
+        AtomicLong otherEvents = new AtomicLong();
+        WaveformStore store = new WaveformStore(event -> {
+            if (event.patientId.equals("P0") || event.patientId.equals("P1")) {
+                System.out.println(event.patientId + " at " + (event.timestamp - 1_700_000_000_000L) / 1000 + " s: "
+                        + event);
+            } else {
+                otherEvents.incrementAndGet();
+            }
+        });
+        Random random = new Random(7);
+        short[][] signals = new short[streamCount][];
+        int[] trueRate = new int[streamCount];
+        for (int s = 0; s < streamCount; s++) {
+            trueRate[s] = s == 1 ? 130 : 55 + random.nextInt(41);
+            signals[s] = syntheticEcg(random, seconds, rate, gain, trueRate[s], s == 0);
+        }
+        Stream[] streams = new Stream[streamCount];
+        for (int s = 0; s < streamCount; s++) {
+            streams[s] = store.open("P" + s, Kind.ECG, rate, gain);
+        }
+        long start0 = 1_700_000_000_000L;
+        int block = (int) rate;
+        long t0 = System.nanoTime();
+        for (int sec = 0; sec < seconds; sec++) {
+            for (int s = 0; s < streamCount; s++) {
+                streams[s].ingest(start0 + sec * 1000L, signals[s], sec * block, block);
+            }
+        }
+        long nanos = System.nanoTime() - t0;
+        long samples = (long) streamCount * seconds * block;
+        System.out.printf("%d samples in %d ms: %.1f M samples/s, %.0f ns per sample (%d streams at %.0f Hz"
+                        + " need %.1f M samples/s)%n", samples, nanos / 1_000_000, samples * 1000.0 / nanos,
+                (double) nanos / samples, streamCount, rate, streamCount * rate / 1e6);
+        double error = 0;
+        int measured = 0;
+        for (int s = 2; s < streamCount; s++) {
+            if (streams[s].heartRate() > 0) {
+                error += Math.abs(streams[s].heartRate() - trueRate[s]);
+                measured++;
+            }
+        }
+        System.out.printf("Heart rate of regular streams: %d of %d measured, mean error %.2f bpm;"
+                + " rhythm events on them: %d%n", measured, streamCount - 2, error / Math.max(1, measured), otherEvents.get());
+        System.out.println(store.stats());
+        List<Segment> last = streams[2].read(start0 + (seconds - 10) * 1000L, start0 + seconds * 1000L);
+        boolean same = last.size() == 1 && Arrays.equals(last.get(0).samples,
+                Arrays.copyOfRange(signals[2], (seconds - 10) * block, seconds * block));
+        System.out.println("Last 10 s of stream 2 read back " + (same ? "unchanged" : "DIFFERENT"));
+    }
+
+    // Sum-of-Gaussians ECG (P, Q, R, S, T waves) in ADC counts. Irregular streams draw each interval at random.
+    private static short[] syntheticEcg(Random random, int seconds, double rate, float gain, int bpm,
+                                        boolean irregular) {
+        int count = (int) (seconds * rate);
+        double[] mv = new double[count];
+        double[][] waves = {{-0.20, 0.025, 0.15}, {-0.03, 0.010, -0.15}, {0, 0.012, 1.2}, {0.03, 0.010, -0.25},
+                {0.30, 0.040, 0.30}};
+        double beat = random.nextDouble();
+        while (beat < seconds + 1) {
+            for (double[] w : waves) {
+                double center = beat + w[0];
+                int from = (int) Math.max(0, (center - 4 * w[1]) * rate);
+                int to = (int) Math.min(count, (center + 4 * w[1]) * rate + 1);
+                for (int i = from; i < to; i++) {
+                    double d = (i / rate - center) / w[1];
+                    mv[i] += w[2] * Math.exp(-0.5 * d * d);
+                }
+            }
+            double interval = 60.0 / bpm;
+            beat += irregular ? interval * (0.6 + 0.8 * random.nextDouble()) : interval * (1 + 0.03 * random.nextGaussian());
+        }
+        short[] samples = new short[count];
+        double phase = random.nextDouble() * 2 * Math.PI;
+        for (int i = 0; i < count; i++) {
+            double wander = 0.2 * Math.sin(2 * Math.PI * 0.3 * i / rate + phase);
+            samples[i] = (short) Math.round((mv[i] + wander + 0.02 * random.nextGaussian()) / gain);
+        }
+        return samples;
+    }
+}
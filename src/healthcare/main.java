@@ -7,6 +7,13 @@ import javax.mail.internet.MimeMessage;
 import javamailutil.JavaMailUtil;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.time.*;
 import java.time.temporal.ChronoUnit;
 import java.util.Timer;
@@ -20,11 +27,84 @@ import java.util.Properties;
 public class main {
 
     // Global databases for patients and doctors, used by the new notification/chat enhancements.
-    public static List<Patient> globalPatientDb = new ArrayList<>();
-    public static List<Doctor> globalDoctorDb = new ArrayList<>();
+    public static List<Patient> globalPatientDb = new SnapshotList<>();
+    public static List<Doctor> globalDoctorDb = new SnapshotList<>();
+
+    // Sequence-numbered log of vitals, appointment and notification changes that other components can
+    // subscribe to instead of polling (see ChangeFeed).
+    static final ChangeFeed changeFeed = new ChangeFeed();
+
+    // Full-text index over medical history records, feedback and prescriptions (see TextIndex).
+    static final TextIndex textIndex = new TextIndex();
+
+    // Drug interaction table checked whenever a prescription is written (see DrugInteractionEngine).
+    static final DrugInteractionEngine drugInteractions = DrugInteractionEngine.loadDefault();
+
+    // Dashboard summaries per patient, invalidated through the change feed (see PatientSummaryCache).
+    static final PatientSummaryCache patientSummaries = new PatientSummaryCache(changeFeed);
+
+    // Bounded ingest queue for device readings; sheds routine readings under overload but always admits those
+    // of patients with an active alert (see AdmissionControl).
+    static final AdmissionControl admission = new AdmissionControl();
+
+    // Emergency and panic alerts, tracked until a clinician acknowledges them and escalated along the on-call
+    // roster when nobody does (see EscalationEngine).
+    static final EscalationEngine escalations = new EscalationEngine(main::addNotification,
+            EscalationEngine.DEFAULT_ACK_TIMEOUT_MILLIS);
+
+    // Per-patient baselines of every vital; gradual shifts are raised to the on-call clinician like the
+    // threshold alerts, and written to the patient's inbox (see AnomalyDetector).
+    static final AnomalyDetector anomalyDetector = new AnomalyDetector(change -> {
+        admission.alertRaised(change.patientId);
+        escalations.raise(change.patientId, null, "Trend Alert: " + change);
+        addNotification(change.patientId, "Trend Alert: " + change);
+    });
+
+    // ECG/PPG waveforms streamed by bedside devices; new rhythm findings are raised to the on-call clinician
+    // and written to the patient's inbox (see WaveformStore).
+    static final WaveformStore waveforms = new WaveformStore(event -> {
+        admission.alertRaised(event.patientId);
+        escalations.raise(event.patientId, null, "Rhythm Alert: " + event);
+        addNotification(event.patientId, "Rhythm Alert: " + event);
+    });
+
+    // Server-Sent Events feed for dashboards; null unless started with a port argument (see LiveFeed).
+    static volatile LiveFeed liveFeed;
+
+    // Latency spans from a reading or alert to the delivered notification; off until enabled (see Tracing).
+    static final Tracing tracing = new Tracing();
+
+    // Gives the readings of the patient with this name or ID priority at admission (see AdmissionControl).
+    static void raiseIngestPriority(String patient) {
+        boolean found = false;
+        for (Patient p : globalPatientDb) {
+            if (p.getName().equalsIgnoreCase(patient) || p.getUserId().equalsIgnoreCase(patient)) {
+                admission.alertRaised(p.getUserId());
+                found = true;
+            }
+        }
+        if (!found) {
+            admission.alertRaised(patient);
+        }
+    }
 
     // Helper method to add a notification message.
+    // The span covers the whole delivery, so a slow inbox, change feed or live feed shows up in the alert latency.
     public static void addNotification(String recipient, String message) {
+        try (Tracing.Span span = tracing.child("main.addNotification")) {
+            span.attribute("recipient", recipient).markDelivered();
+            deliverNotification(recipient, message);
+        }
+    }
+
+    // Runs on many threads at once (see NotificationFanOut) without a global lock: the inboxes and alert
+    // lists are SnapshotLists, and the change feed and live feed synchronize internally.
+    private static void deliverNotification(String recipient, String message) {
+        changeFeed.notificationAdded(recipient, message);
+        LiveFeed feed = liveFeed;
+        if (feed != null) {
+            feed.alert(recipient, message);
+        }
         boolean found = false;
         for (Patient p : globalPatientDb) {
             if (p.getName().equalsIgnoreCase(recipient) || p.getUserId().equalsIgnoreCase(recipient)) {
@@ -55,6 +135,39 @@ public class main {
         }
     }
 
+    // The ID of the doctor with this name or ID, so alerts are tracked under one key per doctor.
+    static String doctorIdFor(String doctor) {
+        for (Doctor d : globalDoctorDb) {
+            if (d.getName().equalsIgnoreCase(doctor) || d.getUserId().equalsIgnoreCase(doctor)) {
+                return d.getUserId();
+            }
+        }
+        return doctor;
+    }
+
+    // What a doctor's live dashboard follows: the doctor's name, and the IDs and names of the patients with
+    // approved appointments (as in Doctor.viewPatientIDs). Null if there is no such doctor.
+    private static List<String> wardOf(List<Doctor> doctorDb, List<Patient> patientDb, String doctorId) {
+        Doctor doctor = findDoctor(doctorDb, doctorId);
+        if (doctor == null) {
+            return null;
+        }
+        List<String> keys = new ArrayList<>();
+        keys.add(doctor.getName());
+        int doctorRef = Appointment.DOCTOR_IDS.find(doctor.getName());
+        for (Appointment a : AppointmentManager.getAppointmentsGlobal()) {
+            if (a.isWithDoctor(doctorRef, doctor.getName()) && a.getStatusCode() == Appointment.Status.APPROVED
+                    && !keys.contains(a.getPatientId())) {
+                keys.add(a.getPatientId());
+                Patient patient = findPatient(patientDb, a.getPatientId());
+                if (patient != null) {
+                    keys.add(patient.getName());
+                }
+            }
+        }
+        return keys;
+    }
+
     // Searches for a patient with the given ID in the provided list.
     private static Patient findPatient(List<Patient> patientDb, String id) {
         for (Patient p : patientDb) {
@@ -129,42 +242,150 @@ public class main {
     // Patient class extends User and does: vital uploads, viewing doctor feedback, scheduling appointments.
     public static class Patient extends User {
         // Private fields
+        // The lists are SnapshotLists, so dashboards can read them while ingest and notifications append.
         private MedicalHistory medicalHistory;
         private List<Feedback> feedbacks;
         private List<Prescription> prescriptions;
         private List<Appointment> appointments;
 
         // New fields: Inbox for alerts/reminders and chat history.
-        private List<String> inboxMessages = new ArrayList<>();
-        private List<String> chatMessages = new ArrayList<>();
+        private SnapshotList<String> inboxMessages = new SnapshotList<>();
+        private List<String> chatMessages = new SnapshotList<>();
+        // Number of inbox messages the patient has already seen (messages before this index are read).
+        private int inboxReadCount;
+
+        // Set for patients loaded from a PatientStore. Until 'hydrated' is true, the lists above are empty
+        // and the real state is still on disk; every accessor calls ensureHydrated() first.
+        private PatientStore store;
+        private volatile boolean hydrated = true;
+        private volatile long lastAccess;
+        private final AtomicInteger pins = new AtomicInteger();
 
         // Constructor for Patient; it calls the super constructor of user base class using role "patient".
         public Patient(String name, String userId) {
             super(name, userId, "patient");
             this.medicalHistory = new MedicalHistory(userId);
-            this.feedbacks = new ArrayList<>();
-            this.prescriptions = new ArrayList<>();
-            this.appointments = new ArrayList<>();
+            this.feedbacks = new SnapshotList<>();
+            this.prescriptions = new SnapshotList<>();
+            this.appointments = new SnapshotList<>();
+        }
+
+        // Loads the patient's state from disk on first use (see PatientStore).
+        void ensureHydrated() {
+            if (store != null) {
+                lastAccess = System.currentTimeMillis();
+                if (!hydrated) {
+                    store.hydrate(this);
+                }
+            }
+        }
+
+        // Keeps the patient in memory until the matching unpin(): PatientStore never evicts a pinned patient.
+        // Pin before changing the patient through one of their lists, so the change cannot go into a copy
+        // that was already written back.
+        void pin() {
+            pins.incrementAndGet();
+            ensureHydrated();
+        }
+        void unpin() {
+            pins.decrementAndGet();
+        }
+        boolean isPinned() {
+            return pins.get() > 0;
+        }
+
+        // PatientStore hooks: attach marks the patient as still on disk, load fills in the state read from
+        // its segment, unload drops it again after it was written back.
+        void attach(PatientStore store, boolean onDisk) {
+            this.store = store;
+            this.hydrated = !onDisk;
+        }
+        boolean isHydrated() {
+            return hydrated;
+        }
+        long getLastAccess() {
+            return lastAccess;
+        }
+        int getInboxReadCount() {
+            return inboxReadCount;
+        }
+        void load(PatientSnapshot s, int readCount) {
+            MedicalHistory history = new MedicalHistory(getUserId());
+            history.setHistoryRecords(s.historyRecords);
+            medicalHistory = history;
+            inboxMessages = new SnapshotList<>(s.inboxMessages);
+            chatMessages = new SnapshotList<>(s.chatMessages);
+            feedbacks = new SnapshotList<>(s.feedbacks);
+            prescriptions = new SnapshotList<>(s.prescriptions);
+            appointments = new SnapshotList<>(s.appointments);
+            inboxReadCount = readCount;
+        }
+        void markHydrated() {
+            hydrated = true;
+        }
+        void unload() {
+            hydrated = false;
+            medicalHistory = new MedicalHistory(getUserId());
+            inboxMessages = new SnapshotList<>();
+            chatMessages = new SnapshotList<>();
+            feedbacks = new SnapshotList<>();
+            prescriptions = new SnapshotList<>();
+            appointments = new SnapshotList<>();
+            inboxReadCount = 0;
         }
 
         // New methods for notifications and chat.
         public void addInboxMessage(String message) {
-            inboxMessages.add(message);
+            pin();
+            try {
+                inboxMessages.add(message);
+            } finally {
+                unpin();
+            }
+        }
+        public List<String> getInboxMessages() {
+            ensureHydrated();
+            return inboxMessages;
+        }
+        // Messages that arrived since the patient last viewed the inbox.
+        public List<String> getUnreadInboxMessages() {
+            ensureHydrated();
+            List<String> inbox = inboxMessages.snapshot();
+            return inbox.subList(Math.min(inboxReadCount, inbox.size()), inbox.size());
+        }
+        public List<String> getChatMessages() {
+            ensureHydrated();
+            return chatMessages;
         }
         public void viewInbox() {
-            System.out.println("Inbox for " + this.getName() + ":");
-            if (inboxMessages.isEmpty()) {
-                System.out.println("No messages.");
-            } else {
-                for (String msg : inboxMessages) {
-                    System.out.println(msg);
+            pin();
+            try {
+                System.out.println("Inbox for " + this.getName() + ":");
+                // Show one point-in-time view, so alerts arriving meanwhile stay unread.
+                List<String> inbox = inboxMessages.snapshot();
+                if (inbox.isEmpty()) {
+                    System.out.println("No messages.");
+                } else {
+                    for (String msg : inbox) {
+                        System.out.println(msg);
+                    }
                 }
+                inboxReadCount = inbox.size();
+            } finally {
+                unpin();
             }
+            patientSummaries.invalidate(getUserId());
         }
         public void addChatMessage(String message) {
-            chatMessages.add(message);
+            pin();
+            try {
+                chatMessages.add(message);
+            } finally {
+                unpin();
+            }
         }
         public void viewChat() {
+            ensureHydrated();
             System.out.println("Chat messages for " + this.getName() + ":");
             if (chatMessages.isEmpty()) {
                 System.out.println("No chat messages.");
@@ -177,6 +398,7 @@ public class main {
 
         // Getters and setters for patient-specific fields.
         public MedicalHistory getMedicalHistory() {
+            ensureHydrated();
             return medicalHistory;
         }
         public void setMedicalHistory(MedicalHistory medicalHistory) {
@@ -184,24 +406,27 @@ public class main {
         }
 
         public List<Feedback> getFeedbacks() {
+            ensureHydrated();
             return feedbacks;
         }
         public void setFeedbacks(List<Feedback> feedbacks) {
-            this.feedbacks = feedbacks;
+            this.feedbacks = new SnapshotList<>(feedbacks);
         }
 
         public List<Prescription> getPrescriptions() {
+            ensureHydrated();
             return prescriptions;
         }
         public void setPrescriptions(List<Prescription> prescriptions) {
-            this.prescriptions = prescriptions;
+            this.prescriptions = new SnapshotList<>(prescriptions);
         }
 
         public List<Appointment> getAppointments() {
+            ensureHydrated();
             return appointments;
         }
         public void setAppointments(List<Appointment> appointments) {
-            this.appointments = appointments;
+            this.appointments = new SnapshotList<>(appointments);
         }
 
         // VITAL UPLOADS
@@ -213,12 +438,32 @@ public class main {
                 return;
             }
             // Save the vitals under the patient's ID.
-            vitalsDb.storeVitals(this.getUserId(), vitals);
+            try (Tracing.Span span = tracing.start("Patient.enterVitals")) {
+                span.attribute("patient.id", getUserId());
+                vitalsDb.storeVitals(this.getUserId(), vitals);
+            }
             // Add a record to the medical history for reference.
-            this.medicalHistory.addRecord("Vitals recorded: " + vitals);
+            pin();
+            try {
+                getMedicalHistory().addRecord("Vitals recorded: " + vitals);
+            } finally {
+                unpin();
+            }
             System.out.println("Vitals successfully recorded.");
         }
 
+        // Allocation-free variant for devices streaming readings at a high rate.
+        // The reading is written into the patient's off-heap ring buffer; nothing is printed and no
+        // per-reading medical history line is added (the readings are still shown by retrieveVitals).
+        public void enterVitals(long timestamp, int heartRate, int oxygenLevel, int systolic, int diastolic,
+                                double temperature, VitalsDatabase vitalsDb) {
+            try (Tracing.Span span = tracing.start("Patient.enterVitals")) {
+                span.attribute("patient.id", getUserId());
+                vitalsDb.ingestVitals(this.getUserId(), timestamp, heartRate, oxygenLevel, systolic, diastolic,
+                        temperature);
+            }
+        }
+
         // SCHEDULING APPOINTMENTS
         // Lets the patient manage appointments.
         // They can schedule a new appointment or view the status of existing ones.
@@ -251,13 +496,19 @@ public class main {
                         Appointment app = appointmentManager.requestAppointment(this.getUserId(), dName, date);
                         if (app != null) {
                             // Add the appointment to the patient's list and log it in medical history.
-                            this.appointments.add(app);
-                            this.medicalHistory.addRecord("Appointment requested: " + app);
+                            pin();
+                            try {
+                                getAppointments().add(app);
+                                getMedicalHistory().addRecord("Appointment requested: " + app);
+                            } finally {
+                                unpin();
+                            }
                             System.out.println("Appointment requested successfully.");
                         }
                         break;
                     case 2:
                         // Display the status of all appointments.
+                        List<Appointment> appointments = getAppointments();
                         if (appointments.isEmpty()) {
                             System.out.println("No appointments scheduled.");
                         } else {
@@ -282,6 +533,7 @@ public class main {
         // It shows which doctor provided feedback and what prescription was given.
         public void viewFeedbackAndPrescription() {
             System.out.println("\nFeedback and Prescriptions:");
+            ensureHydrated();
             if (feedbacks.isEmpty() && prescriptions.isEmpty()) {
                 System.out.println("No feedback or prescriptions available.");
             } else {
@@ -309,19 +561,25 @@ public class main {
         private List<Appointment> appointments;
 
         // New fields: Alerts received and chat history.
-        private List<String> alertsReceived = new ArrayList<>();
-        private List<String> chatMessages = new ArrayList<>();
+        private List<String> alertsReceived = new SnapshotList<>();
+        private List<String> chatMessages = new SnapshotList<>();
 
         // Constructor initializes a doctor with name and ID.
         public Doctor(String name, String userId) {
             super(name, userId, "doctor");
-            this.appointments = new ArrayList<>();
+            this.appointments = new SnapshotList<>();
         }
 
         // New methods for alerts and chat.
         public void addAlert(String alert) {
             alertsReceived.add(alert);
         }
+        public List<String> getAlertsReceived() {
+            return alertsReceived;
+        }
+        public List<String> getChatMessages() {
+            return chatMessages;
+        }
         public void viewAlerts() {
             System.out.println("Alerts for Dr. " + this.getName() + ":");
             if (alertsReceived.isEmpty()) {
@@ -351,7 +609,7 @@ public class main {
             return appointments;
         }
         public void setAppointments(List<Appointment> appointments) {
-            this.appointments = appointments;
+            this.appointments = new SnapshotList<>(appointments);
         }
 
         // VIEWINF PATIENT DATA
@@ -375,14 +633,31 @@ public class main {
             }
         }
 
+        // Shows the patient's dashboard summary (latest vitals, trend, prescriptions, upcoming appointments,
+        // unread alerts). Summaries are cached, so opening the same patient again is cheap.
+        public void viewPatientSummary(String patientId, VitalsDatabase vitalsDb, List<Patient> patientDb) {
+            Patient patient = findPatient(patientDb, patientId);
+            if (patient == null) {
+                System.out.println("Patient not found.");
+                return;
+            }
+            System.out.println(patientSummaries.get(patientId, () -> PatientSummaryCache.Summary.build(patient, vitalsDb)));
+        }
+
         // WRITING FEEDBACK
         // Allows the doctor to write feedback for a patient.
         public void writeFeedback(String feedbackText, Patient patient) {
             Feedback feedback = new Feedback(feedbackText, patient.getUserId(), this.getUserId());
-            // Add the feedback to the patient's list.
-            patient.getFeedbacks().add(feedback);
-            // Also log the feedback in the patient's medical history.
-            patient.getMedicalHistory().addRecord("Feedback given: " + feedbackText);
+            patient.pin();
+            try {
+                // Add the feedback to the patient's list.
+                patient.getFeedbacks().add(feedback);
+                textIndex.add(patient.getUserId(), TextIndex.Source.FEEDBACK, feedbackText);
+                // Also log the feedback in the patient's medical history.
+                patient.getMedicalHistory().addRecord("Feedback given: " + feedbackText);
+            } finally {
+                patient.unpin();
+            }
             System.out.println("Feedback successfully added.");
         }
 
@@ -390,10 +665,22 @@ public class main {
         public void providePrescription(String medicationName, String dosage, String schedule, Patient patient) {
             // Create a new prescription with the doctor's name.
             Prescription prescription = new Prescription(this.getName(), medicationName, dosage, schedule);
-            // Add the prescription to the patient's list.
-            patient.getPrescriptions().add(prescription);
-            // Log the prescription in the patient's medical history.
-            patient.getMedicalHistory().addRecord("Prescription provided: " + prescription);
+            // Warn about interactions with what the patient already takes; the doctor still decides.
+            for (DrugInteractionEngine.Interaction interaction : drugInteractions.check(medicationName, patient.getPrescriptions())) {
+                System.out.println("WARNING - drug interaction: " + interaction);
+                SystemLogs.addLog("Interaction warning for patient " + patient.getUserId() + ": " + interaction);
+            }
+            patient.pin();
+            try {
+                // Add the prescription to the patient's list.
+                patient.getPrescriptions().add(prescription);
+                textIndex.add(patient.getUserId(), TextIndex.Source.PRESCRIPTION, prescription.toString());
+                changeFeed.prescriptionAdded(patient.getUserId(), prescription.toString());
+                // Log the prescription in the patient's medical history.
+                patient.getMedicalHistory().addRecord("Prescription provided: " + prescription);
+            } finally {
+                patient.unpin();
+            }
             System.out.println("Prescription provided successfully.");
         }
 
@@ -402,10 +689,11 @@ public class main {
         public void viewPatientIDs() {
             // Instead of using HashSet, we use an ArrayList with a check to avoid duplicates.
             ArrayList<String> patientIds = new ArrayList<>();
+            int doctorRef = Appointment.DOCTOR_IDS.find(this.getName());
             // Loop through the global appointment list.
             for (Appointment a : AppointmentManager.getAppointmentsGlobal()) {
                 // Check if the appointment belongs to this doctor and is approved.
-                if (a.getDoctorName().equalsIgnoreCase(this.getName()) && a.getStatus().equalsIgnoreCase("approved")) {
+                if (a.isWithDoctor(doctorRef, this.getName()) && a.getStatusCode() == Appointment.Status.APPROVED) {
                     if (!patientIds.contains(a.getPatientId())) { // ensure uniqueness
                         patientIds.add(a.getPatientId());
                     }
@@ -422,7 +710,7 @@ public class main {
         }
 
         // Allows the doctor to manage a specific patient's data.
-        // The doctor can view patient data, write feedback, or provide a prescription.
+        // The doctor can view the patient's summary or full data, write feedback, or provide a prescription.
         public void managePatient(List<Patient> patientDb, VitalsDatabase vitalsDb, Scanner scanner) {
             boolean continueManage = true;
             System.out.print("Enter Patient ID to manage: ");
@@ -434,10 +722,12 @@ public class main {
             }
             while (continueManage) {
                 System.out.println("\nManage Patient " + patId + " Menu:");
-                System.out.println("1. View Patient Data");
-                System.out.println("2. Write Feedback");
-                System.out.println("3. Provide Prescription");
-                System.out.println("4. Back");
+                System.out.println("1. View Patient Summary");
+                System.out.println("2. View Patient Data");
+                System.out.println("3. Write Feedback");
+                System.out.println("4. Provide Prescription");
+                System.out.println("5. Set Alert Thresholds");
+                System.out.println("6. Back");
                 System.out.print("Enter choice: ");
                 int choice = 0;
                 try {
@@ -448,14 +738,17 @@ public class main {
                 }
                 switch (choice) {
                     case 1:
-                        viewPatientData(patId, vitalsDb, patientDb);
+                        viewPatientSummary(patId, vitalsDb, patientDb);
                         break;
                     case 2:
+                        viewPatientData(patId, vitalsDb, patientDb);
+                        break;
+                    case 3:
                         System.out.print("Enter feedback: ");
                         String feedback = scanner.nextLine();
                         writeFeedback(feedback, patient);
                         break;
-                    case 3:
+                    case 4:
                         System.out.print("Enter medication name: ");
                         String medName = scanner.nextLine();
                         System.out.print("Enter dosage: ");
@@ -464,7 +757,24 @@ public class main {
                         String schedule = scanner.nextLine();
                         providePrescription(medName, dosage, schedule, patient);
                         break;
-                    case 4:
+                    case 5:
+                        System.out.println("Current thresholds: " + vitalsDb.getAlertThresholds(patId));
+                        try {
+                            System.out.print("Alert when heart rate is above: ");
+                            int heartRateHigh = Integer.parseInt(scanner.nextLine().trim());
+                            System.out.print("Alert when SpO2 is below: ");
+                            int oxygenLow = Integer.parseInt(scanner.nextLine().trim());
+                            System.out.print("Alert when systolic pressure is above: ");
+                            int systolicHigh = Integer.parseInt(scanner.nextLine().trim());
+                            vitalsDb.setAlertThresholds(patId,
+                                    new BatchRuleEvaluator.Thresholds(heartRateHigh, oxygenLow, systolicHigh));
+                            SystemLogs.addLog("Dr. " + getName() + " set alert thresholds of " + patId);
+                            System.out.println("Thresholds updated.");
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Invalid thresholds: " + e.getMessage());
+                        }
+                        break;
+                    case 6:
                         continueManage = false;
                         break;
                     default:
@@ -478,9 +788,10 @@ public class main {
         // A would mean accpet and C cancel
         public void manageAppointments(AppointmentManager appointmentManager, Scanner scanner) {
             List<Appointment> pendingApps = new ArrayList<>();
+            int doctorRef = Appointment.DOCTOR_IDS.find(this.getName());
             // Loop through the global appointment list to find pending appointments for this doctor.
             for (Appointment a : AppointmentManager.getAppointmentsGlobal()) {
-                if (a.getDoctorName().equalsIgnoreCase(this.getName()) && a.getStatus().equalsIgnoreCase("pending")) {
+                if (a.isWithDoctor(doctorRef, this.getName()) && a.getStatusCode() == Appointment.Status.PENDING) {
                     pendingApps.add(a);
                 }
             }
@@ -510,11 +821,14 @@ public class main {
                     }
                     Appointment app = pendingApps.get(index - 1);
                     // Based on the action letter, update the appointment's status.
+                    String oldStatus = app.getStatus();
                     if (action.equalsIgnoreCase("A")) {
-                        app.setStatus("approved");
+                        app.setStatus(Appointment.Status.APPROVED);
+                        changeFeed.appointmentChanged(app, oldStatus);
                         SystemLogs.addLog("Appointment approved by Doctor " + this.getName() + ": " + app);
                     } else if (action.equalsIgnoreCase("C")) {
-                        app.setStatus("cancelled");
+                        app.setStatus(Appointment.Status.CANCELLED);
+                        changeFeed.appointmentChanged(app, oldStatus);
                         SystemLogs.addLog("Appointment cancelled by Doctor " + this.getName() + ": " + app);
                     } else {
                         System.out.println("Invalid action for appointment index " + index);
@@ -536,12 +850,12 @@ public class main {
         private static List<String> logs = new ArrayList<>();
 
         // Adds a log entry with the current date and time.
-        public static void addLog(String log) {
+        public static synchronized void addLog(String log) {
             logs.add(new Date() + ": " + log);
         }
 
         // Displays all log entries, or a message if there are none.
-        public static void displayLogs() {
+        public static synchronized void displayLogs() {
             if (logs.isEmpty()) {
                 System.out.println("No logs available.");
             } else {
@@ -613,6 +927,7 @@ public class main {
             } else if (action.equalsIgnoreCase("remove")) {
                 if (existing != null) {
                     patientDb.remove(existing);
+                    anomalyDetector.forget(existing.getUserId());
                     SystemLogs.addLog("Patient removed: " + patientObj);
                     System.out.println("Patient removed successfully.");
                 } else {
@@ -632,6 +947,20 @@ public class main {
             }
         }
 
+        // Adds, updates or removes many patients and doctors from a CSV or JSON file in one batch
+        // (see BulkImport for the format).
+        public void bulkImportUsers(Path file, List<Patient> patientDb, List<Doctor> doctorDb) {
+            try {
+                BulkImport.Result result = BulkImport.importFile(file, patientDb, doctorDb);
+                System.out.println("Import finished: " + result);
+                for (String error : result.errors) {
+                    System.out.println("  " + error);
+                }
+            } catch (IOException e) {
+                System.out.println("Import failed: " + e.getMessage());
+            }
+        }
+
         // Displays all registered Patient IDs and Doctor IDs.
         public void viewAllIDs(List<Patient> patientDb, List<Doctor> doctorDb) {
             System.out.println("\n--- Registered Patient IDs ---");
@@ -651,6 +980,102 @@ public class main {
                 }
             }
         }
+
+        // Prints one page (10 results) of the ranked full-text search over history, feedback and prescriptions.
+        // patientId may be null to search across all patients.
+        public void searchRecords(String query, String patientId, int page, List<Patient> patientDb,
+                                  VitalsDatabase vitalsDb) {
+            int pageSize = 10;
+            Patient patient = patientId == null ? null : findPatient(patientDb, patientId);
+            PatientStore store = vitalsDb.getPatientStore();
+            if (patient != null) {
+                // Indexes the patient's records if they were not loaded since startup.
+                patient.ensureHydrated();
+            } else if (patientId == null && store != null) {
+                // Indexes every patient not loaded since startup, from their segments.
+                store.indexAll();
+            }
+            TextIndex.Page results = textIndex.search(query, patientId, null, (page - 1) * pageSize, pageSize);
+            if (results.total == 0) {
+                System.out.println("No matching records.");
+                return;
+            }
+            System.out.println(results.total + " matching records (page " + page + "):");
+            for (TextIndex.Hit hit : results.hits) {
+                System.out.println(hit);
+            }
+        }
+
+        // Writes vitals, appointments and history in the given date range (empty = no limit) to the columnar
+        // export format, one file per partition (see ColumnarExport).
+        public void exportResearchData(Path dir, String fromDate, String toDate, List<Patient> patientDb,
+                                       VitalsDatabase vitalsDb) {
+            long fromTs;
+            long toTs;
+            try {
+                ZoneId zone = ZoneId.systemDefault();
+                fromTs = fromDate.isEmpty() ? Long.MIN_VALUE
+                        : LocalDate.parse(fromDate).atStartOfDay(zone).toInstant().toEpochMilli();
+                toTs = toDate.isEmpty() ? Long.MAX_VALUE
+                        : LocalDate.parse(toDate).plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            } catch (DateTimeException e) {
+                System.out.println("Invalid date: " + e.getMessage());
+                return;
+            }
+            try {
+                ColumnarExport.Result result = ColumnarExport.export(dir, patientDb,
+                        AppointmentManager.getAppointmentsGlobal(), vitalsDb, fromTs, toTs,
+                        Runtime.getRuntime().availableProcessors());
+                System.out.println("Export finished: " + result);
+            } catch (IOException e) {
+                System.out.println("Export failed: " + e.getMessage());
+            }
+        }
+
+        // Loads a new drug interaction table and re-checks every patient's prescriptions against it.
+        public void reloadDrugInteractions(Path table, List<Patient> patientDb, VitalsDatabase vitalsDb) {
+            try {
+                drugInteractions.load(table);
+            } catch (IOException e) {
+                System.out.println("Could not load interaction table: " + e.getMessage());
+                return;
+            }
+            Map<String, List<DrugInteractionEngine.Interaction>> flagged = drugInteractions.recheckAll(patientDb,
+                    vitalsDb.getPatientStore());
+            System.out.println("Table loaded (" + drugInteractions.medicationCount() + " medications). Patients with interactions: "
+                    + flagged.size());
+            for (Map.Entry<String, List<DrugInteractionEngine.Interaction>> e : flagged.entrySet()) {
+                System.out.println(e.getKey() + ": " + e.getValue());
+            }
+        }
+
+        // Prints cohort analytics over all patients' vitals: out-of-range share, fastest deteriorating
+        // patients over the last 6 hours, and the median heart rate / SpO2 for each hour of the day.
+        public void viewPopulationAnalytics(VitalsDatabase vitalsDb) {
+            VitalsAnalytics analytics = new VitalsAnalytics(vitalsDb);
+            System.out.println("\n--- Population Analytics ---");
+            System.out.printf("Patients currently out of range: %.1f%%%n", analytics.shareOutOfRange() * 100);
+            VitalsAnalytics.OverThresholds over = analytics.readingsOverThresholds(
+                    System.currentTimeMillis() - Duration.ofHours(24).toMillis());
+            System.out.println("Readings over the patient's alert thresholds (last 24 hours): " + over.readings
+                    + " from " + over.patients + " patients");
+            List<VitalsAnalytics.PatientTrend> worst = analytics.topDeteriorating(5, Duration.ofHours(6).toMillis());
+            System.out.println("Top deteriorating patients (last 6 hours):");
+            if (worst.isEmpty()) {
+                System.out.println("Not enough readings.");
+            } else {
+                for (VitalsAnalytics.PatientTrend t : worst) {
+                    System.out.println(t);
+                }
+            }
+            VitalsAnalytics.HourlyDistribution dist = analytics.hourlyDistribution(ZoneId.systemDefault());
+            System.out.println("Hour | Readings | Median HR | Median SpO2");
+            for (int h = 0; h < 24; h++) {
+                if (dist.readings(h) > 0) {
+                    System.out.printf("%02d   | %8d | %9d | %11d%n", h, dist.readings(h), dist.medianHeartRate(h), dist.medianOxygen(h));
+                }
+            }
+        }
     }
 
     // -------------------------------
@@ -711,46 +1136,335 @@ public class main {
 
     // Class to manage storage and retrieval of vital signs for patients.
     public static class VitalsDatabase {
-        // we use a list to store entries.
-        // Each entry is a pair represented by an array of two elements: [patientId, List<VitalSign>]
-        private List<Object[]> vitalsData;
+        // Defaults for tiered storage: readings older than an hour are compressed,
+        // and compressed blocks older than a day are moved to memory-mapped files.
+        public static final Duration DEFAULT_HOT_AGE = Duration.ofHours(1);
+        public static final Duration DEFAULT_COLD_AGE = Duration.ofDays(1);
+        private static final int MAX_BLOCK_ROWS = 4096;
+
+        // Each patient's readings are kept in a columnar VitalsSeries, looked up by patient ID.
+        private Map<String, VitalsSeries> vitalsData;
+
+        // Tiering settings; coldStore stays null until tiering is enabled.
+        private Duration hotAge = DEFAULT_HOT_AGE;
+        private Duration coldAge = DEFAULT_COLD_AGE;
+        private volatile ColdVitalsStore coldStore;
+        private Timer tieringTimer;
+
+        // Set when patients are loaded lazily; a patient's persisted vitals are read in before first use.
+        private volatile PatientStore patientStore;
+
+        // Alert thresholds set by doctors; patients without an entry use BatchRuleEvaluator.Thresholds.DEFAULT.
+        private final Map<String, BatchRuleEvaluator.Thresholds> alertThresholds = new ConcurrentHashMap<>();
+
+        // Set while the ingested readings are being recorded for replay (see VitalsRecording).
+        private final AtomicReference<VitalsRecording.Recorder> recorder = new AtomicReference<>();
 
-        // Constructor initializes the list.
+        // False for scratch databases: stored readings then stay out of the application-wide change feed,
+        // summary cache, anomaly detector and live feed.
+        private final boolean publish;
+
+        // Constructor initializes the map.
         public VitalsDatabase() {
-            vitalsData = new ArrayList<>();
+            this(true);
+        }
+
+        private VitalsDatabase(boolean publish) {
+            vitalsData = new ConcurrentHashMap<>();
+            this.publish = publish;
+        }
+
+        // A database whose readings have no side effects outside it (used by VitalsRecording replays and by
+        // shards, so their readings cannot raise a real alert or reach a dashboard).
+        static VitalsDatabase scratch() {
+            return new VitalsDatabase(false);
         }
 
-        // Stores a new set of vitals for a patient.
+        // Stores a new set of vitals for a patient, stamped with the current time.
         public void storeVitals(String patientId, VitalSign vitals) {
-            List<VitalSign> records = null;
-            // Search for existing record.
-            for (Object[] entry : vitalsData) {
-                if (entry[0].equals(patientId)) {
-                    records = (List<VitalSign>) entry[1];
-                    break;
+            storeVitals(patientId, vitals, System.currentTimeMillis());
+        }
+
+        // Stores a new set of vitals for a patient taken at the given time (epoch millis).
+        public void storeVitals(String patientId, VitalSign vitals, long timestamp) {
+            Patient owner = hydrate(patientId);
+            if (owner == null) {
+                vitalsData.computeIfAbsent(patientId, VitalsSeries::new).append(timestamp, vitals);
+            } else {
+                synchronized (owner) {
+                    // Evicted again since hydrate() returned: read the segment back before appending.
+                    owner.ensureHydrated();
+                    vitalsData.computeIfAbsent(patientId, VitalsSeries::new).append(timestamp, vitals);
+                }
+            }
+            int systolic = VitalsSeries.parseSystolic(vitals.getBloodPressure());
+            int diastolic = VitalsSeries.parseDiastolic(vitals.getBloodPressure());
+            record(patientId, timestamp, vitals.getHeartRate(), vitals.getOxygenLevel(), systolic, diastolic,
+                    vitals.getTemperature());
+            if (!publish) {
+                return;
+            }
+            changeFeed.vitalsStored(patientId, timestamp, vitals);
+            try (Tracing.Span span = tracing.child("AnomalyDetector.update")) {
+                span.attribute("patient.id", patientId);
+                anomalyDetector.update(patientId, timestamp, vitals.getHeartRate(), vitals.getOxygenLevel(),
+                        systolic, diastolic, vitals.getTemperature());
+            }
+            LiveFeed feed = liveFeed;
+            if (feed != null) {
+                feed.reading(patientId, timestamp, vitals.getHeartRate(), vitals.getOxygenLevel(), systolic,
+                        diastolic, vitals.getTemperature());
+            }
+        }
+
+        // Allocation-free ingest for device feeds: the reading goes straight into the patient's off-heap ring,
+        // without creating a VitalSign, blood pressure String or history entry.
+        // Use VitalsSeries.NO_VALUE for a missing systolic/diastolic value.
+        public void ingestVitals(String patientId, long timestamp, int heartRate, int oxygenLevel,
+                                 int systolic, int diastolic, double temperature) {
+            Patient owner = hydrate(patientId);
+            if (owner == null) {
+                vitalsData.computeIfAbsent(patientId, VitalsSeries::new)
+                        .ingest(timestamp, heartRate, oxygenLevel, systolic, diastolic, temperature);
+            } else {
+                synchronized (owner) {
+                    owner.ensureHydrated();
+                    vitalsData.computeIfAbsent(patientId, VitalsSeries::new)
+                            .ingest(timestamp, heartRate, oxygenLevel, systolic, diastolic, temperature);
                 }
             }
-            if (records == null) {
-                records = new ArrayList<>();
-                vitalsData.add(new Object[]{patientId, records});
+            record(patientId, timestamp, heartRate, oxygenLevel, systolic, diastolic, temperature);
+            if (!publish) {
+                return;
+            }
+            // Not published on the change feed (that would allocate), so the cached summary is dropped here.
+            patientSummaries.invalidate(patientId);
+            try (Tracing.Span span = tracing.child("AnomalyDetector.update")) {
+                span.attribute("patient.id", patientId);
+                anomalyDetector.update(patientId, timestamp, heartRate, oxygenLevel, systolic, diastolic, temperature);
+            }
+            LiveFeed feed = liveFeed;
+            if (feed != null) {
+                feed.reading(patientId, timestamp, heartRate, oxygenLevel, systolic, diastolic, temperature);
+            }
+        }
+
+        // Starts recording every reading stored from now on into the file, replacing any earlier recording.
+        public void startRecording(Path file) throws IOException {
+            VitalsRecording.Recorder previous = recorder.getAndSet(new VitalsRecording.Recorder(file));
+            if (previous != null) {
+                previous.close();
+            }
+            SystemLogs.addLog("Vitals recording started: " + file);
+        }
+
+        // Stops the recording; returns the number of readings recorded, or -1 if none was running.
+        public long stopRecording() throws IOException {
+            VitalsRecording.Recorder current = recorder.getAndSet(null);
+            if (current == null) {
+                return -1;
             }
-            records.add(vitals);
+            current.close();
+            SystemLogs.addLog("Vitals recording stopped after " + current.readings() + " readings");
+            return current.readings();
         }
 
-        // Retrieves all vital records for a given patient.
+        public boolean isRecording() {
+            return recorder.get() != null;
+        }
+
+        private void record(String patientId, long timestamp, int heartRate, int oxygenLevel, int systolic,
+                            int diastolic, double temperature) {
+            VitalsRecording.Recorder current = recorder.get();
+            if (current == null) {
+                return;
+            }
+            try {
+                // A recorder closed by startRecording or stopRecording meanwhile ignores the reading.
+                current.record(patientId, timestamp, heartRate, oxygenLevel, systolic, diastolic, temperature);
+            } catch (IOException e) {
+                // A failing recording must not lose the reading itself; stop recording instead. Only this
+                // recorder is stopped: a newer one started meanwhile keeps running.
+                if (recorder.compareAndSet(current, null)) {
+                    SystemLogs.addLog("Vitals recording stopped: " + e.getMessage());
+                    try {
+                        current.close();
+                    } catch (IOException closeFailed) {
+                        // The file is broken already; nothing more to save.
+                    }
+                }
+            }
+        }
+
+        // Retrieves all vital records for a given patient, whichever storage tier they are in.
         public String retrieveVitals(String patientId) {
-            for (Object[] entry : vitalsData) {
-                if (entry[0].equals(patientId)) {
-                    List<VitalSign> records = (List<VitalSign>) entry[1];
-                    //stringbuilder helps us modify a string whch is immutable without creaitng new string obj
-                    StringBuilder sb = new StringBuilder();
-                    for (VitalSign v : records) {
-                        sb.append(v.toString()).append("\n");
+            hydrate(patientId);
+            VitalsSeries series = vitalsData.get(patientId);
+            if (series == null) {
+                return null;
+            }
+            VitalsSeries.View view = series.view();
+            //stringbuilder helps us modify a string whch is immutable without creaitng new string obj
+            StringBuilder sb = new StringBuilder();
+            view.scan((row, ts, hr, ox, sys, dia, temp) ->
+                    sb.append(view.toVitalSign(row, hr, ox, sys, dia, temp).toString()).append("\n"));
+            return sb.toString();
+        }
+
+        // Drops all vitals of a patient, including their cold blocks (e.g. after the patient moved to another
+        // shard or was deleted).
+        public void removeVitals(String patientId) {
+            vitalsData.remove(patientId);
+            if (publish) {
+                anomalyDetector.forget(patientId);
+            }
+            ColdVitalsStore store = coldStore;
+            if (store != null) {
+                try {
+                    store.forget(patientId);
+                } catch (IOException e) {
+                    SystemLogs.addLog("Could not drop cold vitals of " + patientId + ": " + e.getMessage());
+                }
+            }
+        }
+
+        // Drops the patient's vitals from memory only (PatientStore eviction); their cold blocks stay on disk and
+        // are attached again when the patient is restored. The anomaly baselines go too; they are learned again
+        // from new readings.
+        void unloadVitals(String patientId) {
+            vitalsData.remove(patientId);
+            if (publish) {
+                anomalyDetector.forget(patientId);
+            }
+        }
+
+        // Returns the columnar series for a patient, or null if nothing was recorded yet.
+        VitalsSeries getSeries(String patientId) {
+            hydrate(patientId);
+            return vitalsData.get(patientId);
+        }
+
+        BatchRuleEvaluator.Thresholds getAlertThresholds(String patientId) {
+            return alertThresholds.getOrDefault(patientId, BatchRuleEvaluator.Thresholds.DEFAULT);
+        }
+
+        void setAlertThresholds(String patientId, BatchRuleEvaluator.Thresholds thresholds) {
+            alertThresholds.put(patientId, thresholds);
+        }
+
+        void attachStore(PatientStore store) {
+            patientStore = store;
+        }
+
+        PatientStore getPatientStore() {
+            return patientStore;
+        }
+
+        // Reads the patient's persisted state in if needed. Returns the patient whose lock guards the append
+        // against eviction (PatientStore writes the segment and drops the vitals under it), or null when
+        // patients are not loaded lazily.
+        private Patient hydrate(String patientId) {
+            PatientStore store = patientStore;
+            return store == null ? null : store.access(patientId);
+        }
+
+        // Puts one reading into memory without publishing it to the change feed, anomaly detector, live feed
+        // or recording (used for replicated writes, which were published where they were first stored).
+        void restoreVitals(String patientId, long timestamp, VitalSign vitals) {
+            vitalsData.computeIfAbsent(patientId, VitalsSeries::new).append(timestamp, vitals);
+        }
+
+        // Puts persisted readings back into memory without publishing them on the change feed (used by
+        // PatientStore when a patient is hydrated, and for patient snapshots). If the cold store still holds
+        // blocks of the patient, those are attached first and the readings they cover are skipped.
+        void restoreVitals(String patientId, List<Long> timestamps, List<VitalSign> vitals) {
+            VitalsSeries existing = vitalsData.get(patientId);
+            if (existing == null) {
+                VitalsSeries series = readSeries(patientId, timestamps, vitals);
+                if (series.size() > 0) {
+                    vitalsData.put(patientId, series);
+                }
+                return;
+            }
+            for (int i = 0; i < vitals.size(); i++) {
+                existing.append(timestamps.get(i), vitals.get(i));
+            }
+        }
+
+        // Builds a series from persisted readings (and the patient's cold blocks) without putting it into
+        // memory; population analytics use it for patients that are on disk.
+        VitalsSeries readSeries(String patientId, List<Long> timestamps, List<VitalSign> vitals) {
+            VitalsSeries series = new VitalsSeries(patientId);
+            int from = 0;
+            ColdVitalsStore store = coldStore;
+            if (store != null) {
+                from = (int) Math.min(series.attachCold(store), vitals.size());
+            }
+            for (int i = from; i < vitals.size(); i++) {
+                series.append(timestamps.get(i), vitals.get(i));
+            }
+            return series;
+        }
+
+        // Returns every patient's series that is in memory; the population analytics add the patients on disk
+        // (see PatientStore.onDiskPatients).
+        Collection<VitalsSeries> allSeries() {
+            return vitalsData.values();
+        }
+
+        // Turns on automatic tiering: every so often, readings older than hotAge are compressed into
+        // immutable blocks and blocks older than coldAge are moved to memory-mapped segments in coldDir.
+        public synchronized void enableTiering(Path coldDir, Duration hotAge, Duration coldAge) throws IOException {
+            if (coldAge.compareTo(hotAge) < 0) {
+                throw new IllegalArgumentException("Cold age must not be shorter than hot age.");
+            }
+            this.hotAge = hotAge;
+            this.coldAge = coldAge;
+            if (coldStore == null || !coldStore.getDirectory().equals(coldDir)) {
+                coldStore = new ColdVitalsStore(coldDir);
+            }
+            if (tieringTimer != null) {
+                tieringTimer.cancel();
+            }
+            // Check a few times per hot period so readings don't overstay much; at most once a second.
+            long period = Math.max(1000L, hotAge.toMillis() / 4);
+            tieringTimer = new Timer("vitals-tiering", true);
+            tieringTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        runTiering();
+                    } catch (RuntimeException e) {
+                        System.out.println("Vitals tiering failed: " + e.getMessage());
                     }
-                    return sb.toString();
                 }
+            }, period, period);
+        }
+
+        // Stops the background tiering; data already moved stays where it is.
+        public synchronized void disableTiering() {
+            if (tieringTimer != null) {
+                tieringTimer.cancel();
+                tieringTimer = null;
             }
-            return null;
+        }
+
+        // Runs one tiering pass over all patients and returns how many readings left the hot tier.
+        public long runTiering() {
+            ColdVitalsStore store;
+            long hotCutoff;
+            long coldCutoff;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                store = coldStore;
+                hotCutoff = now - hotAge.toMillis();
+                coldCutoff = now - coldAge.toMillis();
+            }
+            long moved = 0;
+            for (VitalsSeries series : vitalsData.values()) {
+                moved += series.compact(hotCutoff, coldCutoff, MAX_BLOCK_ROWS, store);
+            }
+            return moved;
         }
     }
 
@@ -759,73 +1473,202 @@ public class main {
     // -------------------------------
 
     // Class representing an appointment with its details.
+    // It is stored compactly: the status is an enum, the date an epoch day and the doctor and patient
+    // are int IDs from DOCTOR_IDS / PATIENT_IDS, so filters are plain integer compares.
+    // Text is kept only where the compact form would lose it: a date not in YYYY-MM-DD, a status other than
+    // the three known ones, a doctor name spelled differently from the first spelling interned, or a name the
+    // ID tables could not take (null, or the table is full).
+    // The String getters and setters are kept for display and for older callers.
     public static class Appointment {
-        private String appointmentDate;
-        private String doctorName;
-        private String patientId;
-        private String status;
+        // Marks a date that was not entered as YYYY-MM-DD; the text is then kept in rawDate.
+        public static final int NO_DATE = Integer.MIN_VALUE;
+
+        // Doctors are matched by name ignoring case, patients by their exact user ID.
+        static final SurrogateIds DOCTOR_IDS = new SurrogateIds(true);
+        static final SurrogateIds PATIENT_IDS = new SurrogateIds(false);
+
+        public enum Status {
+            // OTHER is any status text besides the three known ones; the appointment keeps the text.
+            PENDING("pending"), APPROVED("approved"), CANCELLED("cancelled"), OTHER("other");
+
+            private final String label;
+
+            Status(String label) {
+                this.label = label;
+            }
+
+            public String label() {
+                return label;
+            }
+
+            // Accepts the status words used throughout the system, in any case; anything else is OTHER.
+            public static Status parse(String text) {
+                for (Status s : values()) {
+                    if (s != OTHER && s.label.equalsIgnoreCase(text)) {
+                        return s;
+                    }
+                }
+                return OTHER;
+            }
+        }
+
+        private int epochDay;
+        private String rawDate;
+        private int doctorRef;
+        // Set when the doctor name differs from DOCTOR_IDS.nameOf(doctorRef), or doctorRef is NONE.
+        private String doctorText;
+        private int patientRef;
+        // Set when patientRef is NONE.
+        private String patientText;
+        // Volatile so a status change by the doctor is seen by dashboard threads reading the appointment.
+        private volatile Status status;
+        // The original text when status is OTHER.
+        private volatile String statusText;
 
         // Constructor initializes appointment details.
         public Appointment(String appointmentDate, String doctorName, String patientId, String status) {
-            this.appointmentDate = appointmentDate;
-            this.doctorName = doctorName;
-            this.patientId = patientId;
+            this(appointmentDate, doctorName, patientId, Status.parse(status), status);
+        }
+
+        public Appointment(String appointmentDate, String doctorName, String patientId, Status status) {
+            this.epochDay = toEpochDay(appointmentDate);
+            this.rawDate = epochDay == NO_DATE ? appointmentDate : null;
+            assignDoctor(doctorName);
+            assignPatient(patientId);
+            this.status = status;
+        }
+
+        // Parses the status text, keeping it when it is not one of the known words.
+        private Appointment(String appointmentDate, String doctorName, String patientId, Status status,
+                            String statusText) {
+            this(appointmentDate, doctorName, patientId, status);
+            this.statusText = status == Status.OTHER ? statusText : null;
+        }
+
+        // Converts a YYYY-MM-DD date to an epoch day, or NO_DATE if it is not in that format.
+        public static int toEpochDay(String date) {
+            try {
+                return (int) LocalDate.parse(date).toEpochDay();
+            } catch (RuntimeException e) {
+                return NO_DATE;
+            }
+        }
+
+        // Compact accessors used by the filters.
+        public int getEpochDay() {
+            return epochDay;
+        }
+
+        public int getDoctorRef() {
+            return doctorRef;
+        }
+
+        public int getPatientRef() {
+            return patientRef;
+        }
+
+        public Status getStatusCode() {
+            return status;
+        }
+        public void setStatus(Status status) {
+            this.statusText = null;
             this.status = status;
         }
 
+        // True if the appointment is with the doctor. 'doctorRef' is DOCTOR_IDS.find(doctorName), looked up
+        // once by the caller; names that have no ID are compared as text.
+        public boolean isWithDoctor(int doctorRef, String doctorName) {
+            if (doctorRef != SurrogateIds.NONE) {
+                return this.doctorRef == doctorRef;
+            }
+            return this.doctorRef == SurrogateIds.NONE && doctorText != null && doctorText.equalsIgnoreCase(doctorName);
+        }
+
+        // Same as isWithDoctor for the patient; 'patientRef' is PATIENT_IDS.find(patientId).
+        public boolean isForPatient(int patientRef, String patientId) {
+            if (patientRef != SurrogateIds.NONE) {
+                return this.patientRef == patientRef;
+            }
+            return this.patientRef == SurrogateIds.NONE && patientText != null && patientText.equals(patientId);
+        }
+
+        // True if the appointment is on the given date (compared as epoch days when the date is well-formed).
+        public boolean isOn(String date) {
+            int day = toEpochDay(date);
+            return day != NO_DATE ? day == epochDay : rawDate != null && rawDate.equals(date);
+        }
+
         // Getters and setters for appointment details.
         public String getAppointmentDate() {
-            return appointmentDate;
+            return epochDay != NO_DATE ? LocalDate.ofEpochDay(epochDay).toString() : rawDate;
         }
         public void setAppointmentDate(String appointmentDate) {
-            this.appointmentDate = appointmentDate;
+            this.epochDay = toEpochDay(appointmentDate);
+            this.rawDate = epochDay == NO_DATE ? appointmentDate : null;
         }
 
         public String getDoctorName() {
-            return doctorName;
+            return doctorText != null || doctorRef == SurrogateIds.NONE ? doctorText : DOCTOR_IDS.nameOf(doctorRef);
         }
         public void setDoctorName(String doctorName) {
-            this.doctorName = doctorName;
+            assignDoctor(doctorName);
+        }
+
+        private void assignDoctor(String doctorName) {
+            int ref = DOCTOR_IDS.intern(doctorName);
+            this.doctorText = ref == SurrogateIds.NONE || !DOCTOR_IDS.nameOf(ref).equals(doctorName) ? doctorName : null;
+            this.doctorRef = ref;
         }
 
         public String getPatientId() {
-            return patientId;
+            return patientRef == SurrogateIds.NONE ? patientText : PATIENT_IDS.nameOf(patientRef);
         }
         public void setPatientId(String patientId) {
-            this.patientId = patientId;
+            assignPatient(patientId);
+        }
+
+        private void assignPatient(String patientId) {
+            int ref = PATIENT_IDS.intern(patientId);
+            this.patientText = ref == SurrogateIds.NONE ? patientId : null;
+            this.patientRef = ref;
         }
 
         public String getStatus() {
-            return status;
+            String text = statusText;
+            return status == Status.OTHER && text != null ? text : status.label();
         }
         public void setStatus(String status) {
-            this.status = status;
+            Status parsed = Status.parse(status);
+            this.statusText = parsed == Status.OTHER ? status : null;
+            this.status = parsed;
         }
 
         // Returns a readable string for the appointment.
         @Override
         public String toString() {
-            return "Appointment with Dr. " + doctorName + " on " + appointmentDate + ", Status: " + status;
+            return "Appointment with Dr. " + getDoctorName() + " on " + getAppointmentDate() + ", Status: " + getStatus();
         }
     }
 
     // Class to handle appointment scheduling, approval, and cancellation.
     public static class AppointmentManager {
         // Global list to store all appointments so that changes are seen by both patients and doctors.
-        private static List<Appointment> appointmentsGlobal = new ArrayList<>();
+        // Loops over it see a snapshot, so requests can be added while doctors scan it.
+        private static List<Appointment> appointmentsGlobal = new SnapshotList<>();
 
         // Getter and setter for the global appointments list.
         public static List<Appointment> getAppointmentsGlobal() {
             return appointmentsGlobal;
         }
         public static void setAppointmentsGlobal(List<Appointment> appointmentsGlobal) {
-            AppointmentManager.appointmentsGlobal = appointmentsGlobal;
+            AppointmentManager.appointmentsGlobal = new SnapshotList<>(appointmentsGlobal);
         }
 
         // Creates a new appointment and adds it to the global list.
         public Appointment requestAppointment(String patientId, String doctorName, String date) {
-            Appointment app = new Appointment(date, doctorName, patientId, "pending");
+            Appointment app = new Appointment(date, doctorName, patientId, Appointment.Status.PENDING);
             appointmentsGlobal.add(app);
+            changeFeed.appointmentChanged(app, null);
 
             // Schedule a reminder 1 day before the appointment
             try {
@@ -848,32 +1691,42 @@ public class main {
             return app;
         }
 
-        // Finds an appointment matching the details and sets its status to approved.
-        public void approveAppointment(String patientId, String doctorName, String date) {
+        // Finds the appointment with these details, or returns null. The lookup compares int IDs and epoch days.
+        private static Appointment findAppointment(String patientId, String doctorName, String date) {
+            int patientRef = Appointment.PATIENT_IDS.find(patientId);
+            int doctorRef = Appointment.DOCTOR_IDS.find(doctorName);
+            int day = Appointment.toEpochDay(date);
             for (Appointment app : appointmentsGlobal) {
-                if (app.getPatientId().equals(patientId) && app.getDoctorName().equals(doctorName)
-                        && app.getAppointmentDate().equals(date)) {
-                    app.setStatus("approved");
-                    return;
+                if (app.isForPatient(patientRef, patientId) && app.isWithDoctor(doctorRef, doctorName)
+                        && (day != Appointment.NO_DATE ? app.getEpochDay() == day : app.isOn(date))) {
+                    return app;
                 }
             }
-            System.out.println("Appointment not found to approve.");
+            return null;
+        }
+
+        // Finds an appointment matching the details and sets its status to approved.
+        public void approveAppointment(String patientId, String doctorName, String date) {
+            Appointment app = findAppointment(patientId, doctorName, date);
+            if (app == null) {
+                System.out.println("Appointment not found to approve.");
+                return;
+            }
+            String oldStatus = app.getStatus();
+            app.setStatus(Appointment.Status.APPROVED);
+            changeFeed.appointmentChanged(app, oldStatus);
         }
 
         // Finds an appointment matching the details and sets its status to cancelled.
         public void cancelAppointment(String patientId, String doctorName, String date) {
-            boolean found = false;
-            for (Appointment app : appointmentsGlobal) {
-                if (app.getPatientId().equals(patientId) && app.getDoctorName().equals(doctorName)
-                        && app.getAppointmentDate().equals(date)) {
-                    app.setStatus("cancelled");
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
+            Appointment app = findAppointment(patientId, doctorName, date);
+            if (app == null) {
                 System.out.println("Appointment not found to cancel.");
+                return;
             }
+            String oldStatus = app.getStatus();
+            app.setStatus(Appointment.Status.CANCELLED);
+            changeFeed.appointmentChanged(app, oldStatus);
         }
     }
 
@@ -977,11 +1830,13 @@ public class main {
     public static class MedicalHistory {
         private String patientId;
         private List<String> historyRecords;
+        // Where new records are indexed for search; shards keep their own (see LocalPatientShard).
+        private TextIndex index = textIndex;
 
         // Constructor creates an empty history for a patient.
         public MedicalHistory(String patientId) {
             this.patientId = patientId;
-            this.historyRecords = new ArrayList<>();
+            this.historyRecords = new SnapshotList<>();
         }
 
         // Getters and setters for medical history fields.
@@ -996,12 +1851,18 @@ public class main {
             return historyRecords;
         }
         public void setHistoryRecords(List<String> historyRecords) {
-            this.historyRecords = historyRecords;
+            this.historyRecords = new SnapshotList<>(historyRecords);
+        }
+
+        void indexInto(TextIndex index) {
+            this.index = index;
         }
 
         // Adds a new record to the patient's history.
         public void addRecord(String record) {
-            historyRecords.add(new Date() + ": " + record);
+            String entry = new Date() + ": " + record;
+            historyRecords.add(entry);
+            index.add(patientId, TextIndex.Source.HISTORY, entry);
         }
 
         // Prints out the entire medical history.
@@ -1024,19 +1885,77 @@ public class main {
         Scanner scanner = new Scanner(System.in);
         VitalsDatabase vitalsDb = new VitalsDatabase();
         AppointmentManager appointmentManager = new AppointmentManager();
-        List<Patient> patientDb = new ArrayList<>();
-        List<Doctor> doctorDb = new ArrayList<>();
+        List<Patient> patientDb = new SnapshotList<>();
+        List<Doctor> doctorDb = new SnapshotList<>();
+
+        // With a data directory argument, users are loaded from (and saved back to) that directory.
+        // Only the user directory is read now; each patient's records are loaded when first used.
+        PatientStore store = null;
+        if (args.length > 0) {
+            // Aged readings are compressed and then moved out of the heap into <dataDir>/cold. Enabled before
+            // any patient is loaded, so their cold blocks from earlier runs are attached again.
+            try {
+                vitalsDb.enableTiering(Path.of(args[0], "cold"), VitalsDatabase.DEFAULT_HOT_AGE,
+                        VitalsDatabase.DEFAULT_COLD_AGE);
+            } catch (IOException e) {
+                System.out.println("Could not enable vitals tiering: " + e.getMessage());
+            }
+            try {
+                store = PatientStore.open(Path.of(args[0]), vitalsDb, PatientStore.DEFAULT_MAX_RESIDENT,
+                        patientDb, doctorDb);
+            } catch (IOException e) {
+                System.out.println("Could not load data from " + args[0] + ": " + e.getMessage());
+            }
+        }
 
         // Add a fake patient and doctor for testing.
-        Patient patient1 = new Patient("Gulwarina", "P001");
-        Doctor doctor1 = new Doctor("Muska Saleem", "D001");
-        patientDb.add(patient1);
-        doctorDb.add(doctor1);
+        if (patientDb.isEmpty() && doctorDb.isEmpty()) {
+            Patient patient1 = new Patient("Gulwarina", "P001");
+            Doctor doctor1 = new Doctor("Muska Saleem", "D001");
+            patientDb.add(patient1);
+            doctorDb.add(doctor1);
+        }
 
         // Populate global databases used by the new notification/chat enhancements.
         globalPatientDb = patientDb;
         globalDoctorDb = doctorDb;
 
+        // With a port as the third argument, dashboards can follow readings and alerts live (see LiveFeed).
+        // The feed has no authentication, so it only listens on the loopback interface.
+        if (args.length > 2) {
+            try {
+                liveFeed = new LiveFeed(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                        Integer.parseInt(args[2])),
+                        doctorId -> wardOf(doctorDb, patientDb, doctorId), id -> {
+                            Patient patient = findPatient(patientDb, id);
+                            return patient == null ? null : patient.getName();
+                        }, LiveFeed.DEFAULT_MAX_SUBSCRIBERS);
+                System.out.println("Live feed listening on port " + liveFeed.getPort());
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("Could not start the live feed on port " + args[2] + ": " + e.getMessage());
+            }
+        }
+
+        // Until an administrator sets a roster, every doctor is on call in the order they were added.
+        List<String> doctorIds = new ArrayList<>();
+        for (Doctor d : doctorDb) {
+            doctorIds.add(d.getUserId());
+        }
+        escalations.setRoster(doctorIds, null);
+
+        // With a port as the second argument, wearables can stream vitals and waveforms over TCP (see
+        // DeviceGateway).
+        DeviceGateway gateway = null;
+        if (args.length > 1) {
+            try {
+                gateway = new DeviceGateway(new InetSocketAddress(Integer.parseInt(args[1])),
+                        id -> findPatient(patientDb, id), vitalsDb, waveforms, admission);
+                System.out.println("Device gateway listening on port " + gateway.getPort());
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("Could not start the device gateway on port " + args[1] + ": " + e.getMessage());
+            }
+        }
+
         boolean mainLoop = true;
         while (mainLoop) {
             System.out.println("\n=== Healthcare Management System ===");
@@ -1141,7 +2060,8 @@ public class main {
                         System.out.println("3. Manage Appointments");
                         System.out.println("4. View Alerts");
                         System.out.println("5. View Chat Messages");
-                        System.out.println("6. Back to Main Menu");
+                        System.out.println("6. Acknowledge Alert");
+                        System.out.println("7. Back to Main Menu");
                         System.out.print("Enter choice: ");
                         int dChoice = 0;
                         try {
@@ -1167,6 +2087,28 @@ public class main {
                                 currentDoctor.viewChat();
                                 break;
                             case 6:
+                                List<EscalationEngine.Alert> openAlerts =
+                                        escalations.openAlertsFor(currentDoctor.getUserId());
+                                if (openAlerts.isEmpty()) {
+                                    System.out.println("No open alerts.");
+                                    break;
+                                }
+                                for (EscalationEngine.Alert alert : openAlerts) {
+                                    System.out.println(alert);
+                                }
+                                System.out.print("Enter Alert ID to acknowledge: ");
+                                try {
+                                    long alertId = Long.parseLong(scanner.nextLine().trim().replace("#", ""));
+                                    if (escalations.acknowledge(alertId, currentDoctor.getUserId())) {
+                                        System.out.println("Alert #" + alertId + " acknowledged.");
+                                    } else {
+                                        System.out.println("No open alert with that ID.");
+                                    }
+                                } catch (NumberFormatException e) {
+                                    System.out.println("Invalid input.");
+                                }
+                                break;
+                            case 7:
                                 doctorMenu = false;
                                 break;
                             default:
@@ -1184,7 +2126,18 @@ public class main {
                         System.out.println("2. Manage Patients");
                         System.out.println("3. View System Logs");
                         System.out.println("4. View All IDs");
-                        System.out.println("5. Back to Main Menu");
+                        System.out.println("5. View Population Analytics");
+                        System.out.println("6. Search Medical Records");
+                        System.out.println("7. Reload Drug Interaction Table");
+                        System.out.println("8. Export Research Extract");
+                        System.out.println("9. Bulk Import Users");
+                        System.out.println("10. Register Wearable Device");
+                        System.out.println("11. View Ingest Metrics");
+                        System.out.println("12. Set On-Call Roster");
+                        System.out.println("13. Start/Stop Vitals Recording");
+                        System.out.println("14. Latency Tracing");
+                        System.out.println("15. Notification Fan-Out On/Off");
+                        System.out.println("16. Back to Main Menu");
                         System.out.print("Enter choice: ");
                         int aChoice = 0;
                         try {
@@ -1221,6 +2174,123 @@ public class main {
                                 admin.viewAllIDs(patientDb, doctorDb);
                                 break;
                             case 5:
+                                admin.viewPopulationAnalytics(vitalsDb);
+                                break;
+                            case 6:
+                                System.out.print("Enter search (use quotes for phrases, e.g. \"chest pain\"): ");
+                                String query = scanner.nextLine();
+                                System.out.print("Enter Patient ID (leave empty for all patients): ");
+                                String searchId = scanner.nextLine().trim();
+                                admin.searchRecords(query, searchId.isEmpty() ? null : searchId, 1, patientDb,
+                                        vitalsDb);
+                                break;
+                            case 7:
+                                System.out.print("Enter path of the interaction table (CSV): ");
+                                String tablePath = scanner.nextLine().trim();
+                                admin.reloadDrugInteractions(Path.of(tablePath), patientDb, vitalsDb);
+                                break;
+                            case 8:
+                                System.out.print("Enter export directory: ");
+                                String exportDir = scanner.nextLine().trim();
+                                System.out.print("Enter start date (YYYY-MM-DD, leave empty for all): ");
+                                String fromDate = scanner.nextLine().trim();
+                                System.out.print("Enter end date, inclusive (YYYY-MM-DD, leave empty for all): ");
+                                String toDate = scanner.nextLine().trim();
+                                admin.exportResearchData(Path.of(exportDir), fromDate, toDate, patientDb, vitalsDb);
+                                break;
+                            case 9:
+                                System.out.print("Enter path of the user file (CSV or JSON): ");
+                                String importPath = scanner.nextLine().trim();
+                                admin.bulkImportUsers(Path.of(importPath), patientDb, doctorDb);
+                                break;
+                            case 10:
+                                if (gateway == null) {
+                                    System.out.println("The device gateway is not running (start with a port argument).");
+                                    break;
+                                }
+                                System.out.print("Enter Device ID: ");
+                                String deviceId = scanner.nextLine().trim();
+                                System.out.print("Enter Patient ID: ");
+                                String devicePatientId = scanner.nextLine().trim();
+                                if (findPatient(patientDb, devicePatientId) == null) {
+                                    System.out.println("Patient not found.");
+                                    break;
+                                }
+                                System.out.println("Device token (shown only once): "
+                                        + gateway.registerDevice(deviceId, devicePatientId));
+                                break;
+                            case 11:
+                                if (gateway != null) {
+                                    System.out.println(gateway.stats());
+                                }
+                                System.out.println(admission.metrics());
+                                if (liveFeed != null) {
+                                    System.out.println(liveFeed.stats());
+                                }
+                                break;
+                            case 12:
+                                System.out.println("Current roster: " + escalations.onCall() + ", charge nurse "
+                                        + escalations.chargeNurse());
+                                System.out.print("Enter on-call Doctor IDs in escalation order (comma separated): ");
+                                List<String> roster = new ArrayList<>();
+                                for (String id : scanner.nextLine().split(",")) {
+                                    if (!id.isBlank()) {
+                                        roster.add(doctorIdFor(id.trim()));
+                                    }
+                                }
+                                System.out.print("Enter charge nurse (name or ID, leave empty for none): ");
+                                escalations.setRoster(roster, scanner.nextLine().trim());
+                                System.out.println("Roster updated.");
+                                break;
+                            case 13:
+                                try {
+                                    if (vitalsDb.isRecording()) {
+                                        System.out.println("Recording stopped after " + vitalsDb.stopRecording()
+                                                + " readings. Replay with: java -cp bin healthcare.VitalsRecording"
+                                                + " replay <file>");
+                                        break;
+                                    }
+                                    System.out.print("Enter recording file: ");
+                                    vitalsDb.startRecording(Path.of(scanner.nextLine().trim()));
+                                    System.out.println("Recording started; choose this option again to stop.");
+                                } catch (IOException e) {
+                                    System.out.println("Recording failed: " + e.getMessage());
+                                }
+                                break;
+                            case 14:
+                                System.out.print(tracing.report());
+                                System.out.print("Enter on [1 in N traces], off, or a file to export the spans to"
+                                        + " (leave empty to go back): ");
+                                String traceCommand = scanner.nextLine().trim();
+                                try {
+                                    if (traceCommand.startsWith("on")) {
+                                        String rate = traceCommand.substring(2).trim();
+                                        tracing.setEnabled(true, rate.isEmpty() ? 1 : Integer.parseInt(rate));
+                                        System.out.println("Tracing on.");
+                                    } else if (traceCommand.equals("off")) {
+                                        tracing.setEnabled(false, 1);
+                                        System.out.println("Tracing off.");
+                                    } else if (!traceCommand.isEmpty()) {
+                                        System.out.println(tracing.export(Path.of(traceCommand))
+                                                + " spans written in OTLP/JSON format.");
+                                    }
+                                } catch (IllegalArgumentException | IOException e) {
+                                    System.out.println("Tracing command failed: " + e.getMessage());
+                                }
+                                break;
+                            case 15:
+                                if (NotificationService.fanOut == null) {
+                                    NotificationService.enableFanOut(new NotificationFanOut());
+                                    System.out.println("Notification fan-out on: multi-recipient alerts are sent"
+                                            + " concurrently.");
+                                } else {
+                                    NotificationService.disableFanOut();
+                                    System.out.println("Notification fan-out off: alerts are sent one at a time.");
+                                }
+                                SystemLogs.addLog("Notification fan-out turned "
+                                        + (NotificationService.fanOut == null ? "off" : "on"));
+                                break;
+                            case 16:
                                 adminMenu = false;
                                 break;
                             default:
@@ -1234,6 +2304,32 @@ public class main {
                     break;
 
                 case 5:
+                    if (store != null) {
+                        try {
+                            store.save(patientDb, doctorDb, AppointmentManager.getAppointmentsGlobal());
+                        } catch (IOException e) {
+                            System.out.println("Could not save data to " + args[0] + ": " + e.getMessage());
+                        }
+                    }
+                    if (liveFeed != null) {
+                        try {
+                            liveFeed.close();
+                        } catch (IOException e) {
+                            System.out.println("Could not stop the live feed: " + e.getMessage());
+                        }
+                    }
+                    if (gateway != null) {
+                        try {
+                            gateway.close();
+                        } catch (IOException e) {
+                            System.out.println("Could not stop the device gateway: " + e.getMessage());
+                        }
+                    }
+                    try {
+                        vitalsDb.stopRecording();
+                    } catch (IOException e) {
+                        System.out.println("Could not finish the vitals recording: " + e.getMessage());
+                    }
                     System.out.println("Exiting system. Goodbye!");
                     mainLoop = false;
                     break;
@@ -1340,16 +2436,12 @@ public class main {
 // New Modules and Classes to be Integrated
 // -------------------------------
 
-// Notifiable interface for consistent notification behavior.
-interface Notifiable {
-    void sendNotification(String recipient, String message);
-}
-
 // EmailNotification class implementing Notifiable with JavaMail API.
 class EmailNotification implements Notifiable {
     @Override
     public void sendNotification(String recipient, String message) {
-        try {
+        try (Tracing.Span span = main.tracing.child("EmailNotification.send")) {
+            span.attribute("recipient", recipient);
             JavaMailUtil.sendMail(recipient);
             main.addNotification(recipient, "Email Alert: " + message);
         } catch (Exception e) {
@@ -1363,44 +2455,102 @@ class EmailNotification implements Notifiable {
 class SMSNotification implements Notifiable {
     @Override
     public void sendNotification(String recipient, String message) {
-        System.out.println("SMS sent to " + recipient + ": " + message);
+        try (Tracing.Span span = main.tracing.child("SMSNotification.send")) {
+            span.attribute("recipient", recipient);
+            System.out.println("SMS sent to " + recipient + ": " + message);
+        }
     }
 }
 
 // NotificationService uses Notifiable to dispatch notifications.
 class NotificationService {
+    // When set, multi-recipient sends run concurrently on virtual threads instead of one after another.
+    // Toggled from the administrator menu while alerts are being sent, hence volatile.
+    static volatile NotificationFanOut fanOut;
+
     Notifiable emailNotifier = new EmailNotification();
     Notifiable smsNotifier = new SMSNotification();
 
+    // Switches PanicButton, ReminderService and broadcast to the virtual-thread fan-out mode.
+    static void enableFanOut(NotificationFanOut notificationFanOut) {
+        fanOut = notificationFanOut;
+    }
+
+    static void disableFanOut() {
+        fanOut = null;
+    }
+
+    // Sends every delivery, concurrently when fan-out mode is on and sequentially otherwise.
+    static NotificationFanOut.Result dispatch(List<NotificationFanOut.Delivery> deliveries) {
+        NotificationFanOut current = fanOut;
+        if (current != null) {
+            return current.send(deliveries);
+        }
+        return NotificationFanOut.sequential(deliveries);
+    }
+
+    // Sends the same SMS alert to many recipients, e.g. all patients of a clinic.
+    public NotificationFanOut.Result broadcast(List<String> recipients, String message) {
+        try (Tracing.Span span = main.tracing.child("NotificationService.broadcast")) {
+            span.attribute("recipients", String.valueOf(recipients.size()));
+            List<NotificationFanOut.Delivery> deliveries = new ArrayList<>();
+            for (String recipient : recipients) {
+                deliveries.add(new NotificationFanOut.Delivery(smsNotifier, recipient, message));
+            }
+            NotificationFanOut.Result result = dispatch(deliveries);
+            for (String recipient : recipients) {
+                main.addNotification(recipient, "SMS Alert: " + message);
+            }
+            return result;
+        }
+    }
+
     public void sendEmailAlert(String recipient, String message) {
-        emailNotifier.sendNotification(recipient, message);
-        main.addNotification(recipient, "Email Alert: " + message);
+        try (Tracing.Span span = main.tracing.child("NotificationService.sendEmailAlert")) {
+            span.attribute("recipient", recipient);
+            emailNotifier.sendNotification(recipient, message);
+            main.addNotification(recipient, "Email Alert: " + message);
+        }
     }
 
     public void sendSMSAlert(String recipient, String message) {
-        smsNotifier.sendNotification(recipient, message);
-        main.addNotification(recipient, "SMS Alert: " + message);
+        try (Tracing.Span span = main.tracing.child("NotificationService.sendSMSAlert")) {
+            span.attribute("recipient", recipient);
+            smsNotifier.sendNotification(recipient, message);
+            main.addNotification(recipient, "SMS Alert: " + message);
+        }
     }
 }
 
 // EmergencyAlert monitors vitals and triggers alerts if abnormal values are found.
 class EmergencyAlert {
-    private static final int HEART_RATE_WARNING = 100;
-    private static final int HEART_RATE_CRITICAL = 120;
-    private static final int BLOOD_PRESSURE_CRITICAL = 180;
-    private static final int OXYGEN_LOW = 90;
+    static final int HEART_RATE_WARNING = AlertLimits.HEART_RATE_WARNING;
+    static final int HEART_RATE_CRITICAL = AlertLimits.HEART_RATE_CRITICAL;
+    static final int BLOOD_PRESSURE_CRITICAL = AlertLimits.BLOOD_PRESSURE_CRITICAL;
+    static final int OXYGEN_LOW = AlertLimits.OXYGEN_LOW;
 
     NotificationService notificationService = new NotificationService();
 
     public void checkVitals(String patientName, int heartRate, int bloodPressure, int oxygenLevel) {
-        if (heartRate > HEART_RATE_CRITICAL || bloodPressure > BLOOD_PRESSURE_CRITICAL || oxygenLevel < OXYGEN_LOW) {
-            System.out.println("!!! EMERGENCY ALERT !!!");
-            System.out.println("Patient " + patientName + " has abnormal vitals.");
-            notificationService.sendSMSAlert(patientName, "Immediate attention needed.");
-        } else if (heartRate > HEART_RATE_WARNING) {
-            System.out.println("Warning: Increased heart rate detected for " + patientName);
-        } else {
-            System.out.println("Vitals are normal for " + patientName + ":)");
+        // Part of the reading's trace when called while one is being handled, otherwise a trace of its own.
+        try (Tracing.Span span = main.tracing.start("EmergencyAlert.checkVitals")) {
+            span.attribute("patient", patientName);
+            if (heartRate > HEART_RATE_CRITICAL || bloodPressure > BLOOD_PRESSURE_CRITICAL
+                    || oxygenLevel < OXYGEN_LOW) {
+                main.raiseIngestPriority(patientName);
+                System.out.println("!!! EMERGENCY ALERT !!!");
+                System.out.println("Patient " + patientName + " has abnormal vitals.");
+                notificationService.sendSMSAlert(patientName, "Immediate attention needed.");
+                // The on-call clinician must acknowledge it, or it escalates.
+                EscalationEngine.Alert alert = main.escalations.raise(patientName, null,
+                        "Abnormal vitals: heart rate " + heartRate + ", blood pressure " + bloodPressure + ", SpO2 "
+                                + oxygenLevel);
+                System.out.println("Alert #" + alert.id + " sent to " + alert.notified());
+            } else if (heartRate > HEART_RATE_WARNING) {
+                System.out.println("Warning: Increased heart rate detected for " + patientName);
+            } else {
+                System.out.println("Vitals are normal for " + patientName + ":)");
+            }
         }
     }
 }
@@ -1410,9 +2560,35 @@ class PanicButton {
     NotificationService notificationService = new NotificationService();
 
     public void pressButton(String patientName, String doctorName) {
+        try (Tracing.Span span = main.tracing.start("PanicButton.pressButton")) {
+            span.attribute("patient", patientName);
+            alert(patientName, doctorName);
+        }
+    }
+
+    private void alert(String patientName, String doctorName) {
         System.out.println("Panic button pressed for " + patientName);
-        notificationService.sendSMSAlert(patientName, "You triggered the panic button, please wait for the doctor.");
-        notificationService.sendSMSAlert(doctorName, "Immediate response needed for " + patientName);
+        main.raiseIngestPriority(patientName);
+        // Tracked until the doctor acknowledges it; otherwise it escalates along the on-call roster.
+        EscalationEngine.Alert alert = main.escalations.raise(patientName, main.doctorIdFor(doctorName),
+                "Panic button pressed");
+        System.out.println("Alert #" + alert.id + " raised.");
+        if (NotificationService.fanOut == null) {
+            notificationService.sendSMSAlert(patientName, "You triggered the panic button, please wait for the doctor.");
+            notificationService.sendSMSAlert(doctorName, "Immediate response needed for " + patientName);
+            return;
+        }
+        // Fan-out mode: both messages go out at the same time.
+        String patientMessage = "You triggered the panic button, please wait for the doctor.";
+        String doctorMessage = "Immediate response needed for " + patientName;
+        NotificationFanOut.Result result = NotificationService.dispatch(List.of(
+                new NotificationFanOut.Delivery(notificationService.smsNotifier, patientName, patientMessage),
+                new NotificationFanOut.Delivery(notificationService.smsNotifier, doctorName, doctorMessage)));
+        main.addNotification(patientName, "SMS Alert: " + patientMessage);
+        main.addNotification(doctorName, "SMS Alert: " + doctorMessage);
+        if (!result.isComplete()) {
+            System.out.println("Panic alert not fully delivered: " + result);
+        }
     }
 }
 
@@ -1481,8 +2657,14 @@ class ReminderService {
 
     public void sendAppointmentReminder(String recipient, String time) {
         String message = "You have an appointment at " + time;
-        emailNotifier.sendNotification(recipient, message);
-        smsNotifier.sendNotification(recipient, message);
+        if (NotificationService.fanOut != null) {
+            // Fan-out mode: email and SMS are sent at the same time.
+            NotificationService.dispatch(List.of(new NotificationFanOut.Delivery(emailNotifier, recipient, message),
+                    new NotificationFanOut.Delivery(smsNotifier, recipient, message)));
+        } else {
+            emailNotifier.sendNotification(recipient, message);
+            smsNotifier.sendNotification(recipient, message);
+        }
         main.addNotification(recipient, "Appointment Reminder: " + message);
     }
 